@@ -30,15 +30,22 @@ import com.lidroid.xutils.bitmap.callback.BitmapLoadCallBack;
 import com.lidroid.xutils.bitmap.callback.BitmapLoadFrom;
 import com.lidroid.xutils.bitmap.callback.DefaultBitmapLoadCallBack;
 import com.lidroid.xutils.bitmap.core.AsyncDrawable;
+import com.lidroid.xutils.bitmap.core.BitmapCache;
 import com.lidroid.xutils.bitmap.core.BitmapSize;
 import com.lidroid.xutils.bitmap.download.Downloader;
+import com.lidroid.xutils.cache.CacheListener;
+import com.lidroid.xutils.cache.EvictionPolicy;
 import com.lidroid.xutils.cache.FileNameGenerator;
+import com.lidroid.xutils.cache.ReferenceCache;
 import com.lidroid.xutils.task.PriorityAsyncTask;
+import com.lidroid.xutils.task.Priority;
 import com.lidroid.xutils.task.PriorityExecutor;
+import com.lidroid.xutils.task.PriorityRunnable;
 import com.lidroid.xutils.task.TaskHandler;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.List;
 
 public class BitmapUtils implements TaskHandler {
 
@@ -179,6 +186,73 @@ public class BitmapUtils implements TaskHandler {
         return this;
     }
 
+    /**
+     * @see BitmapGlobalConfig#setMaxThreadPoolSize(int)
+     */
+    public BitmapUtils configMaxThreadPoolSize(int maxThreadPoolSize) {
+        globalConfig.setMaxThreadPoolSize(maxThreadPoolSize);
+        return this;
+    }
+
+    /**
+     * @see BitmapGlobalConfig#setDecodeConcurrency(int)
+     */
+    public BitmapUtils configDecodeConcurrency(int decodeConcurrency) {
+        globalConfig.setDecodeConcurrency(decodeConcurrency);
+        return this;
+    }
+
+    public BitmapUtils configMemoryCacheConcurrencyLevel(int concurrencyLevel) {
+        globalConfig.setMemoryCacheConcurrencyLevel(concurrencyLevel);
+        return this;
+    }
+
+    public BitmapUtils configMemoryCacheEvictionPolicy(EvictionPolicy<Object> evictionPolicy) {
+        globalConfig.setMemoryCacheEvictionPolicy(evictionPolicy);
+        return this;
+    }
+
+    public BitmapUtils configMemoryCacheOverflow(ReferenceCache.ReferenceType referenceType) {
+        globalConfig.setMemoryCacheOverflowReferenceType(referenceType);
+        return this;
+    }
+
+    public BitmapUtils configDiskCacheShardCount(int shardCount) {
+        globalConfig.setDiskCacheShardCount(shardCount);
+        return this;
+    }
+
+    public BitmapUtils configDiskCacheSegmentThreshold(int threshold) {
+        globalConfig.setDiskCacheSegmentThreshold(threshold);
+        return this;
+    }
+
+    /**
+     * @see BitmapGlobalConfig#setDiskCacheVerifyChecksums(boolean)
+     */
+    public BitmapUtils configDiskCacheVerifyChecksums(boolean verifyChecksums) {
+        globalConfig.setDiskCacheVerifyChecksums(verifyChecksums);
+        return this;
+    }
+
+    /**
+     * E.g. {@code configDiskCacheWriteBehindSize(1024 * 1024 * 4)}.
+     *
+     * @see BitmapGlobalConfig#setDiskCacheWriteBehindSize(int)
+     */
+    public BitmapUtils configDiskCacheWriteBehindSize(int maxPendingBytes) {
+        globalConfig.setDiskCacheWriteBehindSize(maxPendingBytes);
+        return this;
+    }
+
+    /**
+     * @see BitmapGlobalConfig#setWarmUpCount(int)
+     */
+    public BitmapUtils configWarmUpCount(int count) {
+        globalConfig.setWarmUpCount(count);
+        return this;
+    }
+
     public BitmapUtils configMemoryCacheEnabled(boolean enabled) {
         globalConfig.setMemoryCacheEnabled(enabled);
         return this;
@@ -194,6 +268,25 @@ public class BitmapUtils implements TaskHandler {
         return this;
     }
 
+    /**
+     * Switches the disk cache to {@code fileNameGenerator}, moving the bitmaps
+     * cached under {@code previousFileNameGenerator} names on first use. E.g.
+     * {@code configDiskCacheFileNameGenerator(new Murmur3FileNameGenerator(), new MD5FileNameGenerator())}.
+     */
+    public BitmapUtils configDiskCacheFileNameGenerator(FileNameGenerator fileNameGenerator,
+                                                       FileNameGenerator previousFileNameGenerator) {
+        globalConfig.setFileNameGenerator(fileNameGenerator, previousFileNameGenerator);
+        return this;
+    }
+
+    /**
+     * Receives the hits, misses, removals and disk traffic of the bitmap caches.
+     */
+    public BitmapUtils configCacheListener(CacheListener listener) {
+        globalConfig.setCacheListener(listener);
+        return this;
+    }
+
     public BitmapUtils configBitmapCacheListener(BitmapCacheListener listener) {
         globalConfig.setBitmapCacheListener(listener);
         return this;
@@ -256,11 +349,9 @@ public class BitmapUtils implements TaskHandler {
             //再进行判断有无该对应的url下载任务存在
             final BitmapLoadTask<T> loadTask = new BitmapLoadTask<T>(container, uri, displayConfig, callBack);
 
-            // get executor
+            // get executor: 硬盘缓存中的图片不在下载任务后排队
             PriorityExecutor executor = globalConfig.getBitmapLoadExecutor();
-            File diskCacheFile = this.getBitmapFileFromDiskCache(uri);
-            boolean diskCacheExist = diskCacheFile != null && diskCacheFile.exists();
-            if (diskCacheExist && executor.isBusy()) {
+            if (globalConfig.getBitmapCache().isInDiskCache(uri)) {
                 executor = globalConfig.getDiskCacheExecutor();
             }
             // set loading image
@@ -272,6 +363,47 @@ public class BitmapUtils implements TaskHandler {
         }
     }
 
+    /**
+     * Loads {@code uris} into the memory cache ahead of their display, e.g. the
+     * rows about to scroll into view, on low priority tasks. Nothing is loaded
+     * while the tasks are paused.
+     *
+     * @param displayConfig the config the views will be displayed with. Its max
+     *                      size should be set: without a view to measure, the
+     *                      screen size is used.
+     */
+    public void preload(List<String> uris, BitmapDisplayConfig displayConfig) {
+        if (uris == null || uris.isEmpty()) return;
+
+        if (displayConfig == null || displayConfig == defaultDisplayConfig) {
+            displayConfig = defaultDisplayConfig.cloneNew();
+        }
+        BitmapSize size = displayConfig.getBitmapMaxSize();
+        if (size.getWidth() <= 0 || size.getHeight() <= 0) {
+            BitmapSize screenSize = BitmapCommonUtils.getScreenSize(context);
+            displayConfig.setBitmapMaxSize(new BitmapSize(
+                    size.getWidth() > 0 ? size.getWidth() : screenSize.getWidth(),
+                    size.getHeight() > 0 ? size.getHeight() : screenSize.getHeight()));
+        }
+
+        final BitmapDisplayConfig config = displayConfig;
+        final BitmapCache cache = globalConfig.getBitmapCache();
+        PriorityExecutor executor = globalConfig.getBitmapLoadExecutor();
+        for (final String uri : uris) {
+            if (TextUtils.isEmpty(uri) || cache.getBitmapFromMemCache(uri, config) != null) {
+                continue;
+            }
+            executor.execute(new PriorityRunnable(Priority.BG_LOW, new Runnable() {
+                @Override
+                public void run() {
+                    if (!pauseTask && !cancelAllTask) {
+                        cache.preload(uri, config, new BitmapLoadTask<View>(uri, config));
+                    }
+                }
+            }));
+        }
+    }
+
     /////////////////////////////////////////////// cache /////////////////////////////////////////////////////////////////
 
     public void clearCache() {
@@ -414,6 +546,7 @@ public class BitmapUtils implements TaskHandler {
         private final BitmapDisplayConfig displayConfig;//相关的配置类
 
         private BitmapLoadFrom from = BitmapLoadFrom.DISK_CACHE;
+        private final boolean preload;//预加载任务, 没有容器也不执行
 
         public BitmapLoadTask(T container, String uri, BitmapDisplayConfig config, BitmapLoadCallBack<T> callBack) {
             if (container == null || uri == null || config == null || callBack == null) {
@@ -424,6 +557,32 @@ public class BitmapUtils implements TaskHandler {
             this.callBack = callBack;
             this.uri = uri;
             this.displayConfig = config;
+            this.preload = false;
+        }
+
+        /**
+         * The task handed to the downloader by {@link #preload}. It is never
+         * executed, has no container and publishes no progress.
+         */
+        private BitmapLoadTask(String uri, BitmapDisplayConfig config) {
+            this.containerReference = new WeakReference<T>(null);
+            this.callBack = null;
+            this.uri = uri;
+            this.displayConfig = config;
+            this.preload = true;
+        }
+
+        public boolean isPreload() {
+            return preload;
+        }
+
+        /**
+         * @return true if the load should stop: the task was cancelled or its
+         * container shows another uri now. A preload stops on {@link BitmapUtils#cancel()}.
+         */
+        public boolean isAborted() {
+            if (preload) return cancelAllTask;
+            return this.isCancelled() || this.getTargetContainer() == null;
         }
 
         @Override
@@ -458,7 +617,16 @@ public class BitmapUtils implements TaskHandler {
             return bitmap;
         }
 
+        /**
+         * Called by the {@link com.lidroid.xutils.bitmap.download.Downloader};
+         * the progress also goes to the tasks waiting for the same download.
+         */
         public void updateProgress(long total, long current) {
+            globalConfig.getBitmapCache().dispatchDownloadProgress(uri, displayConfig, this, total, current);
+        }
+
+        public void publishDownloadProgress(long total, long current) {
+            if (preload) return;
             this.publishProgress(PROGRESS_LOADING, total, current);
         }
 
@@ -15,7 +15,11 @@
 
 package com.lidroid.xutils;
 
+import android.content.Context;
 import android.text.TextUtils;
+import com.lidroid.xutils.cache.CacheListener;
+import com.lidroid.xutils.cache.MemoryGovernor;
+import com.lidroid.xutils.cache.SlabStore;
 import com.lidroid.xutils.exception.HttpException;
 import com.lidroid.xutils.http.*;
 import com.lidroid.xutils.http.callback.HttpRedirectHandler;
@@ -160,11 +164,58 @@ public class HttpUtils {
         return this;
     }
 
+    /**
+     * Shrinks the http cache when the system runs low on memory, see {@link MemoryGovernor}.
+     * BitmapUtils does the same for any context it is given.
+     */
+    public HttpUtils configMemoryGovernor(Context context) {
+        MemoryGovernor.getInstance().install(context);
+        return this;
+    }
+
     public HttpUtils configHttpCacheSize(int httpCacheSize) {
         sHttpCache.setCacheSize(httpCacheSize);
         return this;
     }
 
+    public HttpUtils configHttpCacheConcurrencyLevel(int concurrencyLevel) {
+        sHttpCache.setConcurrencyLevel(concurrencyLevel);
+        return this;
+    }
+
+    /**
+     * Keeps the cached responses in {@code directory} across launches, see {@link HttpCache#setDiskCache}.
+     */
+    public HttpUtils configHttpCacheDiskCache(File directory, long maxSize) {
+        sHttpCache.setDiskCache(directory, maxSize);
+        return this;
+    }
+
+    /**
+     * Serves expired responses for up to {@code maxStaleness} ms while they are
+     * refreshed in the background, see {@link HttpCache#setStaleWhileRevalidate}.
+     */
+    public HttpUtils configHttpCacheStaleWhileRevalidate(long maxStaleness) {
+        sHttpCache.setStaleWhileRevalidate(maxStaleness);
+        return this;
+    }
+
+    /**
+     * Keeps the cached response bodies of at least {@code minBodySize} bytes
+     * in up to {@code maxSize} bytes of direct memory instead of the heap.
+     *
+     * @param maxSize 0 to disable.
+     */
+    public HttpUtils configHttpCacheOffHeap(long maxSize, int minBodySize) {
+        sHttpCache.setOffHeapStore(maxSize > 0 ? new SlabStore(maxSize) : null, minBodySize);
+        return this;
+    }
+
+    public HttpUtils configHttpCacheListener(CacheListener listener) {
+        sHttpCache.setCacheListener(listener);
+        return this;
+    }
+
     public HttpUtils configDefaultHttpCacheExpiry(long defaultExpiry) {
         HttpCache.setDefaultExpiryTime(defaultExpiry);
         currentRequestExpiry = HttpCache.getDefaultExpiryTime();
@@ -23,14 +23,35 @@ import com.lidroid.xutils.BitmapUtils;
 import com.lidroid.xutils.bitmap.BitmapDisplayConfig;
 import com.lidroid.xutils.bitmap.BitmapGlobalConfig;
 import com.lidroid.xutils.bitmap.factory.BitmapFactory;
+import com.lidroid.xutils.cache.CacheListener;
+import com.lidroid.xutils.cache.CacheLoader;
+import com.lidroid.xutils.cache.CacheStats;
+import com.lidroid.xutils.cache.DiskCache;
+import com.lidroid.xutils.cache.DiskWriteBehind;
+import com.lidroid.xutils.cache.EvictionPolicy;
 import com.lidroid.xutils.cache.FileNameGenerator;
 import com.lidroid.xutils.cache.LruDiskCache;
 import com.lidroid.xutils.cache.LruMemoryCache;
+import com.lidroid.xutils.cache.MemoryGovernor;
+import com.lidroid.xutils.cache.ReferenceCache;
+import com.lidroid.xutils.cache.ShardedDiskCache;
+import com.lidroid.xutils.task.Priority;
+import com.lidroid.xutils.task.PriorityRunnable;
+import com.lidroid.xutils.task.StageGate;
+import com.lidroid.xutils.util.ByteArrayPool;
 import com.lidroid.xutils.util.IOUtils;
 import com.lidroid.xutils.util.LogUtils;
 import com.lidroid.xutils.util.OtherUtils;
+import com.lidroid.xutils.util.PoolingByteArrayOutputStream;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * 位图的缓存
@@ -38,12 +59,23 @@ import java.io.*;
 public class BitmapCache {
 
     private final int DISK_CACHE_INDEX = 0;
+    private final static int BUFFER_POOL_SIZE = 1024 * 1024 * 2; // 2 MiB
+    //预热列表在硬盘缓存中的键
+    private final static String WARM_UP_KEY = "xUtils.warmUp";
+    private final static int WARM_UP_VERSION = 1;
     //disk的lru缓存
-    private LruDiskCache mDiskLruCache;
+    private volatile DiskCache mDiskLruCache;
+    //硬盘的后台写入, 下载后先解码再提交
+    private volatile DiskWriteBehind mWriteBehind;
+    //下载缓冲区的池
+    private final ByteArrayPool mBufferPool = new ByteArrayPool(BUFFER_POOL_SIZE);
     //用LruMemoryCache管理Bitmap
     private LruMemoryCache<MemoryCacheKey, Bitmap> mMemoryCache;
     //锁
     private final Object mDiskCacheLock = new Object();
+    //等待同一下载的任务, 用于分发下载进度
+    private final ConcurrentHashMap<MemoryCacheKey, List<BitmapUtils.BitmapLoadTask<?>>> mDownloadWaiters =
+            new ConcurrentHashMap<MemoryCacheKey, List<BitmapUtils.BitmapLoadTask<?>>>();
 
     private BitmapGlobalConfig globalConfig;
 
@@ -55,6 +87,7 @@ public class BitmapCache {
     public BitmapCache(BitmapGlobalConfig globalConfig) {
         if (globalConfig == null) throw new IllegalArgumentException("globalConfig may not be null");
         this.globalConfig = globalConfig;
+        MemoryGovernor.getInstance().register(mBufferPool);
     }
 
 
@@ -70,8 +103,10 @@ public class BitmapCache {
                 clearMemoryCache();
             } catch (Throwable e) {
             }
+            MemoryGovernor.getInstance().unregister(mMemoryCache);
         }
-        mMemoryCache = new LruMemoryCache<MemoryCacheKey, Bitmap>(globalConfig.getMemoryCacheSize()) {
+        mMemoryCache = new LruMemoryCache<MemoryCacheKey, Bitmap>(
+                globalConfig.getMemoryCacheSize(), globalConfig.getMemoryCacheConcurrencyLevel()) {
             /**
              * Measure item size in bytes rather than units which is more practical
              * for a bitmap cache
@@ -82,6 +117,11 @@ public class BitmapCache {
                 return bitmap.getRowBytes() * bitmap.getHeight();
             }
         };
+        mMemoryCache.setEvictionPolicy(globalConfig.getMemoryCacheEvictionPolicy());
+        mMemoryCache.setOverflowReferenceType(globalConfig.getMemoryCacheOverflowReferenceType());
+        mMemoryCache.getStats().setName("bitmap.memory");
+        mMemoryCache.getStats().setListener(globalConfig.getCacheListener());
+        MemoryGovernor.getInstance().register(mMemoryCache);
     }
 
     /**
@@ -100,8 +140,19 @@ public class BitmapCache {
                     long diskCacheSize = globalConfig.getDiskCacheSize();
                     diskCacheSize = availableSpace > diskCacheSize ? diskCacheSize : availableSpace;
                     try {
-                        mDiskLruCache = LruDiskCache.open(diskCacheDir, 1, 1, diskCacheSize);
-                        mDiskLruCache.setFileNameGenerator(globalConfig.getFileNameGenerator());
+                        int shardCount = globalConfig.getDiskCacheShardCount();
+                        if (shardCount > 1) {
+                            mDiskLruCache = ShardedDiskCache.open(diskCacheDir, 1, 1, diskCacheSize, shardCount);
+                        } else {
+                            mDiskLruCache = LruDiskCache.open(diskCacheDir, 1, 1, diskCacheSize);
+                        }
+                        mDiskLruCache.setFileNameGenerator(
+                                globalConfig.getFileNameGenerator(), globalConfig.getPreviousFileNameGenerator());
+                        mDiskLruCache.setSegmentThreshold(globalConfig.getDiskCacheSegmentThreshold());
+                        mDiskLruCache.setVerifyChecksums(globalConfig.isDiskCacheVerifyChecksums());
+                        mDiskLruCache.getStats().setName("bitmap.disk");
+                        mDiskLruCache.getStats().setListener(globalConfig.getCacheListener());
+                        mWriteBehind = createWriteBehind(mDiskLruCache, globalConfig.getDiskCacheWriteBehindSize());
                         LogUtils.d("create disk cache success");
                     } catch (Throwable e) {
                         mDiskLruCache = null;
@@ -118,6 +169,18 @@ public class BitmapCache {
         }
     }
 
+    public void setMemoryCacheEvictionPolicy(EvictionPolicy<Object> evictionPolicy) {
+        if (mMemoryCache != null) {
+            mMemoryCache.setEvictionPolicy(evictionPolicy);
+        }
+    }
+
+    public void setMemoryCacheOverflowReferenceType(ReferenceCache.ReferenceType referenceType) {
+        if (mMemoryCache != null) {
+            mMemoryCache.setOverflowReferenceType(referenceType);
+        }
+    }
+
     public void setDiskCacheSize(int maxSize) {
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null) {
@@ -126,15 +189,179 @@ public class BitmapCache {
         }
     }
 
+    public void setDiskCacheSegmentThreshold(int threshold) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null) {
+                mDiskLruCache.setSegmentThreshold(threshold);
+            }
+        }
+    }
+
+    public void setDiskCacheVerifyChecksums(boolean verifyChecksums) {
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null) {
+                mDiskLruCache.setVerifyChecksums(verifyChecksums);
+            }
+        }
+    }
+
     public void setDiskCacheFileNameGenerator(FileNameGenerator fileNameGenerator) {
+        setDiskCacheFileNameGenerator(fileNameGenerator, null);
+    }
+
+    public void setDiskCacheFileNameGenerator(FileNameGenerator fileNameGenerator,
+                                              FileNameGenerator previousFileNameGenerator) {
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null && fileNameGenerator != null) {
-                mDiskLruCache.setFileNameGenerator(fileNameGenerator);
+                mDiskLruCache.setFileNameGenerator(fileNameGenerator, previousFileNameGenerator);
+            }
+        }
+    }
+
+    /**
+     * @param maxPendingBytes 0 to commit the downloads before decoding them.
+     */
+    public void setDiskCacheWriteBehindSize(int maxPendingBytes) {
+        synchronized (mDiskCacheLock) {
+            closeWriteBehind(false);
+            if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                mWriteBehind = createWriteBehind(mDiskLruCache, maxPendingBytes);
+            }
+        }
+    }
+
+    private DiskWriteBehind createWriteBehind(DiskCache diskCache, int maxPendingBytes) {
+        return maxPendingBytes > 0 ? new DiskWriteBehind(diskCache, maxPendingBytes) : null;
+    }
+
+    /**
+     * @param cancel drop the pending writes instead of committing them.
+     */
+    private void closeWriteBehind(boolean cancel) {
+        DiskWriteBehind writeBehind = mWriteBehind;
+        mWriteBehind = null;
+        if (writeBehind != null) {
+            if (cancel) {
+                try {
+                    writeBehind.cancelAll();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            writeBehind.close();
+        }
+    }
+
+    /**
+     * Waits for the pending write of {@code uri}, so that the disk cache has it.
+     */
+    private void awaitWriteBehind(String uri) {
+        DiskWriteBehind writeBehind = mWriteBehind;
+        if (writeBehind != null) {
+            try {
+                writeBehind.await(uri);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void setCacheListener(CacheListener listener) {
+        LruMemoryCache<MemoryCacheKey, Bitmap> memoryCache = mMemoryCache;
+        if (memoryCache != null) {
+            memoryCache.getStats().setListener(listener);
+        }
+        synchronized (mDiskCacheLock) {
+            if (mDiskLruCache != null) {
+                mDiskLruCache.getStats().setListener(listener);
             }
         }
     }
 
-    public Bitmap downloadBitmap(String uri, BitmapDisplayConfig config, final BitmapUtils.BitmapLoadTask<?> task) {
+    /**
+     * @return null if the memory cache is disabled.
+     */
+    public CacheStats getMemoryCacheStats() {
+        LruMemoryCache<MemoryCacheKey, Bitmap> memoryCache = mMemoryCache;
+        return memoryCache == null ? null : memoryCache.getStats();
+    }
+
+    /**
+     * @return null if the disk cache is disabled or not initialized yet.
+     */
+    public CacheStats getDiskCacheStats() {
+        synchronized (mDiskCacheLock) {
+            return mDiskLruCache == null ? null : mDiskLruCache.getStats();
+        }
+    }
+
+    /**
+     * Downloads the bitmap and adds it to the memory cache. Concurrent calls for
+     * the same uri and config share one download: its progress is reported to
+     * every waiting task, and if the task downloading is cancelled one of the
+     * waiting tasks downloads the bitmap instead.
+     */
+    public Bitmap downloadBitmap(final String uri, final BitmapDisplayConfig config, final BitmapUtils.BitmapLoadTask<?> task) {
+        MemoryCacheKey key = new MemoryCacheKey(uri, config);
+        addDownloadWaiter(key, task);
+        try {
+            return loadBitmap(uri, config, new BitmapLoader() {
+                @Override
+                public Bitmap load(MemoryCacheKey key) {
+                    Bitmap bitmap = downloadBitmap(uri, config, task, this);
+                    if (bitmap == null && task != null && task.isAborted()) {
+                        throw new CancellationException(uri);
+                    }
+                    return bitmap;
+                }
+            });
+        } finally {
+            removeDownloadWaiter(key, task);
+        }
+    }
+
+    /**
+     * Reports the progress of the download run by {@code task} to {@code task}
+     * and to the tasks waiting for the same download.
+     */
+    public void dispatchDownloadProgress(String uri, BitmapDisplayConfig config,
+                                         BitmapUtils.BitmapLoadTask<?> task, long total, long current) {
+        List<BitmapUtils.BitmapLoadTask<?>> waiters = mDownloadWaiters.get(new MemoryCacheKey(uri, config));
+        if (waiters == null || !waiters.contains(task)) {
+            task.publishDownloadProgress(total, current);
+            return;
+        }
+        for (BitmapUtils.BitmapLoadTask<?> waiter : waiters) {
+            waiter.publishDownloadProgress(total, current);
+        }
+    }
+
+    private void addDownloadWaiter(MemoryCacheKey key, BitmapUtils.BitmapLoadTask<?> task) {
+        if (task == null) return;
+        synchronized (mDownloadWaiters) {
+            List<BitmapUtils.BitmapLoadTask<?>> waiters = mDownloadWaiters.get(key);
+            if (waiters == null) {
+                waiters = new CopyOnWriteArrayList<BitmapUtils.BitmapLoadTask<?>>();
+                mDownloadWaiters.put(key, waiters);
+            }
+            waiters.add(task);
+        }
+    }
+
+    private void removeDownloadWaiter(MemoryCacheKey key, BitmapUtils.BitmapLoadTask<?> task) {
+        if (task == null) return;
+        synchronized (mDownloadWaiters) {
+            List<BitmapUtils.BitmapLoadTask<?>> waiters = mDownloadWaiters.get(key);
+            if (waiters != null) {
+                waiters.remove(task);
+                if (waiters.isEmpty()) {
+                    mDownloadWaiters.remove(key);
+                }
+            }
+        }
+    }
+
+    private Bitmap downloadBitmap(String uri, BitmapDisplayConfig config, BitmapUtils.BitmapLoadTask<?> task, BitmapLoader loader) {
 
         BitmapMeta bitmapMeta = new BitmapMeta();
 
@@ -152,8 +379,27 @@ public class BitmapCache {
 
                 if (mDiskLruCache != null) {
                     try {
+                        DiskWriteBehind writeBehind = mWriteBehind;
+                        awaitWriteBehind(uri);
                         snapshot = mDiskLruCache.get(uri);
-                        if (snapshot == null) {
+                        if (snapshot == null && writeBehind != null) {
+                            // 下载到内存缓冲区后立即解码, 写线程随后提交到硬盘
+                            PoolingByteArrayOutputStream buffer = new PoolingByteArrayOutputStream(mBufferPool);
+                            outputStream = buffer;
+                            bitmapMeta.expiryTimestamp = globalConfig.getDownloader().downloadToStream(uri, buffer, task);
+                            if (bitmapMeta.expiryTimestamp < 0) {
+                                return null;
+                            }
+                            writeBehind.write(uri, buffer, bitmapMeta.expiryTimestamp);
+                            bitmapMeta.data = buffer.getBuf();
+                            bitmapMeta.length = buffer.size();
+                            bitmap = decodeBitmapMeta(uri, bitmapMeta, config);
+                            if (bitmap == null) {
+                                bitmapMeta.data = null;
+                                writeBehind.cancel(uri);
+                                mDiskLruCache.remove(uri);
+                            }
+                        } else if (snapshot == null) {
                             LruDiskCache.Editor editor = mDiskLruCache.edit(uri);
                             if (editor != null) {
                                 outputStream = editor.newOutputStream(DISK_CACHE_INDEX);
@@ -170,12 +416,16 @@ public class BitmapCache {
                         }
                         if (snapshot != null) {
                             bitmapMeta.inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                            bitmap = decodeBitmapMeta(bitmapMeta, config);
+                            bitmap = decodeBitmapMeta(uri, bitmapMeta, config);
                             if (bitmap == null) {
                                 bitmapMeta.inputStream = null;
                                 mDiskLruCache.remove(uri);
                             }
                         }
+                    } catch (InterruptedException e) {
+                        // 任务被取消, 不再下载到内存
+                        Thread.currentThread().interrupt();
+                        return null;
                     } catch (Throwable e) {
                         LogUtils.e(e.getMessage(), e);
                     }
@@ -184,21 +434,26 @@ public class BitmapCache {
 
             // try download to memory stream
             if (bitmap == null) {
-                outputStream = new ByteArrayOutputStream();
-                bitmapMeta.expiryTimestamp = globalConfig.getDownloader().downloadToStream(uri, outputStream, task);
+                IOUtils.closeQuietly(outputStream);
+                PoolingByteArrayOutputStream buffer = new PoolingByteArrayOutputStream(mBufferPool);
+                outputStream = buffer;
+                bitmapMeta.expiryTimestamp = globalConfig.getDownloader().downloadToStream(uri, buffer, task);
                 if (bitmapMeta.expiryTimestamp < 0) {
                     return null;
                 } else {
-                    bitmapMeta.data = ((ByteArrayOutputStream) outputStream).toByteArray();
-                    bitmap = decodeBitmapMeta(bitmapMeta, config);
+                    bitmapMeta.data = buffer.getBuf();
+                    bitmapMeta.length = buffer.size();
+                    bitmap = decodeBitmapMeta(uri, bitmapMeta, config);
                 }
             }
 
             if (bitmap != null) {
-                bitmap = rotateBitmapIfNeeded(uri, config, bitmap);
-                bitmap = addBitmapToMemoryCache(uri, config, bitmap, bitmapMeta.expiryTimestamp);
+                loader.expiryTimestamp = bitmapMeta.expiryTimestamp;
             }
             return bitmap;
+        } catch (InterruptedException e) {
+            // 在解码关口等待时任务被取消
+            Thread.currentThread().interrupt();
         } catch (Throwable e) {
             LogUtils.e(e.getMessage(), e);
         } finally {
@@ -209,20 +464,51 @@ public class BitmapCache {
         return null;
     }
 
-    private Bitmap addBitmapToMemoryCache(String uri, BitmapDisplayConfig config, Bitmap bitmap, long expiryTimestamp) throws IOException {
-        if (config != null) {
-            BitmapFactory bitmapFactory = config.getBitmapFactory();
-            if (bitmapFactory != null) {
-                bitmap = bitmapFactory.cloneNew().createBitmap(bitmap);
+    /**
+     * Rotates the bitmap by {@code angle} and applies the BitmapFactory of
+     * {@code config}. Called in the decode stage.
+     */
+    private Bitmap transformBitmap(BitmapDisplayConfig config, Bitmap bitmap, int angle) {
+        BitmapFactory bitmapFactory = config == null ? null : config.getBitmapFactory();
+        if (bitmap == null || (angle == 0 && bitmapFactory == null)) {
+            return bitmap;
+        }
+        if (angle != 0) {
+            Matrix m = new Matrix();
+            m.postRotate(angle);
+            Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+            if (rotated != bitmap) {
+                bitmap.recycle();
             }
+            bitmap = rotated;
         }
-        if (uri != null && bitmap != null && globalConfig.isMemoryCacheEnabled() && mMemoryCache != null) {
-            MemoryCacheKey key = new MemoryCacheKey(uri, config);
-            mMemoryCache.put(key, bitmap, expiryTimestamp);
+        if (bitmapFactory != null) {
+            bitmap = bitmapFactory.cloneNew().createBitmap(bitmap);
         }
         return bitmap;
     }
 
+    /**
+     * Runs {@code loader} through the memory cache, so that the result is cached
+     * and concurrent loads of the same key are coalesced.
+     */
+    private Bitmap loadBitmap(String uri, BitmapDisplayConfig config, BitmapLoader loader) {
+        MemoryCacheKey key = new MemoryCacheKey(uri, config);
+        LruMemoryCache<MemoryCacheKey, Bitmap> memoryCache = mMemoryCache;
+        try {
+            if (memoryCache != null && globalConfig.isMemoryCacheEnabled()) {
+                return memoryCache.getOrLoad(key, loader);
+            } else {
+                return loader.load(key);
+            }
+        } catch (CancellationException e) {
+            return null; // 该任务已取消
+        } catch (Throwable e) {
+            LogUtils.e(e.getMessage(), e);
+        }
+        return null;
+    }
+
     /**
      * Get the bitmap from memory cache.
      *
@@ -239,12 +525,36 @@ public class BitmapCache {
     }
 
     /**
-     * Get the bitmap file from disk cache.
+     * Tells whether the disk cache has {@code uri}, counting a download that
+     * still waits for the write-behind thread as cached, see
+     * {@link DiskCache#contains(String)}. Neither waits for that write nor
+     * touches the files, so it can pick the executor on the UI thread.
+     */
+    public boolean isInDiskCache(String uri) {
+        DiskWriteBehind writeBehind = mWriteBehind;
+        if (writeBehind != null && writeBehind.isPending(uri)) {
+            return true;
+        }
+        DiskCache diskCache = mDiskLruCache;
+        if (diskCache == null || diskCache.isClosed()) {
+            return false;
+        }
+        try {
+            return diskCache.contains(uri);
+        } catch (Throwable e) {
+            return false; // closed meanwhile
+        }
+    }
+
+    /**
+     * Get the bitmap file from disk cache. Waits for a pending write-behind of
+     * {@code uri}: not for the UI thread, see {@link #isInDiskCache(String)}.
      *
      * @param uri Unique identifier for which item to get
      * @return The file if found in cache.
      */
     public File getBitmapFileFromDiskCache(String uri) {
+        awaitWriteBehind(uri);
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null) {
                 return mDiskLruCache.getCacheFile(uri, DISK_CACHE_INDEX);
@@ -261,31 +571,37 @@ public class BitmapCache {
      * @param config
      * @return
      */
-    public Bitmap getBitmapFromDiskCache(String uri, BitmapDisplayConfig config) {
+    public Bitmap getBitmapFromDiskCache(final String uri, final BitmapDisplayConfig config) {
         if (uri == null || !globalConfig.isDiskCacheEnabled()) return null;
+        return loadBitmap(uri, config, new BitmapLoader() {
+            @Override
+            public Bitmap load(MemoryCacheKey key) {
+                return decodeBitmapFromDiskCache(uri, config, this);
+            }
+        });
+    }
+
+    private Bitmap decodeBitmapFromDiskCache(String uri, BitmapDisplayConfig config, BitmapLoader loader) {
         if (mDiskLruCache == null) {
             initDiskCache();
         }
         if (mDiskLruCache != null) {
             LruDiskCache.Snapshot snapshot = null;
             try {
+                awaitWriteBehind(uri);
                 snapshot = mDiskLruCache.get(uri);
                 if (snapshot != null) {
-                    Bitmap bitmap = null;
-                    if (config == null || config.isShowOriginal()) {
-                        bitmap = BitmapDecoder.decodeFileDescriptor(
-                                snapshot.getInputStream(DISK_CACHE_INDEX).getFD());
-                    } else {
-                        bitmap = BitmapDecoder.decodeSampledBitmapFromDescriptor(
-                                snapshot.getInputStream(DISK_CACHE_INDEX).getFD(),
-                                config.getBitmapMaxSize(),
-                                config.getBitmapConfig());
-                    }
+                    BitmapMeta bitmapMeta = new BitmapMeta();
+                    bitmapMeta.inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    Bitmap bitmap = decodeBitmapMeta(uri, bitmapMeta, config);
 
-                    bitmap = rotateBitmapIfNeeded(uri, config, bitmap);
-                    bitmap = addBitmapToMemoryCache(uri, config, bitmap, mDiskLruCache.getExpiryTimestamp(uri));
+                    if (bitmap != null) {
+                        loader.expiryTimestamp = mDiskLruCache.getExpiryTimestamp(uri);
+                    }
                     return bitmap;
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (Throwable e) {
                 LogUtils.e(e.getMessage(), e);
             } finally {
@@ -312,6 +628,7 @@ public class BitmapCache {
 
     public void clearDiskCache() {
         synchronized (mDiskCacheLock) {
+            closeWriteBehind(true);
             if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
                 try {
                     mDiskLruCache.delete();
@@ -344,6 +661,10 @@ public class BitmapCache {
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
                 try {
+                    DiskWriteBehind writeBehind = mWriteBehind;
+                    if (writeBehind != null) {
+                        writeBehind.cancel(uri);
+                    }
                     mDiskLruCache.remove(uri);
                 } catch (Throwable e) {
                     LogUtils.e(e.getMessage(), e);
@@ -357,6 +678,16 @@ public class BitmapCache {
      * disk access so this should not be executed on the main/UI thread.
      */
     public void flush() {
+        saveWarmUpList();
+        // 在锁外等待后台写入, 以免阻塞需要该锁的线程
+        DiskWriteBehind writeBehind = mWriteBehind;
+        if (writeBehind != null) {
+            try {
+                writeBehind.drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null) {
                 try {
@@ -373,7 +704,9 @@ public class BitmapCache {
      * disk access so this should not be executed on the main/UI thread.
      */
     public void close() {
+        saveWarmUpList();
         synchronized (mDiskCacheLock) {
+            closeWriteBehind(false);
             if (mDiskLruCache != null) {
                 try {
                     if (!mDiskLruCache.isClosed()) {
@@ -387,14 +720,173 @@ public class BitmapCache {
         }
     }
 
+    /**
+     * Loads {@code uri} into the memory cache ahead of its display: from the
+     * disk cache, or else from the network.
+     *
+     * @param task a preload task, see {@link BitmapUtils.BitmapLoadTask#isPreload()}.
+     */
+    public Bitmap preload(String uri, BitmapDisplayConfig config, BitmapUtils.BitmapLoadTask<?> task) {
+        Bitmap bitmap = getBitmapFromMemCache(uri, config);
+        if (bitmap == null) {
+            bitmap = getBitmapFromDiskCache(uri, config);
+        }
+        if (bitmap == null) {
+            bitmap = downloadBitmap(uri, config, task);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Records the bitmaps of the memory cache, most recently used first, for
+     * {@link #warmUp} after a restart. The order spans all segments of the
+     * memory cache, see {@link LruMemoryCache#snapshot()}. Bitmaps made by a {@link BitmapFactory}
+     * are left out since the factory can't be recreated.
+     */
+    public void saveWarmUpList() {
+        LruMemoryCache<MemoryCacheKey, Bitmap> memoryCache = mMemoryCache;
+        int maxCount = globalConfig.getWarmUpCount();
+        if (memoryCache == null || maxCount <= 0) return;
+
+        List<MemoryCacheKey> keys = new ArrayList<MemoryCacheKey>(memoryCache.snapshot().keySet());
+        Collections.reverse(keys);
+        List<MemoryCacheKey> warmUpKeys = new ArrayList<MemoryCacheKey>();
+        for (MemoryCacheKey key : keys) {
+            if (warmUpKeys.size() >= maxCount) break;
+            if (key.config == null || key.config.getBitmapFactory() == null) {
+                warmUpKeys.add(key);
+            }
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(WARM_UP_VERSION);
+            out.writeInt(warmUpKeys.size());
+            for (MemoryCacheKey key : warmUpKeys) {
+                out.writeUTF(key.uri);
+                BitmapDisplayConfig config = key.config;
+                out.writeBoolean(config != null);
+                if (config != null) {
+                    out.writeBoolean(config.isShowOriginal());
+                    out.writeBoolean(config.isAutoRotation());
+                    out.writeInt(config.getBitmapMaxSize().getWidth());
+                    out.writeInt(config.getBitmapMaxSize().getHeight());
+                    out.writeUTF(config.getBitmapConfig() == null ? "" : config.getBitmapConfig().name());
+                }
+            }
+            out.close();
+
+            synchronized (mDiskCacheLock) {
+                if (mDiskLruCache == null || mDiskLruCache.isClosed()) return;
+                LruDiskCache.Editor editor = mDiskLruCache.edit(WARM_UP_KEY);
+                if (editor != null) {
+                    try {
+                        editor.set(DISK_CACHE_INDEX, bytes.toByteArray());
+                        editor.commit();
+                    } finally {
+                        editor.abortUnlessCommitted();
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            LogUtils.e(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decodes the bitmaps recorded by {@link #saveWarmUpList} from the disk
+     * cache into the memory cache, one low priority task each on
+     * {@code executor}, until the memory cache is three quarters full.
+     */
+    public void warmUp(Executor executor) {
+        if (globalConfig.getWarmUpCount() <= 0 || mMemoryCache == null) return;
+
+        for (final MemoryCacheKey key : readWarmUpList()) {
+            executor.execute(new PriorityRunnable(Priority.BG_LOW, new Runnable() {
+                @Override
+                public void run() {
+                    LruMemoryCache<MemoryCacheKey, Bitmap> memoryCache = mMemoryCache;
+                    if (memoryCache == null || memoryCache.size() >= memoryCache.capacity() / 4 * 3) {
+                        return;
+                    }
+                    if (!memoryCache.containsKey(key)) {
+                        getBitmapFromDiskCache(key.uri, key.config);
+                    }
+                }
+            }));
+        }
+    }
+
+    private List<MemoryCacheKey> readWarmUpList() {
+        List<MemoryCacheKey> keys = new ArrayList<MemoryCacheKey>();
+        LruDiskCache.Snapshot snapshot = null;
+        try {
+            DiskCache diskCache = mDiskLruCache;
+            snapshot = diskCache == null ? null : diskCache.get(WARM_UP_KEY);
+            if (snapshot == null) return keys;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot.getBytes(DISK_CACHE_INDEX)));
+            if (in.readInt() != WARM_UP_VERSION) return keys;
+            int count = Math.min(in.readInt(), globalConfig.getWarmUpCount());
+            for (int i = 0; i < count; i++) {
+                String uri = in.readUTF();
+                BitmapDisplayConfig config = null;
+                if (in.readBoolean()) {
+                    config = new BitmapDisplayConfig();
+                    config.setShowOriginal(in.readBoolean());
+                    config.setAutoRotation(in.readBoolean());
+                    config.setBitmapMaxSize(new BitmapSize(in.readInt(), in.readInt()));
+                    String bitmapConfig = in.readUTF();
+                    config.setBitmapConfig(bitmapConfig.length() == 0 ? null : Bitmap.Config.valueOf(bitmapConfig));
+                }
+                keys.add(new MemoryCacheKey(uri, config));
+            }
+        } catch (Throwable e) {
+            LogUtils.e(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(snapshot);
+        }
+        return keys;
+    }
+
+    /**
+     * Loads a bitmap missing from the memory cache and records its expiry.
+     */
+    private abstract class BitmapLoader extends CacheLoader<MemoryCacheKey, Bitmap> {
+        private long expiryTimestamp = Long.MAX_VALUE;
+
+        @Override
+        public long getExpiryTimestamp(MemoryCacheKey key, Bitmap value) {
+            return expiryTimestamp;
+        }
+    }
+
     private class BitmapMeta {
         public FileInputStream inputStream;
         public byte[] data;
+        public int length;
         public long expiryTimestamp;
     }
 
-    private Bitmap decodeBitmapMeta(BitmapMeta bitmapMeta, BitmapDisplayConfig config) throws IOException {
+    /**
+     * Decodes the downloaded or cached bytes and transforms the bitmap in the
+     * decode stage: the thread waits at the decode gate of the global config
+     * while as many bitmaps as it allows are being decoded, and passes it once.
+     */
+    private Bitmap decodeBitmapMeta(String uri, BitmapMeta bitmapMeta, BitmapDisplayConfig config) throws IOException, InterruptedException {
         if (bitmapMeta == null) return null;
+        int angle = getRotationAngle(uri, config);
+        StageGate decodeGate = globalConfig.getDecodeGate();
+        decodeGate.enter(config == null ? null : config.getPriority());
+        try {
+            return transformBitmap(config, decodeBitmap(bitmapMeta, config), angle);
+        } finally {
+            decodeGate.leave();
+        }
+    }
+
+    private Bitmap decodeBitmap(BitmapMeta bitmapMeta, BitmapDisplayConfig config) throws IOException {
         Bitmap bitmap = null;
         if (bitmapMeta.inputStream != null) {
             if (config == null || config.isShowOriginal()) {
@@ -406,11 +898,12 @@ public class BitmapCache {
                         config.getBitmapConfig());
             }
         } else if (bitmapMeta.data != null) {
+            // 缓冲区来自池, 位图不能引用它
             if (config == null || config.isShowOriginal()) {
-                bitmap = BitmapDecoder.decodeByteArray(bitmapMeta.data);
+                bitmap = BitmapDecoder.decodeByteArray(bitmapMeta.data, 0, bitmapMeta.length);
             } else {
                 bitmap = BitmapDecoder.decodeSampledBitmapFromByteArray(
-                        bitmapMeta.data,
+                        bitmapMeta.data, 0, bitmapMeta.length,
                         config.getBitmapMaxSize(),
                         config.getBitmapConfig());
             }
@@ -418,43 +911,37 @@ public class BitmapCache {
         return bitmap;
     }
 
-    private synchronized Bitmap rotateBitmapIfNeeded(String uri, BitmapDisplayConfig config, Bitmap bitmap) {
-        Bitmap result = bitmap;
-        if (config != null && config.isAutoRotation()) {
-            File bitmapFile = this.getBitmapFileFromDiskCache(uri);
-            if (bitmapFile != null && bitmapFile.exists()) {
-                ExifInterface exif = null;
-                try {
-                    exif = new ExifInterface(bitmapFile.getPath());
-                } catch (Throwable e) {
-                    return result;
-                }
-                int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
-                int angle = 0;
-                switch (orientation) {
-                    case ExifInterface.ORIENTATION_ROTATE_90:
-                        angle = 90;
-                        break;
-                    case ExifInterface.ORIENTATION_ROTATE_180:
-                        angle = 180;
-                        break;
-                    case ExifInterface.ORIENTATION_ROTATE_270:
-                        angle = 270;
-                        break;
-                    default:
-                        angle = 0;
-                        break;
-                }
-                if (angle != 0) {
-                    Matrix m = new Matrix();
-                    m.postRotate(angle);
-                    result = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
-                    bitmap.recycle();
-                    bitmap = null;
-                }
-            }
+    /**
+     * Reads the EXIF orientation of the cached file when {@code config} asks
+     * for auto rotation. This is disk I/O, done before entering the decode stage.
+     *
+     * @return the angle to rotate the bitmap by, 0 if none.
+     */
+    private int getRotationAngle(String uri, BitmapDisplayConfig config) {
+        if (config == null || !config.isAutoRotation()) {
+            return 0;
+        }
+        File bitmapFile = this.getBitmapFileFromDiskCache(uri);
+        if (bitmapFile == null || !bitmapFile.exists()) {
+            return 0;
+        }
+        ExifInterface exif = null;
+        try {
+            exif = new ExifInterface(bitmapFile.getPath());
+        } catch (Throwable e) {
+            return 0;
+        }
+        int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
         }
-        return result;
     }
 
     /**
@@ -463,10 +950,12 @@ public class BitmapCache {
     public class MemoryCacheKey {
         private String uri;//uri
         private String subKey;
+        private BitmapDisplayConfig config;//用于记录预热列表
 
         private MemoryCacheKey(String uri, BitmapDisplayConfig config) {
             this.uri = uri;
             this.subKey = config == null ? null : config.toString();
+            this.config = config;
         }
 
         @Override
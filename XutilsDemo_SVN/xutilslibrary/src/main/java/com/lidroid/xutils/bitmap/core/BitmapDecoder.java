@@ -113,6 +113,31 @@ public class BitmapDecoder {
         }
     }
 
+    /**
+     * Decodes {@code length} bytes of {@code data} from {@code offset}. The
+     * bitmap doesn't keep a reference to {@code data}, which may be reused.
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int offset, int length, BitmapSize maxSize, Bitmap.Config config) {
+        synchronized (lock) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            options.inPurgeable = true;
+            options.inInputShareable = false;
+            BitmapFactory.decodeByteArray(data, offset, length, options);
+            options.inSampleSize = calculateInSampleSize(options, maxSize.getWidth(), maxSize.getHeight());
+            options.inJustDecodeBounds = false;
+            if (config != null) {
+                options.inPreferredConfig = config;
+            }
+            try {
+                return BitmapFactory.decodeByteArray(data, offset, length, options);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+                return null;
+            }
+        }
+    }
+
     public static Bitmap decodeResource(Resources res, int resId) {
         synchronized (lock) {
             final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -169,6 +194,23 @@ public class BitmapDecoder {
         }
     }
 
+    /**
+     * @see #decodeSampledBitmapFromByteArray(byte[], int, int, BitmapSize, Bitmap.Config)
+     */
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length) {
+        synchronized (lock) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPurgeable = true;
+            options.inInputShareable = false;
+            try {
+                return BitmapFactory.decodeByteArray(data, offset, length, options);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+                return null;
+            }
+        }
+    }
+
     public static int calculateInSampleSize(BitmapFactory.Options options, int maxWidth, int maxHeight) {
         final int height = options.outHeight;
         final int width = options.outWidth;
@@ -47,7 +47,7 @@ public class DefaultDownloader extends Downloader {
          *此时判断下载的任务是否为空,是否取消!
          * 最重要的一点是:目标容器是否已被“垃圾回收器”回收！
          */
-        if (task == null || task.isCancelled() || task.getTargetContainer() == null) return -1;
+        if (task.isAborted()) return -1;
 
         URLConnection urlConnection = null;//url的连接器
         BufferedInputStream bis = null;//缓冲输入流
@@ -93,7 +93,7 @@ public class DefaultDownloader extends Downloader {
                 fileLen = urlConnection.getContentLength();
             }
             //看任务是否已经被取消 同时看ImageView容器是否为空
-            if (task.isCancelled() || task.getTargetContainer() == null) return -1;
+            if (task.isAborted()) return -1;
 
             //4kB的大小 写入到其中
             byte[] buffer = new byte[4096];
@@ -102,7 +102,7 @@ public class DefaultDownloader extends Downloader {
             while ((len = bis.read(buffer)) != -1) {
                 out.write(buffer, 0, len);
                 currCount += len;
-                if (task.isCancelled() || task.getTargetContainer() == null) return -1;
+                if (task.isAborted()) return -1;
                 task.updateProgress(fileLen, currCount);
             }
             out.flush();
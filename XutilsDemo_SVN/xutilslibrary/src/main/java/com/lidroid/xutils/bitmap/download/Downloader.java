@@ -31,6 +31,9 @@ public abstract class Downloader {
      *
      * @param uri
      * @param outputStream
+     * @param task         the load to report progress to and to stop when it is
+     *                     {@link BitmapUtils.BitmapLoadTask#isAborted() aborted};
+     *                     never null, a preload gets a task without container.
      * @return The expiry time stamp or -1 if failed to download.
      */
     public abstract long downloadToStream(String uri, OutputStream outputStream, final BitmapUtils.BitmapLoadTask<?> task);
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lidroid.xutils.cache;
+
+/**
+ * Receives the events recorded by a {@link CacheStats}, e.g. to forward them
+ * to an analytics backend. Override the events of interest.
+ * <p/>
+ * The methods are called on the thread using the cache, often with no lock
+ * held but sometimes on the UI thread: keep them short and never block. An
+ * exception thrown here is logged and otherwise ignored.
+ */
+public abstract class CacheListener {
+
+    /**
+     * @param cacheName {@link CacheStats#getName()} of the reporting cache.
+     */
+    public void onHit(String cacheName) {
+    }
+
+    public void onMiss(String cacheName) {
+    }
+
+    /**
+     * @param loadTime the time spent computing the value, in nanoseconds.
+     * @param success  false if the loader failed or returned nothing.
+     */
+    public void onLoad(String cacheName, long loadTime, boolean success) {
+    }
+
+    /**
+     * @param weight the size of the entry: cache units for memory caches,
+     *               bytes for disk caches.
+     */
+    public void onRemoval(String cacheName, RemovalCause cause, long weight) {
+    }
+
+    public void onRead(String cacheName, long bytes) {
+    }
+
+    public void onWrite(String cacheName, long bytes) {
+    }
+
+    /**
+     * @param duration the time spent rewriting the journal, in nanoseconds.
+     */
+    public void onJournalRebuild(String cacheName, long duration) {
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+/**
+ * Computes the value of a key missing from a {@link LruMemoryCache}, see
+ * {@link LruMemoryCache#getOrLoad}.
+ */
+public abstract class CacheLoader<K, V> {
+
+    /**
+     * Called on the thread of the first caller missing {@code key}; concurrent
+     * callers for the same key wait for it instead of loading it again.
+     *
+     * @return the value, or null if it cannot be loaded. Null is not cached.
+     * @throws java.util.concurrent.CancellationException if the caller gave up
+     *                                                    the load; a waiting
+     *                                                    caller loads the key instead.
+     */
+    public abstract V load(K key) throws Exception;
+
+    /**
+     * @return the time in milliseconds at which the loaded value expires.
+     * The default value never expires.
+     */
+    public long getExpiryTimestamp(K key, V value) {
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lidroid.xutils.cache;
+
+import com.lidroid.xutils.util.LogUtils;
+
+/**
+ * The statistics of one cache tier: hits, misses, loads, removals by cause,
+ * bytes moved, journal syncs and rebuilds. Every cache in the library records into
+ * one ({@link LruMemoryCache#getStats()}, {@link DiskCache#getStats()},
+ * {@code HttpCache.getStats()}), optionally forwarding each event to a
+ * {@link CacheListener}.
+ * <p/>
+ * Recording is cheap and contention free (see {@link StripedCounter}); the
+ * getters sum the counters and may miss updates made while they run.
+ */
+public class CacheStats {
+
+    private volatile String name;
+    private volatile CacheListener listener;
+
+    private final StripedCounter hitCount = new StripedCounter();
+    private final StripedCounter missCount = new StripedCounter();
+    private final StripedCounter loadSuccessCount = new StripedCounter();
+    private final StripedCounter loadFailureCount = new StripedCounter();
+    private final StripedCounter totalLoadTime = new StripedCounter();
+    private final StripedCounter[] removalCounts = new StripedCounter[RemovalCause.values().length];
+    private final StripedCounter bytesRead = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter journalSyncCount = new StripedCounter();
+    private final StripedCounter journalRebuildCount = new StripedCounter();
+    private final StripedCounter totalJournalRebuildTime = new StripedCounter();
+
+    public CacheStats(String name) {
+        this.name = name;
+        for (int i = 0; i < removalCounts.length; i++) {
+            removalCounts[i] = new StripedCounter();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Names the cache in the events passed to the listener.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public CacheListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @param listener null to only count.
+     */
+    public void setListener(CacheListener listener) {
+        this.listener = listener;
+    }
+
+    public void recordHit() {
+        hitCount.increment();
+        CacheListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onHit(name);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+            }
+        }
+    }
+
+    public void recordMiss() {
+        missCount.increment();
+        CacheListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onMiss(name);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @param loadTime in nanoseconds.
+     */
+    public void recordLoad(long loadTime, boolean success) {
+        (success ? loadSuccessCount : loadFailureCount).increment();
+        totalLoadTime.add(loadTime);
+        CacheListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onLoad(name, loadTime, success);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+            }
+        }
+    }
+
+    public void recordRemoval(RemovalCause cause, long weight) {
+        removalCounts[cause.ordinal()].increment();
+        CacheListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onRemoval(name, cause, weight);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+            }
+        }
+    }
+
+    public void recordRead(long bytes) {
+        bytesRead.add(bytes);
+        CacheListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onRead(name, bytes);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+            }
+        }
+    }
+
+    public void recordWrite(long bytes) {
+        bytesWritten.add(bytes);
+        CacheListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onWrite(name, bytes);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Records an fsync of the journal.
+     */
+    public void recordJournalSync() {
+        journalSyncCount.increment();
+    }
+
+    /**
+     * @param duration in nanoseconds.
+     */
+    public void recordJournalRebuild(long duration) {
+        journalRebuildCount.increment();
+        totalJournalRebuildTime.add(duration);
+        CacheListener listener = this.listener;
+        if (listener != null) {
+            try {
+                listener.onJournalRebuild(name, duration);
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+            }
+        }
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public long requestCount() {
+        return hitCount() + missCount();
+    }
+
+    /**
+     * @return the share of requests that hit, 1 if there were none.
+     */
+    public double hitRate() {
+        long hits = hitCount();
+        long requests = hits + missCount();
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    public long loadSuccessCount() {
+        return loadSuccessCount.sum();
+    }
+
+    public long loadFailureCount() {
+        return loadFailureCount.sum();
+    }
+
+    /**
+     * @return the time spent loading values, in nanoseconds.
+     */
+    public long totalLoadTime() {
+        return totalLoadTime.sum();
+    }
+
+    /**
+     * @return the average time spent loading a value, in nanoseconds.
+     */
+    public double averageLoadPenalty() {
+        long loads = loadSuccessCount() + loadFailureCount();
+        return loads == 0 ? 0.0 : (double) totalLoadTime() / loads;
+    }
+
+    public long removalCount(RemovalCause cause) {
+        return removalCounts[cause.ordinal()].sum();
+    }
+
+    /**
+     * @return the entries removed by the cache itself: expired or evicted for size.
+     */
+    public long evictionCount() {
+        return removalCount(RemovalCause.EXPIRED) + removalCount(RemovalCause.SIZE);
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long journalSyncCount() {
+        return journalSyncCount.sum();
+    }
+
+    public long journalRebuildCount() {
+        return journalRebuildCount.sum();
+    }
+
+    /**
+     * @return the time spent rewriting the journal, in nanoseconds.
+     */
+    public long totalJournalRebuildTime() {
+        return totalJournalRebuildTime.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CacheStats[%s: hits=%d,misses=%d,hitRate=%d%%,loads=%d/%d,avgLoad=%dus," +
+                        "evictions=%d,read=%dB,written=%dB,journalRebuilds=%d]",
+                name, hitCount(), missCount(), (int) (hitRate() * 100),
+                loadSuccessCount(), loadSuccessCount() + loadFailureCount(), (long) (averageLoadPenalty() / 1000),
+                evictionCount(), bytesRead(), bytesWritten(), journalRebuildCount());
+    }
+}
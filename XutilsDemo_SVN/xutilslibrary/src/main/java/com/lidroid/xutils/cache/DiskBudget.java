@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte budget shared by the shards of a {@link ShardedDiskCache}.
+ * <p/>
+ * While the shards together exceed it, every shard holding more than its
+ * fair share (the budget divided by the number of shards) trims its own least
+ * recently used entries. At least one shard is always above its fair share in
+ * that case, so the total comes back under the budget without any shard
+ * having to look into another one.
+ */
+final class DiskBudget {
+
+    private final AtomicLong size = new AtomicLong();
+    private volatile long maxSize;
+    private volatile LruDiskCache[] members = new LruDiskCache[0];
+
+    DiskBudget(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    void setMembers(LruDiskCache[] members) {
+        this.members = members;
+    }
+
+    void add(long delta) {
+        size.addAndGet(delta);
+    }
+
+    long size() {
+        return size.get();
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    boolean isExceeded() {
+        return size.get() > maxSize;
+    }
+
+    long getFairShare() {
+        return maxSize / Math.max(1, members.length);
+    }
+
+    /**
+     * Queues a trim on every member holding more than its fair share.
+     */
+    void trimMembers() {
+        long fairShare = getFairShare();
+        for (LruDiskCache member : members) {
+            if (member.size() > fairShare) {
+                member.scheduleCleanup();
+            }
+        }
+    }
+}
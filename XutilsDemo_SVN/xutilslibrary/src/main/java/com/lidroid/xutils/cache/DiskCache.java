@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A disk cache of entries holding a fixed number of values each, addressed by
+ * a string key turned into a file name by a {@link FileNameGenerator}.
+ * <p/>
+ * Implemented by {@link LruDiskCache} and by {@link ShardedDiskCache}, which
+ * spreads the entries over several of them.
+ */
+public interface DiskCache extends Closeable {
+
+    /**
+     * Returns a snapshot of the entry for {@code key}, or null if it does not
+     * exist, is not readable or has expired.
+     */
+    LruDiskCache.Snapshot get(String key) throws IOException;
+
+    /**
+     * Returns an editor for the entry for {@code key}, or null if another edit
+     * is in progress.
+     */
+    LruDiskCache.Editor edit(String key) throws IOException;
+
+    /**
+     * @return true if an entry was removed.
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * Tells whether there is an unexpired entry for {@code key}, under its
+     * name or the one of the previous file name generator. Only reads the
+     * index in memory: no file is opened, moved or removed and no lock is
+     * taken, so the UI thread may call it. The value files are not checked.
+     */
+    boolean contains(String key);
+
+    /**
+     * @return the expiry timestamp of the entry for {@code key}, 0 if there is none.
+     */
+    long getExpiryTimestamp(String key) throws IOException;
+
+    /**
+     * Returns the file holding the value at {@code index} of {@code key}, or
+     * null if there is none or the value is packed into a segment file.
+     */
+    File getCacheFile(String key, int index);
+
+    File getDirectory();
+
+    long getMaxSize();
+
+    void setMaxSize(long maxSize);
+
+    long size();
+
+    int getSegmentThreshold();
+
+    /**
+     * Values written from now on that are smaller than {@code threshold} bytes
+     * are packed into shared segment files. 0 stores every value in its own file.
+     */
+    void setSegmentThreshold(int threshold);
+
+    boolean isVerifyChecksums();
+
+    /**
+     * Checks the CRC32 of each entry the first time it is read after the cache
+     * is opened, and drops the entries whose values were damaged.
+     */
+    void setVerifyChecksums(boolean verifyChecksums);
+
+    boolean isClosed();
+
+    void flush() throws IOException;
+
+    /**
+     * Closes the cache and deletes all of its stored values.
+     */
+    void delete() throws IOException;
+
+    /**
+     * Returns the statistics of this cache, where a listener can be set.
+     */
+    CacheStats getStats();
+
+    FileNameGenerator getFileNameGenerator();
+
+    void setFileNameGenerator(FileNameGenerator fileNameGenerator);
+
+    /**
+     * Switches to {@code fileNameGenerator} while keeping the entries named by
+     * {@code previousFileNameGenerator}: such an entry is moved to its new name
+     * the first time its key is read, and removed along with the new one.
+     *
+     * @param previousFileNameGenerator null to forget the previous entries,
+     *                                  they age out of the cache.
+     */
+    void setFileNameGenerator(FileNameGenerator fileNameGenerator, FileNameGenerator previousFileNameGenerator);
+}
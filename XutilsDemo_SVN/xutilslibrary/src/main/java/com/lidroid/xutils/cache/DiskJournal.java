@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The binary journal of a {@link LruDiskCache}.
+ * <p/>
+ * The file starts with a fixed header (magic, version, app version, value
+ * count) followed by records with a fixed layout per operation:
+ * <pre>
+ *     byte op, short keyLength, byte[keyLength] key                  READ, UPDATE, DELETE
+ *     byte op, short keyLength, byte[keyLength] key,
+ *              long expiryTimestamp, long[valueCount] lengths,
+ *              long[valueCount] checksums                            CLEAN
+ *     byte op, short keyLength, byte[keyLength] key,
+ *              long expiryTimestamp, long[valueCount] lengths,
+ *              long[valueCount] checksums, long[valueCount] locations PACKED
+ * </pre>
+ * each followed by the int CRC32 of its bytes.
+ * PACKED is a CLEAN record of an entry with values in {@link SegmentStore}
+ * segments; the location of a value stored in its own file is
+ * {@link SegmentStore#NO_LOCATION}. The checksums are the CRC32 of the values,
+ * {@link #NO_CHECKSUM} where unknown.
+ * Keys are length-prefixed rather than padded because the
+ * {@link FileNameGenerator} is pluggable.
+ * <p/>
+ * Records are appended through a {@link FileChannel}. READ records only
+ * affect the LRU order and stay buffered until the buffer fills or the journal
+ * is synced; the other records reach the file at once. fsync is left to
+ * {@link #sync()}, which the cache calls in batches rather than per record.
+ * At open time the file is scanned through a {@link MappedByteBuffer} without
+ * any line splitting or number parsing. The scan stops at the first record
+ * that is torn, fails its CRC or has an unknown op: a crash leaves such garbage
+ * only at the tail, which is cut off rather than failing the whole journal.
+ * <p/>
+ * Not thread safe, the cache serializes the calls.
+ */
+final class DiskJournal implements Closeable {
+
+    static final int MAGIC = 0x784A4E4C; // "xJNL"
+    static final int VERSION = 3;
+    /**
+     * The format before records had checksums, still replayed when the cache
+     * is opened and then rebuilt.
+     */
+    private static final int VERSION_2 = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int CRC_SIZE = 4;
+
+    /**
+     * Returned by {@link #read} for a journal that cannot be appended to.
+     */
+    static final long NEEDS_REBUILD = -1;
+    static final long NO_CHECKSUM = -1;
+
+    static final byte CLEAN = 'C';
+    static final byte UPDATE = 'U';
+    static final byte DELETE = 'D';
+    static final byte READ = 'R';
+    static final byte PACKED = 'P';
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Receives the records replayed by {@link #read}.
+     */
+    interface RecordHandler {
+        /**
+         * @param checksums the value checksums of a CLEAN or PACKED record.
+         * @param locations the value locations of a PACKED record, null otherwise.
+         */
+        void onRecord(byte op, String diskKey, long expiryTimestamp, long[] lengths, long[] checksums,
+                      long[] locations) throws IOException;
+    }
+
+    private final int valueCount;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE); // 在堆上, 以便计算记录的CRC
+    private final CRC32 crc = new CRC32();
+    private boolean unsynced;
+
+    /**
+     * Opens {@code journalFile} for appending. A new or empty file gets a header.
+     *
+     * @param validLength the length of the valid prefix of the file, as returned
+     *                    by {@link #read}; a torn record after it is cut off.
+     *                    0 for a new journal.
+     */
+    DiskJournal(File journalFile, int appVersion, int valueCount, long validLength) throws IOException {
+        this.valueCount = valueCount;
+        this.file = new RandomAccessFile(journalFile, "rw");
+        this.channel = file.getChannel();
+        try {
+            if (validLength < HEADER_SIZE) {
+                channel.truncate(0);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(appVersion).putInt(valueCount);
+                writeBuffer();
+                unsynced = true;
+            } else if (channel.size() > validLength) {
+                channel.truncate(validLength);
+            }
+            channel.position(channel.size());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Replays the records of {@code journalFile}.
+     *
+     * @return the length of the valid part of the file: a record torn by a
+     * crash or otherwise damaged ends the scan. {@link #NEEDS_REBUILD} if the
+     * file has the format of an earlier version.
+     * @throws IOException if the header does not match.
+     */
+    static long read(File journalFile, int appVersion, int valueCount, RecordHandler handler) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_SIZE) {
+                throw new IOException("journal too short");
+            }
+            int magic = in.getInt();
+            int version = in.getInt();
+            int fileAppVersion = in.getInt();
+            int fileValueCount = in.getInt();
+            if (magic != MAGIC || (version != VERSION && version != VERSION_2) || fileAppVersion != appVersion || fileValueCount != valueCount) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+                        + fileAppVersion + ", " + fileValueCount + "]");
+            }
+
+            boolean checked = version == VERSION;
+            CRC32 crc = new CRC32();
+            byte[] keyBytes = new byte[64];
+            byte[] recordBytes = checked ? new byte[256] : null;
+            long[] lengths = new long[valueCount];
+            long[] checksums = new long[valueCount];
+            long[] locations = new long[valueCount];
+            Arrays.fill(checksums, NO_CHECKSUM);
+            long validLength = in.position();
+            try {
+                while (in.hasRemaining()) {
+                    int start = in.position();
+                    byte op = in.get();
+                    if (op != CLEAN && op != PACKED && op != UPDATE && op != DELETE && op != READ) {
+                        break; // e.g. the zeros of a file extended but never written before a crash
+                    }
+                    int keyLength = in.getShort() & 0xFFFF;
+                    if (keyBytes.length < keyLength) {
+                        keyBytes = new byte[keyLength];
+                    }
+                    in.get(keyBytes, 0, keyLength);
+                    String diskKey = new String(keyBytes, 0, keyLength, "UTF-8");
+                    long expiryTimestamp = Long.MAX_VALUE;
+                    if (op == CLEAN || op == PACKED) {
+                        expiryTimestamp = in.getLong();
+                        for (int i = 0; i < valueCount; i++) {
+                            lengths[i] = in.getLong();
+                        }
+                        if (checked) {
+                            for (int i = 0; i < valueCount; i++) {
+                                checksums[i] = in.getLong();
+                            }
+                        }
+                        if (op == PACKED) {
+                            for (int i = 0; i < valueCount; i++) {
+                                locations[i] = in.getLong();
+                            }
+                        }
+                    }
+                    if (checked) {
+                        int recordLength = in.position() - start;
+                        if (recordBytes.length < recordLength) {
+                            recordBytes = new byte[recordLength];
+                        }
+                        ByteBuffer record = in.duplicate();
+                        record.position(start);
+                        record.get(recordBytes, 0, recordLength);
+                        crc.reset();
+                        crc.update(recordBytes, 0, recordLength);
+                        if ((int) crc.getValue() != in.getInt()) {
+                            break;
+                        }
+                    }
+                    handler.onRecord(op, diskKey, expiryTimestamp, lengths, checksums, op == PACKED ? locations : null);
+                    validLength = in.position();
+                }
+            } catch (BufferUnderflowException tornRecord) {
+                // The process died while appending; keep everything before it.
+            }
+            return checked ? validLength : NEEDS_REBUILD;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Buffers a READ record, it is written with the next other record.
+     */
+    void appendRead(String diskKey) throws IOException {
+        append(READ, diskKey, 0, null, null, null);
+    }
+
+    void appendUpdate(String diskKey) throws IOException {
+        append(UPDATE, diskKey, 0, null, null, null);
+        writeBuffer();
+    }
+
+    void appendDelete(String diskKey) throws IOException {
+        append(DELETE, diskKey, 0, null, null, null);
+        writeBuffer();
+    }
+
+    /**
+     * @param locations the value locations, null if no value is packed.
+     */
+    void appendClean(String diskKey, long expiryTimestamp, long[] lengths, long[] checksums, long[] locations)
+            throws IOException {
+        append(locations == null ? CLEAN : PACKED, diskKey, expiryTimestamp, lengths, checksums, locations);
+        writeBuffer();
+    }
+
+    /**
+     * Buffers a record without writing it, for bulk writes such as a rebuild.
+     */
+    void append(byte op, String diskKey, long expiryTimestamp, long[] lengths, long[] checksums, long[] locations)
+            throws IOException {
+        byte[] keyBytes = isAscii(diskKey) ? null : diskKey.getBytes("UTF-8");
+        int keyLength = keyBytes == null ? diskKey.length() : keyBytes.length;
+        if (keyLength > 0xFFFF) {
+            throw new IOException("key too long: " + diskKey);
+        }
+        int recordLength = 3 + keyLength + CRC_SIZE
+                + (op == CLEAN ? 8 + 16 * valueCount : 0)
+                + (op == PACKED ? 8 + 24 * valueCount : 0);
+        if (buffer.remaining() < recordLength) {
+            writeBuffer();
+            if (buffer.remaining() < recordLength) {
+                throw new IOException("record too long: " + diskKey);
+            }
+        }
+        int start = buffer.position();
+        buffer.put(op);
+        buffer.putShort((short) keyLength);
+        if (keyBytes == null) {
+            for (int i = 0; i < keyLength; i++) {
+                buffer.put((byte) diskKey.charAt(i));
+            }
+        } else {
+            buffer.put(keyBytes);
+        }
+        if (op == CLEAN || op == PACKED) {
+            buffer.putLong(expiryTimestamp);
+            for (int i = 0; i < valueCount; i++) {
+                buffer.putLong(lengths[i]);
+            }
+            for (int i = 0; i < valueCount; i++) {
+                buffer.putLong(checksums[i]);
+            }
+            if (op == PACKED) {
+                for (int i = 0; i < valueCount; i++) {
+                    buffer.putLong(locations[i]);
+                }
+            }
+        }
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start, buffer.position() - start);
+        buffer.putInt((int) crc.getValue());
+        unsynced = true;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return true if records were appended since the last {@link #sync()}.
+     */
+    boolean needsSync() {
+        return unsynced;
+    }
+
+    /**
+     * Writes the buffered records and forces the file to the storage device.
+     */
+    void sync() throws IOException {
+        writeBuffer();
+        if (unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                sync();
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
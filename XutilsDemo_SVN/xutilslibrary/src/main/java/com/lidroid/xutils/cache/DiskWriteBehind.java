@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+import com.lidroid.xutils.util.PoolingByteArrayOutputStream;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commits entries of a disk cache on a dedicated writer thread, so that the
+ * thread which produced the bytes can go on (e.g. decode them) without
+ * waiting for the flash write and the journal.
+ * <p/>
+ * The bytes waiting to be written are bounded: {@link #write} blocks while
+ * the queue is full, and writes an entry larger than the whole queue on the
+ * calling thread. An entry is missing from the cache until it is committed,
+ * readers that must see it call {@link #await} first.
+ * <p/>
+ * For caches with one value per entry. Closing doesn't close the cache.
+ */
+public class DiskWriteBehind implements Closeable {
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DiskWriteBehind");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    };
+
+    private final DiskCache diskCache;
+    private final long maxPendingBytes;
+
+    // 单个写线程, 按提交顺序写入
+    private final ThreadPoolExecutor writer =
+            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+
+    private final HashMap<String, Write> pending = new HashMap<String, Write>();
+    private long pendingBytes;
+    private Write running;
+    private boolean closed;
+
+    /**
+     * @param maxPendingBytes how many bytes may wait for the writer thread.
+     */
+    public DiskWriteBehind(DiskCache diskCache, long maxPendingBytes) {
+        if (diskCache == null) throw new IllegalArgumentException("diskCache may not be null");
+        if (maxPendingBytes <= 0) throw new IllegalArgumentException("maxPendingBytes <= 0");
+        this.diskCache = diskCache;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Queues {@code data} as the value of {@code key}, replacing an older
+     * write of the same key that hasn't started yet. {@code data} is retained
+     * until it is written: the caller may still read it, and must close it.
+     *
+     * @throws InterruptedException if interrupted while the queue is full,
+     *                              nothing is written then.
+     */
+    public void write(String key, PoolingByteArrayOutputStream data, long expiryTimestamp) throws InterruptedException {
+        int length = data.size();
+        if (length > maxPendingBytes) {
+            await(key);
+            commit(key, data.getBuf(), length, expiryTimestamp);
+            return;
+        }
+
+        Write write = new Write(key, data.retain(), length, expiryTimestamp);
+        synchronized (this) {
+            try {
+                while (!closed && pendingBytes + length > maxPendingBytes) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                data.release();
+                throw e;
+            }
+            if (closed) {
+                data.release();
+                return;
+            }
+            Write previous = pending.put(key, write);
+            if (previous != null) {
+                previous.cancelled = true;
+            }
+            pendingBytes += length;
+        }
+        try {
+            writer.execute(write);
+        } catch (RejectedExecutionException e) {
+            finish(write);
+        }
+    }
+
+    /**
+     * Returns at once whether a write of {@code key} is queued or being
+     * written, i.e. whether the cache is about to have it.
+     */
+    public synchronized boolean isPending(String key) {
+        return pending.containsKey(key) || (running != null && running.key.equals(key));
+    }
+
+    /**
+     * Waits until the queued write of {@code key}, if any, is over.
+     */
+    public synchronized void await(String key) throws InterruptedException {
+        while (isPending(key)) {
+            wait();
+        }
+    }
+
+    /**
+     * Waits until every queued write is over.
+     */
+    public synchronized void drain() throws InterruptedException {
+        while (pendingBytes > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Drops the queued write of {@code key}, waiting for it if it is already
+     * being written. The caller removes the entry from the cache if needed.
+     */
+    public synchronized void cancel(String key) throws InterruptedException {
+        Write write = pending.remove(key);
+        if (write != null) {
+            write.cancelled = true;
+        }
+        while (running != null && running.key.equals(key)) {
+            wait();
+        }
+    }
+
+    /**
+     * Drops every queued write, waiting for the one being written.
+     */
+    public synchronized void cancelAll() throws InterruptedException {
+        for (Write write : pending.values()) {
+            write.cancelled = true;
+        }
+        pending.clear();
+        while (running != null) {
+            wait();
+        }
+    }
+
+    /**
+     * Writes what is queued and stops the writer thread. Later writes are
+     * dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.shutdown();
+    }
+
+    private void commit(String key, byte[] data, int length, long expiryTimestamp) {
+        LruDiskCache.Editor editor = null;
+        OutputStream out = null;
+        try {
+            editor = diskCache.edit(key);
+            if (editor != null) {
+                out = editor.newOutputStream(0);
+                out.write(data, 0, length);
+                out.close();
+                out = null;
+                editor.setEntryExpiryTimestamp(expiryTimestamp);
+                editor.commit();
+            }
+        } catch (Throwable e) {
+            LogUtils.e(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    private void finish(Write write) {
+        synchronized (this) {
+            pendingBytes -= write.length;
+            if (pending.get(write.key) == write) {
+                pending.remove(write.key);
+            }
+            notifyAll();
+        }
+        write.data.release();
+    }
+
+    private final class Write implements Runnable {
+        private final String key;
+        private final PoolingByteArrayOutputStream data;
+        private final int length;
+        private final long expiryTimestamp;
+        private boolean cancelled; // guarded by DiskWriteBehind.this
+
+        private Write(String key, PoolingByteArrayOutputStream data, int length, long expiryTimestamp) {
+            this.key = key;
+            this.data = data;
+            this.length = length;
+            this.expiryTimestamp = expiryTimestamp;
+        }
+
+        @Override
+        public void run() {
+            synchronized (DiskWriteBehind.this) {
+                if (cancelled) {
+                    finish(this);
+                    return;
+                }
+                running = this;
+            }
+            try {
+                commit(key, data.getBuf(), length, expiryTimestamp);
+            } finally {
+                synchronized (DiskWriteBehind.this) {
+                    running = null;
+                }
+                finish(this);
+            }
+        }
+    }
+}
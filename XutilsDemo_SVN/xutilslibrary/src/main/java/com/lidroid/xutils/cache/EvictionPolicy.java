@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+/**
+ * Decides which entries of a {@link LruMemoryCache} survive when it is full.
+ * <p/>
+ * New entries first enter an admission window sized to {@link #getWindowPercent()}
+ * of the cache. When the window overflows, its least recently used entry becomes
+ * a candidate for the main region and competes with the main region's least
+ * recently used entry: {@link #admit} decides which of the two is kept.
+ * <p/>
+ * Implementations are called concurrently from every thread using the cache
+ * and must not block.
+ */
+public interface EvictionPolicy<K> {
+
+    /**
+     * @return the share of the cache, between 0 and 100, where new entries are
+     * kept before facing admission. 100 gives plain LRU.
+     */
+    int getWindowPercent();
+
+    /**
+     * Records a read or write of {@code key}, whether it hit or not.
+     */
+    void recordAccess(K key);
+
+    /**
+     * @return true to keep {@code candidate} and evict {@code victim}, false
+     * to evict {@code candidate}.
+     */
+    boolean admit(K candidate, K victim);
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often keys were seen.
+ * <p/>
+ * Every counter saturates at 15 and all counters are halved once
+ * {@code 10 * expectedEntries} increments have been recorded, so the estimate
+ * follows recent popularity rather than all-time totals.
+ * <p/>
+ * Thread-safe without a lock, since LruMemoryCache records accesses outside
+ * its segment locks: a counter is incremented by compare-and-set, so a
+ * saturated counter never carries into its neighbour. An increment racing
+ * with the halving may be halved or not, which is fine for an estimate.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_TABLE_SIZE = 1 << 24;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    FrequencySketch(int expectedEntries) {
+        int entries = Math.max(expectedEntries, 16);
+        int tableSize = 1;
+        while (tableSize < entries && tableSize < MAX_TABLE_SIZE) {
+            tableSize <<= 1;
+        }
+        this.table = new AtomicLongArray(tableSize);
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * entries;
+    }
+
+    /**
+     * @return the estimated number of occurrences of {@code key}, at most 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table.get(index) >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the popularity of {@code key}, aging the sketch when needed.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        // Only the increment reaching the sample size resets, the reset takes it back below.
+        if (added && additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        while (true) {
+            long value = table.get(index);
+            if ((value & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, value, value + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            long value;
+            do {
+                value = table.get(i);
+            } while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+        }
+        additions.addAndGet(-(sampleSize >>> 1));
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
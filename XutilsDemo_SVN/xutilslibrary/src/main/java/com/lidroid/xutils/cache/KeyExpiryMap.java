@@ -15,7 +15,10 @@
 
 package com.lidroid.xutils.cache;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Author: wyouflf
@@ -31,6 +34,14 @@ public class KeyExpiryMap<K, V> extends ConcurrentHashMap<K, Long> {
 
     private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
 
+    /**
+     * Schedules every finite expiry so that expired keys can be found without
+     * scanning the map or waiting for them to be read. Guarded by wheelLock.
+     */
+    private final transient TimerWheel<K> timerWheel = new TimerWheel<K>(System.currentTimeMillis());
+    private final transient ReentrantLock wheelLock = new ReentrantLock();
+    private transient volatile long nextTickTime = timerWheel.nextTickTime();
+
     public KeyExpiryMap(int initialCapacity, float loadFactor, int concurrencyLevel) {
         super(initialCapacity, loadFactor, concurrencyLevel);
     }
@@ -47,42 +58,156 @@ public class KeyExpiryMap<K, V> extends ConcurrentHashMap<K, Long> {
         super();
     }
 
+    /**
+     * Only takes the lock when there is a timer to schedule or cancel: a key
+     * put without expiry over no mapping, or over one without expiry, is
+     * just mapped. A timer left meanwhile by a concurrent put with expiry is
+     * dropped by {@link #pollExpired}.
+     */
     @Override
-    public synchronized Long get(Object key) {
-        if (this.containsKey(key)) {
-            return super.get(key);
-        } else {
-            return null;
+    public Long put(K key, Long expiryTimestamp) {
+        if (expiryTimestamp == Long.MAX_VALUE) {
+            Long current = super.get(key);
+            if (current == null || current == Long.MAX_VALUE) {
+                return super.put(key, expiryTimestamp);
+            }
+        }
+        wheelLock.lock();
+        try {
+            Long previous = super.put(key, expiryTimestamp);
+            if (expiryTimestamp != Long.MAX_VALUE) {
+                timerWheel.schedule(key, expiryTimestamp);
+            } else if (previous != null && previous != Long.MAX_VALUE) {
+                timerWheel.cancel(key);
+            }
+            return previous;
+        } finally {
+            wheelLock.unlock();
         }
     }
 
+    /**
+     * Unmaps the key and cancels its timer under the lock {@link #put} takes,
+     * so that a concurrent put of the same key can't lose its fresh timer or
+     * be left with a stale one. An absent key is not looked for under the lock.
+     */
     @Override
-    public synchronized Long put(K key, Long expiryTimestamp) {
-        if (this.containsKey(key)) {
-            this.remove(key);
+    public Long remove(Object key) {
+        if (super.get(key) == null) {
+            return null;
+        }
+        wheelLock.lock();
+        try {
+            Long previous = super.remove(key);
+            if (previous != null && previous != Long.MAX_VALUE) {
+                timerWheel.cancel(key);
+            }
+            return previous;
+        } finally {
+            wheelLock.unlock();
         }
-        return super.put(key, expiryTimestamp);
     }
 
     @Override
-    public synchronized boolean containsKey(Object key) {
-        boolean result = false;
-        Long expiryTimestamp = super.get(key);
-        if (expiryTimestamp != null && System.currentTimeMillis() < expiryTimestamp) {
-            result = true;
-        } else {
-            this.remove(key);
+    public void clear() {
+        wheelLock.lock();
+        try {
+            super.clear();
+            timerWheel.clear();
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    /**
+     * Advances the timer wheel to {@code now}. Returns at once, without
+     * locking, if no wheel tick has passed since the last call or another
+     * thread is already advancing it.
+     * <p/>
+     * The returned keys are left in the map: the caller removes them, after
+     * checking with {@link #containsKey} that they were not put again meanwhile.
+     *
+     * @return the keys that expired, never null.
+     */
+    public List<K> pollExpired(long now) {
+        if (now < nextTickTime || !wheelLock.tryLock()) {
+            return Collections.emptyList();
+        }
+        try {
+            List<K> expired = timerWheel.advance(now);
+            nextTickTime = timerWheel.nextTickTime();
+            if (expired == null) {
+                return Collections.emptyList();
+            }
+            for (int i = expired.size() - 1; i >= 0; i--) {
+                K key = expired.get(i);
+                Long expiryTimestamp = super.get(key);
+                if (expiryTimestamp == null) {
+                    expired.remove(i); // already removed, lazily or not
+                } else if (expiryTimestamp == Long.MAX_VALUE) {
+                    // A stale timer of a key removed lazily by containsKey and put again
+                    // without expiry: put found no mapping to cancel it for.
+                    expired.remove(i);
+                } else if (expiryTimestamp > now) {
+                    timerWheel.schedule(key, expiryTimestamp);
+                    expired.remove(i);
+                }
+            }
+            return expired;
+        } finally {
+            wheelLock.unlock();
         }
-        return result;
+    }
+
+    /**
+     * Returns the number of keys scheduled on the timer wheel.
+     */
+    int getScheduledCount() {
+        wheelLock.lock();
+        try {
+            return timerWheel.size();
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lock guarding the timer wheel, for tests.
+     */
+    ReentrantLock getWheelLock() {
+        return wheelLock;
+    }
+
+    /**
+     * Returns the expiry timestamp of {@code key} even if it has passed,
+     * without dropping the mapping; null if there is none.
+     */
+    Long getExpiryTimestamp(Object key) {
+        return super.get(key);
     }
 
     @Override
-    public synchronized Long remove(Object key) {
-        return super.remove(key);
+    public Long get(Object key) {
+        if (this.containsKey(key)) {
+            return super.get(key);
+        } else {
+            return null;
+        }
     }
 
+    /**
+     * The backing map is already thread safe, so the read path takes no lock:
+     * an expired mapping is dropped only if it was not replaced meanwhile.
+     */
     @Override
-    public synchronized void clear() {
-        super.clear();
+    public boolean containsKey(Object key) {
+        Long expiryTimestamp = super.get(key);
+        if (expiryTimestamp != null && (expiryTimestamp == Long.MAX_VALUE || System.currentTimeMillis() < expiryTimestamp)) {
+            return true;
+        }
+        if (expiryTimestamp != null) {
+            super.remove(key, expiryTimestamp);
+        }
+        return false;
     }
 }
@@ -20,15 +20,29 @@ import com.lidroid.xutils.util.LogUtils;
 import org.apache.http.protocol.HTTP;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -65,18 +79,33 @@ import java.util.concurrent.TimeUnit;
  * <p/>
  * <p>Clients call {@link #get} to read a snapshot of an entry. The read will
  * observe the value at the time that {@link #get} was called. Updates and
- * removals after the call do not impact ongoing reads.
+ * removals after the call do not impact ongoing reads. Reads take no lock:
+ * they never wait for an edit, a trim or a journal rebuild.
+ * <p/>
+ * <p>Values are stored one file each. With {@link #setSegmentThreshold} the
+ * values smaller than the threshold are appended to shared segment files
+ * instead, and the background thread compacts the segments whose space is
+ * mostly taken by replaced or removed values. Such values have no file of
+ * their own, see {@link #getCacheFile}.
  * <p/>
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
+ * After a crash the journal is replayed up to its first damaged record, and
+ * an entry is checked the first time it is read: a value file whose length
+ * does not match, or with {@link #setVerifyChecksums} whose CRC32 does not
+ * match, drops the entry. Recovery thus costs in proportion to the damage
+ * rather than to the size of the cache.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
  */
-public final class LruDiskCache implements Closeable {
-    static final String JOURNAL_FILE = "journal";
-    static final String JOURNAL_FILE_TEMP = "journal.tmp";
-    static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+public final class LruDiskCache implements DiskCache {
+    static final String JOURNAL_FILE = "journal.bin";
+    static final String JOURNAL_FILE_TEMP = "journal.bin.tmp";
+    static final String JOURNAL_FILE_BACKUP = "journal.bin.bkp";
+    static final String TEXT_JOURNAL_FILE = "journal";
+    static final String TEXT_JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String TEXT_JOURNAL_FILE_BACKUP = "journal.bkp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -84,10 +113,14 @@ public final class LruDiskCache implements Closeable {
     private static final char UPDATE = 'U';
     private static final char DELETE = 'D';
     private static final char READ = 'R';
+    private static final char PACKED = 'P';
     private static final char EXPIRY_PREFIX = 't';
 
     /*
-     * This cache uses a journal file named "journal". A typical journal file
+     * This cache uses a binary journal file named "journal.bin", see
+     * DiskJournal for its format. It holds the same records as the text
+     * journal "journal" of earlier versions, which is still read once and
+     * converted when an old cache is opened. A typical text journal file
      * looks like this:
      *     libcore.io.DiskLruCache
      *     1
@@ -122,23 +155,69 @@ public final class LruDiskCache implements Closeable {
      *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
-     * "journal.tmp" will be used during compaction; that file should be deleted if
+     * "journal.bin.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The binary journal adds PACKED records: CLEAN records that also hold the
+     * segment location of each value.
+     *
+     * READ records are buffered and the journal is fsynced at most once per
+     * JOURNAL_SYNC_INTERVAL by the background thread, plus on flush() and close().
+     * An edit inside the interval schedules a sync for the end of it, so the
+     * last edits of a burst reach the disk no later than one interval after.
      */
 
     private final File directory;//目录
     private final File journalFile;//日志文件
     private final File journalFileTmp;//日志文件临时文件
     private final File journalFileBackup;//日志备用文件
+    private final File textJournalFile;//旧版本的文本日志文件
     private final int appVersion;//app的版本
     private long maxSize;//最大大小
     private final int valueCount;//值的个数
-    private long size = 0;
-    private Writer journalWriter;
+    private volatile long size = 0;
+    private volatile DiskJournal journal;
+    /**
+     * The budget shared with the other shards of a {@link ShardedDiskCache}, or null.
+     */
+    private DiskBudget budget;
+    private volatile CacheStats stats = new CacheStats("disk");
+    private long lastJournalSyncTime;
+    private boolean journalSyncScheduled;//已安排日志同步, 由缓存锁保护
+    private final SegmentStore segments;//小文件的分段存储
+    private volatile int segmentThreshold;//小于该大小的值写入分段文件, 0为不使用
+    private volatile boolean verifyChecksums;//首次读取条目时校验CRC
+    /**
+     * The index read by {@link #get} without locking. Writers update it
+     * together with lruEntries while holding the cache monitor.
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /**
+     * The LRU order, guarded by the cache monitor. Reads reach it later
+     * through readBuffer.
+     */
     private final LinkedHashMap<String, Entry> lruEntries =//输入
             new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;//冗余操作个数
 
+    /**
+     * The entries read since the last drain, in order. Draining moves them up
+     * the LRU order and appends their READ records to the journal.
+     */
+    private final ConcurrentLinkedQueue<Entry> readBuffer = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger readBufferSize = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    /**
+     * The expired entries whose removal is queued, so that repeated reads of
+     * one entry queue it once.
+     */
+    private final Set<String> pendingExpirations =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final String DIRTY_FILE_SUFFIX = ".tmp";
+    private static final long JOURNAL_SYNC_INTERVAL = 1000;//日志同步到磁盘的最小间隔
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 64;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -149,17 +228,26 @@ public final class LruDiskCache implements Closeable {
     /**
      * This cache uses a single background thread to evict entries.
      */
-    final ThreadPoolExecutor executorService =//线程池
-            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    final ScheduledThreadPoolExecutor executorService = newExecutorService();//线程池
+
+    private static ScheduledThreadPoolExecutor newExecutorService() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
     //清理,清除回调
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         public Void call() throws Exception {
             synchronized (LruDiskCache.this) {
-                if (journalWriter == null) {
+                if (journal == null) {
                     return null; // Closed.
                 }
+                drainReadBuffer();
                 //缩小对应的lruEntries集合的个数
                 trimToSize();
+                //整理分段文件
+                compactSegments();
                 //判断日志重建需要
                 if (journalRebuildRequired()) {
                     //重新构建日志文件
@@ -170,6 +258,44 @@ public final class LruDiskCache implements Closeable {
             return null;
         }
     };
+    //整理读取记录
+    private final Callable<Void> drainCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            drainScheduled.set(false);
+            synchronized (LruDiskCache.this) {
+                if (journal != null) {
+                    drainReadBuffer();
+                }
+            }
+            return null;
+        }
+    };
+    //同步日志
+    private final Callable<Void> syncCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            synchronized (LruDiskCache.this) {
+                journalSyncScheduled = false;
+                if (journal != null && journal.needsSync()) {
+                    journal.sync();
+                    lastJournalSyncTime = System.currentTimeMillis();
+                    stats.recordJournalSync();
+                }
+            }
+            return null;
+        }
+    };
+
+    //删除日志丢失的条目留下的文件
+    private final Callable<Void> sweepCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            synchronized (LruDiskCache.this) {
+                if (journal != null) {
+                    deleteOrphanFiles();
+                }
+            }
+            return null;
+        }
+    };
 
     private LruDiskCache(File directory, int appVersion, int valueCount, long maxSize) {
         this.directory = directory;
@@ -177,8 +303,10 @@ public final class LruDiskCache implements Closeable {
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
         this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+        this.textJournalFile = new File(directory, TEXT_JOURNAL_FILE);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.segments = new SegmentStore(directory);
     }
 
     /**
@@ -200,25 +328,38 @@ public final class LruDiskCache implements Closeable {
         }
 
         // If a bkp file exists, use it instead.
-        File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
-        if (backupFile.exists()) {
-            File journalFile = new File(directory, JOURNAL_FILE);
-            // If journal file also exists just delete backup file.
-            if (journalFile.exists()) {
-                backupFile.delete();
-            } else {
-                renameTo(backupFile, journalFile, false);
-            }
-        }
+        restoreBackup(new File(directory, JOURNAL_FILE_BACKUP), new File(directory, JOURNAL_FILE));
+        restoreBackup(new File(directory, TEXT_JOURNAL_FILE_BACKUP), new File(directory, TEXT_JOURNAL_FILE));
 
         // Prefer to pick up where we left off.
         LruDiskCache cache = new LruDiskCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        if (cache.journalFile.exists() || cache.textJournalFile.exists()) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(
-                        new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), HTTP.US_ASCII));
+                boolean damaged;
+                if (cache.journalFile.exists()) {
+                    long validLength = cache.readJournal();
+                    cache.processJournal();
+                    if (validLength == DiskJournal.NEEDS_REBUILD) {
+                        // Convert the journal of an earlier version, whose tail is not checked.
+                        damaged = true;
+                        cache.rebuildJournal();
+                    } else {
+                        damaged = validLength < cache.journalFile.length();
+                        cache.journal = new DiskJournal(cache.journalFile, appVersion, valueCount, validLength);
+                    }
+                } else {
+                    // Convert the text journal of an earlier version.
+                    damaged = cache.readTextJournal();
+                    cache.processJournal();
+                    cache.rebuildJournal();
+                }
+                if (damaged) {
+                    // The records cut off may have published files no entry refers to now.
+                    LogUtils.w("DiskLruCache " + directory + " recovered from a damaged journal");
+                    cache.executorService.submit(cache.sweepCallable);
+                }
+                deleteIfExists(cache.textJournalFile);
+                deleteIfExists(new File(directory, TEXT_JOURNAL_FILE_TEMP));
                 return cache;
             } catch (Throwable journalIsCorrupt) {
                 LogUtils.e("DiskLruCache "
@@ -238,14 +379,46 @@ public final class LruDiskCache implements Closeable {
         return cache;
     }
 
+    private static void restoreBackup(File backupFile, File journalFile) throws IOException {
+        if (backupFile.exists()) {
+            // If journal file also exists just delete backup file.
+            if (journalFile.exists()) {
+                backupFile.delete();
+            } else {
+                renameTo(backupFile, journalFile, false);
+            }
+        }
+    }
+
     /**
      * 读取日志文件
+     *
+     * @return the length of the valid part of the journal.
      * @throws IOException
      */
-    private void readJournal() throws IOException {
+    private long readJournal() throws IOException {
+        final int[] recordCount = new int[1];
+        long validLength = DiskJournal.read(journalFile, appVersion, valueCount, new DiskJournal.RecordHandler() {
+            @Override
+            public void onRecord(byte op, String diskKey, long expiryTimestamp, long[] lengths, long[] checksums,
+                                 long[] locations) throws IOException {
+                applyJournalRecord((char) op, diskKey, expiryTimestamp, lengths, checksums, locations);
+                recordCount[0]++;
+            }
+        });
+        redundantOpCount = recordCount[0] - lruEntries.size();
+        return validLength;
+    }
+
+    /**
+     * 读取旧版本的文本日志文件
+     * @return true if a malformed line ended the replay before the end of the file.
+     * @throws IOException
+     */
+    private boolean readTextJournal() throws IOException {
         StrictLineReader reader = null;
         try {
-            reader = new StrictLineReader(new FileInputStream(journalFile));
+            reader = new StrictLineReader(new FileInputStream(textJournalFile));
             String magic = reader.readLine();
             String version = reader.readLine();
             String appVersionString = reader.readLine();
@@ -261,15 +434,21 @@ public final class LruDiskCache implements Closeable {
             }
 
             int lineCount = 0;
+            boolean damaged = false;
             while (true) {
                 try {
                     readJournalLine(reader.readLine());
                     lineCount++;
                 } catch (EOFException endOfJournal) {
                     break;
+                } catch (IOException malformedLine) {
+                    // Keep the lines before it, like the torn tail of the binary journal.
+                    damaged = true;
+                    break;
                 }
             }
             redundantOpCount = lineCount - lruEntries.size();
+            return damaged;
         } finally {
             IOUtils.closeQuietly(reader);
         }
@@ -294,38 +473,57 @@ public final class LruDiskCache implements Closeable {
         final String diskKey;
         if (secondSpace == -1) {
             diskKey = line.substring(keyBegin);
-            if (lineTag == DELETE) {
-                lruEntries.remove(diskKey);
-                return;
-            }
         } else {
             diskKey = line.substring(keyBegin, secondSpace);
         }
 
+        long expiryTimestamp = Long.MAX_VALUE;
+        long[] lengths = new long[valueCount];
+        if (lineTag == CLEAN && secondSpace != -1) {
+            String[] parts = line.substring(secondSpace + 1).split(" ");
+            try {
+                int startIndex = 0;
+                if (parts[0].charAt(0) == EXPIRY_PREFIX) {
+                    expiryTimestamp = Long.valueOf(parts[0].substring(1));
+                    startIndex = 1;
+                }
+                if ((parts.length - startIndex) != valueCount) {
+                    throw new IOException("unexpected journal line: " + line);
+                }
+                for (int i = 0; i < valueCount; i++) {
+                    lengths[i] = Long.parseLong(parts[i + startIndex]);
+                }
+            } catch (Throwable e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        }
+        applyJournalRecord(lineTag, diskKey, expiryTimestamp, lengths, null, null);
+    }
+
+    /**
+     * Applies one record of the journal to {@code lruEntries}.
+     *
+     * @param checksums null if the record has none.
+     */
+    private void applyJournalRecord(char op, String diskKey, long expiryTimestamp, long[] lengths,
+                                    long[] checksums, long[] locations) throws IOException {
+        if (op == DELETE) {
+            lruEntries.remove(diskKey);
+            return;
+        }
+
         Entry entry = lruEntries.get(diskKey);
         if (entry == null) {
             entry = new Entry(diskKey);
             lruEntries.put(diskKey, entry);
         }
 
-        switch (lineTag) {
-            case CLEAN: {
-                entry.readable = true;
+        switch (op) {
+            case CLEAN:
+            case PACKED: {
                 entry.currentEditor = null;
-                String[] parts = line.substring(secondSpace + 1).split(" ");
-                if (parts.length > 0) {
-                    try {
-                        if (parts[0].charAt(0) == EXPIRY_PREFIX) {
-                            entry.expiryTimestamp = Long.valueOf(parts[0].substring(1));
-                            entry.setLengths(parts, 1);
-                        } else {
-                            entry.expiryTimestamp = Long.MAX_VALUE;
-                            entry.setLengths(parts, 0);
-                        }
-                    } catch (Throwable e) {
-                        throw new IOException("unexpected journal line: " + line);
-                    }
-                }
+                entry.metadata = new Metadata(lengths.clone(), checksums == null ? newChecksums() : checksums.clone(),
+                        expiryTimestamp, 0, locations == null ? null : locations.clone());
                 break;
             }
             case UPDATE: {
@@ -337,7 +535,7 @@ public final class LruDiskCache implements Closeable {
                 break;
             }
             default: {
-                throw new IOException("unexpected journal line: " + line);
+                throw new IOException("unexpected journal record: " + op + " " + diskKey);
             }
         }
     }
@@ -351,9 +549,26 @@ public final class LruDiskCache implements Closeable {
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
+                Metadata metadata = entry.metadata;
+                if (metadata == null) {
+                    i.remove(); // read but never published
+                    continue;
+                }
+                if (metadata.locations != null) {
+                    if (!isReadable(metadata)) {
+                        i.remove(); // the segment was lost
+                        continue;
+                    }
+                    for (int t = 0; t < valueCount; t++) {
+                        if (metadata.locations[t] != SegmentStore.NO_LOCATION) {
+                            segments.reference(metadata.locations[t], metadata.lengths[t]);
+                        }
+                    }
+                }
                 for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
+                    addSize(metadata.lengths[t]);
                 }
+                entries.put(entry.diskKey, entry);
             } else {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
@@ -363,6 +578,64 @@ public final class LruDiskCache implements Closeable {
                 i.remove();
             }
         }
+        segments.deleteUnreferenced();
+    }
+
+    private boolean isReadable(Metadata metadata) {
+        for (int t = 0; t < valueCount; t++) {
+            long location = metadata.locations[t];
+            if (location != SegmentStore.NO_LOCATION && !segments.isReadable(location, metadata.lengths[t])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the value files of keys that have no entry, left behind when
+     * the records publishing them were cut off a damaged journal, and the dirty
+     * files of entries not being edited. Called with the cache monitor held.
+     */
+    private void deleteOrphanFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            boolean dirty = name.endsWith(DIRTY_FILE_SUFFIX);
+            String diskKey = getDiskKeyOfValueFile(dirty ? name.substring(0, name.length() - DIRTY_FILE_SUFFIX.length()) : name);
+            if (diskKey == null) {
+                continue; // the journal, a segment or a file of another kind
+            }
+            Entry entry = lruEntries.get(diskKey);
+            if ((entry == null || (dirty && entry.currentEditor == null)) && file.isFile() && file.delete()) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            LogUtils.d("DiskLruCache " + directory + " deleted " + count + " orphan files");
+        }
+    }
+
+    /**
+     * @return the key of a value file named "key.index", null for any other name.
+     */
+    private String getDiskKeyOfValueFile(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1) {
+            return null;
+        }
+        for (int i = dot + 1; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return null;
+            }
+        }
+        if (name.length() - dot > 4 || Integer.parseInt(name.substring(dot + 1)) >= valueCount) {
+            return null;
+        }
+        return name.substring(0, dot);
     }
 
     /**
@@ -370,29 +643,22 @@ public final class LruDiskCache implements Closeable {
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            IOUtils.closeQuietly(journalWriter);
+        long start = System.nanoTime();
+        if (journal != null) {
+            drainReadBuffer();
+            IOUtils.closeQuietly(journal);
         }
 
-        Writer writer = null;
+        DiskJournal writer = null;
         try {
-            writer = new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(journalFileTmp), HTTP.US_ASCII));
-            writer.write(MAGIC);
-            writer.write("\n");
-            writer.write(VERSION);
-            writer.write("\n");
-            writer.write(Integer.toString(appVersion));
-            writer.write("\n");
-            writer.write(Integer.toString(valueCount));
-            writer.write("\n");
-            writer.write("\n");
-
+            writer = new DiskJournal(journalFileTmp, appVersion, valueCount, 0);
             for (Entry entry : lruEntries.values()) {
                 if (entry.currentEditor != null) {
-                    writer.write(UPDATE + " " + entry.diskKey + '\n');
+                    writer.append(DiskJournal.UPDATE, entry.diskKey, 0, null, null, null);
                 } else {
-                    writer.write(CLEAN + " " + entry.diskKey + " " + EXPIRY_PREFIX + entry.expiryTimestamp + entry.getLengths() + '\n');
+                    Metadata metadata = entry.metadata;
+                    writer.append(metadata.locations == null ? DiskJournal.CLEAN : DiskJournal.PACKED, entry.diskKey,
+                            metadata.expiryTimestamp, metadata.lengths, metadata.checksums, metadata.locations);
                 }
             }
         } finally {
@@ -405,8 +671,23 @@ public final class LruDiskCache implements Closeable {
         renameTo(journalFileTmp, journalFile, false);
         journalFileBackup.delete();
 
-        journalWriter = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(journalFile, true), HTTP.US_ASCII));
+        journal = new DiskJournal(journalFile, appVersion, valueCount, journalFile.length());
+        lastJournalSyncTime = System.currentTimeMillis();
+        stats.recordJournalRebuild(System.nanoTime() - start);
+    }
+
+    /**
+     * Schedules an fsync of the journal for {@link #JOURNAL_SYNC_INTERVAL}
+     * after the last one, or now if that has passed. Edits made while a sync
+     * is scheduled share it.
+     */
+    private void scheduleJournalSync() {
+        if (journalSyncScheduled || !journal.needsSync()) {
+            return;
+        }
+        journalSyncScheduled = true;
+        long delay = lastJournalSyncTime + JOURNAL_SYNC_INTERVAL - System.currentTimeMillis();
+        executorService.schedule(syncCallable, Math.max(0, delay), TimeUnit.MILLISECONDS);
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -424,26 +705,77 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
-    public synchronized long getExpiryTimestamp(String key) throws IOException {
+    public boolean contains(String key) {
+        if (isClosed()) {
+            return false;
+        }
         String diskKey = fileNameGenerator.generate(key);
+        if (containsDiskKey(diskKey)) {
+            return true;
+        }
+        FileNameGenerator previous = previousFileNameGenerator;
+        if (previous == null) return false;
+
+        String previousDiskKey = previous.generate(key);
+        return !previousDiskKey.equals(diskKey) && containsDiskKey(previousDiskKey);
+    }
+
+    /**
+     * Tells whether the entry named {@code diskKey} is published and not
+     * expired, from its metadata only.
+     */
+    boolean containsDiskKey(String diskKey) {
+        Entry entry = entries.get(diskKey);
+        Metadata metadata = entry == null ? null : entry.metadata;
+        return metadata != null && metadata.expiryTimestamp >= System.currentTimeMillis();
+    }
+
+    public long getExpiryTimestamp(String key) throws IOException {
+        String diskKey = fileNameGenerator.generate(key);
+        long expiryTimestamp = getExpiryTimestampByDiskKey(diskKey);
+        if (expiryTimestamp == 0 && migrate(key, diskKey)) {
+            expiryTimestamp = getExpiryTimestampByDiskKey(diskKey);
+        }
+        return expiryTimestamp;
+    }
+
+    long getExpiryTimestampByDiskKey(String diskKey) {
         checkNotClosed();
-        Entry entry = lruEntries.get(diskKey);
-        if (entry == null) {
+        Entry entry = entries.get(diskKey);
+        Metadata metadata = entry == null ? null : entry.metadata;
+        if (metadata == null) {
             return 0;
         } else {
-            return entry.expiryTimestamp;
+            return metadata.expiryTimestamp;
         }
     }
 
+    /**
+     * Returns the file of the value at {@code index}, or null if the entry
+     * does not exist or the value is packed into a segment file.
+     */
     public File getCacheFile(String key, int index) {
         String diskKey = fileNameGenerator.generate(key);
+        File result = getCacheFileByDiskKey(diskKey, index);
+        if (result == null && migrate(key, diskKey)) {
+            result = getCacheFileByDiskKey(diskKey, index);
+        }
+        return result;
+    }
+
+    File getCacheFileByDiskKey(String diskKey, int index) {
+        Entry entry = entries.get(diskKey);
+        Metadata metadata = entry == null ? null : entry.metadata;
+        if (metadata != null && metadata.getLocation(index) != SegmentStore.NO_LOCATION) {
+            return null;
+        }
         File result = new File(this.directory, diskKey + "." + index);
         if (result.exists()) {
             return result;
         } else {
             try {
-                this.remove(key);
-            } catch (IOException ignore) {
+                this.removeByDiskKey(diskKey);
+            } catch (Throwable ignore) {
             }
             return null;
         }
@@ -451,71 +783,224 @@ public final class LruDiskCache implements Closeable {
 
     public Snapshot get(String key) throws IOException {
         String diskKey = fileNameGenerator.generate(key);
-        return getByDiskKey(diskKey);
+        Snapshot snapshot = getByDiskKey(diskKey);
+        if (snapshot == null && migrate(key, diskKey)) {
+            snapshot = getByDiskKey(diskKey);
+        }
+        return snapshot;
     }
 
     /**
      * Returns a snapshot of the entry named {@code diskKey}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     * <p/>
+     * Takes no lock: the entry's metadata is immutable and its version tells
+     * whether a commit replaced the files while they were being opened.
      */
-    private synchronized Snapshot getByDiskKey(String diskKey) throws IOException {
+    Snapshot getByDiskKey(String diskKey) throws IOException {
         checkNotClosed();
-        Entry entry = lruEntries.get(diskKey);
+        Entry entry = entries.get(diskKey);
         if (entry == null) {
+            stats.recordMiss();
             return null;
         }
 
-        if (!entry.readable) {
-            return null;
-        }
+        while (true) {
+            int version = entry.version;
+            Metadata metadata = entry.metadata;
+            if (metadata == null) {
+                stats.recordMiss();
+                return null;
+            }
 
-        // If expired, delete the entry.
-        if (entry.expiryTimestamp < System.currentTimeMillis()) {
-            for (int i = 0; i < valueCount; i++) {
-                File file = entry.getCleanFile(i);
-                if (file.exists() && !file.delete()) {
-                    throw new IOException("failed to delete " + file);
+            // If expired, delete the entry in the background.
+            if (metadata.expiryTimestamp < System.currentTimeMillis()) {
+                stats.recordMiss();
+                final String expiredKey = diskKey;
+                if (pendingExpirations.add(expiredKey)) {
+                    executorService.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            try {
+                                removeIfExpired(expiredKey);
+                            } finally {
+                                pendingExpirations.remove(expiredKey);
+                            }
+                            return null;
+                        }
+                    });
                 }
-                size -= entry.lengths[i];
-                entry.lengths[i] = 0;
+                return null;
             }
-            redundantOpCount++;
-            journalWriter.append(DELETE + " " + diskKey + '\n');
-            lruEntries.remove(diskKey);
-            if (journalRebuildRequired()) {
-                executorService.submit(cleanupCallable);
+
+            if ((version & 1) != 0) {
+                Thread.yield(); // a commit is renaming the files
+                continue;
             }
-            return null;
+
+            // Open all streams eagerly to guarantee that we see a single published
+            // snapshot. If we opened streams lazily then the streams could come
+            // from different edits.
+            FileInputStream[] ins = new FileInputStream[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = openValue(entry, metadata, i);
+                }
+            } catch (FileNotFoundException e) {
+                // A file must have been deleted manually, or the entry was removed meanwhile.
+                closeAll(ins);
+                if (entry.version != version) {
+                    continue;
+                }
+                stats.recordMiss();
+                return null;
+            }
+            if (entry.version != version) {
+                closeAll(ins);
+                continue;
+            }
+
+            if (!entry.lengthsVerified || (verifyChecksums && !entry.checksumsVerified)) {
+                if (!verify(entry, metadata, ins)) {
+                    closeAll(ins);
+                    if (entry.version != version) {
+                        continue;
+                    }
+                    stats.recordMiss();
+                    removeDamaged(entry, metadata);
+                    return null;
+                }
+            }
+
+            recordRead(entry);
+            stats.recordHit();
+            stats.recordRead(metadata.getTotalLength());
+            return new Snapshot(diskKey, metadata.sequenceNumber, ins, metadata.lengths, metadata.locations);
         }
+    }
 
-        // Open all streams eagerly to guarantee that we see a single published
-        // snapshot. If we opened streams lazily then the streams could come
-        // from different edits.
-        FileInputStream[] ins = new FileInputStream[valueCount];
+    private FileInputStream openValue(Entry entry, Metadata metadata, int index) throws FileNotFoundException {
+        long location = metadata.getLocation(index);
+        if (location != SegmentStore.NO_LOCATION) {
+            return segments.open(location, metadata.lengths[index]);
+        }
+        return new FileInputStream(entry.getCleanFile(index));
+    }
+
+    /**
+     * Checks the values of an entry read for the first time since the cache
+     * was opened, as a crash may have torn them: their lengths and, with
+     * {@link #setVerifyChecksums}, their checksums. The values of entries
+     * created since then were checked as they were written.
+     *
+     * @return false if a value is damaged.
+     */
+    private boolean verify(Entry entry, Metadata metadata, FileInputStream[] ins) {
+        boolean checksums = verifyChecksums;
         try {
             for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
-            }
-        } catch (FileNotFoundException e) {
-            // A file must have been deleted manually!
-            for (int i = 0; i < valueCount; i++) {
-                if (ins[i] != null) {
-                    IOUtils.closeQuietly(ins[i]);
-                } else {
-                    break;
+                FileChannel channel = ins[i].getChannel();
+                long location = metadata.getLocation(i);
+                if (location == SegmentStore.NO_LOCATION && channel.size() != metadata.lengths[i]) {
+                    return false;
+                }
+                if (checksums && metadata.checksums[i] != DiskJournal.NO_CHECKSUM) {
+                    long offset = location == SegmentStore.NO_LOCATION ? 0 : SegmentStore.offsetOf(location);
+                    if (checksum(channel, offset, metadata.lengths[i]) != metadata.checksums[i]) {
+                        return false;
+                    }
                 }
             }
-            return null;
+        } catch (IOException e) {
+            return false;
+        }
+        entry.lengthsVerified = true;
+        if (checksums) {
+            entry.checksumsVerified = true;
         }
+        return true;
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + " " + diskKey + '\n');
+    /**
+     * Returns the CRC32 of {@code length} bytes of {@code channel} at {@code position},
+     * without moving the position of the channel.
+     */
+    private static long checksum(FileChannel channel, long position, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, 8192));
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            crc.update(buffer.array(), 0, count);
+            position += count;
+        }
+        return crc.getValue();
+    }
+
+    private synchronized void removeDamaged(Entry entry, Metadata metadata) {
+        if (journal == null || entries.get(entry.diskKey) != entry || entry.metadata != metadata) {
+            return; // closed, or a new edit replaced the damaged values
+        }
+        LogUtils.w("DiskLruCache " + directory + " removing damaged entry " + entry.diskKey);
+        try {
+            removeByDiskKey(entry.diskKey, RemovalCause.CORRUPT);
+        } catch (IOException e) {
+            LogUtils.e(e.getMessage(), e);
+        }
+    }
+
+    private static void closeAll(Closeable[] closeables) {
+        for (Closeable closeable : closeables) {
+            IOUtils.closeQuietly(closeable);
+        }
+    }
+
+    /**
+     * Queues a read of {@code entry} for the LRU order and the journal,
+     * without taking the cache monitor.
+     */
+    private void recordRead(Entry entry) {
+        readBuffer.offer(entry);
+        if (readBufferSize.incrementAndGet() >= READ_BUFFER_DRAIN_THRESHOLD
+                && drainScheduled.compareAndSet(false, true)) {
+            executorService.submit(drainCallable);
+        }
+    }
+
+    /**
+     * Applies the buffered reads. Called with the cache monitor held.
+     */
+    private void drainReadBuffer() throws IOException {
+        Entry entry;
+        while ((entry = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            // lruEntries.get() moves the entry to the head of the LRU order.
+            if (lruEntries.get(entry.diskKey) == entry) {
+                redundantOpCount++;
+                journal.appendRead(entry.diskKey);
+            }
+        }
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
+    }
 
-        return new Snapshot(diskKey, entry.sequenceNumber, ins, entry.lengths);
+    private synchronized void removeIfExpired(String diskKey) throws IOException {
+        if (journal == null) {
+            return;
+        }
+        Entry entry = lruEntries.get(diskKey);
+        Metadata metadata = entry == null ? null : entry.metadata;
+        if (metadata != null && metadata.expiryTimestamp < System.currentTimeMillis()) {
+            removeByDiskKey(diskKey, RemovalCause.EXPIRED);
+        }
     }
 
     /**
@@ -524,19 +1009,25 @@ public final class LruDiskCache implements Closeable {
      */
     public Editor edit(String key) throws IOException {
         String diskKey = fileNameGenerator.generate(key);
-        return editByDiskKey(diskKey, ANY_SEQUENCE_NUMBER);
+        Editor editor = editByDiskKey(diskKey, ANY_SEQUENCE_NUMBER);
+        if (editor != null) {
+            removePrevious(key, diskKey); // 旧的值不能在新值被淘汰后复活
+        }
+        return editor;
     }
 
-    private synchronized Editor editByDiskKey(String diskKey, long expectedSequenceNumber) throws IOException {
+    synchronized Editor editByDiskKey(String diskKey, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
+        drainReadBuffer();
         Entry entry = lruEntries.get(diskKey);
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER &&
-                (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                (entry == null || entry.metadata == null || entry.metadata.sequenceNumber != expectedSequenceNumber)) {
             return null; // Snapshot is stale.
         }
         if (entry == null) {
             entry = new Entry(diskKey);
             lruEntries.put(diskKey, entry);
+            entries.put(diskKey, entry);
         } else if (entry.currentEditor != null) {
             return null; // Another edit is in progress.
         }
@@ -544,9 +1035,8 @@ public final class LruDiskCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // Flush the journal before creating files to prevent file leaks.
-        journalWriter.write(UPDATE + " " + diskKey + '\n');
-        journalWriter.flush();
+        // Write the journal before creating files to prevent file leaks.
+        journal.appendUpdate(diskKey);
         return editor;
     }
 
@@ -574,68 +1064,305 @@ public final class LruDiskCache implements Closeable {
         executorService.submit(cleanupCallable);
     }
 
+    public int getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    /**
+     * Values written from now on that are smaller than {@code threshold} bytes
+     * are appended to shared segment files rather than stored one file each.
+     * Values already stored stay where they are.
+     *
+     * @param threshold 0 to store every value in its own file, at most 256KB.
+     */
+    public void setSegmentThreshold(int threshold) {
+        if (threshold < 0 || threshold > SegmentStore.MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("threshold must be between 0 and " + SegmentStore.MAX_VALUE_SIZE);
+        }
+        this.segmentThreshold = threshold;
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    /**
+     * Compares the CRC32 of the values of an entry with the one recorded in
+     * the journal the first time the entry is read after the cache is opened,
+     * and drops the entry if they differ. This reads each entry once more,
+     * which is worth it where the storage may lose data without the journal
+     * noticing; the lengths of the values are always checked.
+     */
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
+    public long size() {
         return size;
     }
 
+    /**
+     * Called with the cache monitor held.
+     */
+    private void addSize(long delta) {
+        size += delta;
+        if (budget != null) {
+            budget.add(delta);
+        }
+    }
+
+    /**
+     * Makes this cache a shard of {@code budget}. Called once, right after opening.
+     */
+    synchronized void setBudget(DiskBudget budget) {
+        this.budget = budget;
+        budget.add(size);
+    }
+
+    /**
+     * Makes this cache record into {@code stats}, shared by the shards of a
+     * {@link ShardedDiskCache}. Called once, right after opening.
+     */
+    void setStats(CacheStats stats) {
+        this.stats = stats;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    void scheduleCleanup() {
+        executorService.submit(cleanupCallable);
+    }
+
     private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
         if (entry.currentEditor != editor) {
             throw new IllegalStateException();
         }
+        Metadata metadata = entry.metadata;
 
         // If this edit is creating the entry for the first time, every index must have a value.
-        if (success && !entry.readable) {
+        if (success && metadata == null) {
             for (int i = 0; i < valueCount; i++) {
                 if (!editor.written[i]) {
                     editor.abort();
                     throw new IllegalStateException("Newly created entry didn't create value for index " + i);
                 }
-                if (!entry.getDirtyFile(i).exists()) {
+                if (editor.getBufferedValue(i) == null && !entry.getDirtyFile(i).exists()) {
                     editor.abort();
                     return;
                 }
             }
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+        // Append the small values to a segment first: a failure there leaves the entry as it was.
+        long[] packedLocations = null;
+        long[] packedLengths = null;
+        if (success) {
+            for (int i = 0; i < valueCount; i++) {
+                byte[] value = editor.getBufferedValue(i);
+                if (value == null) {
+                    continue;
+                }
+                if (packedLocations == null) {
+                    packedLocations = newLocations();
+                    packedLengths = new long[valueCount];
+                }
+                try {
+                    packedLocations[i] = segments.append(value);
+                    packedLengths[i] = value.length;
+                } catch (IOException e) {
+                    for (int j = 0; j < i; j++) {
+                        if (packedLocations[j] != SegmentStore.NO_LOCATION) {
+                            segments.release(packedLocations[j], packedLengths[j]);
+                        }
+                    }
+                    editor.abort();
+                    throw e;
                 }
-            } else {
-                deleteIfExists(dirty);
             }
         }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + " " + entry.diskKey + " " + EXPIRY_PREFIX + entry.expiryTimestamp + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+        long[] lengths = metadata == null ? new long[valueCount] : metadata.lengths.clone();
+        long[] checksums = metadata == null ? newChecksums() : metadata.checksums.clone();
+        long[] locations = metadata == null || metadata.locations == null ? null : metadata.locations.clone();
+        long bytesWritten = 0;
+        entry.version++; // odd: readers retry until the new files are published
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    long oldLocation = locations == null ? SegmentStore.NO_LOCATION : locations[i];
+                    long newLength;
+                    if (packedLocations != null && packedLocations[i] != SegmentStore.NO_LOCATION) {
+                        dirty.delete();
+                        if (oldLocation == SegmentStore.NO_LOCATION) {
+                            entry.getCleanFile(i).delete();
+                        } else {
+                            segments.release(oldLocation, lengths[i]);
+                        }
+                        if (locations == null) {
+                            locations = newLocations();
+                        }
+                        locations[i] = packedLocations[i];
+                        newLength = packedLengths[i];
+                    } else if (dirty.exists()) {
+                        if (oldLocation != SegmentStore.NO_LOCATION) {
+                            segments.release(oldLocation, lengths[i]);
+                            locations[i] = SegmentStore.NO_LOCATION;
+                        }
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        newLength = clean.length();
+                    } else {
+                        continue;
+                    }
+                    addSize(newLength - lengths[i]);
+                    lengths[i] = newLength;
+                    checksums[i] = editor.getChecksum(i);
+                    bytesWritten += newLength;
+                } else {
+                    deleteIfExists(dirty);
+                }
             }
-        } else {
-            lruEntries.remove(entry.diskKey);
-            journalWriter.write(DELETE + " " + entry.diskKey + '\n');
+
+            redundantOpCount++;
+            entry.currentEditor = null;
+            if (metadata != null | success) {
+                if (success) {
+                    if (metadata != null) {
+                        stats.recordRemoval(RemovalCause.REPLACED, metadata.getTotalLength());
+                    }
+                    stats.recordWrite(bytesWritten);
+                    metadata = new Metadata(lengths, checksums, editor.expiryTimestamp, nextSequenceNumber++,
+                            isPacked(locations) ? locations : null);
+                    if (editor.written != null) {
+                        // Every value of a new entry was just written.
+                        entry.lengthsVerified = true;
+                        entry.checksumsVerified = true;
+                    }
+                    entry.metadata = metadata;
+                }
+                journal.appendClean(entry.diskKey, metadata.expiryTimestamp,
+                        metadata.lengths, metadata.checksums, metadata.locations);
+            } else {
+                lruEntries.remove(entry.diskKey);
+                entries.remove(entry.diskKey);
+                journal.appendDelete(entry.diskKey);
+            }
+        } finally {
+            entry.version++;
         }
-        journalWriter.flush();
+        scheduleJournalSync();
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (size > maxSize || journalRebuildRequired() || segments.isCompactionRequired()) {
             executorService.submit(cleanupCallable);
         }
+        if (budget != null && budget.isExceeded()) {
+            budget.trimMembers();
+        }
+    }
+
+    private long[] newChecksums() {
+        long[] checksums = new long[valueCount];
+        Arrays.fill(checksums, DiskJournal.NO_CHECKSUM);
+        return checksums;
+    }
+
+    private long[] newLocations() {
+        long[] locations = new long[valueCount];
+        Arrays.fill(locations, SegmentStore.NO_LOCATION);
+        return locations;
+    }
+
+    private static boolean isPacked(long[] locations) {
+        if (locations != null) {
+            for (long location : locations) {
+                if (location != SegmentStore.NO_LOCATION) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the live values of the segments that are mostly dead space to the
+     * active segment and deletes those segments. Called with the cache monitor held.
+     */
+    private void compactSegments() throws IOException {
+        List<Integer> candidates = segments.compactionCandidates();
+        if (candidates.isEmpty()) {
+            return;
+        }
+        // 一次遍历按分段归类条目, 一个条目的多个值可能分属不同分段
+        HashMap<Integer, List<Entry>> entriesBySegment = new HashMap<Integer, List<Entry>>();
+        for (Integer segmentId : candidates) {
+            entriesBySegment.put(segmentId, new ArrayList<Entry>());
+        }
+        for (Entry entry : lruEntries.values()) {
+            Metadata metadata = entry.metadata;
+            if (metadata == null || metadata.locations == null) {
+                continue;
+            }
+            for (int i = 0; i < valueCount; i++) {
+                long location = metadata.locations[i];
+                if (location == SegmentStore.NO_LOCATION) {
+                    continue;
+                }
+                List<Entry> segmentEntries = entriesBySegment.get(SegmentStore.segmentOf(location));
+                if (segmentEntries != null && (segmentEntries.isEmpty()
+                        || segmentEntries.get(segmentEntries.size() - 1) != entry)) {
+                    segmentEntries.add(entry);
+                }
+            }
+        }
+
+        for (Integer segmentId : candidates) {
+            RandomAccessFile source = segments.openForCompaction(segmentId);
+            try {
+                for (Entry entry : entriesBySegment.get(segmentId)) {
+                    moveOutOfSegment(entry, segmentId, source);
+                }
+            } finally {
+                IOUtils.closeQuietly(source);
+            }
+            // The new locations must be durable before the old ones disappear.
+            journal.sync();
+            segments.delete(segmentId);
+        }
+    }
+
+    /**
+     * Moves the values of {@code entry} stored in segment {@code segmentId}
+     * to the active segment.
+     */
+    private void moveOutOfSegment(Entry entry, int segmentId, RandomAccessFile source) throws IOException {
+        Metadata metadata = entry.metadata;
+        long[] locations = metadata.locations.clone();
+        for (int i = 0; i < valueCount; i++) {
+            long location = locations[i];
+            if (location != SegmentStore.NO_LOCATION && SegmentStore.segmentOf(location) == segmentId) {
+                locations[i] = segments.move(source, location, metadata.lengths[i]);
+            }
+        }
+        entry.version++;
+        entry.metadata = new Metadata(metadata.lengths, metadata.checksums,
+                metadata.expiryTimestamp, metadata.sequenceNumber, locations);
+        entry.version++;
+        redundantOpCount++;
+        journal.append(DiskJournal.PACKED, entry.diskKey, metadata.expiryTimestamp,
+                metadata.lengths, metadata.checksums, locations);
+        if (entry.currentEditor != null) {
+            // Keep the edit in progress on replay.
+            journal.append(DiskJournal.UPDATE, entry.diskKey, 0, null, null, null);
+        }
     }
 
     /**
@@ -650,7 +1377,7 @@ public final class LruDiskCache implements Closeable {
 
     public boolean remove(String key) throws IOException {
         String diskKey = fileNameGenerator.generate(key);
-        return removeByDiskKey(diskKey);
+        return removeByDiskKey(diskKey) | removePrevious(key, diskKey);
     }
 
     /**
@@ -659,27 +1386,43 @@ public final class LruDiskCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    private synchronized boolean removeByDiskKey(String diskKey) throws IOException {
+    boolean removeByDiskKey(String diskKey) throws IOException {
+        return removeByDiskKey(diskKey, RemovalCause.EXPLICIT);
+    }
+
+    private synchronized boolean removeByDiskKey(String diskKey, RemovalCause cause) throws IOException {
         checkNotClosed();
         Entry entry = lruEntries.get(diskKey);
         if (entry == null || entry.currentEditor != null) {
             return false;
         }
 
+        // Unpublish first so that no new reader opens the files being deleted.
+        Metadata metadata = entry.metadata;
+        entry.metadata = null;
+        lruEntries.remove(diskKey);
+        entries.remove(diskKey);
         for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (file.exists() && !file.delete()) {
-                throw new IOException("failed to delete " + file);
+            long location = metadata == null ? SegmentStore.NO_LOCATION : metadata.getLocation(i);
+            if (location != SegmentStore.NO_LOCATION) {
+                segments.release(location, metadata.lengths[i]);
+            } else {
+                File file = entry.getCleanFile(i);
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+            }
+            if (metadata != null) {
+                addSize(-metadata.lengths[i]);
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
         }
 
         redundantOpCount++;
-        journalWriter.append(DELETE + " " + diskKey + '\n');
-        lruEntries.remove(diskKey);
+        journal.appendDelete(diskKey);
+        scheduleJournalSync();
+        stats.recordRemoval(cause, metadata == null ? 0 : metadata.getTotalLength());
 
-        if (journalRebuildRequired()) {
+        if (journalRebuildRequired() || segments.isCompactionRequired()) {
             executorService.submit(cleanupCallable);
         }
 
@@ -689,12 +1432,12 @@ public final class LruDiskCache implements Closeable {
     /**
      * Returns true if this cache has been closed.
      */
-    public synchronized boolean isClosed() {
-        return journalWriter == null;
+    public boolean isClosed() {
+        return journal == null;
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (journal == null) {
             throw new IllegalStateException("cache is closed");
         }
     }
@@ -704,8 +1447,11 @@ public final class LruDiskCache implements Closeable {
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
+        drainReadBuffer();
         trimToSize();
-        journalWriter.flush();
+        journal.sync();
+        lastJournalSyncTime = System.currentTimeMillis();
+        stats.recordJournalSync();
     }
 
     /**
@@ -713,7 +1459,7 @@ public final class LruDiskCache implements Closeable {
      */
     @Override
     public synchronized void close() throws IOException {
-        if (journalWriter == null) {
+        if (journal == null) {
             return; // Already closed.
         }
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
@@ -721,15 +1467,26 @@ public final class LruDiskCache implements Closeable {
                 entry.currentEditor.abort();
             }
         }
+        drainReadBuffer();
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        journal.close();
+        journal = null;
+        segments.close();
     }
 
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-            Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            removeByDiskKey(toEvict.getKey());
+        while (size > maxSize || (budget != null && budget.isExceeded() && size > budget.getFairShare())) {
+            Entry toEvict = null;
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor == null) {
+                    toEvict = entry;
+                    break;
+                }
+            }
+            if (toEvict == null) {
+                break; // everything left is being edited
+            }
+            removeByDiskKey(toEvict.diskKey, RemovalCause.SIZE);
         }
     }
 
@@ -749,18 +1506,30 @@ public final class LruDiskCache implements Closeable {
 
     /**
      * A snapshot of the values for an entry.
+     * <p/>
+     * Besides the streams, a value can be read through its {@link FileChannel}:
+     * {@link #getMappedBuffer} and {@link #transferTo} hand the bytes to the
+     * caller without copying them through a heap buffer. They are meant for
+     * callers sending a cached value to a file or socket; the library's own
+     * readers need the bytes on the heap anyway (HttpCache) or decode bitmaps
+     * from the file descriptor, which copies nothing either.
      */
     public final class Snapshot implements Closeable {
         private final String diskKey;
         private final long sequenceNumber;
         private final FileInputStream[] ins;
         private final long[] lengths;
+        /**
+         * Segment locations of the values, null if every value has its own file.
+         */
+        private final long[] locations;
 
-        private Snapshot(String diskKey, long sequenceNumber, FileInputStream[] ins, long[] lengths) {
+        private Snapshot(String diskKey, long sequenceNumber, FileInputStream[] ins, long[] lengths, long[] locations) {
             this.diskKey = diskKey;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
             this.lengths = lengths;
+            this.locations = locations;
         }
 
         /**
@@ -783,7 +1552,26 @@ public final class LruDiskCache implements Closeable {
          * Returns the string value for {@code index}.
          */
         public String getString(int index) throws IOException {
-            return inputStreamToString(getInputStream(index));
+            return new String(getBytes(index), HTTP.UTF_8);
+        }
+
+        /**
+         * Returns the raw value for {@code index}.
+         */
+        public byte[] getBytes(int index) throws IOException {
+            long length = lengths[index];
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("value too long: " + length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            FileChannel channel = ins[index].getChannel();
+            long position = getOffset(index);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return buffer.array();
         }
 
         /**
@@ -793,6 +1581,56 @@ public final class LruDiskCache implements Closeable {
             return lengths[index];
         }
 
+        /**
+         * Returns the channel of the file holding the value for {@code index},
+         * positioned at the start of the value. A value packed into a segment
+         * file is followed by other values: read at most {@link #getLength}
+         * bytes. The channel shares its position with {@link #getInputStream}.
+         */
+        public FileChannel getChannel(int index) {
+            return ins[index].getChannel();
+        }
+
+        /**
+         * Maps the value for {@code index} read only. The mapping stays valid
+         * after the snapshot is closed. Mapping has a fixed cost, so this pays
+         * off for large values; small ones are cheaper to read.
+         */
+        public MappedByteBuffer getMappedBuffer(int index) throws IOException {
+            return ins[index].getChannel().map(FileChannel.MapMode.READ_ONLY, getOffset(index), lengths[index]);
+        }
+
+        /**
+         * Writes the value for {@code index} to {@code target}, letting the
+         * system copy the bytes directly where it can (sendfile for sockets,
+         * a file-to-file copy for {@link FileChannel} targets).
+         *
+         * @return the number of bytes written, less than {@link #getLength} only
+         * if {@code target} is non-blocking and stopped accepting bytes.
+         */
+        public long transferTo(int index, WritableByteChannel target) throws IOException {
+            FileChannel channel = ins[index].getChannel();
+            long position = getOffset(index);
+            long length = lengths[index];
+            long transferred = 0;
+            while (transferred < length) {
+                long count = channel.transferTo(position + transferred, length - transferred, target);
+                if (count <= 0) {
+                    if (position + transferred >= channel.size()) {
+                        throw new EOFException();
+                    }
+                    break;
+                }
+                transferred += count;
+            }
+            return transferred;
+        }
+
+        private long getOffset(int index) {
+            long location = locations == null ? SegmentStore.NO_LOCATION : locations[index];
+            return location == SegmentStore.NO_LOCATION ? 0 : SegmentStore.offsetOf(location);
+        }
+
         @Override
         public void close() {
             for (InputStream in : ins) {
@@ -801,6 +1639,20 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
+    private FileOutputStream openDirtyFile(File dirtyFile) {
+        try {
+            return new FileOutputStream(dirtyFile);
+        } catch (FileNotFoundException e) {
+            // Attempt to recreate the cache directory.
+            directory.mkdirs();
+            try {
+                return new FileOutputStream(dirtyFile);
+            } catch (FileNotFoundException e2) {
+                return null;
+            }
+        }
+    }
+
     private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
         @Override
         public void write(int b) throws IOException {
@@ -814,16 +1666,23 @@ public final class LruDiskCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private final boolean[] written;
+        private final ValueOutputStream[] outputs;
+        private final CRC32[] checksums;
         private boolean hasErrors;
         private boolean committed;
+        private long expiryTimestamp;
 
         private Editor(Entry entry) {
             this.entry = entry;
-            this.written = (entry.readable) ? null : new boolean[valueCount];
+            Metadata metadata = entry.metadata;
+            this.written = (metadata != null) ? null : new boolean[valueCount];
+            this.outputs = new ValueOutputStream[valueCount];
+            this.checksums = new CRC32[valueCount];
+            this.expiryTimestamp = (metadata != null) ? metadata.expiryTimestamp : Long.MAX_VALUE;
         }
 
         public void setEntryExpiryTimestamp(long timestamp) {
-            entry.expiryTimestamp = timestamp;
+            this.expiryTimestamp = timestamp;
         }
 
         /**
@@ -835,11 +1694,12 @@ public final class LruDiskCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                if (!entry.readable) {
+                Metadata metadata = entry.metadata;
+                if (metadata == null) {
                     return null;
                 }
                 try {
-                    return new FileInputStream(entry.getCleanFile(index));
+                    return openValue(entry, metadata, index);
                 } catch (FileNotFoundException e) {
                     return null;
                 }
@@ -867,27 +1727,44 @@ public final class LruDiskCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                if (!entry.readable) {
+                if (written != null) {
                     written[index] = true;
                 }
                 File dirtyFile = entry.getDirtyFile(index);
-                FileOutputStream outputStream;
-                try {
-                    outputStream = new FileOutputStream(dirtyFile);
-                } catch (FileNotFoundException e) {
-                    // Attempt to recreate the cache directory.
-                    directory.mkdirs();
-                    try {
-                        outputStream = new FileOutputStream(dirtyFile);
-                    } catch (FileNotFoundException e2) {
-                        // We are unable to recover. Silently eat the writes.
-                        return NULL_OUTPUT_STREAM;
-                    }
+                CRC32 checksum = new CRC32();
+                checksums[index] = checksum;
+                int threshold = segmentThreshold;
+                if (threshold > 0) {
+                    outputs[index] = new ValueOutputStream(dirtyFile, threshold);
+                    return new FaultHidingOutputStream(new CheckedOutputStream(outputs[index], checksum));
+                }
+                outputs[index] = null;
+                FileOutputStream outputStream = openDirtyFile(dirtyFile);
+                if (outputStream == null) {
+                    // We are unable to recover. Silently eat the writes.
+                    return NULL_OUTPUT_STREAM;
                 }
-                return new FaultHidingOutputStream(outputStream);
+                return new FaultHidingOutputStream(new CheckedOutputStream(outputStream, checksum));
             }
         }
 
+        /**
+         * Returns the value written at {@code index} if it is small enough to
+         * be packed into a segment, null otherwise.
+         */
+        private byte[] getBufferedValue(int index) {
+            ValueOutputStream output = outputs[index];
+            return output == null ? null : output.getBufferedValue();
+        }
+
+        /**
+         * Returns the CRC32 of the value written at {@code index}.
+         */
+        private long getChecksum(int index) {
+            CRC32 checksum = checksums[index];
+            return checksum == null ? DiskJournal.NO_CHECKSUM : checksum.getValue();
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -901,6 +1778,19 @@ public final class LruDiskCache implements Closeable {
             }
         }
 
+        /**
+         * Sets the value at {@code index} to the raw {@code value}.
+         */
+        public void set(int index, byte[] value) throws IOException {
+            OutputStream out = null;
+            try {
+                out = newOutputStream(index);
+                out.write(value);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        }
+
         /**
          * Commits this edit so it is visible to readers.  This releases the
          * edit lock so another edit may be started on the same key.
@@ -932,6 +1822,62 @@ public final class LruDiskCache implements Closeable {
             }
         }
 
+        /**
+         * Keeps the value in memory while it is smaller than the segment
+         * threshold, and moves it to the dirty file once it is not.
+         */
+        private class ValueOutputStream extends OutputStream {
+            private final File dirtyFile;
+            private final int threshold;
+            private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            private OutputStream file;
+
+            private ValueOutputStream(File dirtyFile, int threshold) {
+                this.dirtyFile = dirtyFile;
+                this.threshold = threshold;
+            }
+
+            @Override
+            public void write(int oneByte) throws IOException {
+                write(new byte[]{(byte) oneByte}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (file == null && buffer.size() + length >= threshold) {
+                    file = openDirtyFile(dirtyFile);
+                    if (file == null) {
+                        throw new FileNotFoundException(dirtyFile.getPath());
+                    }
+                    buffer.writeTo(file);
+                    buffer = null;
+                }
+                if (file != null) {
+                    file.write(bytes, offset, length);
+                } else {
+                    buffer.write(bytes, offset, length);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (file != null) {
+                    file.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (file != null) {
+                    file.close();
+                }
+            }
+
+            private byte[] getBufferedValue() {
+                return file == null ? buffer.toByteArray() : null;
+            }
+        }
+
         private class FaultHidingOutputStream extends FilterOutputStream {
             private FaultHidingOutputStream(OutputStream out) {
                 super(out);
@@ -976,63 +1922,81 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
-    private final class Entry {
-        private final String diskKey;
-
-        private long expiryTimestamp = Long.MAX_VALUE;
-
+    /**
+     * The published state of an entry. Never modified: a commit publishes a new one.
+     */
+    private static final class Metadata {
         /**
          * Lengths of this entry's files.
          */
         private final long[] lengths;
 
         /**
-         * True if this entry has ever been published.
+         * CRC32 of the values, {@link DiskJournal#NO_CHECKSUM} where unknown.
          */
-        private boolean readable;
+        private final long[] checksums;
+
+        private final long expiryTimestamp;
 
         /**
-         * The ongoing edit or null if this entry is not being edited.
+         * The sequence number of the most recently committed edit to this entry.
          */
-        private Editor currentEditor;
+        private final long sequenceNumber;
 
         /**
-         * The sequence number of the most recently committed edit to this entry.
+         * Segment locations of the values, null if every value has its own file.
          */
-        private long sequenceNumber;
+        private final long[] locations;
 
-        private Entry(String diskKey) {
-            this.diskKey = diskKey;
-            this.lengths = new long[valueCount];
+        private Metadata(long[] lengths, long[] checksums, long expiryTimestamp, long sequenceNumber,
+                         long[] locations) {
+            this.lengths = lengths;
+            this.checksums = checksums;
+            this.expiryTimestamp = expiryTimestamp;
+            this.sequenceNumber = sequenceNumber;
+            this.locations = locations;
+        }
+
+        private long getLocation(int index) {
+            return locations == null ? SegmentStore.NO_LOCATION : locations[index];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(" ").append(size);
+        private long getTotalLength() {
+            long total = 0;
+            for (long length : lengths) {
+                total += length;
             }
-            return result.toString();
+            return total;
         }
+    }
+
+    private final class Entry {
+        private final String diskKey;
 
         /**
-         * Set lengths using decimal numbers like "10123".
+         * Null until this entry has been published.
          */
-        private void setLengths(String[] strings, int startIndex) throws IOException {
-            if ((strings.length - startIndex) != valueCount) {
-                throw invalidLengths(strings);
-            }
+        private volatile Metadata metadata;
 
-            try {
-                for (int i = 0; i < valueCount; i++) {
-                    lengths[i] = Long.parseLong(strings[i + startIndex]);
-                }
-            } catch (NumberFormatException e) {
-                throw invalidLengths(strings);
-            }
-        }
+        /**
+         * Incremented before and after a commit replaces the files, so it is
+         * odd while they may be a mix of two edits.
+         */
+        private volatile int version;
 
-        private IOException invalidLengths(String[] strings) throws IOException {
-            throw new IOException("unexpected journal line: " + java.util.Arrays.toString(strings));
+        /**
+         * Whether the values were checked since the cache was opened, see {@link #verify}.
+         */
+        private volatile boolean lengthsVerified;
+        private volatile boolean checksumsVerified;
+
+        /**
+         * The ongoing edit or null if this entry is not being edited.
+         */
+        private Editor currentEditor;
+
+        private Entry(String diskKey) {
+            this.diskKey = diskKey;
         }
 
         public File getCleanFile(int i) {
@@ -1040,7 +2004,7 @@ public final class LruDiskCache implements Closeable {
         }
 
         public File getDirtyFile(int i) {
-            return new File(directory, diskKey + "." + i + ".tmp");
+            return new File(directory, diskKey + "." + i + DIRTY_FILE_SUFFIX);
         }
     }
 
@@ -1065,7 +2029,7 @@ public final class LruDiskCache implements Closeable {
      * Deletes the contents of {@code dir}. Throws an IOException if any file
      * could not be deleted, or if {@code dir} is not a readable directory.
      */
-    private static void deleteContents(File dir) throws IOException {
+    static void deleteContents(File dir) throws IOException {
         File[] files = dir.listFiles();
         if (files == null) {
             throw new IOException("not a readable directory: " + dir);
@@ -1223,15 +2187,85 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
-    private FileNameGenerator fileNameGenerator = new MD5FileNameGenerator();
+    private volatile FileNameGenerator fileNameGenerator = new MD5FileNameGenerator();
+    private volatile FileNameGenerator previousFileNameGenerator;
 
     public FileNameGenerator getFileNameGenerator() {
         return fileNameGenerator;
     }
 
     public void setFileNameGenerator(FileNameGenerator fileNameGenerator) {
+        setFileNameGenerator(fileNameGenerator, null);
+    }
+
+    public void setFileNameGenerator(FileNameGenerator fileNameGenerator, FileNameGenerator previousFileNameGenerator) {
         if (fileNameGenerator != null) {
             this.fileNameGenerator = fileNameGenerator;
+            this.previousFileNameGenerator = previousFileNameGenerator;
+        }
+    }
+
+    /**
+     * Moves the entry named by the previous file name generator for {@code key}
+     * to {@code diskKey}.
+     *
+     * @return true if there was one to move.
+     */
+    private boolean migrate(String key, String diskKey) {
+        FileNameGenerator previous = previousFileNameGenerator;
+        if (previous == null) return false;
+
+        String previousDiskKey = previous.generate(key);
+        try {
+            return !previousDiskKey.equals(diskKey) && moveEntry(this, previousDiskKey, this, diskKey);
+        } catch (Throwable e) {
+            LogUtils.e("migrate " + previousDiskKey + " error", e);
+            return false;
+        }
+    }
+
+    private boolean removePrevious(String key, String diskKey) throws IOException {
+        FileNameGenerator previous = previousFileNameGenerator;
+        if (previous == null) return false;
+
+        String previousDiskKey = previous.generate(key);
+        return !previousDiskKey.equals(diskKey) && removeByDiskKey(previousDiskKey);
+    }
+
+    /**
+     * Copies the entry {@code fromDiskKey} of {@code from} to {@code toDiskKey}
+     * of {@code to}, then removes it from {@code from}. Both caches must have
+     * the same value count.
+     *
+     * @return false if there is no such entry or the target is being edited.
+     */
+    static boolean moveEntry(LruDiskCache from, String fromDiskKey, LruDiskCache to, String toDiskKey)
+            throws IOException {
+        Snapshot snapshot = from.getByDiskKey(fromDiskKey);
+        if (snapshot == null) return false;
+
+        try {
+            long expiryTimestamp = from.getExpiryTimestampByDiskKey(fromDiskKey);
+            Editor editor = to.editByDiskKey(toDiskKey, ANY_SEQUENCE_NUMBER);
+            if (editor == null) return false;
+            try {
+                editor.setEntryExpiryTimestamp(expiryTimestamp);
+                for (int i = 0; i < to.valueCount; i++) {
+                    OutputStream out = editor.newOutputStream(i);
+                    try {
+                        snapshot.transferTo(i, Channels.newChannel(out));
+                    } finally {
+                        IOUtils.closeQuietly(out);
+                    }
+                }
+                editor.commit();
+            } finally {
+                editor.abortUnlessCommitted();
+            }
+        } finally {
+            IOUtils.closeQuietly(snapshot);
         }
+        from.removeByDiskKey(fromDiskKey);
+        return true;
     }
 }
\ No newline at end of file
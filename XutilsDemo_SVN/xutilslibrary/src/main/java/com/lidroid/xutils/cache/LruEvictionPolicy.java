@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+/**
+ * Plain least-recently-used eviction, the default of {@link LruMemoryCache}.
+ */
+public class LruEvictionPolicy<K> implements EvictionPolicy<K> {
+
+    public LruEvictionPolicy() {
+    }
+
+    @Override
+    public int getWindowPercent() {
+        return 100;
+    }
+
+    @Override
+    public void recordAccess(K key) {
+    }
+
+    @Override
+    public boolean admit(K candidate, K victim) {
+        return true;
+    }
+}
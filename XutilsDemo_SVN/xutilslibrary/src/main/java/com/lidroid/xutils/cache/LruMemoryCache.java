@@ -15,28 +15,80 @@
 
 package com.lidroid.xutils.cache;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 内存的缓存
+ * <p/>
+ * The entries are spread over {@code concurrencyLevel} segments, each one an
+ * access-ordered map guarded by its own lock, so that lookups of different keys
+ * do not contend on a single monitor. The size bound is global, but eviction
+ * only looks at the segment being written: its least recently used entry is
+ * the victim, subject to the {@link EvictionPolicy} (plain LRU unless
+ * {@link #setEvictionPolicy} is called). Other segments are only visited when
+ * that one is empty, so a write locks one or two segments, not all of them.
+ * <p/>
+ * Entries put with an expiry timestamp are removed through a timer wheel once
+ * they expire, as a side effect of writes and of every 64th
+ * read, or explicitly through {@link #cleanUp()}, so they do not hold memory
+ * until they happen to be read again.
+ * <p/>
+ * Optionally the entries evicted for space are kept in a soft or weak
+ * referenced overflow tier ({@link #setOverflowReferenceType}), from which a
+ * later {@link #get} takes them back as long as the GC has not collected them.
+ * <p/>
+ * Registered with {@link MemoryGovernor}, the cache shrinks below
+ * {@link #maxSize()} while the system is low on memory.
+ *
  * @param <K>
  * @param <V>
  */
-public class LruMemoryCache<K, V> {
-    private final LinkedHashMap<K, V> map;
+public class LruMemoryCache<K, V> implements MemoryTrimmable {
+
+    public static final int DEFAULT_CONCURRENCY_LEVEL = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_SEGMENTS = 1 << 16;
+    private static final int EXPIRE_READ_INTERVAL = 64;
+
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
 
     /**
      * Size of this cache in units. Not necessarily the number of elements.
      */
-    private int size;//内存的大小
-    private int maxSize;//最大内存的大小
+    private final AtomicInteger size = new AtomicInteger();//内存的大小
+    private final AtomicInteger windowSize = new AtomicInteger();//准入窗口的大小
+    private volatile int maxSize;//最大内存的大小
+    private volatile float retainFraction = 1f;//内存紧张时保留的比例
+
+    private final StripedCounter putCount = new StripedCounter();//放入个数
+    private final StripedCounter createCount = new StripedCounter();//创建的个数
+    private final CacheStats stats = new CacheStats("memory");//命中, 错过, 加载及移除的统计
+    private final AtomicInteger readCount = new AtomicInteger();//读取的次数, 用于定期清理过期项
+
+    /**
+     * Serializes victim selection so that concurrent writers do not evict
+     * more entries than needed. Never taken on the read path.
+     */
+    private final Object evictionLock = new Object();
+    private int evictionCursor;//无写入段时轮流从各段淘汰, 由evictionLock保护
 
-    private int putCount;//放入个数
-    private int createCount;//创建的个数
-    private int evictionCount;//收回的个数
-    private int hitCount;//点击个数?????
-    private int missCount;//错过的个数
+    private volatile EvictionPolicy<? super K> evictionPolicy = new LruEvictionPolicy<K>();
+
+    /**
+     * The evicted entries still reachable through soft or weak references, null if disabled.
+     */
+    private volatile ReferenceCache<K, V> overflowCache;
 
     /**
      * key: K
@@ -44,24 +96,112 @@ public class LruMemoryCache<K, V> {
      */
     private KeyExpiryMap<K, Long> keyExpiryMap;
 
+    /**
+     * The loads started by {@link #getOrLoad} and not finished yet.
+     */
+    private final ConcurrentHashMap<K, FutureTask<V>> loadingMap = new ConcurrentHashMap<K, FutureTask<V>>();
+
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
      *                the maximum number of entries in the cache. For all other caches,
      *                this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruMemoryCache(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maxSize          see {@link #LruMemoryCache(int)}
+     * @param concurrencyLevel the estimated number of concurrently accessing threads,
+     *                         the number of CPUs by default. The entries are
+     *                         striped over that many segments (rounded up to a
+     *                         power of two); 1 gives an exact global LRU order.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LruMemoryCache(int maxSize, int concurrencyLevel) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel && segmentCount < MAX_SEGMENTS) {
+            segmentCount <<= 1;
+        }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
-        this.keyExpiryMap = new KeyExpiryMap<K, Long>(0, 0.75f);
+        this.segmentMask = segmentCount - 1;
+        this.segments = (Segment<K, V>[]) new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment<K, V>(i);
+        }
+        this.keyExpiryMap = new KeyExpiryMap<K, Long>(0, 0.75f, segmentCount);
+    }
+
+    /**
+     * @param evictionPolicy the policy choosing which entries survive when the
+     *                       cache is full, null restores plain LRU.
+     */
+    public void setEvictionPolicy(EvictionPolicy<? super K> evictionPolicy) {
+        this.evictionPolicy = evictionPolicy == null ? new LruEvictionPolicy<K>() : evictionPolicy;
+    }
+
+    public EvictionPolicy<? super K> getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * {@link #entryRemoved} is still called when an entry moves to the overflow
+     * tier, so it must not release the value (e.g. recycle a bitmap) while
+     * the tier is enabled.
+     *
+     * @param referenceType how the entries evicted for space are kept after
+     *                      leaving the cache, null to drop them at once.
+     */
+    public void setOverflowReferenceType(ReferenceCache.ReferenceType referenceType) {
+        ReferenceCache<K, V> overflowCache = this.overflowCache;
+        if (overflowCache == null ? referenceType == null : overflowCache.getReferenceType() == referenceType) {
+            return;
+        }
+        this.overflowCache = referenceType == null ? null : new ReferenceCache<K, V>(referenceType);
+        if (overflowCache != null) {
+            overflowCache.clear();
+        }
+    }
+
+    public ReferenceCache.ReferenceType getOverflowReferenceType() {
+        ReferenceCache<K, V> overflowCache = this.overflowCache;
+        return overflowCache == null ? null : overflowCache.getReferenceType();
     }
 
     public void setMaxSize(int maxSize) {
         this.maxSize = maxSize;
         //进行瘦身最大值给size
-        trimToSize(maxSize);
+        trimToSize(capacity());
+    }
+
+    /**
+     * Keeps at most {@code retainFraction} of {@link #maxSize()}, evicting the
+     * entries beyond it. When nothing is retained the overflow tier is dropped
+     * as well.
+     */
+    @Override
+    public void trimMemory(float retainFraction) {
+        this.retainFraction = Math.max(0f, Math.min(1f, retainFraction));
+        trimToSize(capacity());
+        ReferenceCache<K, V> overflowCache = this.overflowCache;
+        if (this.retainFraction == 0f && overflowCache != null) {
+            overflowCache.clear();
+        }
+    }
+
+    /**
+     * @return the size the cache is currently held to: {@link #maxSize()},
+     * unless it is trimmed.
+     */
+    public final int capacity() {
+        float fraction = retainFraction;
+        return fraction >= 1f ? maxSize : (int) (maxSize * fraction);
     }
 
     /**
@@ -75,21 +215,44 @@ public class LruMemoryCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
-        V mapValue;
-        synchronized (this) {
-            // If expired, remove the entry.
-            if (!keyExpiryMap.containsKey(key)) {
-                this.remove(key);
-                return null;
+        evictionPolicy.recordAccess(key);
+        if (readCount.incrementAndGet() % EXPIRE_READ_INTERVAL == 0) {
+            expireEntries();
+        }
+
+        // If expired, remove the entry. A key the segment doesn't hold has no
+        // expiry mapping either, so a plain miss takes no lock.
+        Long expiryTimestamp = keyExpiryMap.getExpiryTimestamp(key);
+        if (expiryTimestamp == null || (expiryTimestamp != Long.MAX_VALUE && System.currentTimeMillis() >= expiryTimestamp)) {
+            V overflowValue = takeFromOverflow(key);
+            if (overflowValue != null) {
+                stats.recordHit();
+                return overflowValue;
             }
-            mapValue = map.get(key);
-            if (mapValue != null) {
-                hitCount++;
-                return mapValue;
+            if (expiryTimestamp != null) {
+                removeExpired(key, expiryTimestamp);
             }
-            missCount++;
+            stats.recordMiss();
+            return null;
         }
 
+        Segment<K, V> segment = segmentFor(key);
+        V mapValue;
+        synchronized (segment) {
+            Node<K, V> node = segment.get(key);
+            if (node != null) {
+                node.accessTime = System.nanoTime();
+                stats.recordHit();
+                return node.value;
+            }
+        }
+        V overflowValue = takeFromOverflow(key);
+        if (overflowValue != null) {
+            stats.recordHit();
+            return overflowValue;
+        }
+        stats.recordMiss();
+
         /*
          * Attempt to create a value. This may take a long time, and the map
          * may be different when create() returns. If a conflicting value was
@@ -102,15 +265,16 @@ public class LruMemoryCache<K, V> {
             return null;
         }
 
-        synchronized (this) {
-            createCount++;
-            mapValue = map.put(key, createdValue);
-
-            if (mapValue != null) {
-                // There was a conflict so undo that last put
-                map.put(key, mapValue);
+        Node<K, V> created = new Node<K, V>(key, createdValue, safeSizeOf(key, createdValue));
+        synchronized (segment) {
+            createCount.increment();
+            Node<K, V> previous = segment.get(key);
+            if (previous != null) {
+                // There was a conflict so keep the value already in the map
+                mapValue = previous.value;
             } else {
-                size += safeSizeOf(key, createdValue);
+                mapValue = null;
+                addNode(segment, created);
             }
         }
 
@@ -118,11 +282,114 @@ public class LruMemoryCache<K, V> {
             entryRemoved(false, key, createdValue, mapValue);
             return mapValue;
         } else {
-            trimToSize(maxSize);
+            trimToSize(capacity(), created);
             return createdValue;
         }
     }
 
+    /**
+     * Returns the value for {@code key}, loading it with {@code loader} on a
+     * miss. Concurrent misses on the same key share a single load: the first
+     * caller runs the loader on its own thread and the others wait for its
+     * result rather than computing and then discarding their own.
+     * <p/>
+     * A loader that gives up because its caller no longer wants the value
+     * (e.g. the view was recycled) throws a {@link CancellationException}:
+     * that caller gets it, and one of the waiting callers takes over the load
+     * with its own loader instead of receiving nothing.
+     *
+     * @return the cached or loaded value, null if the loader returned null.
+     * @throws Exception the exception thrown by the loader, to every caller
+     *                   waiting for that load.
+     */
+    public final V getOrLoad(final K key, final CacheLoader<? super K, V> loader) throws Exception {
+        V value = get(key);
+        while (value == null) {
+            FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    // An earlier load may have completed since the miss above.
+                    V value = getIfPresent(key);
+                    if (value == null) {
+                        long start = System.nanoTime();
+                        try {
+                            value = loader.load(key);
+                        } catch (Exception e) {
+                            stats.recordLoad(System.nanoTime() - start, false);
+                            throw e;
+                        }
+                        stats.recordLoad(System.nanoTime() - start, value != null);
+                        if (value != null) {
+                            put(key, value, loader.getExpiryTimestamp(key, value));
+                        }
+                    }
+                    return value;
+                }
+            });
+            FutureTask<V> inFlight = loadingMap.putIfAbsent(key, task);
+            if (inFlight == null) {
+                inFlight = task;
+                try {
+                    task.run();
+                } finally {
+                    loadingMap.remove(key, task);
+                }
+            }
+
+            try {
+                return inFlight.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CancellationException && inFlight != task) {
+                    // 加载者放弃了, 由等待者接手
+                    value = getIfPresent(key);
+                    continue;
+                }
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Moves {@code key} back from the overflow tier, if it is still there.
+     */
+    private V takeFromOverflow(K key) {
+        ReferenceCache<K, V> overflowCache = this.overflowCache;
+        if (overflowCache == null) {
+            return null;
+        }
+        ReferenceCache.ValueReference<K, V> ref = overflowCache.remove(key);
+        V value = ref == null ? null : ref.get();
+        if (value != null) {
+            put(key, value, ref.getExpiryTimestamp());
+        }
+        return value;
+    }
+
+    /**
+     * Returns the unexpired value of {@code key} without counting a hit or a miss.
+     */
+    private V getIfPresent(K key) {
+        if (!keyExpiryMap.containsKey(key)) {
+            return null;
+        }
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Node<K, V> node = segment.get(key);
+            if (node != null) {
+                node.accessTime = System.nanoTime();
+                return node.value;
+            }
+        }
+        return null;
+    }
+
     /**
      * Caches {@code value} for {@code key}. The value is moved to the head of
      * the queue.
@@ -145,48 +412,256 @@ public class LruMemoryCache<K, V> {
             throw new NullPointerException("key == null || value == null");
         }
 
-        V previous;
-        synchronized (this) {
-            putCount++;
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
+        evictionPolicy.recordAccess(key);
+
+        Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        Segment<K, V> segment = segmentFor(key);
+        Node<K, V> previous;
+        synchronized (segment) {
+            putCount.increment();
+            previous = addNode(segment, node);
             keyExpiryMap.put(key, expiryTimestamp);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
-            }
+        }
+        ReferenceCache<K, V> overflowCache = this.overflowCache;
+        if (overflowCache != null) {
+            overflowCache.remove(key); // superseded
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, value);
+            stats.recordRemoval(RemovalCause.REPLACED, previous.size);
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        expireEntries();
+        trimToSize(capacity(), node);
+        return previous == null ? null : previous.value;
+    }
+
+    /**
+     * Swaps {@code newValue} in for {@code key} if it is still mapped to
+     * {@code oldValue} (the same instance). The entry keeps its place in the
+     * queue and its expiry timestamp; {@link #entryRemoved} is called with
+     * {@code oldValue}.
+     *
+     * @return false if {@code key} was concurrently replaced or removed.
+     */
+    public final boolean replace(K key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null) {
+            throw new NullPointerException("key == null || oldValue == null || newValue == null");
         }
 
-        trimToSize(maxSize);
+        Node<K, V> node = new Node<K, V>(key, newValue, safeSizeOf(key, newValue));
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Node<K, V> previous = segment.get(key);
+            if (previous == null || previous.value != oldValue) {
+                return false;
+            }
+            node.inWindow = previous.inWindow;
+            node.accessTime = previous.accessTime;
+            (node.inWindow ? segment.window : segment.main).put(key, node);
+            size.addAndGet(node.size - previous.size);
+            if (node.inWindow) {
+                windowSize.addAndGet(node.size - previous.size);
+            }
+        }
+
+        entryRemoved(false, key, oldValue, newValue);
+        trimToSize(capacity(), node);
+        return true;
+    }
+
+    /**
+     * Removes the entries that have expired, calling {@link #entryRemoved} with
+     * {@code evicted == false} on each of them; the statistics record them
+     * as {@link RemovalCause#EXPIRED}. This happens anyway on writes and
+     * periodically on reads; call it when the cache may sit idle.
+     */
+    public final void cleanUp() {
+        expireEntries();
+    }
+
+    private void expireEntries() {
+        List<K> expired = keyExpiryMap.pollExpired(System.currentTimeMillis());
+        for (int i = 0, n = expired.size(); i < n; i++) {
+            K key = expired.get(i);
+            Segment<K, V> segment = segmentFor(key);
+            Node<K, V> node;
+            synchronized (segment) {
+                if (keyExpiryMap.containsKey(key)) {
+                    continue; // put again meanwhile
+                }
+                keyExpiryMap.remove(key);
+                node = segment.remove(key);
+                if (node == null) {
+                    continue;
+                }
+                unaccount(node);
+            }
+            stats.recordRemoval(RemovalCause.EXPIRED, node.size);
+            entryRemoved(false, key, node.value, null);
+        }
+    }
+
+    /**
+     * Maps {@code node} in {@code segment}, which must be locked by the caller.
+     * A replaced entry keeps its region; a new one enters the admission window.
+     *
+     * @return the replaced node, or null.
+     */
+    private Node<K, V> addNode(Segment<K, V> segment, Node<K, V> node) {
+        Node<K, V> previous = segment.main.remove(node.key);
+        if (previous != null) {
+            node.inWindow = false;
+            segment.main.put(node.key, node);
+        } else {
+            previous = segment.window.put(node.key, node);
+            windowSize.addAndGet(previous == null ? node.size : node.size - previous.size);
+        }
+        size.addAndGet(previous == null ? node.size : node.size - previous.size);
         return previous;
     }
 
+    /**
+     * Unmaps {@code node} if it is still current in its segment, which must be
+     * locked by the caller.
+     */
+    private boolean removeNode(Segment<K, V> segment, Node<K, V> node) {
+        LinkedHashMap<K, Node<K, V>> region = node.inWindow ? segment.window : segment.main;
+        Node<K, V> current = region.remove(node.key);
+        if (current != node) {
+            if (current != null) {
+                region.put(node.key, current);
+            }
+            return false;
+        }
+        unaccount(node);
+        return true;
+    }
+
+    private void unaccount(Node<K, V> node) {
+        size.addAndGet(-node.size);
+        if (node.inWindow) {
+            windowSize.addAndGet(-node.size);
+        }
+    }
+
+    private void trimToSize(int maxSize) {
+        trimToSize(maxSize, null);
+    }
+
     /**
      * @param maxSize the maximum size of the cache before returning. May be -1
      *                to evict even 0-sized elements.
+     * @param written the entry just written. The entries to evict are looked for
+     *                in its segment first, and it is evicted itself only if
+     *                there is no other. Null to take them from each segment in turn.
      */
-    private void trimToSize(int maxSize) {
+    private void trimToSize(int maxSize, Node<K, V> written) {
+        // Most writes leave the cache within its capacity: they don't need the eviction lock.
+        if (maxSize >= 0 && size.get() <= maxSize
+                && windowSize.get() <= (int) ((long) maxSize * evictionPolicy.getWindowPercent() / 100)) {
+            return;
+        }
         while (true) {
-            K key;
-            V value;
-            synchronized (this) {
-                if (size <= maxSize || map.isEmpty()) {
+            Node<K, V> toEvict;
+            Long expiryTimestamp;
+            synchronized (evictionLock) {
+                EvictionPolicy<? super K> policy = this.evictionPolicy;
+                int windowMax = maxSize < 0 ? -1 : (int) ((long) maxSize * policy.getWindowPercent() / 100);
+                int start = written != null ? segmentFor(written.key).index : evictionCursor++ & segmentMask;
+
+                // The eldest entry of an overflowing window moves to the main region as a candidate.
+                Node<K, V> candidate = null;
+                if (windowSize.get() > windowMax) {
+                    candidate = eldest(true, null, start, written);
+                    if (candidate != null && !promote(candidate)) {
+                        continue;
+                    }
+                }
+
+                if (size.get() <= maxSize) {
+                    if (candidate != null) {
+                        continue; // the main region still has room
+                    }
                     break;
                 }
 
-                Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
-                key = toEvict.getKey();
-                value = toEvict.getValue();
-                map.remove(key);
-                keyExpiryMap.remove(key);
-                size -= safeSizeOf(key, value);
-                evictionCount++;
+                Node<K, V> victim = eldest(false, candidate, start, written);
+                if (candidate == null) {
+                    toEvict = victim != null ? victim : eldest(true, null, start, written);
+                } else if (victim == null) {
+                    toEvict = candidate;
+                } else {
+                    toEvict = policy.admit(candidate.key, victim.key) ? victim : candidate;
+                }
+                if (toEvict == null) {
+                    break;
+                }
+
+                Segment<K, V> segment = segmentFor(toEvict.key);
+                synchronized (segment) {
+                    if (!removeNode(segment, toEvict)) {
+                        continue;
+                    }
+                    expiryTimestamp = keyExpiryMap.get(toEvict.key);
+                    keyExpiryMap.remove(toEvict.key);
+                }
+            }
+            stats.recordRemoval(maxSize < 0 ? RemovalCause.EXPLICIT : RemovalCause.SIZE, toEvict.size);
+
+            ReferenceCache<K, V> overflowCache = this.overflowCache;
+            if (overflowCache != null && maxSize >= 0 && expiryTimestamp != null) {
+                overflowCache.put(toEvict.key, toEvict.value, expiryTimestamp);
+            }
+            entryRemoved(true, toEvict.key, toEvict.value, null);
+        }
+    }
+
+    /**
+     * @return the least recently used node of the window or main region of
+     * segment {@code start}, skipping {@code exclude}; if there is none, that
+     * of the next segment which has one. {@code spare} is only returned when
+     * no other node is found.
+     */
+    private Node<K, V> eldest(boolean inWindow, Node<K, V> exclude, int start, Node<K, V> spare) {
+        boolean spareFound = false;
+        for (int i = 0; i < segments.length; i++) {
+            Segment<K, V> segment = segments[(start + i) & segmentMask];
+            synchronized (segment) {
+                LinkedHashMap<K, Node<K, V>> region = inWindow ? segment.window : segment.main;
+                for (Node<K, V> node : region.values()) {
+                    if (node == spare) {
+                        spareFound = true;
+                    } else if (node != exclude) {
+                        return node;
+                    }
+                }
             }
+        }
+        return spareFound && spare != exclude ? spare : null;
+    }
 
-            entryRemoved(true, key, value, null);
+    /**
+     * Moves a window node to the main region.
+     *
+     * @return false if the node was concurrently replaced or removed.
+     */
+    private boolean promote(Node<K, V> node) {
+        Segment<K, V> segment = segmentFor(node.key);
+        synchronized (segment) {
+            Node<K, V> current = segment.window.remove(node.key);
+            if (current != node) {
+                if (current != null) {
+                    segment.window.put(current.key, current);
+                }
+                return false;
+            }
+            windowSize.addAndGet(-node.size);
+            node.inWindow = false;
+            node.accessTime = System.nanoTime();
+            segment.main.put(node.key, node);
+            return true;
         }
     }
 
@@ -199,25 +674,72 @@ public class LruMemoryCache<K, V> {
         if (key == null) {
             throw new NullPointerException("key == null");
         }
+        return remove(key, RemovalCause.EXPLICIT);
+    }
+
+    /**
+     * Drops {@code key} found expired on a read.
+     */
+    /**
+     * Removes {@code key} unless it was put again since its expiry timestamp
+     * was read.
+     */
+    private void removeExpired(K key, Long expiryTimestamp) {
+        Segment<K, V> segment = segmentFor(key);
+        Node<K, V> previous;
+        synchronized (segment) {
+            if (!expiryTimestamp.equals(keyExpiryMap.getExpiryTimestamp(key))) {
+                return;
+            }
+            previous = segment.remove(key);
+            keyExpiryMap.remove(key);
+            if (previous != null) {
+                unaccount(previous);
+            }
+        }
+        if (previous != null) {
+            stats.recordRemoval(RemovalCause.EXPIRED, previous.size);
+            entryRemoved(false, key, previous.value, null);
+        }
+    }
 
-        V previous;
-        synchronized (this) {
-            previous = map.remove(key);
+    private V remove(K key, RemovalCause cause) {
+        Segment<K, V> segment = segmentFor(key);
+        Node<K, V> previous;
+        synchronized (segment) {
+            previous = segment.remove(key);
             keyExpiryMap.remove(key);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                unaccount(previous);
             }
         }
+        ReferenceCache<K, V> overflowCache = this.overflowCache;
+        if (overflowCache != null) {
+            overflowCache.remove(key);
+        }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, null);
+            stats.recordRemoval(cause, previous.size);
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
         }
 
-        return previous;
+        return null;
+    }
+
+    KeyExpiryMap<K, Long> getKeyExpiryMap() {
+        return keyExpiryMap;
     }
 
     public final boolean containsKey(K key) {
-        return map.containsKey(key);
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            if (segment.window.containsKey(key) || segment.main.containsKey(key)) {
+                return true;
+            }
+        }
+        ReferenceCache<K, V> overflowCache = this.overflowCache;
+        return overflowCache != null && overflowCache.containsKey(key);
     }
 
     /**
@@ -230,7 +752,8 @@ public class LruMemoryCache<K, V> {
      * access the cache while this method is executing.
      *
      * @param evicted  true if the entry is being removed to make space, false
-     *                 if the removal was caused by a {@link #put} or {@link #remove}.
+     *                 if the removal was caused by a {@link #put}, a {@link #remove}
+     *                 or its expiry. {@link CacheListener#onRemoval} tells the causes apart.
      * @param newValue the new value for {@code key}, if it exists. If non-null,
      *                 this removal was caused by a {@link #put}. Otherwise it was caused by
      *                 an eviction or a {@link #remove}.
@@ -257,15 +780,13 @@ public class LruMemoryCache<K, V> {
         return null;
     }
 
+    /**
+     * Like the single-map cache did, a size of 0 or less is taken as it is.
+     * Each entry keeps the size it was added with and gives it back when it
+     * leaves, so the total can't drift and needs no recount.
+     */
     private int safeSizeOf(K key, V value) {
-        int result = sizeOf(key, value);
-        if (result <= 0) {
-            size = 0;
-            for (Map.Entry<K, V> entry : map.entrySet()) {
-                size += sizeOf(entry.getKey(), entry.getValue());
-            }
-        }
-        return result;
+        return sizeOf(key, value);
     }
 
     /**
@@ -285,6 +806,10 @@ public class LruMemoryCache<K, V> {
     public final void evictAll() {
         trimToSize(-1); // -1 will evict 0-sized elements
         keyExpiryMap.clear();
+        ReferenceCache<K, V> overflowCache = this.overflowCache;
+        if (overflowCache != null) {
+            overflowCache.clear();
+        }
     }
 
     /**
@@ -292,8 +817,8 @@ public class LruMemoryCache<K, V> {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
-        return size;
+    public final int size() {
+        return size.get();
     }
 
     /**
@@ -301,57 +826,138 @@ public class LruMemoryCache<K, V> {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
+    public final int maxSize() {
         return maxSize;
     }
 
+    /**
+     * Returns the number of segments the entries are striped over.
+     */
+    public final int concurrencyLevel() {
+        return segments.length;
+    }
+
     /**
      * Returns the number of times {@link #get} returned a value.
      */
-    public synchronized final int hitCount() {
-        return hitCount;
+    public final int hitCount() {
+        return (int) stats.hitCount();
     }
 
     /**
      * Returns the number of times {@link #get} returned null or required a new
      * value to be created.
      */
-    public synchronized final int missCount() {
-        return missCount;
+    public final int missCount() {
+        return (int) stats.missCount();
     }
 
     /**
      * Returns the number of times {@link #create(Object)} returned a value.
      */
-    public synchronized final int createCount() {
-        return createCount;
+    public final int createCount() {
+        return (int) createCount.sum();
     }
 
     /**
      * Returns the number of times {@link #put} was called.
      */
-    public synchronized final int putCount() {
-        return putCount;
+    public final int putCount() {
+        return (int) putCount.sum();
     }
 
     /**
-     * Returns the number of values that have been evicted.
+     * Returns the number of values that have been evicted or have expired.
      */
-    public synchronized final int evictionCount() {
-        return evictionCount;
+    public final int evictionCount() {
+        return (int) stats.evictionCount();
+    }
+
+    /**
+     * Returns the statistics of this cache, where a listener can be set.
+     */
+    public final CacheStats getStats() {
+        return stats;
     }
 
     /**
      * Returns a copy of the current contents of the cache, ordered from least
-     * recently accessed to most recently accessed.
+     * recently accessed to most recently accessed. The order is global: the
+     * entries of all segments are merged by the time of their last access.
+     */
+    public final Map<K, V> snapshot() {
+        List<Node<K, V>> nodes = new ArrayList<Node<K, V>>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                nodes.addAll(segment.window.values());
+                nodes.addAll(segment.main.values());
+            }
+        }
+        Collections.sort(nodes, new Comparator<Node<K, V>>() {
+            @Override
+            public int compare(Node<K, V> lhs, Node<K, V> rhs) {
+                return lhs.accessTime < rhs.accessTime ? -1 : (lhs.accessTime == rhs.accessTime ? 0 : 1);
+            }
+        });
+        Map<K, V> result = new LinkedHashMap<K, V>(nodes.size());
+        for (Node<K, V> node : nodes) {
+            result.put(node.key, node.value);
+        }
+        return result;
+    }
+
+    public final String toString() {
+        int hits = hitCount();
+        int accesses = hits + missCount();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("LruMemoryCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * One stripe of the cache: two access-ordered regions guarded by the
+     * segment's own monitor. A key lives in at most one of them.
      */
-    public synchronized final Map<K, V> snapshot() {
-        return new LinkedHashMap<K, V>(map);
+    private static final class Segment<K, V> {
+        private final int index;
+        /**
+         * Entries not yet judged by the eviction policy.
+         */
+        private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<K, Node<K, V>>(0, 0.75f, true);
+        private final LinkedHashMap<K, Node<K, V>> main = new LinkedHashMap<K, Node<K, V>>(0, 0.75f, true);
+
+        private Segment(int index) {
+            this.index = index;
+        }
+
+        private Node<K, V> get(Object key) {
+            Node<K, V> node = window.get(key);
+            return node != null ? node : main.get(key);
+        }
+
+        private Node<K, V> remove(Object key) {
+            Node<K, V> node = window.remove(key);
+            return node != null ? node : main.remove(key);
+        }
     }
 
-    public synchronized final String toString() {
-        int accesses = hitCount + missCount;
-        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
-        return String.format("LruMemoryCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", maxSize, hitCount, missCount, hitPercent);
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final int size;
+        private volatile long accessTime;
+        private boolean inWindow = true;
+
+        private Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            this.accessTime = System.nanoTime();
+        }
     }
 }
@@ -9,30 +9,38 @@ import java.security.NoSuchAlgorithmException;
  * Time: 上午11:25
  */
 public class MD5FileNameGenerator implements FileNameGenerator {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // MessageDigest.getInstance 查找provider很慢, 每个线程复用一个
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
     public MD5FileNameGenerator() {
     }
 
     public String generate(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
+        MessageDigest digest = DIGEST.get();
+        if (digest == null) {
+            return String.valueOf(key.hashCode());
         }
-        return cacheKey;
+        return bytesToHexString(digest.digest(key.getBytes()));
     }
 
-    private String bytesToHexString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
+    private static String bytesToHexString(byte[] bytes) {
+        char[] hex = new char[bytes.length << 1];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            hex[j++] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[j++] = HEX_DIGITS[bytes[i] & 0xf];
         }
-        return sb.toString();
+        return new String(hex);
     }
 }
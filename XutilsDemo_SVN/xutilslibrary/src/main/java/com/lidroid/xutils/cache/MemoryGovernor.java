@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import com.lidroid.xutils.util.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Shrinks the registered caches when the system asks the app to release
+ * memory, and gives them their capacity back afterwards.
+ * <p/>
+ * Each trim level maps to the fraction of capacity the caches keep (see
+ * {@link #getRetainFraction(int)}): from 75% while running with moderate
+ * pressure down to nothing when the process is next in line to be killed.
+ * Caches trimmed while the app was in the background grow back when one of
+ * its activities starts again, the others after {@link #setRestoreDelay} ms
+ * without a new trim event.
+ * <p/>
+ * {@link #install} must be called once with any context: BitmapUtils does
+ * it, apps using only HttpUtils call
+ * {@code HttpUtils.configMemoryGovernor(context)} or install it themselves.
+ * The trim events can also be injected by calling {@link #onTrimMemory}
+ * directly, and the restore run by another {@link Scheduler}, e.g. from a test.
+ */
+public final class MemoryGovernor implements ComponentCallbacks2 {
+
+    public static final long DEFAULT_RESTORE_DELAY = 1000L * 30; // 30 seconds
+
+    private static final MemoryGovernor INSTANCE = new MemoryGovernor();
+
+    // 注册的缓存弱引用, 不阻止它们被回收
+    private final WeakHashMap<MemoryTrimmable, Boolean> trimmables = new WeakHashMap<MemoryTrimmable, Boolean>();
+    private float retainFraction = 1f;
+    private boolean trimmedInBackground;
+    private volatile long restoreDelay = DEFAULT_RESTORE_DELAY;
+
+    private Context installedContext;
+    private Scheduler scheduler;
+
+    private final Runnable restoreRunnable = new Runnable() {
+        @Override
+        public void run() {
+            restore();
+        }
+    };
+
+    public static MemoryGovernor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Apps use {@link #getInstance()}; a separate instance is only useful to
+     * drive a few caches with synthetic trim events.
+     */
+    public MemoryGovernor() {
+    }
+
+    /**
+     * Starts listening to the trim events of the application of
+     * {@code context}. Calling it again has no effect.
+     */
+    public synchronized void install(Context context) {
+        if (context == null || installedContext != null) return;
+
+        Context appContext = context.getApplicationContext();
+        installedContext = appContext != null ? appContext : context;
+        installedContext.registerComponentCallbacks(this);
+        if (installedContext instanceof Application) {
+            ((Application) installedContext).registerActivityLifecycleCallbacks(activityCallbacks);
+        }
+    }
+
+    /**
+     * Trims {@code trimmable} along with the other caches. It is only
+     * weakly referenced. If the caches are currently trimmed, it is trimmed at once.
+     */
+    public void register(MemoryTrimmable trimmable) {
+        if (trimmable == null) return;
+
+        float fraction;
+        synchronized (this) {
+            trimmables.put(trimmable, Boolean.TRUE);
+            fraction = retainFraction;
+        }
+        if (fraction < 1f) {
+            trim(trimmable, fraction);
+        }
+    }
+
+    public synchronized void unregister(MemoryTrimmable trimmable) {
+        trimmables.remove(trimmable);
+    }
+
+    /**
+     * @return the fraction of their capacity the caches currently keep.
+     */
+    public synchronized float getRetainFraction() {
+        return retainFraction;
+    }
+
+    /**
+     * @param restoreDelay how long after the last trim event received in the
+     *                     foreground the caches grow back.
+     */
+    public void setRestoreDelay(long restoreDelay) {
+        this.restoreDelay = Math.max(0, restoreDelay);
+    }
+
+    public long getRestoreDelay() {
+        return restoreDelay;
+    }
+
+    /**
+     * @param scheduler runs the delayed restore, null for the main thread.
+     */
+    public synchronized void setScheduler(Scheduler scheduler) {
+        if (this.scheduler != null) {
+            this.scheduler.cancel(restoreRunnable);
+        }
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        float fraction = getRetainFraction(level);
+        if (fraction >= 1f) return;
+
+        boolean background = level >= TRIM_MEMORY_UI_HIDDEN;
+        List<MemoryTrimmable> targets = null;
+        synchronized (this) {
+            trimmedInBackground |= background;
+            if (fraction < retainFraction) { // a milder level never grows the caches
+                retainFraction = fraction;
+                targets = new ArrayList<MemoryTrimmable>(trimmables.keySet());
+            }
+            if (!trimmedInBackground) {
+                scheduleRestore();
+            } else if (scheduler != null) {
+                scheduler.cancel(restoreRunnable);
+            }
+        }
+        LogUtils.d("trim memory, level: " + level + ", retain: " + fraction);
+        if (targets != null) {
+            for (MemoryTrimmable trimmable : targets) {
+                trim(trimmable, fraction);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Gives the caches their full capacity back.
+     */
+    public void restore() {
+        List<MemoryTrimmable> targets;
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.cancel(restoreRunnable);
+            }
+            trimmedInBackground = false;
+            if (retainFraction >= 1f) return;
+            retainFraction = 1f;
+            targets = new ArrayList<MemoryTrimmable>(trimmables.keySet());
+        }
+        for (MemoryTrimmable trimmable : targets) {
+            trim(trimmable, 1f);
+        }
+    }
+
+    /**
+     * @return the fraction of their capacity the caches keep at trim
+     * {@code level}, 1 for unknown levels.
+     */
+    public static float getRetainFraction(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) return 0f;
+        if (level >= TRIM_MEMORY_MODERATE) return 0.1f;
+        if (level >= TRIM_MEMORY_BACKGROUND) return 0.25f;
+        if (level >= TRIM_MEMORY_UI_HIDDEN) return 0.5f;
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) return 0.25f;
+        if (level >= TRIM_MEMORY_RUNNING_LOW) return 0.5f;
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE) return 0.75f;
+        return 1f;
+    }
+
+    private void scheduleRestore() {
+        if (scheduler == null) {
+            scheduler = new HandlerScheduler(new Handler(Looper.getMainLooper()));
+        }
+        scheduler.cancel(restoreRunnable);
+        scheduler.schedule(restoreRunnable, restoreDelay);
+    }
+
+    private static void trim(MemoryTrimmable trimmable, float fraction) {
+        try {
+            trimmable.trimMemory(fraction);
+        } catch (Throwable e) {
+            LogUtils.e(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Runs the restore of the caches after {@link #getRestoreDelay()}.
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delay);
+
+        void cancel(Runnable task);
+    }
+
+    private static final class HandlerScheduler implements Scheduler {
+        private final Handler handler;
+
+        private HandlerScheduler(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            handler.postDelayed(task, delay);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    }
+
+    private final Application.ActivityLifecycleCallbacks activityCallbacks = new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityStarted(Activity activity) {
+            boolean backFromBackground;
+            synchronized (MemoryGovernor.this) {
+                backFromBackground = trimmedInBackground;
+            }
+            if (backFromBackground) {
+                restore();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    };
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+/**
+ * A cache that can give memory back when the system runs low.
+ *
+ * @see MemoryGovernor
+ */
+public interface MemoryTrimmable {
+
+    /**
+     * Shrinks to {@code retainFraction} of the configured capacity, or grows
+     * back to it when called with 1.
+     *
+     * @param retainFraction between 0 (drop everything) and 1.
+     */
+    void trimMemory(float retainFraction);
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+/**
+ * Names cache files after the 128-bit MurmurHash3 (x64 variant) of the key's
+ * UTF-16 code units, as 32 hex digits like {@link MD5FileNameGenerator}.
+ * <p/>
+ * About twice as fast as MD5 on url-like keys and allocates nothing but the
+ * result. The hash is not cryptographic: keys crafted to collide would share a
+ * file, which does not matter for urls picked by the app. The names differ
+ * from the MD5 ones; switch an existing cache over with
+ * {@link DiskCache#setFileNameGenerator(FileNameGenerator, FileNameGenerator)}
+ * to keep its entries.
+ */
+public class Murmur3FileNameGenerator implements FileNameGenerator {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long seed;
+
+    public Murmur3FileNameGenerator() {
+        this(0);
+    }
+
+    /**
+     * @param seed changes every name; caches written with another seed can't be read.
+     */
+    public Murmur3FileNameGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public String generate(String key) {
+        int length = key.length();
+        long h1 = seed;
+        long h2 = seed;
+
+        // 每块8个char(16字节)
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h1 ^= mixK1(pack(key, i, 4));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(pack(key, i + 4, 4));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int remaining = length - i;
+        if (remaining > 4) {
+            h2 ^= mixK2(pack(key, i + 4, remaining - 4));
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(pack(key, i, Math.min(remaining, 4)));
+        }
+
+        h1 ^= length << 1;
+        h2 ^= length << 1;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        char[] hex = new char[32];
+        toHex(h1, hex, 0);
+        toHex(h2, hex, 16);
+        return new String(hex);
+    }
+
+    /**
+     * Packs {@code count} (at most 4) chars from {@code offset} little-endian.
+     */
+    private static long pack(String key, int offset, int count) {
+        long k = 0;
+        for (int j = 0; j < count; j++) {
+            k |= (long) key.charAt(offset + j) << (j << 4);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static void toHex(long value, char[] hex, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            hex[offset + i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
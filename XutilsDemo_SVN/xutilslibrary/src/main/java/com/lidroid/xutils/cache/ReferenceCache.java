@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 软引用/弱引用的缓存
+ * <p/>
+ * Holds its values through soft or weak references only, so the garbage
+ * collector decides how long they stay. Entries whose value was collected are
+ * drained through a {@link ReferenceQueue} on every access.
+ * <p/>
+ * {@link LruMemoryCache} uses it as an overflow tier for the entries it
+ * evicts, see {@link LruMemoryCache#setOverflowReferenceType}.
+ */
+public class ReferenceCache<K, V> {
+
+    public enum ReferenceType {
+        /**
+         * Kept until the heap runs low.
+         */
+        SOFT,
+        /**
+         * Kept until the next garbage collection.
+         */
+        WEAK
+    }
+
+    private final ReferenceType referenceType;
+    private final ConcurrentHashMap<K, ValueReference<K, V>> map = new ConcurrentHashMap<K, ValueReference<K, V>>();
+    private final ReferenceQueue<V> queue = new ReferenceQueue<V>();//垃圾回收器的队列
+
+    public ReferenceCache(ReferenceType referenceType) {
+        if (referenceType == null) {
+            throw new IllegalArgumentException("referenceType may not be null");
+        }
+        this.referenceType = referenceType;
+    }
+
+    public ReferenceType getReferenceType() {
+        return referenceType;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, Long.MAX_VALUE);
+    }
+
+    public void put(K key, V value, long expiryTimestamp) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        drainReferenceQueue();
+        ValueReference<K, V> ref = referenceType == ReferenceType.SOFT ?
+                new SoftValueReference<K, V>(key, value, expiryTimestamp, queue) :
+                new WeakValueReference<K, V>(key, value, expiryTimestamp, queue);
+        ValueReference<K, V> previous = map.put(key, ref);
+        if (previous != null) {
+            ((Reference<?>) previous).clear();
+        }
+    }
+
+    /**
+     * @return the value of {@code key} if it is neither collected nor expired.
+     */
+    public V get(K key) {
+        drainReferenceQueue();
+        ValueReference<K, V> ref = map.get(key);
+        if (ref == null) {
+            return null;
+        }
+        V value = ref.get();
+        if (value == null || System.currentTimeMillis() >= ref.getExpiryTimestamp()) {
+            map.remove(key, ref);
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Removes {@code key} and returns its reference, so that the caller can
+     * read both the value and its expiry. The value may still be collected
+     * before the caller reads it.
+     *
+     * @return null if the key was absent, its value collected or expired.
+     */
+    public ValueReference<K, V> remove(K key) {
+        drainReferenceQueue();
+        ValueReference<K, V> ref = map.remove(key);
+        if (ref == null || ref.get() == null || System.currentTimeMillis() >= ref.getExpiryTimestamp()) {
+            return null;
+        }
+        return ref;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the number of entries, including those whose value was
+     * collected but not drained yet.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    public void clear() {
+        map.clear();
+        while (queue.poll() != null) ;
+    }
+
+    /**
+     * 清除那些值已经被回收的引用
+     */
+    @SuppressWarnings("unchecked")
+    private void drainReferenceQueue() {
+        Reference<? extends V> ref;
+        while ((ref = queue.poll()) != null) {
+            ValueReference<K, V> valueRef = (ValueReference<K, V>) ref;
+            map.remove(valueRef.getKey(), valueRef);
+        }
+    }
+
+    public interface ValueReference<K, V> {
+        K getKey();
+
+        V get();
+
+        long getExpiryTimestamp();
+    }
+
+    private static final class SoftValueReference<K, V> extends SoftReference<V> implements ValueReference<K, V> {
+        private final K key;
+        private final long expiryTimestamp;
+
+        private SoftValueReference(K key, V value, long expiryTimestamp, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+            this.expiryTimestamp = expiryTimestamp;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public long getExpiryTimestamp() {
+            return expiryTimestamp;
+        }
+    }
+
+    private static final class WeakValueReference<K, V> extends WeakReference<V> implements ValueReference<K, V> {
+        private final K key;
+        private final long expiryTimestamp;
+
+        private WeakValueReference(K key, V value, long expiryTimestamp, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+            this.expiryTimestamp = expiryTimestamp;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public long getExpiryTimestamp() {
+            return expiryTimestamp;
+        }
+    }
+}
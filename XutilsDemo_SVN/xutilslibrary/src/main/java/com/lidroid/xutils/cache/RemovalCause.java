@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lidroid.xutils.cache;
+
+/**
+ * Why an entry left a cache, as reported to a {@link CacheListener}.
+ */
+public enum RemovalCause {
+    /**
+     * Removed by the user, including clearing the whole cache.
+     */
+    EXPLICIT,
+    /**
+     * Replaced by a new value for the same key.
+     */
+    REPLACED,
+    /**
+     * Its expiry timestamp passed.
+     */
+    EXPIRED,
+    /**
+     * Evicted to keep the cache within its maximum size.
+     */
+    SIZE,
+    /**
+     * Its stored value was found damaged, e.g. torn by a crash.
+     */
+    CORRUPT
+}
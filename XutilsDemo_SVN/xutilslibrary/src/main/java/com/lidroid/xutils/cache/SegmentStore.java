@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import com.lidroid.xutils.util.IOUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The segment files of a {@link LruDiskCache}: small values are appended to a
+ * shared file instead of getting one file each, so that a cache of many
+ * thumbnails does not cost one inode per entry.
+ * <p/>
+ * A value is addressed by a location, the segment id in the high 32 bits and
+ * the offset in the low ones. Segments are append only: replacing or removing
+ * a value only counts its bytes as dead, so a reader holding an older location
+ * keeps reading the bytes it expects. A segment without live bytes is deleted;
+ * one whose live bytes drop below half of its length is reported by
+ * {@link #compactionCandidates()} so that the cache can move its values to
+ * the active segment. The active segment itself is rolled over for that once
+ * it is a quarter full.
+ * <p/>
+ * {@link #open} may be called from any thread. Everything else is called with
+ * the cache monitor held.
+ */
+final class SegmentStore implements Closeable {
+
+    static final long NO_LOCATION = -1;
+
+    /**
+     * The active segment is rolled over once it reaches this length.
+     */
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The largest value that may be packed.
+     */
+    static final int MAX_VALUE_SIZE = 256 * 1024;
+
+    private static final String SEGMENT_FILE_PREFIX = "segment";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg"; // 不会与 "key.0" 这样的缓存文件名冲突
+
+    private final File directory;
+    private final HashMap<Integer, Segment> segments = new HashMap<Integer, Segment>();
+    private Segment active;
+    private RandomAccessFile activeFile;
+    private int nextId;
+    private boolean compactionRequired;
+
+    SegmentStore(File directory) {
+        this.directory = directory;
+    }
+
+    static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static long offsetOf(long location) {
+        return location & 0xFFFFFFFFL;
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(directory, SEGMENT_FILE_PREFIX + id + SEGMENT_FILE_SUFFIX);
+    }
+
+    /**
+     * Opens a stream over the value at {@code location}.
+     */
+    FileInputStream open(long location, long length) throws FileNotFoundException {
+        return new SegmentInputStream(getSegmentFile(segmentOf(location)), offsetOf(location), length);
+    }
+
+    /**
+     * @return true if the segment holding {@code location} exists and is long
+     * enough. Used when the cache is opened.
+     */
+    boolean isReadable(long location, long length) {
+        int id = segmentOf(location);
+        Segment segment = segments.get(id);
+        long segmentLength = segment != null ? segment.length : getSegmentFile(id).length();
+        return offsetOf(location) + length <= segmentLength;
+    }
+
+    /**
+     * Counts the value at {@code location} as live. Used when the cache is opened.
+     */
+    void reference(long location, long length) {
+        int id = segmentOf(location);
+        Segment segment = segments.get(id);
+        if (segment == null) {
+            segment = new Segment(id, getSegmentFile(id).length());
+            segments.put(id, segment);
+            nextId = Math.max(nextId, id + 1);
+        }
+        segment.liveBytes += length;
+    }
+
+    /**
+     * Deletes the segment files holding no live value. Used when the cache is opened.
+     */
+    void deleteUnreferenced() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_FILE_PREFIX) || !name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(name.substring(
+                        SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+                Segment segment = segments.get(id);
+                if (segment == null || segment.liveBytes <= 0) {
+                    segments.remove(id);
+                    file.delete();
+                } else if (segment.liveBytes * 2 < segment.length) {
+                    compactionRequired = true;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Appends {@code value} to the active segment.
+     *
+     * @return the location of the value.
+     */
+    long append(byte[] value) throws IOException {
+        if (active == null || (active.length > 0 && active.length + value.length > SEGMENT_SIZE)) {
+            rollOver();
+        }
+        long offset = active.length;
+        activeFile.seek(offset);
+        activeFile.write(value);
+        active.length += value.length;
+        active.liveBytes += value.length;
+        return ((long) active.id << 32) | offset;
+    }
+
+    private void rollOver() throws IOException {
+        Segment previous = active;
+        IOUtils.closeQuietly(activeFile);
+        active = null;
+        activeFile = null;
+        if (previous != null) {
+            checkDead(previous);
+        }
+
+        while (segments.containsKey(nextId)) {
+            nextId++;
+        }
+        Segment segment = new Segment(nextId++, 0);
+        File file = getSegmentFile(segment.id);
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (FileNotFoundException e) {
+            // Attempt to recreate the cache directory.
+            directory.mkdirs();
+            raf = new RandomAccessFile(file, "rw");
+        }
+        raf.setLength(0);
+        segments.put(segment.id, segment);
+        active = segment;
+        activeFile = raf;
+    }
+
+    /**
+     * Counts the value at {@code location} as dead.
+     */
+    void release(long location, long length) {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null) {
+            segment.liveBytes -= length;
+            checkDead(segment);
+        }
+    }
+
+    private void checkDead(Segment segment) {
+        if (segment != active && segment.liveBytes <= 0) {
+            // Readers that already opened it keep their descriptor.
+            segments.remove(segment.id);
+            getSegmentFile(segment.id).delete();
+        } else if (isMostlyDead(segment)) {
+            compactionRequired = true;
+        }
+    }
+
+    private boolean isMostlyDead(Segment segment) {
+        return segment.liveBytes * 2 < segment.length
+                && (segment != active || segment.length >= SEGMENT_SIZE / 4);
+    }
+
+    boolean isCompactionRequired() {
+        return compactionRequired;
+    }
+
+    /**
+     * @return the ids of the segments that are mostly dead space. The active
+     * segment is rolled over first if it is one of them, so none is active.
+     */
+    List<Integer> compactionCandidates() throws IOException {
+        compactionRequired = false;
+        if (active != null && isMostlyDead(active)) {
+            rollOver();
+        }
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && isMostlyDead(segment)) {
+                candidates.add(segment.id);
+            }
+        }
+        return candidates;
+    }
+
+    RandomAccessFile openForCompaction(int id) throws FileNotFoundException {
+        return new RandomAccessFile(getSegmentFile(id), "r");
+    }
+
+    /**
+     * Copies the value at {@code location}, read from {@code source}, to the
+     * active segment.
+     *
+     * @return the new location of the value.
+     */
+    long move(RandomAccessFile source, long location, long length) throws IOException {
+        byte[] value = new byte[(int) length];
+        source.seek(offsetOf(location));
+        source.readFully(value);
+        long newLocation = append(value);
+        release(location, length);
+        return newLocation;
+    }
+
+    /**
+     * Deletes a compacted segment, whose values have all been moved.
+     */
+    void delete(int id) {
+        segments.remove(id);
+        getSegmentFile(id).delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        RandomAccessFile file = activeFile;
+        activeFile = null;
+        active = null;
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private static final class Segment {
+        private final int id;
+        private long length;
+        private long liveBytes;
+
+        private Segment(int id, long length) {
+            this.id = id;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A {@link FileInputStream} limited to one value of a segment. Its
+     * descriptor is positioned at the start of the value, so decoders working
+     * on {@link #getFD()} read the value too.
+     */
+    private static final class SegmentInputStream extends FileInputStream {
+        private long remaining;
+
+        private SegmentInputStream(File file, long offset, long length) throws FileNotFoundException {
+            super(file);
+            this.remaining = length;
+            try {
+                getChannel().position(offset);
+            } catch (IOException e) {
+                IOUtils.closeQuietly(this);
+                throw new FileNotFoundException(file + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(count, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, remaining));
+            if (skipped > 0) {
+                remaining -= skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
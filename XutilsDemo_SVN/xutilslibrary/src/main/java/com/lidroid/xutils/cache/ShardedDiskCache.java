@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+
+import java.io.*;
+
+/**
+ * A disk cache split into several {@link LruDiskCache} shards, each in its own
+ * sub directory with its own journal, lock and cleanup thread. An entry lives
+ * in the shard picked by the hash of its file name, so edits, removals and
+ * journal rebuilds of different shards never wait for each other.
+ * <p/>
+ * The shards share one byte budget: while they hold more than {@code maxSize}
+ * together, every shard above its fair share ({@code maxSize / shardCount})
+ * evicts its own least recently used entries. Eviction order is therefore
+ * LRU within a shard and only approximately LRU across the cache.
+ * <p/>
+ * Opening the directory with a different shard count than it was written
+ * with discards its content.
+ */
+public final class ShardedDiskCache implements DiskCache {
+
+    static final String SHARD_COUNT_FILE = "shards";
+    static final String SHARD_DIRECTORY_PREFIX = "shard";
+
+    private final File directory;
+    private final LruDiskCache[] shards;
+    private final DiskBudget budget;
+    private final CacheStats stats;
+    private volatile FileNameGenerator fileNameGenerator = new MD5FileNameGenerator();
+    private volatile FileNameGenerator previousFileNameGenerator;
+
+    private ShardedDiskCache(File directory, LruDiskCache[] shards, DiskBudget budget, CacheStats stats) {
+        this.directory = directory;
+        this.shards = shards;
+        this.budget = budget;
+        this.stats = stats;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize    the maximum number of bytes all shards together should use.
+     * @param shardCount the number of shards. Must be positive.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskCache open(File directory, int appVersion, int valueCount, long maxSize, int shardCount)
+            throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("valueCount <= 0");
+        }
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount <= 0");
+        }
+
+        directory.mkdirs();
+        File shardCountFile = new File(directory, SHARD_COUNT_FILE);
+        if (readShardCount(shardCountFile) != shardCount) {
+            LruDiskCache.deleteContents(directory);
+            writeShardCount(shardCountFile, shardCount);
+        }
+
+        DiskBudget budget = new DiskBudget(maxSize);
+        LruDiskCache[] shards = new LruDiskCache[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = LruDiskCache.open(
+                        new File(directory, SHARD_DIRECTORY_PREFIX + i), appVersion, valueCount, maxSize);
+            }
+        } catch (IOException e) {
+            for (LruDiskCache shard : shards) {
+                IOUtils.closeQuietly(shard);
+            }
+            throw e;
+        }
+        budget.setMembers(shards);
+        CacheStats stats = new CacheStats("disk");
+        for (LruDiskCache shard : shards) {
+            shard.setBudget(budget);
+            shard.setStats(stats);
+        }
+        if (budget.isExceeded()) {
+            budget.trimMembers();
+        }
+        return new ShardedDiskCache(directory, shards, budget, stats);
+    }
+
+    private static int readShardCount(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void writeShardCount(File file, int shardCount) throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(file));
+            out.writeInt(shardCount);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private LruDiskCache shardFor(String diskKey) {
+        return shards[(diskKey.hashCode() & 0x7fffffff) % shards.length];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public LruDiskCache.Snapshot get(String key) throws IOException {
+        String diskKey = fileNameGenerator.generate(key);
+        LruDiskCache.Snapshot snapshot = shardFor(diskKey).getByDiskKey(diskKey);
+        if (snapshot == null && migrate(key, diskKey)) {
+            snapshot = shardFor(diskKey).getByDiskKey(diskKey);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public LruDiskCache.Editor edit(String key) throws IOException {
+        String diskKey = fileNameGenerator.generate(key);
+        LruDiskCache.Editor editor = shardFor(diskKey).editByDiskKey(diskKey, LruDiskCache.ANY_SEQUENCE_NUMBER);
+        if (editor != null) {
+            removePrevious(key, diskKey);
+        }
+        return editor;
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        String diskKey = fileNameGenerator.generate(key);
+        return shardFor(diskKey).removeByDiskKey(diskKey) | removePrevious(key, diskKey);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        if (isClosed()) {
+            return false;
+        }
+        String diskKey = fileNameGenerator.generate(key);
+        if (shardFor(diskKey).containsDiskKey(diskKey)) {
+            return true;
+        }
+        FileNameGenerator previous = previousFileNameGenerator;
+        if (previous == null) return false;
+
+        String previousDiskKey = previous.generate(key);
+        return !previousDiskKey.equals(diskKey) && shardFor(previousDiskKey).containsDiskKey(previousDiskKey);
+    }
+
+    @Override
+    public long getExpiryTimestamp(String key) throws IOException {
+        String diskKey = fileNameGenerator.generate(key);
+        long expiryTimestamp = shardFor(diskKey).getExpiryTimestampByDiskKey(diskKey);
+        if (expiryTimestamp == 0 && migrate(key, diskKey)) {
+            expiryTimestamp = shardFor(diskKey).getExpiryTimestampByDiskKey(diskKey);
+        }
+        return expiryTimestamp;
+    }
+
+    @Override
+    public File getCacheFile(String key, int index) {
+        String diskKey = fileNameGenerator.generate(key);
+        File result = shardFor(diskKey).getCacheFileByDiskKey(diskKey, index);
+        if (result == null && migrate(key, diskKey)) {
+            result = shardFor(diskKey).getCacheFileByDiskKey(diskKey, index);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the entry named by the previous file name generator for {@code key}
+     * to {@code diskKey}, which may live in another shard.
+     */
+    private boolean migrate(String key, String diskKey) {
+        FileNameGenerator previous = previousFileNameGenerator;
+        if (previous == null) return false;
+
+        String previousDiskKey = previous.generate(key);
+        try {
+            return !previousDiskKey.equals(diskKey)
+                    && LruDiskCache.moveEntry(shardFor(previousDiskKey), previousDiskKey, shardFor(diskKey), diskKey);
+        } catch (Throwable e) {
+            LogUtils.e("migrate " + previousDiskKey + " error", e);
+            return false;
+        }
+    }
+
+    private boolean removePrevious(String key, String diskKey) throws IOException {
+        FileNameGenerator previous = previousFileNameGenerator;
+        if (previous == null) return false;
+
+        String previousDiskKey = previous.generate(key);
+        return !previousDiskKey.equals(diskKey) && shardFor(previousDiskKey).removeByDiskKey(previousDiskKey);
+    }
+
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public long getMaxSize() {
+        return budget.getMaxSize();
+    }
+
+    /**
+     * Changes the shared byte budget and queues a trim on every shard.
+     */
+    @Override
+    public void setMaxSize(long maxSize) {
+        budget.setMaxSize(maxSize);
+        for (LruDiskCache shard : shards) {
+            shard.setMaxSize(maxSize);
+        }
+    }
+
+    @Override
+    public long size() {
+        return budget.size();
+    }
+
+    @Override
+    public int getSegmentThreshold() {
+        return shards[0].getSegmentThreshold();
+    }
+
+    @Override
+    public void setSegmentThreshold(int threshold) {
+        for (LruDiskCache shard : shards) {
+            shard.setSegmentThreshold(threshold);
+        }
+    }
+
+    @Override
+    public boolean isVerifyChecksums() {
+        return shards[0].isVerifyChecksums();
+    }
+
+    @Override
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        for (LruDiskCache shard : shards) {
+            shard.setVerifyChecksums(verifyChecksums);
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return shards[0].isClosed();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (LruDiskCache shard : shards) {
+            shard.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (LruDiskCache shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values, including the
+     * files in {@link #getDirectory()} that weren't created by the cache.
+     */
+    @Override
+    public void delete() throws IOException {
+        IOUtils.closeQuietly(this);
+        LruDiskCache.deleteContents(directory);
+    }
+
+    /**
+     * Returns the statistics of all shards together.
+     */
+    @Override
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public FileNameGenerator getFileNameGenerator() {
+        return fileNameGenerator;
+    }
+
+    @Override
+    public void setFileNameGenerator(FileNameGenerator fileNameGenerator) {
+        setFileNameGenerator(fileNameGenerator, null);
+    }
+
+    @Override
+    public void setFileNameGenerator(FileNameGenerator fileNameGenerator, FileNameGenerator previousFileNameGenerator) {
+        if (fileNameGenerator != null) {
+            this.fileNameGenerator = fileNameGenerator;
+            this.previousFileNameGenerator = previousFileNameGenerator;
+        }
+    }
+}
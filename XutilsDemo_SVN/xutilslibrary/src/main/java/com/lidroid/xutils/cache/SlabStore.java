@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps byte payloads outside of the Java heap, in direct ByteBuffer arenas,
+ * so that large cached values don't add to the work of the garbage collector.
+ * <p/>
+ * Each arena is carved into blocks of one size class: powers of two and the
+ * half steps between them, from 1KB to 256KB. A payload takes the smallest
+ * class that fits it, a larger one a chain of 256KB blocks plus one for the
+ * rest. Arenas whose blocks are all free return to a shared pool, from which
+ * any class can take them. Memory is only released by {@link #trimMemory}.
+ * <p/>
+ * Payloads must be freed explicitly ({@link Slab#free()}); reading a freed
+ * slab returns null instead of another payload's bytes.
+ */
+public class SlabStore implements MemoryTrimmable {
+
+    public static final int ARENA_SIZE = 1 << 20; // 1 MiB
+
+    private static final int MIN_BLOCK_SHIFT = 10;
+    private static final int MAX_BLOCK_SIZE = 1 << 18; // 256 KiB
+    private static final int[] BLOCK_SIZES;
+
+    static {
+        ArrayList<Integer> sizes = new ArrayList<Integer>();
+        for (int size = 1 << MIN_BLOCK_SHIFT; size <= MAX_BLOCK_SIZE; size <<= 1) {
+            sizes.add(size);
+            if (size < MAX_BLOCK_SIZE) {
+                sizes.add(size + (size >> 1));
+            }
+        }
+        BLOCK_SIZES = new int[sizes.size()];
+        for (int i = 0; i < BLOCK_SIZES.length; i++) {
+            BLOCK_SIZES[i] = sizes.get(i);
+        }
+    }
+
+    private final long maxSize;
+    private long limit;
+
+    // 每个大小级别中还有空闲块的arena
+    private final ArrayList<Arena>[] partialArenas;
+    // 所有块都空闲的arena, 任何级别都可以使用
+    private final ArrayList<Arena> emptyArenas = new ArrayList<Arena>();
+    private int arenaCount;
+    private long usedBytes;
+
+    /**
+     * @param maxSize the most bytes of direct memory the arenas may take.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SlabStore(long maxSize) {
+        if (maxSize < ARENA_SIZE) {
+            throw new IllegalArgumentException("maxSize < " + ARENA_SIZE);
+        }
+        this.maxSize = maxSize;
+        this.limit = maxSize;
+        this.partialArenas = (ArrayList<Arena>[]) new ArrayList[BLOCK_SIZES.length];
+        for (int i = 0; i < partialArenas.length; i++) {
+            partialArenas[i] = new ArrayList<Arena>();
+        }
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the bytes of the blocks in use, including their unused tails.
+     */
+    public synchronized long size() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the bytes of direct memory held by the arenas.
+     */
+    public synchronized long capacity() {
+        return (long) arenaCount * ARENA_SIZE;
+    }
+
+    public Slab put(byte[] data) {
+        return put(data, 0, data.length);
+    }
+
+    /**
+     * Copies {@code length} bytes of {@code data} from {@code offset} off the heap.
+     *
+     * @return null if the store is full.
+     */
+    public Slab put(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int chunkCount = length == 0 ? 1 : (length + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE;
+        Arena[] arenas = new Arena[chunkCount];
+        int[] blocks = new int[chunkCount];
+        synchronized (this) {
+            for (int i = 0; i < chunkCount; i++) {
+                int chunkLength = Math.min(MAX_BLOCK_SIZE, length - i * MAX_BLOCK_SIZE);
+                int sizeClass = sizeClassOf(chunkLength);
+                Arena arena = arenaFor(sizeClass);
+                if (arena == null) {
+                    for (int j = 0; j < i; j++) {
+                        release(arenas[j], blocks[j]);
+                    }
+                    return null;
+                }
+                arenas[i] = arena;
+                blocks[i] = arena.allocate();
+                usedBytes += arena.blockSize;
+                if (arena.freeCount == 0) {
+                    partialArenas[sizeClass].remove(arena);
+                }
+            }
+        }
+
+        for (int i = 0; i < chunkCount; i++) {
+            int chunkOffset = i * MAX_BLOCK_SIZE;
+            int chunkLength = Math.min(MAX_BLOCK_SIZE, length - chunkOffset);
+            ByteBuffer buffer = arenas[i].buffer.duplicate();
+            buffer.position(blocks[i] * arenas[i].blockSize);
+            buffer.put(data, offset + chunkOffset, chunkLength);
+        }
+        return new Slab(arenas, blocks, length);
+    }
+
+    /**
+     * Releases the empty arenas beyond {@code retainFraction} of
+     * {@link #getMaxSize()}, and allocates no more than that until called
+     * again with a higher fraction.
+     */
+    @Override
+    public synchronized void trimMemory(float retainFraction) {
+        limit = (long) (maxSize * Math.max(0f, Math.min(1f, retainFraction)));
+        while (!emptyArenas.isEmpty() && capacity() > limit) {
+            emptyArenas.remove(emptyArenas.size() - 1);
+            arenaCount--;
+        }
+    }
+
+    private static int sizeClassOf(int length) {
+        for (int i = 0; i < BLOCK_SIZES.length; i++) {
+            if (BLOCK_SIZES[i] >= length) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("length > " + MAX_BLOCK_SIZE);
+    }
+
+    private Arena arenaFor(int sizeClass) {
+        ArrayList<Arena> partial = partialArenas[sizeClass];
+        if (!partial.isEmpty()) {
+            return partial.get(partial.size() - 1);
+        }
+        Arena arena;
+        if (!emptyArenas.isEmpty()) {
+            arena = emptyArenas.remove(emptyArenas.size() - 1);
+        } else if ((long) (arenaCount + 1) * ARENA_SIZE <= limit) {
+            try {
+                arena = new Arena(ByteBuffer.allocateDirect(ARENA_SIZE));
+            } catch (OutOfMemoryError e) {
+                return null;
+            }
+            arenaCount++;
+        } else {
+            return null;
+        }
+        arena.format(sizeClass);
+        partial.add(arena);
+        return arena;
+    }
+
+    private void release(Arena arena, int block) {
+        boolean wasFull = arena.freeCount == 0;
+        arena.free(block);
+        usedBytes -= arena.blockSize;
+        ArrayList<Arena> partial = partialArenas[arena.sizeClass];
+        if (arena.freeCount == arena.blockCount) {
+            partial.remove(arena);
+            emptyArenas.add(arena);
+        } else if (wasFull) {
+            partial.add(arena);
+        }
+    }
+
+    /**
+     * A payload in the store.
+     */
+    public final class Slab {
+        private final Arena[] arenas;
+        private final int[] blocks;
+        private final int length;
+        private boolean freed;
+
+        private Slab(Arena[] arenas, int[] blocks, int length) {
+            this.arenas = arenas;
+            this.blocks = blocks;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return a heap copy of the payload, or null if it was freed.
+         */
+        public synchronized byte[] getBytes() {
+            if (freed) return null;
+
+            byte[] data = new byte[length];
+            for (int i = 0; i < blocks.length; i++) {
+                int chunkOffset = i * MAX_BLOCK_SIZE;
+                ByteBuffer buffer = arenas[i].buffer.duplicate();
+                buffer.position(blocks[i] * arenas[i].blockSize);
+                buffer.get(data, chunkOffset, Math.min(MAX_BLOCK_SIZE, length - chunkOffset));
+            }
+            return data;
+        }
+
+        public synchronized boolean isFreed() {
+            return freed;
+        }
+
+        /**
+         * Gives the blocks back to the store. Calling it again has no effect.
+         */
+        public synchronized void free() {
+            if (freed) return;
+            freed = true;
+            synchronized (SlabStore.this) {
+                for (int i = 0; i < blocks.length; i++) {
+                    release(arenas[i], blocks[i]);
+                }
+            }
+        }
+    }
+
+    private static final class Arena {
+        private final ByteBuffer buffer;
+        private int sizeClass;
+        private int blockSize;
+        private int blockCount;
+        private int[] freeBlocks;
+        private int freeCount;
+
+        private Arena(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private void format(int sizeClass) {
+            this.sizeClass = sizeClass;
+            this.blockSize = BLOCK_SIZES[sizeClass];
+            this.blockCount = ARENA_SIZE / blockSize;
+            this.freeBlocks = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                freeBlocks[i] = blockCount - 1 - i;
+            }
+            this.freeCount = blockCount;
+        }
+
+        private int allocate() {
+            return freeBlocks[--freeCount];
+        }
+
+        private void free(int block) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lidroid.xutils.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long sum for counters updated from many threads and read rarely, in the
+ * manner of {@code java.util.concurrent.atomic.LongAdder} (API 24).
+ * <p/>
+ * Updates go to a single base value until two threads collide on it; from then
+ * on each thread adds to one of several cells, each on its own cache line, so
+ * that concurrent updates rarely touch the same memory. {@link #sum()} is not
+ * an atomic snapshot while updates are in progress.
+ */
+final class StripedCounter {
+
+    private static final int PAD = 8; // longs per 64 byte cache line
+    private static final int MAX_CELLS;
+
+    static {
+        int cells = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (cells < processors && cells < 16) {
+            cells <<= 1;
+        }
+        MAX_CELLS = cells;
+    }
+
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray cells;
+
+    void increment() {
+        add(1L);
+    }
+
+    void add(long x) {
+        AtomicLongArray cells = this.cells;
+        if (cells == null) {
+            long b = base.get();
+            if (base.compareAndSet(b, b + x)) {
+                return;
+            }
+            cells = createCells();
+        }
+        int hash = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        cells.addAndGet(((hash >>> 16) & (MAX_CELLS - 1)) * PAD, x);
+    }
+
+    private synchronized AtomicLongArray createCells() {
+        if (cells == null) {
+            cells = new AtomicLongArray(MAX_CELLS * PAD);
+        }
+        return cells;
+    }
+
+    long sum() {
+        long sum = base.get();
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            for (int i = 0; i < MAX_CELLS; i++) {
+                sum += cells.get(i * PAD);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel of expiry timestamps (in milliseconds).
+ * <p/>
+ * Each level is a ring of buckets covering a power-of-two span of time:
+ * about 1 second, 1 minute, 1 hour and 1.5 days per bucket, plus an overflow
+ * bucket. Scheduling and cancelling are O(1); {@link #advance} visits only the
+ * buckets whose time has passed and cascades their entries down to finer
+ * levels, so the cost is amortized O(1) per entry.
+ * <p/>
+ * Entries fire at most one bucket span late; callers that need exact expiry
+ * must still compare the timestamp themselves. Not thread safe.
+ */
+final class TimerWheel<K> {
+
+    private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+    private static final int[] SHIFTS = {10, 16, 22, 27, 29};
+
+    private final Timer<K>[][] wheel;
+    private final HashMap<K, Timer<K>> timers = new HashMap<K, Timer<K>>();
+    private long time;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long now) {
+        this.time = now;
+        this.wheel = (Timer<K>[][]) new Timer[BUCKETS.length][];
+        for (int i = 0; i < BUCKETS.length; i++) {
+            wheel[i] = (Timer<K>[]) new Timer[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                wheel[i][j] = new Timer<K>(null, 0L);
+            }
+        }
+    }
+
+    /**
+     * Schedules {@code key} to fire at {@code expiryTimestamp}, replacing any
+     * earlier schedule of the same key.
+     */
+    void schedule(K key, long expiryTimestamp) {
+        Timer<K> timer = timers.get(key);
+        if (timer != null) {
+            timer.unlink();
+            timer.expiryTimestamp = expiryTimestamp;
+        } else {
+            timer = new Timer<K>(key, expiryTimestamp);
+            timers.put(key, timer);
+        }
+        bucketFor(expiryTimestamp).link(timer);
+    }
+
+    void cancel(Object key) {
+        Timer<K> timer = timers.remove(key);
+        if (timer != null) {
+            timer.unlink();
+        }
+    }
+
+    void clear() {
+        for (Timer<K> timer : timers.values()) {
+            timer.unlink();
+        }
+        timers.clear();
+    }
+
+    int size() {
+        return timers.size();
+    }
+
+    /**
+     * Returns the time at which {@link #advance} has work to do next.
+     */
+    long nextTickTime() {
+        return ((time >>> SHIFTS[0]) + 1) << SHIFTS[0];
+    }
+
+    /**
+     * Moves the wheel to {@code now}.
+     *
+     * @return the keys whose timestamp is not after {@code now}. They are no
+     * longer scheduled.
+     */
+    List<K> advance(long now) {
+        List<K> expired = null;
+        long previous = time;
+        if (now <= previous) {
+            return null; // the clock went back, wait for it
+        }
+        time = now;
+        for (int i = 0; i < SHIFTS.length; i++) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long currentTicks = now >>> SHIFTS[i];
+            if (currentTicks == previousTicks) {
+                break;
+            }
+            expired = expire(i, previousTicks, currentTicks - previousTicks, now, expired);
+        }
+        return expired;
+    }
+
+    private List<K> expire(int level, long previousTicks, long delta, long now, List<K> expired) {
+        Timer<K>[] buckets = wheel[level];
+        int mask = buckets.length - 1;
+        int count = (int) Math.min(delta + 1, buckets.length);
+        for (int i = 0; i < count; i++) {
+            Timer<K> sentinel = buckets[(int) ((previousTicks + i) & mask)];
+            Timer<K> timer = sentinel.next;
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (timer != sentinel) {
+                Timer<K> next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                if (timer.expiryTimestamp <= now) {
+                    timers.remove(timer.key);
+                    if (expired == null) {
+                        expired = new ArrayList<K>();
+                    }
+                    expired.add(timer.key);
+                } else {
+                    bucketFor(timer.expiryTimestamp).link(timer);
+                }
+                timer = next;
+            }
+        }
+        return expired;
+    }
+
+    private Timer<K> bucketFor(long expiryTimestamp) {
+        long duration = expiryTimestamp - time;
+        int last = BUCKETS.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (duration < (1L << SHIFTS[i + 1])) {
+                long ticks = Math.max(expiryTimestamp, time) >>> SHIFTS[i];
+                return wheel[i][(int) (ticks & (BUCKETS[i] - 1))];
+            }
+        }
+        return wheel[last][0];
+    }
+
+    private static final class Timer<K> {
+        private final K key;
+        private long expiryTimestamp;
+        private Timer<K> prev;
+        private Timer<K> next;
+
+        private Timer(K key, long expiryTimestamp) {
+            this.key = key;
+            this.expiryTimestamp = expiryTimestamp;
+            this.prev = this;
+            this.next = this;
+        }
+
+        /**
+         * Appends {@code timer} to the bucket whose sentinel is this.
+         */
+        private void link(Timer<K> timer) {
+            timer.prev = prev;
+            timer.next = this;
+            prev.next = timer;
+            prev = timer;
+        }
+
+        private void unlink() {
+            if (next != null) {
+                prev.next = next;
+                next.prev = prev;
+                prev = null;
+                next = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.cache;
+
+/**
+ * Window TinyLFU: a small LRU window in front of a main region guarded by a
+ * frequency sketch. An entry leaving the window only replaces the main
+ * region's LRU entry if it has been requested more often recently, so a burst
+ * of one-off keys (a long scroll through a feed) cannot flush the hot ones.
+ * <p/>
+ * An instance holds the access history of one cache and should not be shared.
+ */
+public class TinyLfuEvictionPolicy<K> implements EvictionPolicy<K> {
+
+    public static final int DEFAULT_WINDOW_PERCENT = 1;
+
+    private final FrequencySketch sketch;
+    private final int windowPercent;
+
+    /**
+     * @param expectedEntries the number of entries the cache is expected to hold.
+     */
+    public TinyLfuEvictionPolicy(int expectedEntries) {
+        this(expectedEntries, DEFAULT_WINDOW_PERCENT);
+    }
+
+    /**
+     * @param expectedEntries the number of entries the cache is expected to hold.
+     * @param windowPercent   the share of the cache kept as a plain LRU window, between 0 and 100.
+     */
+    public TinyLfuEvictionPolicy(int expectedEntries, int windowPercent) {
+        if (expectedEntries <= 0) {
+            throw new IllegalArgumentException("expectedEntries <= 0");
+        }
+        if (windowPercent < 0 || windowPercent > 100) {
+            throw new IllegalArgumentException("windowPercent must be between 0 and 100 (inclusive)");
+        }
+        this.sketch = new FrequencySketch(expectedEntries);
+        this.windowPercent = windowPercent;
+    }
+
+    @Override
+    public int getWindowPercent() {
+        return windowPercent;
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(K candidate, K victim) {
+        return sketch.frequency(candidate) > sketch.frequency(victim);
+    }
+}
@@ -16,31 +16,95 @@
 package com.lidroid.xutils.http;
 
 import android.text.TextUtils;
-import com.lidroid.xutils.http.client.HttpRequest;
+import com.lidroid.xutils.cache.CacheListener;
+import com.lidroid.xutils.cache.CacheLoader;
+import com.lidroid.xutils.cache.CacheStats;
+import com.lidroid.xutils.cache.DiskCache;
+import com.lidroid.xutils.cache.LruDiskCache;
 import com.lidroid.xutils.cache.LruMemoryCache;
+import com.lidroid.xutils.cache.MemoryGovernor;
+import com.lidroid.xutils.cache.SlabStore;
+import com.lidroid.xutils.http.client.HttpRequest;
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.protocol.HTTP;
 
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Author: wyouflf
  * Date: 13-8-1
  * Time: 下午12:04
+ * <p/>
+ * The responses of cacheable requests, by url. A memory tier holds the
+ * entries that can be served; an optional disk tier ({@link #setDiskCache}) keeps them across
+ * launches, together with the stale entries that can be revalidated.
+ * Responses are kept as raw bytes (see {@link HttpCacheEntry}) and the memory
+ * tier is sized in bytes. Large bodies can be kept off the Java heap, see
+ * {@link #setOffHeapStore}.
+ * <p/>
+ * Freshness follows the response headers: {@code Cache-Control: no-store}
+ * keeps a response out of the cache, {@code no-cache} makes it stale at once,
+ * {@code max-age} or {@code Expires} set its lifetime. Without any of them the
+ * expiry given by the request (by default {@link #getDefaultExpiryTime()})
+ * applies.
+ * <p/>
+ * An expired entry may still be served for a while, during which a single
+ * background request refreshes it: see {@link #setStaleWhileRevalidate}.
+ * <p/>
+ * {@link #getStats()} counts the lookups of the whole cache, the tiers keep
+ * their own counts; {@link #setCacheListener} receives the events of all three.
  */
 public class HttpCache {
 
     /**
      * key: url
-     * value: response result
+     * value: response
      */
-    private final LruMemoryCache<String, String> mMemoryCache;
+    private volatile LruMemoryCache<String, HttpCacheEntry> mMemoryCache;
 
-    private final static int DEFAULT_CACHE_SIZE = 1024 * 100;// string length
+    private final static int DEFAULT_CACHE_SIZE = 1024 * 200;// bytes
     private final static long DEFAULT_EXPIRY_TIME = 1000 * 60; // 60 seconds
 
+    private final static int DISK_CACHE_APP_VERSION = 2;
+    private final static int DISK_CACHE_METADATA_INDEX = 0;
+    private final static int DISK_CACHE_BODY_INDEX = 1;
+
+    /**
+     * Headers describing the transfer rather than the response, not stored.
+     */
+    private final static String[] UNCACHEABLE_HEADERS = {
+            "Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailer",
+            "Transfer-Encoding", "Upgrade", "Content-Encoding", "Content-Length", "Set-Cookie"};
+
     private int cacheSize = DEFAULT_CACHE_SIZE;
+    private int concurrencyLevel = LruMemoryCache.DEFAULT_CONCURRENCY_LEVEL;
 
     private static long defaultExpiryTime = DEFAULT_EXPIRY_TIME;
 
+    private volatile long staleWhileRevalidate = 0;
+    private final ConcurrentHashMap<String, Boolean> revalidatingUrls = new ConcurrentHashMap<String, Boolean>();
+
+    private File diskCacheDir;
+    private long diskCacheSize;
+    private DiskCache mDiskCache;
+    private final Object mDiskCacheLock = new Object();
+
+    private volatile SlabStore offHeapStore;
+    private volatile int offHeapMinBodySize;
+
+    private final CacheStats stats = new CacheStats("http");
+    private volatile CacheListener cacheListener;
+
     /**
      * HttpCache(HttpCache.DEFAULT_CACHE_SIZE, HttpCache.DEFAULT_EXPIRY_TIME);
      */
@@ -48,21 +112,186 @@ public class HttpCache {
         this(HttpCache.DEFAULT_CACHE_SIZE, HttpCache.DEFAULT_EXPIRY_TIME);
     }
 
-    public HttpCache(int strLength, long defaultExpiryTime) {
-        this.cacheSize = strLength;
+    /**
+     * @param cacheSize the size of the memory tier in bytes of response body.
+     */
+    public HttpCache(int cacheSize, long defaultExpiryTime) {
+        this(cacheSize, defaultExpiryTime, LruMemoryCache.DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    public HttpCache(int cacheSize, long defaultExpiryTime, int concurrencyLevel) {
+        this.cacheSize = cacheSize;
+        this.concurrencyLevel = concurrencyLevel;
         HttpCache.defaultExpiryTime = defaultExpiryTime;
 
-        mMemoryCache = new LruMemoryCache<String, String>(this.cacheSize) {
-            @Override
-            protected int sizeOf(String key, String value) {
-                if (value == null) return 0;
-                return value.length();
+        mMemoryCache = createMemoryCache();
+    }
+
+    private LruMemoryCache<String, HttpCacheEntry> createMemoryCache() {
+        LruMemoryCache<String, HttpCacheEntry> memoryCache =
+                new LruMemoryCache<String, HttpCacheEntry>(this.cacheSize, this.concurrencyLevel) {
+                    @Override
+                    protected int sizeOf(String key, HttpCacheEntry value) {
+                        if (value == null) return 0;
+                        return value.getBodyLength();
+                    }
+
+                    @Override
+                    protected void entryRemoved(boolean evicted, String key, HttpCacheEntry oldValue, HttpCacheEntry newValue) {
+                        if (oldValue != null && oldValue != newValue) {
+                            oldValue.freeOffHeap();
+                        }
+                    }
+                };
+        memoryCache.getStats().setName("http.memory");
+        memoryCache.getStats().setListener(cacheListener);
+        MemoryGovernor.getInstance().register(memoryCache);
+        return memoryCache;
+    }
+
+    /**
+     * @param cacheSize the size of the memory tier in bytes of response body.
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        mMemoryCache.setMaxSize(cacheSize);
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Keeps the bodies of at least {@code minBodySize} bytes of the memory
+     * tier in {@code store}, off the Java heap, so that large responses don't
+     * add to the garbage collector's work. They still count against the size
+     * of the memory tier. A body is copied back to the heap the first time it
+     * is served and stays there, so only the entries not read again since
+     * they were cached are kept off the heap.
+     *
+     * @param store null to keep every body on the heap.
+     */
+    public void setOffHeapStore(SlabStore store, int minBodySize) {
+        this.offHeapMinBodySize = Math.max(0, minBodySize);
+        this.offHeapStore = store;
+        if (store != null) {
+            MemoryGovernor.getInstance().register(store);
+        }
+    }
+
+    public SlabStore getOffHeapStore() {
+        return offHeapStore;
+    }
+
+    /**
+     * Returns a copy of the memory tier, with the entries as they are kept.
+     */
+    Map<String, HttpCacheEntry> snapshotMemory() {
+        return mMemoryCache.snapshot();
+    }
+
+    /**
+     * Stripes the cache over {@code concurrencyLevel} segments. The cached
+     * responses are dropped.
+     */
+    public synchronized void setConcurrencyLevel(int concurrencyLevel) {
+        if (concurrencyLevel > 0 && concurrencyLevel != this.concurrencyLevel) {
+            this.concurrencyLevel = concurrencyLevel;
+            LruMemoryCache<String, HttpCacheEntry> oldCache = mMemoryCache;
+            mMemoryCache = createMemoryCache();
+            MemoryGovernor.getInstance().unregister(oldCache);
+            oldCache.evictAll();
+        }
+    }
+
+    /**
+     * Keeps the responses in {@code directory} as well, so that they survive
+     * the process. The directory is opened on first use, off the calling thread
+     * of this method.
+     *
+     * @param directory null to disable the disk tier.
+     */
+    public void setDiskCache(File directory, long maxSize) {
+        synchronized (mDiskCacheLock) {
+            IOUtils.closeQuietly(mDiskCache);
+            mDiskCache = null;
+            this.diskCacheDir = directory;
+            this.diskCacheSize = maxSize;
+        }
+    }
+
+    private DiskCache getDiskCache() {
+        synchronized (mDiskCacheLock) {
+            if ((mDiskCache == null || mDiskCache.isClosed()) && diskCacheDir != null) {
+                try {
+                    mDiskCache = LruDiskCache.open(diskCacheDir, DISK_CACHE_APP_VERSION, 2, diskCacheSize);
+                    mDiskCache.getStats().setName("http.disk");
+                    mDiskCache.getStats().setListener(cacheListener);
+                } catch (Throwable e) {
+                    mDiskCache = null;
+                    diskCacheDir = null; // don't retry on every request
+                    LogUtils.e("create http disk cache error", e);
+                }
+            }
+            return mDiskCache;
+        }
+    }
+
+    /**
+     * Lets an entry be served for up to {@code maxStaleness} ms after it
+     * expired, while it is refreshed in the background. A longer
+     * {@code stale-while-revalidate} of the response wins; {@code no-cache}
+     * and {@code must-revalidate} responses are never served stale.
+     *
+     * @param maxStaleness 0 (the default) to wait for the refresh instead.
+     */
+    public void setStaleWhileRevalidate(long maxStaleness) {
+        this.staleWhileRevalidate = Math.max(0, maxStaleness);
+    }
+
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @return the hits, misses and loads of the whole cache: a hit is an entry
+     * that could be served without waiting for the network.
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    public CacheStats getMemoryCacheStats() {
+        return mMemoryCache.getStats();
+    }
+
+    /**
+     * @return null if the disk tier is disabled or couldn't be opened.
+     */
+    public CacheStats getDiskCacheStats() {
+        DiskCache diskCache = getDiskCache();
+        return diskCache == null ? null : diskCache.getStats();
+    }
+
+    /**
+     * Forwards the events of the cache and of its tiers to {@code listener},
+     * named "http", "http.memory" and "http.disk".
+     *
+     * @param listener null to stop forwarding.
+     */
+    public void setCacheListener(CacheListener listener) {
+        this.cacheListener = listener;
+        stats.setListener(listener);
+        mMemoryCache.getStats().setListener(listener);
+        synchronized (mDiskCacheLock) {
+            if (mDiskCache != null) {
+                mDiskCache.getStats().setListener(listener);
             }
-        };
+        }
     }
 
-    public void setCacheSize(int strLength) {
-        mMemoryCache.setMaxSize(strLength);
+    public CacheListener getCacheListener() {
+        return cacheListener;
     }
 
     public static void setDefaultExpiryTime(long defaultExpiryTime) {
@@ -80,15 +309,398 @@ public class HttpCache {
     public void put(String url, String result, long expiry) {
         if (url == null || result == null || expiry < 1) return;
 
-        mMemoryCache.put(url, result, System.currentTimeMillis() + expiry);
+        put(url, new HttpCacheEntry(200, "OK", new Header[0],
+                encode(result), HTTP.UTF_8, System.currentTimeMillis() + expiry));
+    }
+
+    /**
+     * Caches the {@code result} of {@code response} as its headers allow.
+     *
+     * @param expiry the lifetime of the result if the headers don't give one.
+     */
+    public void put(String url, HttpResponse response, String result, long expiry) {
+        if (result == null) return;
+
+        put(url, response, encode(result), HTTP.UTF_8, expiry);
+    }
+
+    /**
+     * Caches the raw {@code body} of {@code response} as its headers allow.
+     *
+     * @param charset the charset to decode the body with, see {@link HttpCacheEntry#getResult()}.
+     * @param expiry  the lifetime of the body if the headers don't give one.
+     */
+    public void put(String url, HttpResponse response, byte[] body, String charset, long expiry) {
+        if (url == null || response == null || body == null || charset == null) return;
+
+        Header[] headers = getCacheableHeaders(response.getAllHeaders());
+        long expiryTimestamp = getExpiryTimestamp(headers, expiry);
+        if (expiryTimestamp == Long.MIN_VALUE) {
+            remove(url); // no-store
+            return;
+        }
+        StatusLine status = response.getStatusLine();
+        put(url, new HttpCacheEntry(
+                status.getStatusCode(), status.getReasonPhrase(), headers, body, charset, expiryTimestamp));
+    }
+
+    /**
+     * Refreshes {@code entry} with the headers of a {@code 304 Not Modified}
+     * response to its revalidation.
+     *
+     * @return the refreshed entry.
+     */
+    public HttpCacheEntry putNotModified(String url, HttpCacheEntry entry, HttpResponse response, long expiry) {
+        ArrayList<Header> merged = new ArrayList<Header>();
+        Header[] updates = getCacheableHeaders(response.getAllHeaders());
+        for (Header header : entry.getAllHeaders()) {
+            boolean updated = false;
+            for (Header update : updates) {
+                if (update.getName().equalsIgnoreCase(header.getName())) {
+                    updated = true;
+                    break;
+                }
+            }
+            if (!updated) {
+                merged.add(header);
+            }
+        }
+        for (Header update : updates) {
+            merged.add(update);
+        }
+        Header[] headers = merged.toArray(new Header[merged.size()]);
+        long expiryTimestamp = getExpiryTimestamp(headers, expiry);
+        if (expiryTimestamp == Long.MIN_VALUE) {
+            remove(url); // no-store
+            return new HttpCacheEntry(entry.getStatusCode(), entry.getReasonPhrase(), headers,
+                    entry.getBody(), entry.getCharset(), System.currentTimeMillis());
+        }
+        HttpCacheEntry refreshed = new HttpCacheEntry(entry.getStatusCode(), entry.getReasonPhrase(), headers,
+                entry.getBody(), entry.getCharset(), expiryTimestamp);
+        put(url, refreshed);
+        return refreshed;
+    }
+
+    private void put(String url, HttpCacheEntry entry) {
+        stats.recordWrite(entry.getBody().length);
+        long retainTimestamp = getRetainTimestamp(entry);
+        if (System.currentTimeMillis() < retainTimestamp) {
+            putInMemory(url, entry, retainTimestamp);
+        } else {
+            mMemoryCache.remove(url);
+            if (!entry.hasValidators()) {
+                removeFromDisk(url);
+                return;
+            }
+        }
+        writeToDisk(url, entry);
     }
 
     public String get(String url) {
-        return (url != null) ? mMemoryCache.get(url) : null;
+        HttpCacheEntry entry = getEntry(url);
+        return entry != null && entry.isFresh() ? entry.getResult() : null;
+    }
+
+    /**
+     * Returns the cached response for {@code url}, even if it is stale and
+     * has to be revalidated, or null.
+     */
+    public HttpCacheEntry getEntry(String url) {
+        if (url == null) return null;
+
+        HttpCacheEntry entry = mMemoryCache.get(url);
+        if (entry != null) {
+            entry = promoteToHeap(url, entry); // null if it was evicted and freed meanwhile
+        }
+        if (entry == null) {
+            entry = readFromDisk(url);
+            if (entry != null) {
+                long retainTimestamp = getRetainTimestamp(entry);
+                if (System.currentTimeMillis() < retainTimestamp) {
+                    putInMemory(url, entry, retainTimestamp);
+                }
+            }
+        }
+        if (entry != null && (entry.isFresh() || isServableWhileRevalidating(entry))) {
+            stats.recordHit();
+            stats.recordRead(entry.getBody().length);
+        } else {
+            stats.recordMiss();
+        }
+        return entry;
+    }
+
+    /**
+     * Brings an off-heap body back to the heap the first time it is served.
+     * The heap copy replaces the entry in the memory tier, which frees the
+     * off-heap one, so that later hits don't copy it again.
+     *
+     * @return null if the off-heap body was freed meanwhile.
+     */
+    private HttpCacheEntry promoteToHeap(String url, HttpCacheEntry entry) {
+        HttpCacheEntry heapEntry = entry.moveOnHeap();
+        if (heapEntry != null && heapEntry != entry) {
+            // 失败说明已被替换或移除, 这份拷贝只用于这一次
+            mMemoryCache.replace(url, entry, heapEntry);
+        }
+        return heapEntry;
+    }
+
+    private void putInMemory(String url, HttpCacheEntry entry, long retainTimestamp) {
+        SlabStore store = offHeapStore;
+        if (store != null && entry.getBodyLength() >= offHeapMinBodySize) {
+            entry = entry.moveOffHeap(store);
+        }
+        mMemoryCache.put(url, entry, retainTimestamp);
+    }
+
+    /**
+     * @return true if {@code entry} is expired but may still be served while
+     * it is revalidated.
+     */
+    public boolean isServableWhileRevalidating(HttpCacheEntry entry) {
+        long now = System.currentTimeMillis();
+        return now >= entry.getExpiryTimestamp() && now < getRetainTimestamp(entry);
+    }
+
+    /**
+     * Claims the background revalidation of {@code url}.
+     *
+     * @return false if another one is already running.
+     */
+    boolean beginRevalidation(String url) {
+        return revalidatingUrls.putIfAbsent(url, Boolean.TRUE) == null;
+    }
+
+    void endRevalidation(String url) {
+        revalidatingUrls.remove(url);
+    }
+
+    /**
+     * @return the time until which {@code entry} is worth keeping in memory.
+     */
+    private long getRetainTimestamp(HttpCacheEntry entry) {
+        long window = entry.getStaleWhileRevalidate();
+        window = window < 0 ? 0 : Math.max(window, staleWhileRevalidate);
+        long expiryTimestamp = entry.getExpiryTimestamp();
+        return expiryTimestamp > Long.MAX_VALUE - window ? Long.MAX_VALUE : expiryTimestamp + window;
+    }
+
+    public void remove(String url) {
+        if (url == null) return;
+
+        mMemoryCache.remove(url);
+        removeFromDisk(url);
+    }
+
+    /**
+     * Returns the cached result for {@code url}, loading it with {@code loader}
+     * on a miss. Concurrent misses on the same url share a single load. The
+     * result expires after the default expiry time unless the loader gives its
+     * own timestamp.
+     */
+    public String getOrLoad(String url, final CacheLoader<String, String> loader) throws Exception {
+        if (url == null) return null;
+
+        HttpCacheEntry cached = getEntry(url);
+        if (cached != null) {
+            if (cached.isFresh()) {
+                return cached.getResult();
+            }
+            mMemoryCache.remove(url); // 过期的缓存不能挡住加载
+        }
+        HttpCacheEntry entry = mMemoryCache.getOrLoad(url, new CacheLoader<String, HttpCacheEntry>() {
+            @Override
+            public HttpCacheEntry load(String key) throws Exception {
+                long start = System.nanoTime();
+                String result = null;
+                try {
+                    result = loader.load(key);
+                } finally {
+                    stats.recordLoad(System.nanoTime() - start, result != null);
+                }
+                if (result == null) {
+                    return null;
+                }
+                long expiryTimestamp = loader.getExpiryTimestamp(key, result);
+                if (expiryTimestamp == Long.MAX_VALUE) {
+                    expiryTimestamp = System.currentTimeMillis() + defaultExpiryTime;
+                }
+                HttpCacheEntry entry = new HttpCacheEntry(200, "OK", new Header[0],
+                        encode(result), HTTP.UTF_8, expiryTimestamp);
+                stats.recordWrite(entry.getBody().length);
+                writeToDisk(key, entry);
+                return entry;
+            }
+
+            @Override
+            public long getExpiryTimestamp(String key, HttpCacheEntry value) {
+                return value.getExpiryTimestamp();
+            }
+        });
+        if (entry == null) {
+            return null;
+        }
+        HttpCacheEntry heapEntry = promoteToHeap(url, entry);
+        return heapEntry != null ? heapEntry.getResult() : getOrLoad(url, loader);
+    }
+
+    private HttpCacheEntry readFromDisk(String url) {
+        DiskCache diskCache = getDiskCache();
+        if (diskCache == null) return null;
+
+        LruDiskCache.Snapshot snapshot = null;
+        try {
+            snapshot = diskCache.get(url);
+            if (snapshot != null) {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(snapshot.getInputStream(DISK_CACHE_METADATA_INDEX)));
+                return HttpCacheEntry.readMetadata(in, snapshot.getBytes(DISK_CACHE_BODY_INDEX));
+            }
+        } catch (Throwable e) {
+            LogUtils.e(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(snapshot);
+        }
+        return null;
+    }
+
+    private void writeToDisk(String url, HttpCacheEntry entry) {
+        DiskCache diskCache = getDiskCache();
+        if (diskCache == null) return;
+
+        LruDiskCache.Editor editor = null;
+        DataOutputStream out = null;
+        try {
+            editor = diskCache.edit(url);
+            if (editor != null) {
+                // A stale entry is kept for as long as it can be revalidated.
+                editor.setEntryExpiryTimestamp(entry.hasValidators() ? Long.MAX_VALUE : getRetainTimestamp(entry));
+                out = new DataOutputStream(new BufferedOutputStream(editor.newOutputStream(DISK_CACHE_METADATA_INDEX)));
+                entry.writeMetadata(out);
+                out.close();
+                out = null;
+                editor.set(DISK_CACHE_BODY_INDEX, entry.getBody());
+                editor.commit();
+            }
+        } catch (Throwable e) {
+            LogUtils.e(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    private void removeFromDisk(String url) {
+        DiskCache diskCache = getDiskCache();
+        if (diskCache == null) return;
+
+        try {
+            diskCache.remove(url);
+        } catch (Throwable e) {
+            LogUtils.e(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] encode(String result) {
+        try {
+            return result.getBytes(HTTP.UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            return result.getBytes();
+        }
+    }
+
+    private static Header[] getCacheableHeaders(Header[] headers) {
+        ArrayList<Header> result = new ArrayList<Header>(headers.length);
+        for (Header header : headers) {
+            boolean cacheable = true;
+            for (String name : UNCACHEABLE_HEADERS) {
+                if (name.equalsIgnoreCase(header.getName())) {
+                    cacheable = false;
+                    break;
+                }
+            }
+            if (cacheable) {
+                result.add(header);
+            }
+        }
+        return result.toArray(new Header[result.size()]);
+    }
+
+    /**
+     * @return the time the response stops being fresh, or Long.MIN_VALUE if it
+     * must not be stored.
+     */
+    private static long getExpiryTimestamp(Header[] headers, long expiry) {
+        long now = System.currentTimeMillis();
+        long maxAge = -1;
+        Header expires = null;
+        Header date = null;
+        for (Header header : headers) {
+            String name = header.getName();
+            if ("Cache-Control".equalsIgnoreCase(name)) {
+                for (HeaderElement element : header.getElements()) {
+                    String directive = element.getName();
+                    if ("no-store".equalsIgnoreCase(directive)) {
+                        return Long.MIN_VALUE;
+                    } else if ("no-cache".equalsIgnoreCase(directive)) {
+                        maxAge = 0;
+                    } else if ("max-age".equalsIgnoreCase(directive) && maxAge != 0) {
+                        try {
+                            maxAge = Long.parseLong(element.getValue());
+                        } catch (Throwable ignored) {
+                            maxAge = 0;
+                        }
+                    }
+                }
+            } else if ("Pragma".equalsIgnoreCase(name) && "no-cache".equalsIgnoreCase(header.getValue())) {
+                maxAge = 0;
+            } else if ("Expires".equalsIgnoreCase(name)) {
+                expires = header;
+            } else if ("Date".equalsIgnoreCase(name)) {
+                date = header;
+            }
+        }
+
+        if (maxAge >= 0) {
+            return now + maxAge * 1000;
+        }
+        if (expires != null) {
+            Date expiresDate = parseDate(expires);
+            if (expiresDate == null) {
+                return now; // "0" and invalid dates mean already expired
+            }
+            Date serverDate = parseDate(date);
+            long serverNow = serverDate != null ? serverDate.getTime() : now;
+            return now + Math.max(0, expiresDate.getTime() - serverNow);
+        }
+        return now + Math.max(0, expiry);
+    }
+
+    private static Date parseDate(Header header) {
+        if (header == null || TextUtils.isEmpty(header.getValue())) return null;
+        try {
+            return DateUtils.parseDate(header.getValue());
+        } catch (Throwable e) {
+            return null;
+        }
     }
 
     public void clear() {
         mMemoryCache.evictAll();
+        synchronized (mDiskCacheLock) {
+            DiskCache diskCache = getDiskCache();
+            if (diskCache != null) {
+                try {
+                    diskCache.delete();
+                } catch (Throwable e) {
+                    LogUtils.e(e.getMessage(), e);
+                }
+                mDiskCache = null;
+            }
+        }
     }
 
     public boolean isEnabled(HttpRequest.HttpMethod method) {
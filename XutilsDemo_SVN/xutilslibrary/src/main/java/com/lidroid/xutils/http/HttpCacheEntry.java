@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.http;
+
+import com.lidroid.xutils.cache.SlabStore;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicHeader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A response kept by {@link HttpCache}: the status line, the headers needed
+ * to serve and revalidate it, the raw body and the time it stops being fresh.
+ * <p/>
+ * The body is kept as received and only decoded by {@link #getResult()}, so a
+ * text response costs its encoded size (about half of a String for ASCII) and
+ * binary responses can be cached as well.
+ * <p/>
+ * A stale entry holding an {@code ETag} or {@code Last-Modified} validator is
+ * not thrown away: the next request for it is sent conditionally and a
+ * {@code 304 Not Modified} answer makes it fresh again without a body.
+ */
+public final class HttpCacheEntry {
+
+    private static final int FORMAT_VERSION = 2;
+
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final Header[] headers;
+    private final byte[] body;
+    private final String charset;
+    private final long expiryTimestamp;
+    // 内存层中放在堆外的响应体, 只在HttpCache内部使用
+    private final SlabStore.Slab offHeapBody;
+
+    /**
+     * @param charset the charset {@link #getResult()} decodes {@code body} with.
+     */
+    public HttpCacheEntry(int statusCode, String reasonPhrase, Header[] headers,
+                          byte[] body, String charset, long expiryTimestamp) {
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+        this.headers = headers;
+        this.body = body;
+        this.charset = charset;
+        this.expiryTimestamp = expiryTimestamp;
+        this.offHeapBody = null;
+    }
+
+    private HttpCacheEntry(HttpCacheEntry entry, byte[] body, SlabStore.Slab offHeapBody) {
+        this.statusCode = entry.statusCode;
+        this.reasonPhrase = entry.reasonPhrase;
+        this.headers = entry.headers;
+        this.body = body;
+        this.charset = entry.charset;
+        this.expiryTimestamp = entry.expiryTimestamp;
+        this.offHeapBody = offHeapBody;
+    }
+
+    int getBodyLength() {
+        return offHeapBody != null ? offHeapBody.length() : body.length;
+    }
+
+    /**
+     * @return a copy whose body lives in {@code store}, or this if the store
+     * is full.
+     */
+    HttpCacheEntry moveOffHeap(SlabStore store) {
+        if (offHeapBody != null) return this;
+        SlabStore.Slab slab = store.put(body);
+        return slab == null ? this : new HttpCacheEntry(this, null, slab);
+    }
+
+    /**
+     * @return a copy whose body is on the heap, or null if the off-heap body
+     * was freed meanwhile.
+     */
+    HttpCacheEntry moveOnHeap() {
+        if (offHeapBody == null) return this;
+        byte[] bytes = offHeapBody.getBytes();
+        return bytes == null ? null : new HttpCacheEntry(this, bytes, null);
+    }
+
+    /**
+     * @return true if the body is kept off the heap, with no heap array.
+     */
+    boolean isOffHeap() {
+        return offHeapBody != null;
+    }
+
+    void freeOffHeap() {
+        if (offHeapBody != null) {
+            offHeapBody.free();
+        }
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    public Header[] getAllHeaders() {
+        return headers.clone();
+    }
+
+    public Header getFirstHeader(String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the raw body. The array is shared and must not be modified.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return the value of the {@code Content-Type} header, or null.
+     */
+    public String getContentType() {
+        Header contentType = getFirstHeader("Content-Type");
+        return contentType == null ? null : contentType.getValue();
+    }
+
+    /**
+     * Decodes the body with the charset of the entry. Each call decodes again:
+     * keep the String if it is needed more than once.
+     */
+    public String getResult() {
+        try {
+            return new String(body, charset);
+        } catch (UnsupportedEncodingException e) {
+            return new String(body);
+        }
+    }
+
+    public long getExpiryTimestamp() {
+        return expiryTimestamp;
+    }
+
+    public boolean isFresh() {
+        return System.currentTimeMillis() < expiryTimestamp;
+    }
+
+    /**
+     * @return true if the entry can be revalidated with a conditional request.
+     */
+    public boolean hasValidators() {
+        return getFirstHeader("ETag") != null || getFirstHeader("Last-Modified") != null;
+    }
+
+    /**
+     * @return how long after its expiry the entry may still be served while
+     * it is being revalidated, as given by {@code stale-while-revalidate}: 0
+     * if the response has no such directive, -1 if it must not be served
+     * stale at all ({@code no-cache}, {@code must-revalidate}).
+     */
+    public long getStaleWhileRevalidate() {
+        long staleWhileRevalidate = 0;
+        for (Header header : headers) {
+            String name = header.getName();
+            if ("Pragma".equalsIgnoreCase(name) && "no-cache".equalsIgnoreCase(header.getValue())) {
+                return -1;
+            }
+            if (!"Cache-Control".equalsIgnoreCase(name)) {
+                continue;
+            }
+            for (HeaderElement element : header.getElements()) {
+                String directive = element.getName();
+                if ("no-cache".equalsIgnoreCase(directive) || "must-revalidate".equalsIgnoreCase(directive)
+                        || "proxy-revalidate".equalsIgnoreCase(directive)) {
+                    return -1;
+                } else if ("stale-while-revalidate".equalsIgnoreCase(directive)) {
+                    try {
+                        staleWhileRevalidate = Math.max(0, Long.parseLong(element.getValue()) * 1000);
+                    } catch (Throwable ignored) {
+                    }
+                }
+            }
+        }
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * Makes {@code request} conditional on this entry being out of date.
+     */
+    void addConditionalHeaders(HttpRequestBase request) {
+        Header etag = getFirstHeader("ETag");
+        if (etag != null) {
+            request.setHeader("If-None-Match", etag.getValue());
+        }
+        Header lastModified = getFirstHeader("Last-Modified");
+        if (lastModified != null) {
+            request.setHeader("If-Modified-Since", lastModified.getValue());
+        }
+    }
+
+    /**
+     * Writes everything but the body.
+     */
+    void writeMetadata(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(statusCode);
+        out.writeUTF(reasonPhrase == null ? "" : reasonPhrase);
+        out.writeUTF(charset);
+        out.writeLong(expiryTimestamp);
+        out.writeInt(headers.length);
+        for (Header header : headers) {
+            out.writeUTF(header.getName());
+            out.writeUTF(header.getValue());
+        }
+    }
+
+    static HttpCacheEntry readMetadata(DataInputStream in, byte[] body) throws IOException {
+        if (in.readInt() != FORMAT_VERSION) {
+            throw new IOException("unexpected http cache entry format");
+        }
+        int statusCode = in.readInt();
+        String reasonPhrase = in.readUTF();
+        String charset = in.readUTF();
+        long expiryTimestamp = in.readLong();
+        Header[] headers = new Header[in.readInt()];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+        }
+        return new HttpCacheEntry(statusCode, reasonPhrase, headers, body, charset, expiryTimestamp);
+    }
+}
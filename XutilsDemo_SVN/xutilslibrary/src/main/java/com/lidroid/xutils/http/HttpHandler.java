@@ -93,6 +93,7 @@ public class HttpHandler<T> extends PriorityAsyncTask<Object, Object, Void> impl
     }
 
     private long expiry = HttpCache.getDefaultExpiryTime();
+    private HttpCacheEntry staleCacheEntry; // 正在重新验证的过期缓存
 
     public void setExpiry(long expiry) {
         this.expiry = expiry;
@@ -109,6 +110,54 @@ public class HttpHandler<T> extends PriorityAsyncTask<Object, Object, Void> impl
     // 执行请求
     @SuppressWarnings("unchecked")
     private ResponseInfo<T> sendRequest(HttpRequestBase request) throws HttpException {
+        requestMethod = request.getMethod();
+        if (isDownloadingFile || !HttpUtils.sHttpCache.isEnabled(requestMethod)) {
+            return executeRequest(request);
+        }
+
+        HttpCacheEntry cacheEntry = HttpUtils.sHttpCache.getEntry(requestUrl);
+        if (cacheEntry != null) {
+            if (cacheEntry.isFresh()) {
+                return new ResponseInfo<T>(null, (T) cacheEntry.getResult(), true);
+            }
+            if (HttpUtils.sHttpCache.isServableWhileRevalidating(cacheEntry)) {
+                SyncHttpHandler.revalidateInBackground(client, context, charset, request, expiry);
+                return new ResponseInfo<T>(null, (T) cacheEntry.getResult(), true);
+            }
+            if (cacheEntry.hasValidators()) {
+                // Ask for the body only if it changed.
+                staleCacheEntry = cacheEntry;
+                staleCacheEntry.addConditionalHeaders(request);
+            }
+        }
+
+        // 相同的请求同时只发送一次, 其余的等待它的结果
+        String key = RequestCoalescer.keyOf(request, cacheEntry, charset);
+        RequestCoalescer.Call call = RequestCoalescer.find(key);
+        if (call != null) {
+            try {
+                ResponseInfo<?> sharedResponseInfo = call.await();
+                if (sharedResponseInfo != null) {
+                    return (ResponseInfo<T>) sharedResponseInfo;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        call = RequestCoalescer.start(key);
+        ResponseInfo<T> responseInfo = null;
+        try {
+            responseInfo = executeRequest(request);
+            return responseInfo;
+        } finally {
+            if (call != null) {
+                call.finish(isCancelled() ? null : responseInfo);
+            }
+        }
+    }
+
+    private ResponseInfo<T> executeRequest(HttpRequestBase request) throws HttpException {
 //        System.out.println("httpHandler sendRequest ......");
         HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
         while (true) {
@@ -128,12 +177,6 @@ public class HttpHandler<T> extends PriorityAsyncTask<Object, Object, Void> impl
             HttpExceptionState httpExceptionState;
             try {
                 requestMethod = request.getMethod();
-                if (HttpUtils.sHttpCache.isEnabled(requestMethod)) {
-                    String result = HttpUtils.sHttpCache.get(requestUrl);
-                    if (result != null) {
-                        return new ResponseInfo<T>(null, (T) result, true);
-                    }
-                }
 //                System.out.println("httpHandler sendRequest 1111......");
                 ResponseInfo<T> responseInfo = null;
                 if (!isCancelled()) {
@@ -272,7 +315,10 @@ public class HttpHandler<T> extends PriorityAsyncTask<Object, Object, Void> impl
 
         StatusLine status = response.getStatusLine();
         int statusCode = status.getStatusCode();
-        if (statusCode < 300) {
+        if (statusCode == 304 && staleCacheEntry != null) {
+            HttpCacheEntry cacheEntry = HttpUtils.sHttpCache.putNotModified(requestUrl, staleCacheEntry, response, expiry);
+            return new ResponseInfo<T>(null, (T) cacheEntry.getResult(), true);
+        } else if (statusCode < 300) {
             Object result = null;
             HttpEntity entity = response.getEntity();
             if (entity != null) {
@@ -284,9 +330,12 @@ public class HttpHandler<T> extends PriorityAsyncTask<Object, Object, Void> impl
                     result = downloadHandler.handleEntity(entity, this, fileSavePath, autoResume, responseFileName);
                 } else {
                     StringDownloadHandler downloadHandler = new StringDownloadHandler();
-                    result = downloadHandler.handleEntity(entity, this, charset);
-                    if (HttpUtils.sHttpCache.isEnabled(requestMethod)) {
-                        HttpUtils.sHttpCache.put(requestUrl, (String) result, expiry);
+                    byte[] body = downloadHandler.readEntity(entity, this);
+                    if (body != null) {
+                        result = new String(body, charset);
+                        if (!isCancelled() && HttpUtils.sHttpCache.isEnabled(requestMethod)) {
+                            HttpUtils.sHttpCache.put(requestUrl, response, body, charset, expiry);
+                        }
                     }
                 }
             }
@@ -297,7 +346,7 @@ public class HttpHandler<T> extends PriorityAsyncTask<Object, Object, Void> impl
             }
             HttpRequestBase request = httpRedirectHandler.getDirectRequest(response);
             if (request != null) {
-                return this.sendRequest(request);
+                return this.executeRequest(request);
             }
         } else if (statusCode == 416) {
             throw new HttpException(statusCode, "maybe the file has downloaded completely");
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.http;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Shares one network exchange between identical requests in flight.
+ * <p/>
+ * The first request for a key becomes the leader and goes to the network;
+ * the others wait for its response. If the leader fails or is cancelled the
+ * waiters get nothing and send their own request.
+ */
+final class RequestCoalescer {
+
+    /**
+     * Request headers that select a different representation of the same url,
+     * besides the ones a cached response names in its {@code Vary} header.
+     */
+    private final static String[] VARY_HEADERS = {
+            "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Authorization", "Cookie"};
+
+    private final static ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+
+    private RequestCoalescer() {
+    }
+
+    /**
+     * @param cacheEntry the cached response for the url, its {@code Vary}
+     *                   header is taken into account. May be null.
+     * @param charset    the charset the response is decoded with.
+     */
+    static String keyOf(HttpRequestBase request, HttpCacheEntry cacheEntry, String charset) {
+        StringBuilder key = new StringBuilder(request.getMethod()).append(' ')
+                .append(request.getURI().toString()).append(' ').append(charset);
+        for (String name : VARY_HEADERS) {
+            appendHeader(key, request, name);
+        }
+        Header vary = cacheEntry == null ? null : cacheEntry.getFirstHeader("Vary");
+        if (vary != null) {
+            for (HeaderElement element : vary.getElements()) {
+                appendHeader(key, request, element.getName());
+            }
+        }
+        return key.toString();
+    }
+
+    private static void appendHeader(StringBuilder key, HttpRequestBase request, String name) {
+        Header[] headers = request.getHeaders(name);
+        for (Header header : headers) {
+            key.append('\n').append(name).append(':').append(header.getValue());
+        }
+    }
+
+    /**
+     * @return the call in flight for {@code key}, or null.
+     */
+    static Call find(String key) {
+        return calls.get(key);
+    }
+
+    /**
+     * Registers the caller as the leader for {@code key}. The leader must
+     * {@link Call#finish} the call whatever happens.
+     *
+     * @return null if another request became the leader first.
+     */
+    static Call start(String key) {
+        Call call = new Call(key);
+        return calls.putIfAbsent(key, call) == null ? call : null;
+    }
+
+    static final class Call {
+        private final String key;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile ResponseInfo<?> responseInfo;
+
+        private Call(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Waits for the leader.
+         *
+         * @return its response, or null if it has none to share.
+         */
+        ResponseInfo<?> await() throws InterruptedException {
+            done.await();
+            return responseInfo;
+        }
+
+        /**
+         * Hands {@code responseInfo} to the waiting requests and lets later
+         * ones start a new call.
+         *
+         * @param responseInfo null if the leader failed.
+         */
+        void finish(ResponseInfo<?> responseInfo) {
+            if (done.getCount() == 0) return;
+
+            this.responseInfo = responseInfo;
+            calls.remove(key, this);
+            done.countDown();
+        }
+    }
+}
@@ -57,6 +57,7 @@ public class ResponseStream extends InputStream {
     }
 
     private String _directResult;
+    private HttpCacheEntry cacheEntry;
 
     public ResponseStream(String result) throws IOException {
         if (result == null) {
@@ -66,6 +67,19 @@ public class ResponseStream extends InputStream {
         _directResult = result;
     }
 
+    /**
+     * Reads a response served from the {@link HttpCache}.
+     */
+    public ResponseStream(HttpCacheEntry cacheEntry) throws IOException {
+        if (cacheEntry == null) {
+            throw new IllegalArgumentException("cacheEntry may not be null");
+        }
+
+        this.cacheEntry = cacheEntry;
+        this.baseStream = new ByteArrayInputStream(cacheEntry.getBody());
+        this.charset = cacheEntry.getCharset();
+    }
+
     public String getRequestUrl() {
         return requestUrl;
     }
@@ -87,33 +101,40 @@ public class ResponseStream extends InputStream {
     }
 
     public int getStatusCode() {
+        if (cacheEntry != null) return cacheEntry.getStatusCode();
         if (_directResult != null) return 200;
         return baseResponse.getStatusLine().getStatusCode();
     }
 
     public Locale getLocale() {
-        if (_directResult != null) return Locale.getDefault();
+        if (_directResult != null || cacheEntry != null) return Locale.getDefault();
         return baseResponse.getLocale();
     }
 
     public String getReasonPhrase() {
+        if (cacheEntry != null) return cacheEntry.getReasonPhrase();
         if (_directResult != null) return "";
         return baseResponse.getStatusLine().getReasonPhrase();
     }
 
     public String readString() throws IOException {
         if (_directResult != null) return _directResult;
+        if (cacheEntry != null) {
+            _directResult = cacheEntry.getResult();
+            return _directResult;
+        }
         if (baseStream == null) return null;
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(baseStream, charset));
-            StringBuilder sb = new StringBuilder();
-            String line = "";
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int len = 0;
+            while ((len = baseStream.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
             }
-            _directResult = sb.toString();
-            if (requestUrl != null && HttpUtils.sHttpCache.isEnabled(requestMethod)) {
-                HttpUtils.sHttpCache.put(requestUrl, _directResult, expiry);
+            byte[] body = out.toByteArray();
+            _directResult = new String(body, charset);
+            if (isCacheEnabled()) {
+                HttpUtils.sHttpCache.put(requestUrl, baseResponse, body, charset, expiry);
             }
             return _directResult;
         } finally {
@@ -121,19 +142,44 @@ public class ResponseStream extends InputStream {
         }
     }
 
+    private boolean isCacheEnabled() {
+        return requestUrl != null && HttpUtils.sHttpCache.isEnabled(requestMethod);
+    }
+
     public void readFile(String savePath) throws IOException {
         if (_directResult != null) return;
         if (baseStream == null) return;
         BufferedOutputStream out = null;
         try {
             out = new BufferedOutputStream(new FileOutputStream(savePath));
+            if (cacheEntry != null) {
+                out.write(cacheEntry.getBody());
+                out.flush();
+                return;
+            }
+            // 不超过内存缓存大小的文件同时写入HttpCache
+            ByteArrayOutputStream body = null;
+            int maxBodySize = HttpUtils.sHttpCache.getCacheSize();
+            if (isCacheEnabled() && getContentLength() <= maxBodySize) {
+                body = new ByteArrayOutputStream();
+            }
             BufferedInputStream ins = new BufferedInputStream(baseStream);
             byte[] buffer = new byte[4096];
             int len = 0;
             while ((len = ins.read(buffer)) != -1) {
                 out.write(buffer, 0, len);
+                if (body != null) {
+                    if (body.size() + len > maxBodySize) {
+                        body = null;
+                    } else {
+                        body.write(buffer, 0, len);
+                    }
+                }
             }
             out.flush();
+            if (body != null) {
+                HttpUtils.sHttpCache.put(requestUrl, baseResponse, body.toByteArray(), charset, expiry);
+            }
         } finally {
             IOUtils.closeQuietly(out);
             IOUtils.closeQuietly(baseStream);
@@ -195,6 +241,7 @@ public class ResponseStream extends InputStream {
     }
 
     public long getContentLength() {
+        if (cacheEntry != null) return cacheEntry.getBody().length;
         if (baseStream == null) return 0;
         return baseResponse.getEntity().getContentLength();
     }
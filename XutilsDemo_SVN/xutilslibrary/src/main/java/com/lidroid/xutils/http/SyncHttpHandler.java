@@ -20,6 +20,10 @@ import com.lidroid.xutils.exception.HttpException;
 import com.lidroid.xutils.exception.HttpExceptionState;
 import com.lidroid.xutils.http.callback.DefaultHttpRedirectHandler;
 import com.lidroid.xutils.http.callback.HttpRedirectHandler;
+import com.lidroid.xutils.task.Priority;
+import com.lidroid.xutils.task.PriorityAsyncTask;
+import com.lidroid.xutils.util.IOUtils;
+import com.lidroid.xutils.util.LogUtils;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
@@ -58,11 +62,51 @@ public class SyncHttpHandler {
 
 
     private long expiry = HttpCache.getDefaultExpiryTime();
+    private HttpCacheEntry staleCacheEntry; // 正在重新验证的过期缓存
+    private boolean revalidating = false; // 后台刷新缓存, 不能再返回过期的缓存
 
     public void setExpiry(long expiry) {
         this.expiry = expiry;
     }
 
+    /**
+     * Refreshes the cached response to {@code request} on the background
+     * executor, unless a refresh of the same url is already running.
+     */
+    static void revalidateInBackground(AbstractHttpClient client, HttpContext context, String charset,
+                                       HttpRequestBase request, long expiry) {
+        final String url = request.getURI().toString();
+        if (!HttpUtils.sHttpCache.beginRevalidation(url)) return;
+
+        final HttpRequestBase revalidationRequest;
+        try {
+            revalidationRequest = (HttpRequestBase) request.clone();
+        } catch (CloneNotSupportedException e) {
+            HttpUtils.sHttpCache.endRevalidation(url);
+            return;
+        }
+        final SyncHttpHandler handler = new SyncHttpHandler(client, context, charset);
+        handler.setExpiry(expiry);
+        handler.revalidating = true;
+        PriorityAsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                ResponseStream responseStream = null;
+                try {
+                    responseStream = handler.sendRequest(revalidationRequest);
+                    if (responseStream != null) {
+                        responseStream.readString(); // 读完后写入缓存
+                    }
+                } catch (Throwable e) {
+                    LogUtils.d("revalidate " + url + " error: " + e.getMessage());
+                } finally {
+                    IOUtils.closeQuietly(responseStream);
+                    HttpUtils.sHttpCache.endRevalidation(url);
+                }
+            }
+        }, Priority.BG_LOW);
+    }
+
     /**
      * 进行发送请求
      * @param request
@@ -80,9 +124,20 @@ public class SyncHttpHandler {
                 requestUrl = request.getURI().toString();
                 requestMethod = request.getMethod();
                 if (HttpUtils.sHttpCache.isEnabled(requestMethod)) {
-                    String result = HttpUtils.sHttpCache.get(requestUrl);
-                    if (result != null) {
-                        return new ResponseStream(result);
+                    HttpCacheEntry cacheEntry = HttpUtils.sHttpCache.getEntry(requestUrl);
+                    if (cacheEntry != null) {
+                        if (cacheEntry.isFresh()) {
+                            return new ResponseStream(cacheEntry);
+                        }
+                        if (!revalidating && HttpUtils.sHttpCache.isServableWhileRevalidating(cacheEntry)) {
+                            revalidateInBackground(client, context, charset, request, expiry);
+                            return new ResponseStream(cacheEntry);
+                        }
+                        if (cacheEntry.hasValidators()) {
+                            // Ask for the body only if it changed.
+                            staleCacheEntry = cacheEntry;
+                            staleCacheEntry.addConditionalHeaders(request);
+                        }
                     }
                 }
 
@@ -139,7 +194,10 @@ public class SyncHttpHandler {
         }
         StatusLine status = response.getStatusLine();
         int statusCode = status.getStatusCode();
-        if (statusCode < 300) {
+        if (statusCode == 304 && staleCacheEntry != null) {
+            HttpCacheEntry cacheEntry = HttpUtils.sHttpCache.putNotModified(requestUrl, staleCacheEntry, response, expiry);
+            return new ResponseStream(cacheEntry);
+        } else if (statusCode < 300) {
             ResponseStream responseStream = new ResponseStream(response, charset, requestUrl, expiry);
             responseStream.setRequestMethod(requestMethod);
             return responseStream;
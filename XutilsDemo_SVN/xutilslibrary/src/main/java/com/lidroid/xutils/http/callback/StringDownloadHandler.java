@@ -16,17 +16,26 @@
 package com.lidroid.xutils.http.callback;
 
 import com.lidroid.xutils.util.IOUtils;
-import com.lidroid.xutils.util.OtherUtils;
 import org.apache.http.HttpEntity;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 
 public class StringDownloadHandler {
 
     public String handleEntity(HttpEntity entity, RequestCallBackHandler callBackHandler, String charset) throws IOException {
+        byte[] body = readEntity(entity, callBackHandler);
+        return body == null ? null : new String(body, charset);
+    }
+
+    /**
+     * Reads the raw body of {@code entity}, reporting the progress in bytes.
+     *
+     * @return the bytes read until the end or until the callback stopped the
+     * download, null if it refused to start.
+     */
+    public byte[] readEntity(HttpEntity entity, RequestCallBackHandler callBackHandler) throws IOException {
         if (entity == null) return null;
 
         long current = 0;
@@ -37,14 +46,14 @@ public class StringDownloadHandler {
         }
 
         InputStream inputStream = null;
-        StringBuilder sb = new StringBuilder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(total > 0 && total < Integer.MAX_VALUE ? (int) total : 4096);
         try {
             inputStream = entity.getContent();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, charset));
-            String line = "";
-            while ((line = reader.readLine()) != null) {
-                sb.append(line).append('\n');
-                current += OtherUtils.sizeOfString(line, charset);
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                current += len;
                 if (callBackHandler != null) {
                     if (!callBackHandler.updateProgress(total, current, false)) {
                         break;
@@ -57,7 +66,7 @@ public class StringDownloadHandler {
         } finally {
             IOUtils.closeQuietly(inputStream);
         }
-        return sb.toString().trim();
+        return out.toByteArray();
     }
 
 }
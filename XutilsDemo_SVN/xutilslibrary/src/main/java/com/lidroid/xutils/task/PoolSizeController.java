@@ -0,0 +1,391 @@
+package com.lidroid.xutils.task;
+
+import android.os.Debug;
+import com.lidroid.xutils.util.LogUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes the pool of an elastic {@link PriorityExecutor} between its pool size
+ * and its maximum pool size, see {@link PriorityExecutor#setMaxPoolSize}.
+ * <p/>
+ * Every task is timed twice: by the clock and by the CPU time of its thread.
+ * The difference is the time it spent blocked, mostly on I/O; the time it
+ * waited at a {@link StageGate} doesn't count, more workers would only wait
+ * there too. Each task type gets its own blocking ratio, and the pool's is
+ * their average weighted by the number of tasks of each type. Once per
+ * {@link #EVALUATION_INTERVAL}, when a task is submitted, starts or ends, the
+ * controller looks at the queue and at the tasks of the last interval:
+ * <ul>
+ * <li>GROW by half when every worker is busy and the oldest queued task has
+ * waited longer than a task runs, up to the size the blocking ratio calls
+ * for, cpus / (1 - blocking): more threads than cores do not help tasks that
+ * keep the CPU busy. A thread waiting for a core also looks blocked, so the
+ * pool does not grow either while its tasks keep the cores 80% busy;</li>
+ * <li>SHRINK by one worker when the pool is above that size, or when the
+ * queue was empty with two workers idle for two intervals in a row;</li>
+ * <li>HOLD otherwise.</li>
+ * </ul>
+ * The last decision, its reason and the measurements behind it are kept as
+ * metrics, along with the timings of each task type: the class of the task,
+ * of the {@link PriorityAsyncTask} rather than of its FutureTask.
+ */
+public final class PoolSizeController {
+
+    public enum Decision {
+        GROW, SHRINK, HOLD
+    }
+
+    public static final long EVALUATION_INTERVAL = 500; // ms
+
+    private static final long MIN_QUEUE_WAIT = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final double MAX_BLOCKING_RATIO = 0.95;
+    private static final double MAX_CPU_UTILIZATION = 0.8;
+    private static final int MAX_TASK_TYPES = 64;
+    private static final int SHRINK_IDLE_INTERVALS = 2;
+
+    private final ThreadPoolExecutor executor;
+    private final BlockingQueue<Runnable> queue;
+    private final int cpuCount = Runtime.getRuntime().availableProcessors();
+    private volatile int minPoolSize;
+    private volatile int maxPoolSize;
+
+    private final ConcurrentHashMap<Class<?>, TaskTypeStats> taskTypes =
+            new ConcurrentHashMap<Class<?>, TaskTypeStats>();
+    private final AtomicLong windowTaskCount = new AtomicLong();
+    private final AtomicLong windowWallNanos = new AtomicLong();
+    private final AtomicLong windowCpuNanos = new AtomicLong();
+    private final AtomicLong nextEvaluation = new AtomicLong(System.nanoTime());
+    private final ThreadLocal<long[]> taskStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[3];
+        }
+    };
+    private int idleIntervals;
+    private long lastEvaluation = System.nanoTime();
+
+    private volatile Decision lastDecision = Decision.HOLD;
+    private volatile String lastReason = "";
+    private volatile int targetPoolSize;
+    private volatile double blockingRatio = 0.5; // 没有测量前假定一半时间在等待
+    private volatile double cpuUtilization;
+    private volatile long averageTaskNanos;
+    private volatile long oldestQueueWaitNanos;
+    private volatile int queueDepth;
+    private final AtomicInteger growCount = new AtomicInteger();
+    private final AtomicInteger shrinkCount = new AtomicInteger();
+
+    PoolSizeController(ThreadPoolExecutor executor, BlockingQueue<Runnable> queue,
+                       int minPoolSize, int maxPoolSize) {
+        this.executor = executor;
+        this.queue = queue;
+        setBounds(minPoolSize, maxPoolSize);
+    }
+
+    void setBounds(int minPoolSize, int maxPoolSize) {
+        this.minPoolSize = minPoolSize;
+        this.maxPoolSize = maxPoolSize;
+        this.targetPoolSize = minPoolSize;
+    }
+
+    void onSubmit() {
+        maybeEvaluate(System.nanoTime());
+    }
+
+    void beforeExecute() {
+        long[] start = taskStart.get();
+        start[0] = System.nanoTime();
+        start[1] = Debug.threadCpuTimeNanos();
+        start[2] = StageGate.getThreadWaitNanos();
+        maybeEvaluate(start[0]);
+    }
+
+    void afterExecute(Runnable r) {
+        long[] start = taskStart.get();
+        long now = System.nanoTime();
+        long cpuNanos = start[1] < 0 ? -1 : Debug.threadCpuTimeNanos() - start[1];
+        record(r, now - start[0], StageGate.getThreadWaitNanos() - start[2], cpuNanos);
+        maybeEvaluate(now);
+    }
+
+    /**
+     * Accounts for a finished task.
+     *
+     * @param gateNanos the part of {@code wallNanos} spent waiting at a {@link StageGate}.
+     * @param cpuNanos  -1 if unknown.
+     */
+    void record(Runnable r, long wallNanos, long gateNanos, long cpuNanos) {
+        getTaskTypeStats(r).record(wallNanos, Math.max(0, wallNanos - gateNanos), cpuNanos);
+        windowTaskCount.incrementAndGet();
+        windowWallNanos.addAndGet(wallNanos);
+        if (cpuNanos >= 0) {
+            windowCpuNanos.addAndGet(cpuNanos);
+        }
+    }
+
+    private TaskTypeStats getTaskTypeStats(Runnable r) {
+        Class<?> type = r instanceof PriorityRunnable ? ((PriorityRunnable) r).getTaskType() : r.getClass();
+        TaskTypeStats stats = taskTypes.get(type);
+        if (stats == null) {
+            if (taskTypes.size() >= MAX_TASK_TYPES) {
+                type = Object.class; // 其他类型合并统计
+            }
+            stats = new TaskTypeStats();
+            TaskTypeStats previous = taskTypes.putIfAbsent(type, stats);
+            if (previous != null) {
+                stats = previous;
+            }
+        }
+        return stats;
+    }
+
+    private void maybeEvaluate(long now) {
+        long next = nextEvaluation.get();
+        if (now - next >= 0 && nextEvaluation.compareAndSet(next, now + TimeUnit.MILLISECONDS.toNanos(EVALUATION_INTERVAL))) {
+            evaluate(now);
+        }
+    }
+
+    synchronized void evaluate(long now) {
+        long elapsed = Math.max(1, now - lastEvaluation);
+        lastEvaluation = now;
+        long taskCount = windowTaskCount.getAndSet(0);
+        long wallNanos = windowWallNanos.getAndSet(0);
+        long cpuNanos = windowCpuNanos.getAndSet(0);
+        if (taskCount > 0) {
+            averageTaskNanos = wallNanos / taskCount;
+        }
+        double weightedRatios = 0;
+        long timedTaskCount = 0;
+        for (TaskTypeStats stats : taskTypes.values()) {
+            long count = stats.windowTaskCount.getAndSet(0);
+            long timedWall = stats.windowTimedWallNanos.getAndSet(0);
+            long cpu = stats.windowCpuNanos.getAndSet(0);
+            if (count > 0 && timedWall > 0) {
+                weightedRatios += count * Math.max(0, 1 - (double) cpu / timedWall);
+                timedTaskCount += count;
+            }
+        }
+        if (timedTaskCount > 0) {
+            blockingRatio = Math.min(MAX_BLOCKING_RATIO, weightedRatios / timedTaskCount);
+        }
+        cpuUtilization = (double) cpuNanos / ((double) cpuCount * elapsed);
+        int ideal = (int) Math.ceil(cpuCount / (1 - blockingRatio));
+        ideal = Math.max(minPoolSize, Math.min(maxPoolSize, ideal));
+        targetPoolSize = ideal;
+
+        int core = executor.getCorePoolSize();
+        int active = executor.getActiveCount();
+        int depth = queue.size();
+        long oldestWait = getOldestWait();
+        queueDepth = depth;
+        oldestQueueWaitNanos = oldestWait;
+
+        if (depth > 0 && active >= core && oldestWait > Math.max(MIN_QUEUE_WAIT, averageTaskNanos)) {
+            idleIntervals = 0;
+            if (core < ideal && cpuUtilization < MAX_CPU_UTILIZATION) {
+                decide(Decision.GROW, Math.min(ideal, core + Math.max(1, core / 2)), depth
+                        + " tasks queued, the oldest for " + TimeUnit.NANOSECONDS.toMillis(oldestWait) + "ms");
+            } else if (core < ideal) {
+                decide(Decision.HOLD, core, "tasks queued, but the cores are "
+                        + percentOf(cpuUtilization) + " busy");
+            } else {
+                decide(Decision.HOLD, core, "tasks queued, but " + core + " workers suit "
+                        + percentOf(blockingRatio) + " blocking");
+            }
+        } else if (core > ideal) {
+            idleIntervals = 0;
+            decide(Decision.SHRINK, core - 1, ideal + " workers suit " + percentOf(blockingRatio) + " blocking");
+        } else if (depth == 0 && core - active >= 2 && core > minPoolSize) {
+            if (++idleIntervals >= SHRINK_IDLE_INTERVALS) {
+                idleIntervals = 0;
+                decide(Decision.SHRINK, core - 1, (core - active) + " workers idle");
+            } else {
+                decide(Decision.HOLD, core, (core - active) + " workers idle");
+            }
+        } else {
+            idleIntervals = 0;
+            decide(Decision.HOLD, core, "");
+        }
+    }
+
+    /**
+     * Returns how long the oldest queued task has waited, 0 for a queue that
+     * doesn't tell: the pool never grows over such a queue.
+     */
+    private long getOldestWait() {
+        if (queue instanceof PriorityObjectBlockingQueue) {
+            return ((PriorityObjectBlockingQueue<Runnable>) queue).getOldestWait(TimeUnit.NANOSECONDS);
+        } else if (queue instanceof PriorityLaneQueue) {
+            return ((PriorityLaneQueue<Runnable>) queue).getOldestWait(TimeUnit.NANOSECONDS);
+        }
+        return 0;
+    }
+
+    private void decide(Decision decision, int poolSize, String reason) {
+        lastDecision = decision;
+        lastReason = reason;
+        if (decision == Decision.GROW) {
+            growCount.incrementAndGet();
+        } else if (decision == Decision.SHRINK) {
+            shrinkCount.incrementAndGet();
+        }
+        if (decision != Decision.HOLD) {
+            // 增大时线程池立即为排队的任务启动线程, 减小时多余的线程空闲后退出
+            executor.setCorePoolSize(poolSize);
+            LogUtils.d("PriorityExecutor " + decision + " to " + poolSize + ": " + reason);
+        }
+    }
+
+    private static String percentOf(double ratio) {
+        return Math.round(ratio * 100) + "%";
+    }
+
+    public Decision getLastDecision() {
+        return lastDecision;
+    }
+
+    public String getLastReason() {
+        return lastReason;
+    }
+
+    public int getGrowCount() {
+        return growCount.get();
+    }
+
+    public int getShrinkCount() {
+        return shrinkCount.get();
+    }
+
+    /**
+     * The number of workers the pool has or is about to have.
+     */
+    public int getPoolSize() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * The pool size the blocking ratio calls for, within the bounds.
+     */
+    public int getTargetPoolSize() {
+        return targetPoolSize;
+    }
+
+    /**
+     * The share of the task time spent blocked rather than on the CPU, in the
+     * last interval with finished tasks: the average of the ratios of the task
+     * types, weighted by their number of tasks.
+     */
+    public double getBlockingRatio() {
+        return blockingRatio;
+    }
+
+    /**
+     * The CPU time of the tasks finished in the last interval, as a share of
+     * the time of all cores.
+     */
+    public double getCpuUtilization() {
+        return cpuUtilization;
+    }
+
+    public long getAverageTaskTime(TimeUnit unit) {
+        return unit.convert(averageTaskNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getOldestQueueWait(TimeUnit unit) {
+        return unit.convert(oldestQueueWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the timings of each task type, by class name.
+     */
+    public Map<String, TaskTypeStats> getTaskTypeStats() {
+        Map<String, TaskTypeStats> result = new HashMap<String, TaskTypeStats>();
+        for (Map.Entry<Class<?>, TaskTypeStats> entry : taskTypes.entrySet()) {
+            result.put(entry.getKey().getName(), entry.getValue());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public String toString() {
+        return "PoolSizeController[" + lastDecision + (lastReason.length() > 0 ? " (" + lastReason + ")" : "")
+                + ",poolSize=" + getPoolSize() + "/" + minPoolSize + ".." + maxPoolSize
+                + ",target=" + targetPoolSize
+                + ",blocking=" + percentOf(blockingRatio)
+                + ",cpu=" + percentOf(cpuUtilization)
+                + ",avgTask=" + getAverageTaskTime(TimeUnit.MILLISECONDS) + "ms"
+                + ",queued=" + queueDepth
+                + ",oldestWait=" + getOldestQueueWait(TimeUnit.MILLISECONDS) + "ms"
+                + ",grows=" + getGrowCount()
+                + ",shrinks=" + getShrinkCount() + "]";
+    }
+
+    /**
+     * The timings of the tasks of one class.
+     */
+    public static final class TaskTypeStats {
+        private final AtomicLong taskCount = new AtomicLong();
+        private final AtomicLong wallNanos = new AtomicLong();
+        private final AtomicLong timedWallNanos = new AtomicLong(); // 能取得CPU时间的任务除去在StageGate等待的耗时
+        private final AtomicLong cpuNanos = new AtomicLong();
+        // 本次评估周期内的计数, 评估时清零
+        private final AtomicLong windowTaskCount = new AtomicLong();
+        private final AtomicLong windowTimedWallNanos = new AtomicLong();
+        private final AtomicLong windowCpuNanos = new AtomicLong();
+
+        /**
+         * @param busyWall the wall time less the time waited at a {@link StageGate}.
+         * @param cpu      -1 if unknown.
+         */
+        private void record(long wall, long busyWall, long cpu) {
+            taskCount.incrementAndGet();
+            wallNanos.addAndGet(wall);
+            if (cpu >= 0) {
+                timedWallNanos.addAndGet(busyWall);
+                cpuNanos.addAndGet(cpu);
+                windowTaskCount.incrementAndGet();
+                windowTimedWallNanos.addAndGet(busyWall);
+                windowCpuNanos.addAndGet(cpu);
+            }
+        }
+
+        public long getTaskCount() {
+            return taskCount.get();
+        }
+
+        public long getAverageTime(TimeUnit unit) {
+            long count = taskCount.get();
+            return count == 0 ? 0 : unit.convert(wallNanos.get() / count, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the share of the time blocked rather than on the CPU, not
+         * counting the waits at a {@link StageGate}; -1 if unknown.
+         */
+        public double getBlockingRatio() {
+            long wall = timedWallNanos.get();
+            return wall == 0 ? -1 : Math.max(0, 1 - (double) cpuNanos.get() / wall);
+        }
+
+        @Override
+        public String toString() {
+            double blocking = getBlockingRatio();
+            return "[tasks=" + getTaskCount() + ",avg=" + getAverageTime(TimeUnit.MILLISECONDS) + "ms"
+                    + ",blocking=" + (blocking < 0 ? "?" : percentOf(blocking)) + "]";
+        }
+    }
+}
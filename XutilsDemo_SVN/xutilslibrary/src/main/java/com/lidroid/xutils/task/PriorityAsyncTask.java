@@ -309,7 +309,7 @@ public abstract class PriorityAsyncTask<Params, Progress, Result> implements Tas
         onPreExecute();
 
         mWorker.mParams = params;
-        exec.execute(new PriorityRunnable(priority, mFuture));
+        exec.execute(new PriorityRunnable(priority, mFuture, getClass()));
 
         return this;
     }
@@ -13,6 +13,7 @@ public class PriorityExecutor implements Executor {
     private static final int CORE_POOL_SIZE = 5;
     private static final int MAXIMUM_POOL_SIZE = 256;
     private static final int KEEP_ALIVE = 1;
+    private static final int ELASTIC_KEEP_ALIVE = 30; // 弹性线程池的空闲线程存活秒数
 
     private static final ThreadFactory sThreadFactory = new ThreadFactory() {
         private final AtomicInteger mCount = new AtomicInteger(1);
@@ -23,39 +24,166 @@ public class PriorityExecutor implements Executor {
         }
     };
 
-    private final BlockingQueue<Runnable> mPoolWorkQueue = new PriorityObjectBlockingQueue<Runnable>();
-    private final ThreadPoolExecutor mThreadPoolExecutor;
+    private final BlockingQueue<Runnable> mPoolWorkQueue;
+    private final ThreadPoolExecutor mThreadPoolExecutor; // 工作窃取模式下为null
+    private final WorkStealingPool mWorkStealingPool;
+    private volatile PoolSizeController mPoolSizeController; // 弹性线程池的大小控制, 未启用时为null
+    private int mPoolSize;
+    private int mMaxPoolSize;
 
     public PriorityExecutor() {
         this(CORE_POOL_SIZE);
     }
 
     public PriorityExecutor(int poolSize) {
-        mThreadPoolExecutor = new ThreadPoolExecutor(
+        this(poolSize, new PriorityObjectBlockingQueue<Runnable>());
+    }
+
+    /**
+     * @param workQueue the queue of the tasks waiting for a worker, by default a
+     *                  {@link PriorityObjectBlockingQueue}. A {@link PriorityLaneQueue}
+     *                  doesn't lock when tasks are submitted and taken, and ages
+     *                  them so that BG_LOW tasks still run while UI tasks keep
+     *                  coming, see {@link PriorityLaneQueue#setAgingInterval(long)}.
+     */
+    public PriorityExecutor(int poolSize, BlockingQueue<Runnable> workQueue) {
+        mPoolSize = poolSize;
+        mWorkStealingPool = null;
+        mPoolWorkQueue = workQueue;
+        mThreadPoolExecutor = newThreadPoolExecutor(poolSize, workQueue);
+    }
+
+    /**
+     * @param workStealing give every worker its own deque for the tasks submitted
+     *                     by the task it runs, see {@link WorkStealingPool}; other
+     *                     tasks share a {@link PriorityLaneQueue} then. Workers
+     *                     still take tasks by priority either way.
+     */
+    public PriorityExecutor(int poolSize, boolean workStealing) {
+        mPoolSize = poolSize;
+        if (workStealing) {
+            mWorkStealingPool = new WorkStealingPool(poolSize, sThreadFactory);
+            mPoolWorkQueue = mWorkStealingPool.getInjectionQueue();
+            mThreadPoolExecutor = null;
+        } else {
+            mWorkStealingPool = null;
+            mPoolWorkQueue = new PriorityObjectBlockingQueue<Runnable>();
+            mThreadPoolExecutor = newThreadPoolExecutor(poolSize, mPoolWorkQueue);
+        }
+    }
+
+    private ThreadPoolExecutor newThreadPoolExecutor(int poolSize, BlockingQueue<Runnable> workQueue) {
+        return new ThreadPoolExecutor(
                 poolSize,
                 MAXIMUM_POOL_SIZE,
                 KEEP_ALIVE,
                 TimeUnit.SECONDS,
-                mPoolWorkQueue,
-                sThreadFactory);
+                workQueue,
+                sThreadFactory) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                PoolSizeController controller = mPoolSizeController;
+                if (controller != null) {
+                    controller.beforeExecute();
+                }
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                PoolSizeController controller = mPoolSizeController;
+                if (controller != null) {
+                    controller.afterExecute(r);
+                }
+            }
+        };
+    }
+
+    public boolean isWorkStealing() {
+        return mWorkStealingPool != null;
     }
 
-    public int getPoolSize() {
-        return mThreadPoolExecutor.getCorePoolSize();
+    /**
+     * Returns the pool size set, the minimum of an elastic pool.
+     */
+    public synchronized int getPoolSize() {
+        return mPoolSize;
     }
 
-    public void setPoolSize(int poolSize) {
+    public synchronized void setPoolSize(int poolSize) {
         if (poolSize > 0) {
+            mPoolSize = poolSize;
+            if (mWorkStealingPool != null) {
+                mWorkStealingPool.setPoolSize(poolSize);
+                return;
+            }
+            if (mPoolSizeController != null) {
+                setMaxPoolSize(mMaxPoolSize);
+            }
             mThreadPoolExecutor.setCorePoolSize(poolSize);
         }
     }
 
+    /**
+     * Returns the maximum size of an elastic pool, the pool size otherwise.
+     */
+    public synchronized int getMaxPoolSize() {
+        return mPoolSizeController != null ? mMaxPoolSize : mPoolSize;
+    }
+
+    /**
+     * Makes the pool elastic: it grows from the pool size up to
+     * {@code maxPoolSize} workers while tasks wait for blocked workers, and
+     * shrinks back when they idle, see {@link PoolSizeController}.
+     * Work stealing pools keep their size.
+     *
+     * @param maxPoolSize at most 256; the pool size or less for a fixed pool.
+     */
+    public synchronized void setMaxPoolSize(int maxPoolSize) {
+        if (mWorkStealingPool != null) {
+            return;
+        }
+        maxPoolSize = Math.min(maxPoolSize, MAXIMUM_POOL_SIZE);
+        if (maxPoolSize <= mPoolSize) {
+            mPoolSizeController = null;
+            mThreadPoolExecutor.allowCoreThreadTimeOut(false);
+            mThreadPoolExecutor.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+            mThreadPoolExecutor.setCorePoolSize(mPoolSize);
+        } else if (mPoolSizeController != null) {
+            mPoolSizeController.setBounds(mPoolSize, maxPoolSize);
+        } else {
+            mPoolSizeController = new PoolSizeController(mThreadPoolExecutor, mPoolWorkQueue, mPoolSize, maxPoolSize);
+            // The controller only runs along with tasks: an idle pool lets its workers go by itself.
+            mThreadPoolExecutor.setKeepAliveTime(ELASTIC_KEEP_ALIVE, TimeUnit.SECONDS);
+            mThreadPoolExecutor.allowCoreThreadTimeOut(true);
+        }
+        mMaxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * Returns the sizing decisions and measurements of an elastic pool, null
+     * for a fixed pool.
+     */
+    public PoolSizeController getPoolSizeController() {
+        return mPoolSizeController;
+    }
+
     public boolean isBusy() {
+        if (mWorkStealingPool != null) {
+            return mWorkStealingPool.getActiveCount() >= mWorkStealingPool.getPoolSize();
+        }
         return mThreadPoolExecutor.getActiveCount() >= mThreadPoolExecutor.getCorePoolSize();
     }
 
     @Override
     public void execute(final Runnable r) {
-        mThreadPoolExecutor.execute(r);
+        if (mWorkStealingPool != null) {
+            mWorkStealingPool.execute(r);
+        } else {
+            mThreadPoolExecutor.execute(r);
+            PoolSizeController controller = mPoolSizeController;
+            if (controller != null) {
+                controller.onSubmit();
+            }
+        }
     }
 }
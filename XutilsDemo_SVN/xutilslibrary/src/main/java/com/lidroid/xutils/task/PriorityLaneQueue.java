@@ -0,0 +1,363 @@
+package com.lidroid.xutils.task;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded blocking queue with one lock-free FIFO lane per {@link Priority},
+ * a work queue for {@link PriorityExecutor#PriorityExecutor(int, BlockingQueue)}
+ * under heavy submission, e.g. the one loading bitmaps; the default one is
+ * {@link PriorityObjectBlockingQueue}. A {@link PriorityObject} element
+ * goes to the lane of its priority, any other element to {@link Priority#DEFAULT}.
+ * <p/>
+ * Offering and polling never lock: the lanes are {@link ConcurrentLinkedQueue}s
+ * and a taker scans them from UI_TOP to BG_LOW. The lock is only taken to
+ * park a taker while the queue is empty, and by a producer to wake it.
+ * <p/>
+ * Aging keeps the low lanes from starving: an element counts one priority
+ * higher for each aging interval it has waited, {@link #DEFAULT_AGING_INTERVAL}
+ * unless set with {@link #setAgingInterval}, so a BG_LOW task that waited six
+ * intervals is taken before a fresh UI_TOP one. Ties go to the higher lane.
+ */
+public class PriorityLaneQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    public static final long DEFAULT_AGING_INTERVAL = 200; // ms
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final ConcurrentLinkedQueue<Element<E>>[] lanes;
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile long agingNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_AGING_INTERVAL); // 0: 严格按优先级
+
+    /**
+     * The number of takers parked or about to park on notEmpty.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PriorityLaneQueue() {
+        lanes = (ConcurrentLinkedQueue<Element<E>>[]) new ConcurrentLinkedQueue[PRIORITIES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ConcurrentLinkedQueue<Element<E>>();
+        }
+    }
+
+    public long getAgingInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(agingNanos);
+    }
+
+    /**
+     * Sets the aging, see the class comment.
+     *
+     * @param agingInterval milliseconds of waiting that raise an element by one
+     *                      priority, {@link #DEFAULT_AGING_INTERVAL} by default;
+     *                      0 to take strictly by priority, which lets a steady
+     *                      flow of UI tasks starve the BG_LOW ones.
+     */
+    public void setAgingInterval(long agingInterval) {
+        if (agingInterval >= 0) {
+            this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingInterval);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        Priority priority = e instanceof PriorityObject ? ((PriorityObject<?>) e).priority : Priority.DEFAULT;
+        lanes[priority.ordinal()].offer(new Element<E>(e, System.nanoTime()));
+        count.incrementAndGet();
+        if (waiting.get() > 0) {
+            signalNotEmpty();
+        }
+        return true;
+    }
+
+    private void signalNotEmpty() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e); // never full
+    }
+
+    @Override
+    public E poll() {
+        if (count.get() == 0) {
+            return null;
+        }
+        while (true) {
+            int lane = selectLane();
+            if (lane < 0) {
+                return null;
+            }
+            Element<E> element = lanes[lane].poll();
+            if (element != null) {
+                count.decrementAndGet();
+                return element.value;
+            }
+            // Another taker emptied the lane meanwhile, scan again.
+        }
+    }
+
+    /**
+     * Returns the lane whose head has the best priority after aging, -1 if all
+     * lanes look empty.
+     */
+    private int selectLane() {
+        long agingNanos = this.agingNanos;
+        long now = agingNanos > 0 ? System.nanoTime() : 0;
+        int best = -1;
+        long bestRank = Long.MAX_VALUE;
+        for (int i = 0; i < lanes.length; i++) {
+            Element<E> head = lanes[i].peek();
+            if (head == null) {
+                continue;
+            }
+            if (agingNanos == 0) {
+                return i;
+            }
+            // i levels below UI_TOP, minus one level per interval waited
+            long rank = i * agingNanos - (now - head.enqueueTime);
+            if (rank < bestRank) {
+                best = i;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E x = poll();
+        if (x != null) {
+            return x;
+        }
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waiting.incrementAndGet();
+            try {
+                // A producer that offered before the increment was seen by this poll,
+                // one that offers after it signals under the lock.
+                while ((x = poll()) == null) {
+                    notEmpty.await();
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return x;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E x = poll();
+        if (x != null) {
+            return x;
+        }
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waiting.incrementAndGet();
+            try {
+                while ((x = poll()) == null) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return x;
+    }
+
+    @Override
+    public E peek() {
+        int lane = selectLane();
+        if (lane < 0) {
+            return null;
+        }
+        Element<E> element = lanes[lane].peek();
+        return element == null ? null : element.value;
+    }
+
+    /**
+     * Returns the priority, after aging, of the element {@link #poll()} would
+     * take: the ordinal of its {@link Priority} less one per full aging interval
+     * it has waited, at least 0; -1 if the queue looks empty.
+     */
+    int peekLevel() {
+        long agingNanos = this.agingNanos;
+        long now = agingNanos > 0 ? System.nanoTime() : 0;
+        long bestRank = Long.MAX_VALUE;
+        for (int i = 0; i < lanes.length; i++) {
+            Element<E> head = lanes[i].peek();
+            if (head == null) {
+                continue;
+            }
+            if (agingNanos == 0) {
+                return i;
+            }
+            bestRank = Math.min(bestRank, i * agingNanos - (now - head.enqueueTime));
+        }
+        if (bestRank == Long.MAX_VALUE) {
+            return -1;
+        }
+        return bestRank <= 0 ? 0 : (int) ((bestRank + agingNanos - 1) / agingNanos);
+    }
+
+    /**
+     * Returns how long the oldest queued element has waited, 0 if the queue is empty.
+     */
+    public long getOldestWait(TimeUnit unit) {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for (ConcurrentLinkedQueue<Element<E>> lane : lanes) {
+            Element<E> head = lane.peek();
+            if (head != null) {
+                oldest = Math.max(oldest, now - head.enqueueTime);
+            }
+        }
+        return unit.convert(oldest, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int size() {
+        return Math.max(count.get(), 0);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        for (ConcurrentLinkedQueue<Element<E>> lane : lanes) {
+            for (Element<E> element : lane) {
+                if (o.equals(element.value) && lane.remove(element)) {
+                    count.decrementAndGet();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) return false;
+        for (ConcurrentLinkedQueue<Element<E>> lane : lanes) {
+            for (Element<E> element : lane) {
+                if (o.equals(element.value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        E x;
+        while (n < maxElements && (x = poll()) != null) {
+            c.add(x);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the lanes, from UI_TOP to BG_LOW.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<Element<E>> elements = new ArrayList<Element<E>>();
+        for (ConcurrentLinkedQueue<Element<E>> lane : lanes) {
+            elements.addAll(lane);
+        }
+        return new Iterator<E>() {
+            private int cursor;
+            private Element<E> lastRet;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < elements.size();
+            }
+
+            @Override
+            public E next() {
+                if (cursor >= elements.size())
+                    throw new NoSuchElementException();
+                lastRet = elements.get(cursor++);
+                return lastRet.value;
+            }
+
+            @Override
+            public void remove() {
+                if (lastRet == null)
+                    throw new IllegalStateException();
+                if (lanes[lastRet.getPriority().ordinal()].remove(lastRet)) {
+                    count.decrementAndGet();
+                }
+                lastRet = null;
+            }
+        };
+    }
+
+    private static final class Element<E> {
+        private final E value;
+        private final long enqueueTime;
+
+        private Element(E value, long enqueueTime) {
+            this.value = value;
+            this.enqueueTime = enqueueTime;
+        }
+
+        private Priority getPriority() {
+            return value instanceof PriorityObject ? ((PriorityObject<?>) value).priority : Priority.DEFAULT;
+        }
+    }
+}
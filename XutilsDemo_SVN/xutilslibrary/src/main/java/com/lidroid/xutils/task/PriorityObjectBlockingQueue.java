@@ -12,14 +12,25 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A blocking queue ordered by {@link Priority}, first in first out within a
+ * priority. A {@link PriorityObject} element is queued by its priority, any
+ * other element by {@link Priority#DEFAULT}.
+ * <p/>
+ * Each priority has its own linked FIFO bucket and a bit mask tracks the
+ * buckets that are not empty, so that put and take are O(1) however many
+ * elements are queued. A single lock guards the buckets, as in
+ * {@link java.util.concurrent.ArrayBlockingQueue}.
+ */
 public class PriorityObjectBlockingQueue<E> extends AbstractQueue<E>
         implements BlockingQueue<E>, java.io.Serializable {
     private static final long serialVersionUID = -6903933977591709194L;
 
+    private static final int BUCKET_COUNT = Priority.values().length;
+
     /**
      * The capacity bound, or Integer.MAX_VALUE if none
      */
@@ -28,420 +39,374 @@ public class PriorityObjectBlockingQueue<E> extends AbstractQueue<E>
     /**
      * Current number of elements
      */
-    private final AtomicInteger count = new AtomicInteger();
+    private transient int count;
 
     /**
-     * Head of linked list.
-     * Invariant: head.item == null
+     * First and last node of the bucket of each priority, by ordinal.
      */
-    transient Node<E> head;
+    private transient Node<E>[] heads;
+    private transient Node<E>[] tails;
 
     /**
-     * Tail of linked list.
-     * Invariant: last.next == null
+     * Bit i is set while the bucket of the priority with ordinal i is not empty.
      */
-    private transient Node<E> last;
+    private transient int nonEmptyBuckets;
 
     /**
-     * Lock held by take, poll, etc
+     * Main lock guarding all access
      */
-    private final ReentrantLock takeLock = new ReentrantLock();
+    private final ReentrantLock lock = new ReentrantLock();
 
     /**
      * Wait queue for waiting takes
      */
-    private final Condition notEmpty = takeLock.newCondition();
-
-    /**
-     * Lock held by put, offer, etc
-     */
-    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
 
     /**
      * Wait queue for waiting puts
      */
-    private final Condition notFull = putLock.newCondition();
+    private final Condition notFull = lock.newCondition();
 
-    /**
-     * Signals a waiting take. Called only from put/offer (which do not
-     * otherwise ordinarily lock takeLock.)
-     */
-    private void signalNotEmpty() {
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
-        try {
-            notEmpty.signal();
-        } finally {
-            takeLock.unlock();
-        }
+    public PriorityObjectBlockingQueue() {
+        this(Integer.MAX_VALUE);
     }
 
-    /**
-     * Signals a waiting put. Called only from take/poll.
-     */
-    private void signalNotFull() {
-        final ReentrantLock putLock = this.putLock;
-        putLock.lock();
+    public PriorityObjectBlockingQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException();
+        this.capacity = capacity;
+        initBuckets();
+    }
+
+    public PriorityObjectBlockingQueue(Collection<? extends E> c) {
+        this(Integer.MAX_VALUE);
+        final ReentrantLock lock = this.lock;
+        lock.lock(); // Never contended, but necessary for visibility
         try {
-            notFull.signal();
+            for (E e : c) {
+                if (e == null)
+                    throw new NullPointerException();
+                enqueue(new Node<E>(e));
+            }
         } finally {
-            putLock.unlock();
+            lock.unlock();
         }
     }
 
-    private synchronized E opQueue(Node<E> node) {
-        if (node == null) {
-            return _dequeue();
-        } else {
-            _enqueue(node);
-            return null;
-        }
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void initBuckets() {
+        heads = (Node<E>[]) new Node[BUCKET_COUNT];
+        tails = (Node<E>[]) new Node[BUCKET_COUNT];
+        nonEmptyBuckets = 0;
+        count = 0;
     }
 
-    // only invoke in opQueue
-    private void _enqueue(Node<E> node) {
-        boolean added = false;
-
-        Node<E> curr = head;
-        Node<E> temp = null;
-
-        while (curr.next != null) {
-            temp = curr.next;
-            if (temp.getPriority().ordinal() > node.getPriority().ordinal()) {
-                curr.next = node;
-                node.next = temp;
-                added = true;
-                break;
-            }
-            curr = curr.next;
-        }
-
-        if (!added) {
-            last = last.next = node;
+    /**
+     * Links node at the end of the bucket of its priority.
+     * Call only when holding lock.
+     */
+    private void enqueue(Node<E> node) {
+        int i = node.getPriority().ordinal();
+        Node<E> tail = tails[i];
+        if (tail == null) {
+            heads[i] = node;
+            nonEmptyBuckets |= 1 << i;
+        } else {
+            tail.next = node;
         }
+        tails[i] = node;
+        count++;
+        notEmpty.signal();
     }
 
-    // only invoke in opQueue
-    private E _dequeue() {
-        // assert takeLock.isHeldByCurrentThread();
-        // assert head.item == null;
-        Node<E> h = head;
-        Node<E> first = h.next;
-        h.next = h; // help GC
-        head = first;
+    /**
+     * Removes the first node of the highest priority bucket.
+     * Call only when holding lock and count > 0.
+     */
+    private E dequeue() {
+        int i = Integer.numberOfTrailingZeros(nonEmptyBuckets);
+        Node<E> first = heads[i];
+        unlink(i, first, null);
         E x = first.getValue();
         first.setValue(null);
         return x;
     }
 
     /**
-     * Locks to prevent both puts and takes.
-     */
-    void fullyLock() {
-        putLock.lock();
-        takeLock.lock();
-    }
-
-    /**
-     * Unlocks to allow both puts and takes.
+     * Unlinks node p of bucket i with predecessor trail, null if p is the first.
+     * Call only when holding lock.
      */
-    void fullyUnlock() {
-        takeLock.unlock();
-        putLock.unlock();
-    }
-
-    public PriorityObjectBlockingQueue() {
-        this(Integer.MAX_VALUE);
-    }
-
-    public PriorityObjectBlockingQueue(int capacity) {
-        if (capacity <= 0) throw new IllegalArgumentException();
-        this.capacity = capacity;
-        last = head = new Node<E>(null);
+    private void unlink(int i, Node<E> p, Node<E> trail) {
+        Node<E> next = p.next;
+        if (trail == null) {
+            heads[i] = next;
+        } else {
+            trail.next = next;
+        }
+        if (tails[i] == p) {
+            tails[i] = trail;
+        }
+        if (heads[i] == null) {
+            nonEmptyBuckets &= ~(1 << i);
+        }
+        p.next = null;
+        count--;
+        notFull.signal();
     }
 
-    public PriorityObjectBlockingQueue(Collection<? extends E> c) {
-        this(Integer.MAX_VALUE);
-        final ReentrantLock putLock = this.putLock;
-        putLock.lock(); // Never contended, but necessary for visibility
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            int n = 0;
-            for (E e : c) {
-                if (e == null)
-                    throw new NullPointerException();
-                if (n == capacity)
-                    throw new IllegalStateException("Queue full");
-                opQueue(new Node<E>(e));
-                ++n;
-            }
-            count.set(n);
+            return count;
         } finally {
-            putLock.unlock();
+            lock.unlock();
         }
     }
 
-    public int size() {
-        return count.get();
-    }
-
     public int remainingCapacity() {
-        return capacity - count.get();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void put(E e) throws InterruptedException {
         if (e == null) throw new NullPointerException();
-        // Note: convention in all put/take/etc is to preset local var
-        // holding count negative to indicate failure unless set.
-        int c = -1;
         Node<E> node = new Node<E>(e);
-        final ReentrantLock putLock = this.putLock;
-        final AtomicInteger count = this.count;
-        putLock.lockInterruptibly();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
         try {
-            while (count.get() == capacity) {
+            while (count == capacity) {
                 notFull.await();
             }
-            opQueue(node);
-            c = count.getAndIncrement();
-            if (c + 1 < capacity)
-                notFull.signal();
+            enqueue(node);
         } finally {
-            putLock.unlock();
+            lock.unlock();
         }
-        if (c == 0)
-            signalNotEmpty();
     }
 
     public boolean offer(E e, long timeout, TimeUnit unit)
             throws InterruptedException {
 
         if (e == null) throw new NullPointerException();
+        Node<E> node = new Node<E>(e);
         long nanos = unit.toNanos(timeout);
-        int c = -1;
-        final ReentrantLock putLock = this.putLock;
-        final AtomicInteger count = this.count;
-        putLock.lockInterruptibly();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
         try {
-            while (count.get() == capacity) {
+            while (count == capacity) {
                 if (nanos <= 0)
                     return false;
                 nanos = notFull.awaitNanos(nanos);
             }
-            opQueue(new Node<E>(e));
-            c = count.getAndIncrement();
-            if (c + 1 < capacity)
-                notFull.signal();
+            enqueue(node);
+            return true;
         } finally {
-            putLock.unlock();
+            lock.unlock();
         }
-        if (c == 0)
-            signalNotEmpty();
-        return true;
     }
 
     public boolean offer(E e) {
         if (e == null) throw new NullPointerException();
-        final AtomicInteger count = this.count;
-        if (count.get() == capacity)
-            return false;
-        int c = -1;
         Node<E> node = new Node<E>(e);
-        final ReentrantLock putLock = this.putLock;
-        putLock.lock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            if (count.get() < capacity) {
-                opQueue(node);
-                c = count.getAndIncrement();
-                if (c + 1 < capacity)
-                    notFull.signal();
-            }
+            if (count == capacity)
+                return false;
+            enqueue(node);
+            return true;
         } finally {
-            putLock.unlock();
+            lock.unlock();
         }
-        if (c == 0)
-            signalNotEmpty();
-        return c >= 0;
     }
 
     public E take() throws InterruptedException {
-        E x;
-        int c = -1;
-        final AtomicInteger count = this.count;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lockInterruptibly();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
         try {
-            while (count.get() == 0) {
+            while (count == 0) {
                 notEmpty.await();
             }
-            x = opQueue(null);
-            c = count.getAndDecrement();
-            if (c > 1)
-                notEmpty.signal();
+            return dequeue();
         } finally {
-            takeLock.unlock();
+            lock.unlock();
         }
-        if (c == capacity)
-            signalNotFull();
-        return x;
     }
 
     public E poll(long timeout, TimeUnit unit) throws InterruptedException {
-        E x = null;
-        int c = -1;
         long nanos = unit.toNanos(timeout);
-        final AtomicInteger count = this.count;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lockInterruptibly();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
         try {
-            while (count.get() == 0) {
+            while (count == 0) {
                 if (nanos <= 0)
                     return null;
                 nanos = notEmpty.awaitNanos(nanos);
             }
-            x = opQueue(null);
-            c = count.getAndDecrement();
-            if (c > 1)
-                notEmpty.signal();
+            return dequeue();
         } finally {
-            takeLock.unlock();
+            lock.unlock();
         }
-        if (c == capacity)
-            signalNotFull();
-        return x;
     }
 
     public E poll() {
-        final AtomicInteger count = this.count;
-        if (count.get() == 0)
-            return null;
-        E x = null;
-        int c = -1;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            if (count.get() > 0) {
-                x = opQueue(null);
-                c = count.getAndDecrement();
-                if (c > 1)
-                    notEmpty.signal();
-            }
+            return (count == 0) ? null : dequeue();
         } finally {
-            takeLock.unlock();
+            lock.unlock();
         }
-        if (c == capacity)
-            signalNotFull();
-        return x;
     }
 
     public E peek() {
-        if (count.get() == 0)
-            return null;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            Node<E> first = head.next;
-            if (first == null)
-                return null;
-            else
-                return first.getValue();
+            return (count == 0) ? null : heads[Integer.numberOfTrailingZeros(nonEmptyBuckets)].getValue();
         } finally {
-            takeLock.unlock();
+            lock.unlock();
         }
     }
 
     /**
-     * Unlinks interior Node p with predecessor trail.
+     * Returns how long the oldest queued element has waited, 0 if the queue is empty.
      */
-    void unlink(Node<E> p, Node<E> trail) {
-        // assert isFullyLocked();
-        // p.next is not changed, to allow iterators that are
-        // traversing p to maintain their weak-consistency guarantee.
-        p.setValue(null);
-        trail.next = p.next;
-        if (last == p)
-            last = trail;
-        if (count.getAndDecrement() == capacity)
-            notFull.signal();
+    public long getOldestWait(TimeUnit unit) {
+        long now = System.nanoTime();
+        long oldest = 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (Node<E> head : heads) {
+                if (head != null) {
+                    oldest = Math.max(oldest, now - head.enqueueTime);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return unit.convert(oldest, TimeUnit.NANOSECONDS);
     }
 
     public boolean remove(Object o) {
         if (o == null) return false;
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                for (Node<E> trail = null, p = heads[i];
+                     p != null;
+                     trail = p, p = p.next) {
+                    if (o.equals(p.getValue())) {
+                        unlink(i, p, trail);
+                        p.setValue(null);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the node itself rather than an equal element, for the iterator.
+     */
+    private void removeNode(Node<E> node) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            for (Node<E> trail = head, p = trail.next;
+            int i = node.getPriority().ordinal();
+            for (Node<E> trail = null, p = heads[i];
                  p != null;
                  trail = p, p = p.next) {
-                if (o.equals(p.getValue())) {
-                    unlink(p, trail);
-                    return true;
+                if (p == node) {
+                    unlink(i, p, trail);
+                    p.setValue(null);
+                    return;
                 }
             }
-            return false;
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
     public boolean contains(Object o) {
         if (o == null) return false;
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            for (Node<E> p = head.next; p != null; p = p.next)
-                if (o.equals(p.getValue()))
-                    return true;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                for (Node<E> p = heads[i]; p != null; p = p.next)
+                    if (o.equals(p.getValue()))
+                        return true;
+            }
             return false;
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
     public Object[] toArray() {
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            int size = count.get();
-            Object[] a = new Object[size];
+            Object[] a = new Object[count];
             int k = 0;
-            for (Node<E> p = head.next; p != null; p = p.next)
-                a[k++] = p.getValue();
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                for (Node<E> p = heads[i]; p != null; p = p.next)
+                    a[k++] = p.getValue();
+            }
             return a;
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
     @SuppressWarnings("unchecked")
     public <T> T[] toArray(T[] a) {
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            int size = count.get();
+            int size = count;
             if (a.length < size)
                 a = (T[]) java.lang.reflect.Array.newInstance
                         (a.getClass().getComponentType(), size);
 
             int k = 0;
-            for (Node<T> p = (Node<T>) head.next; p != null; p = p.next)
-                a[k++] = (T) p.getValue();
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                for (Node<E> p = heads[i]; p != null; p = p.next)
+                    a[k++] = (T) p.getValue();
+            }
             if (a.length > k)
                 a[k] = null;
             return a;
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
     public void clear() {
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            for (Node<E> p, h = head; (p = h.next) != null; h = p) {
-                h.next = h;
-                p.setValue(null);
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                for (Node<E> p = heads[i], next; p != null; p = next) {
+                    next = p.next;
+                    p.next = null;
+                    p.setValue(null);
+                }
             }
-            head = last;
-            // assert head.item == null && head.next == null;
-            if (count.getAndSet(0) == capacity)
-                notFull.signal();
+            initBuckets();
+            notFull.signalAll();
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
@@ -456,127 +421,95 @@ public class PriorityObjectBlockingQueue<E> extends AbstractQueue<E>
             throw new IllegalArgumentException();
         if (maxElements <= 0)
             return 0;
-        boolean signalNotFull = false;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            int n = Math.min(maxElements, count.get());
-            // count.get provides visibility to first n Nodes
-            Node<E> h = head;
-            int i = 0;
-            try {
-                while (i < n) {
-                    Node<E> p = h.next;
-                    c.add(p.getValue());
-                    p.setValue(null);
-                    h.next = h;
-                    h = p;
-                    ++i;
-                }
-                return n;
-            } finally {
-                // Restore invariants even if c.add() threw
-                if (i > 0) {
-                    // assert h.item == null;
-                    head = h;
-                    signalNotFull = (count.getAndAdd(-i) == capacity);
-                }
+            int n = Math.min(maxElements, count);
+            for (int i = 0; i < n; i++) {
+                // Peek first so that the element stays queued if c.add() throws
+                Node<E> first = heads[Integer.numberOfTrailingZeros(nonEmptyBuckets)];
+                c.add(first.getValue());
+                dequeue();
             }
+            return n;
         } finally {
-            takeLock.unlock();
-            if (signalNotFull)
-                signalNotFull();
+            lock.unlock();
         }
     }
 
+    /**
+     * Returns an iterator over a snapshot of the elements, in the order they
+     * would be taken. Its remove() removes the element from this queue if it
+     * is still there.
+     */
     public Iterator<E> iterator() {
         return new Itr();
     }
 
     private class Itr implements Iterator<E> {
 
-        private Node<E> current;
+        private final Object[] nodes;
+        private final Object[] elements;
+        private int cursor;
         private Node<E> lastRet;
-        private E currentElement;
 
         Itr() {
-            fullyLock();
+            final ReentrantLock lock = PriorityObjectBlockingQueue.this.lock;
+            lock.lock();
             try {
-                current = head.next;
-                if (current != null)
-                    currentElement = current.getValue();
+                nodes = new Object[count];
+                elements = new Object[count];
+                int k = 0;
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    for (Node<E> p = heads[i]; p != null; p = p.next) {
+                        nodes[k] = p;
+                        elements[k++] = p.getValue();
+                    }
+                }
             } finally {
-                fullyUnlock();
+                lock.unlock();
             }
         }
 
         public boolean hasNext() {
-            return current != null;
-        }
-
-        private Node<E> nextNode(Node<E> p) {
-            for (; ; ) {
-                Node<E> s = p.next;
-                if (s == p)
-                    return head.next;
-                if (s == null || s.getValue() != null)
-                    return s;
-                p = s;
-            }
+            return cursor < nodes.length;
         }
 
+        @SuppressWarnings("unchecked")
         public E next() {
-            fullyLock();
-            try {
-                if (current == null)
-                    throw new NoSuchElementException();
-                E x = currentElement;
-                lastRet = current;
-                current = nextNode(current);
-                currentElement = (current == null) ? null : current.getValue();
-                return x;
-            } finally {
-                fullyUnlock();
-            }
+            if (cursor >= nodes.length)
+                throw new NoSuchElementException();
+            lastRet = (Node<E>) nodes[cursor];
+            return (E) elements[cursor++];
         }
 
         public void remove() {
             if (lastRet == null)
                 throw new IllegalStateException();
-            fullyLock();
-            try {
-                Node<E> node = lastRet;
-                lastRet = null;
-                for (Node<E> trail = head, p = trail.next;
-                     p != null;
-                     trail = p, p = p.next) {
-                    if (p == node) {
-                        unlink(p, trail);
-                        break;
-                    }
-                }
-            } finally {
-                fullyUnlock();
-            }
+            removeNode(lastRet);
+            lastRet = null;
         }
     }
 
     private void writeObject(java.io.ObjectOutputStream s)
             throws java.io.IOException {
 
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
             // Write out any hidden stuff, plus capacity
             s.defaultWriteObject();
 
             // Write out all elements in the proper order.
-            for (Node<E> p = head.next; p != null; p = p.next)
-                s.writeObject(p.getValue());
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                for (Node<E> p = heads[i]; p != null; p = p.next)
+                    s.writeObject(p.getValue());
+            }
 
             // Use trailing null as sentinel
             s.writeObject(null);
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
@@ -588,8 +521,7 @@ public class PriorityObjectBlockingQueue<E> extends AbstractQueue<E>
         // Read in capacity, and any hidden stuff
         s.defaultReadObject();
 
-        count.set(0);
-        last = head = new Node<E>(null);
+        initBuckets();
 
         // Read in all elements and place in queue
         for (; ; ) {
@@ -608,14 +540,20 @@ public class PriorityObjectBlockingQueue<E> extends AbstractQueue<E>
 class Node<T> {
     private boolean valueAsT = false;
     private PriorityObject<?> value;
+    private final Priority priority;
+    final long enqueueTime = System.nanoTime();
     Node<T> next;
 
     Node(T value) {
         setValue(value);
+        this.priority = this.value.priority;
     }
 
+    /**
+     * The priority the node was queued with, kept after its value is cleared.
+     */
     public Priority getPriority() {
-        return value.priority;
+        return priority;
     }
 
     @SuppressWarnings("unchecked")
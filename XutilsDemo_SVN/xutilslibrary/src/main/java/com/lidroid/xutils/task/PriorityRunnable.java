@@ -7,8 +7,30 @@ package com.lidroid.xutils.task;
  */
 public class PriorityRunnable extends PriorityObject<Runnable> implements Runnable {
 
+    private final Class<?> taskType;
+
     public PriorityRunnable(Priority priority, Runnable obj) {
+        this(priority, obj, null);
+    }
+
+    /**
+     * @param taskType the class of the task {@code obj} runs for, when
+     *                 {@code obj} is only its wrapper, e.g. the FutureTask
+     *                 of a {@link PriorityAsyncTask}.
+     */
+    PriorityRunnable(Priority priority, Runnable obj, Class<?> taskType) {
         super(priority, obj);
+        this.taskType = taskType;
+    }
+
+    /**
+     * Returns the class the per task type timings of {@link PoolSizeController} go to.
+     */
+    Class<?> getTaskType() {
+        if (taskType != null) {
+            return taskType;
+        }
+        return obj == null ? Object.class : obj.getClass();
     }
 
     @Override
@@ -0,0 +1,147 @@
+package com.lidroid.xutils.task;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounds one stage of a pipeline, e.g. the decoding after a download: at most
+ * {@code permits} threads are inside the stage at once. A thread that finds it
+ * full waits at the gate, which holds back the stage it comes from, and the
+ * waiting threads are let in by {@link Priority}, in arrival order within one
+ * priority.
+ * <p/>
+ * Usage:
+ * <pre>
+ * gate.enter(priority);
+ * try {
+ *     ...
+ * } finally {
+ *     gate.leave();
+ * }
+ * </pre>
+ */
+public class StageGate {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * The time each thread has waited at any gate, see {@link #getThreadWaitNanos()}.
+     */
+    private static final ThreadLocal<long[]> threadWaitNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private final ArrayDeque<Waiter>[] waiters;
+    private int permits;
+    private int activeCount;
+    private int waitingCount;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public StageGate(int permits) {
+        if (permits <= 0) throw new IllegalArgumentException("permits <= 0");
+        this.permits = permits;
+        this.waiters = (ArrayDeque<Waiter>[]) new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i] = new ArrayDeque<Waiter>();
+        }
+    }
+
+    public synchronized int getPermits() {
+        return permits;
+    }
+
+    /**
+     * Threads already inside stay; if there are too many, no one is let in
+     * until enough have left.
+     */
+    public synchronized void setPermits(int permits) {
+        if (permits > 0) {
+            this.permits = permits;
+            admit();
+        }
+    }
+
+    public synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    public synchronized int getWaitingCount() {
+        return waitingCount;
+    }
+
+    /**
+     * Waits until the stage has room for the calling thread.
+     *
+     * @param priority null for {@link Priority#DEFAULT}.
+     * @throws InterruptedException if interrupted before entering; the thread
+     *                              must not call {@link #leave()} then.
+     */
+    public synchronized void enter(Priority priority) throws InterruptedException {
+        if (activeCount < permits && waitingCount == 0) {
+            activeCount++;
+            return;
+        }
+
+        ArrayDeque<Waiter> queue = waiters[(priority == null ? Priority.DEFAULT : priority).ordinal()];
+        Waiter waiter = new Waiter();
+        queue.addLast(waiter);
+        waitingCount++;
+        long start = System.nanoTime();
+        try {
+            while (!waiter.admitted) {
+                this.wait();
+            }
+        } catch (InterruptedException e) {
+            if (!waiter.admitted) {
+                queue.remove(waiter);
+                waitingCount--;
+                throw e;
+            }
+            // 已获准进入, 保留中断状态由调用者处理
+            Thread.currentThread().interrupt();
+        } finally {
+            threadWaitNanos.get()[0] += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Returns how long the calling thread has waited at gates so far, for
+     * {@link PoolSizeController} not to count it as I/O blocking.
+     */
+    static long getThreadWaitNanos() {
+        return threadWaitNanos.get()[0];
+    }
+
+    public synchronized void leave() {
+        if (activeCount <= 0) throw new IllegalStateException("leave() without enter()");
+        activeCount--;
+        admit();
+    }
+
+    private void admit() {
+        boolean admitted = false;
+        for (int i = 0; i < waiters.length && activeCount < permits; i++) {
+            Waiter waiter;
+            while (activeCount < permits && (waiter = waiters[i].pollFirst()) != null) {
+                waiter.admitted = true;
+                waitingCount--;
+                activeCount++;
+                admitted = true;
+            }
+        }
+        if (admitted) {
+            this.notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StageGate[active=" + activeCount + "/" + permits + ",waiting=" + waitingCount + "]";
+    }
+
+    private static final class Waiter {
+        private boolean admitted;
+    }
+}
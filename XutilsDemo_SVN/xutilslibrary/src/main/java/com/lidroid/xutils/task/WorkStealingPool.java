@@ -0,0 +1,282 @@
+package com.lidroid.xutils.task;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The work stealing mode of {@link PriorityExecutor}.
+ * <p/>
+ * Tasks submitted from outside the pool go to a shared
+ * {@link PriorityLaneQueue}. A task submitted by a running task, such as a
+ * decode forked after a download, goes to the deque of the worker running it:
+ * the worker runs it next (last in, first out) while the data is still in
+ * its caches, and an idle worker may steal it from the other end.
+ * <p/>
+ * Priority still comes first: a worker takes the task of the best
+ * {@link Priority} among the head of its own deque, the head of the shared
+ * queue after aging and the heads of the other deques, in that order on a
+ * tie. A forked BG_LOW task thus waits behind a queued UI_TOP one. Forked
+ * tasks don't age; they are few and their parents were taken already.
+ * <p/>
+ * A stage bounded by a {@link StageGate} stays bounded: a forked task enters
+ * the gate in its run like any other. While a worker waits at the gate, the
+ * tasks in its deque can be stolen by the others.
+ * <p/>
+ * Each deque has its own lock, taken by its owner and the occasional thief;
+ * workers only meet on the lock-free shared queue.
+ */
+final class WorkStealingPool implements Executor {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Priority[] PRIORITIES = Priority.values();
+    private static final int EMPTY = PRIORITIES.length; // 比任何优先级都低
+
+    private final PriorityLaneQueue<Runnable> injectionQueue = new PriorityLaneQueue<Runnable>();
+    private final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<Worker>();
+    private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final ThreadFactory threadFactory;
+    private volatile int poolSize;
+
+    WorkStealingPool(int poolSize, ThreadFactory threadFactory) {
+        this.poolSize = poolSize;
+        this.threadFactory = threadFactory;
+    }
+
+    PriorityLaneQueue<Runnable> getInjectionQueue() {
+        return injectionQueue;
+    }
+
+    int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Workers are started as tasks arrive; the extra ones retire once idle.
+     */
+    void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    int getActiveCount() {
+        return activeCount.get();
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        if (r == null) throw new NullPointerException();
+        Worker worker = currentWorker.get();
+        if (worker != null) {
+            worker.deque.push(r);
+        } else if (!addWorker(r)) {
+            injectionQueue.offer(r);
+        }
+        Worker idle = idleWorkers.poll();
+        if (idle != null) {
+            LockSupport.unpark(idle.thread);
+        }
+    }
+
+    /**
+     * Starts a worker running {@code firstTask} if the pool is not full,
+     * as {@link java.util.concurrent.ThreadPoolExecutor} does for core threads.
+     */
+    private synchronized boolean addWorker(Runnable firstTask) {
+        if (workers.size() >= poolSize) {
+            return false;
+        }
+        Worker worker = new Worker(firstTask);
+        workers.add(worker);
+        worker.thread.start();
+        return true;
+    }
+
+    private synchronized boolean retire(Worker worker) {
+        if (workers.size() <= poolSize) {
+            return false;
+        }
+        workers.remove(worker);
+        return true;
+    }
+
+    /**
+     * Returns the task of the best priority for {@code worker}: from its own
+     * deque, from the shared queue or stolen from another worker, in that
+     * order between equal priorities; null if there is none.
+     */
+    private Runnable findTask(Worker worker) {
+        while (true) {
+            int local = worker.deque.topLevel();
+            int shared = injectionQueue.peekLevel();
+            if (shared < 0) {
+                shared = EMPTY;
+            }
+            Worker victim = null;
+            int stealable = EMPTY;
+            Object[] others = workers.toArray();
+            int n = others.length;
+            int start = n > 0 ? (int) (worker.thread.getId() % n) : 0;
+            for (int i = 0; i < n; i++) {
+                Worker other = (Worker) others[(start + i) % n];
+                if (other != worker) {
+                    int level = other.deque.topLevel();
+                    if (level < stealable) {
+                        stealable = level;
+                        victim = other;
+                    }
+                }
+            }
+
+            Runnable task;
+            if (local == EMPTY && shared == EMPTY && stealable == EMPTY) {
+                return null;
+            } else if (local <= shared && local <= stealable) {
+                task = worker.deque.pop();
+            } else if (shared <= stealable) {
+                task = injectionQueue.poll();
+            } else {
+                task = victim.deque.steal();
+            }
+            if (task != null) {
+                return task;
+            }
+            // Another worker took it meanwhile, look again.
+        }
+    }
+
+    /**
+     * Parks {@code worker} until a task arrives.
+     *
+     * @return null if the worker should retire.
+     */
+    private Runnable awaitTask(Worker worker) {
+        while (true) {
+            // Register before looking again, so that a task submitted meanwhile
+            // either is found here or unparks this worker.
+            idleWorkers.offer(worker);
+            Runnable task = findTask(worker);
+            if (task != null || retire(worker)) {
+                idleWorkers.remove(worker);
+                return task;
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            Thread.interrupted(); // an interrupt must not turn parking into spinning
+            idleWorkers.remove(worker);
+            task = findTask(worker);
+            if (task != null) {
+                return task;
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final WorkDeque deque = new WorkDeque();
+        private final Thread thread;
+        private Runnable firstTask;
+
+        private Worker(Runnable firstTask) {
+            this.firstTask = firstTask;
+            this.thread = threadFactory.newThread(this);
+        }
+
+        @Override
+        public void run() {
+            currentWorker.set(this);
+            Runnable task = firstTask;
+            firstTask = null;
+            while (true) {
+                if (task == null) {
+                    task = findTask(this);
+                }
+                if (task == null) {
+                    task = awaitTask(this);
+                    if (task == null) {
+                        break;
+                    }
+                }
+                activeCount.incrementAndGet();
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+                    if (handler != null) {
+                        handler.uncaughtException(thread, e);
+                    }
+                } finally {
+                    activeCount.decrementAndGet();
+                }
+                task = null;
+            }
+        }
+    }
+
+    /**
+     * One deque per priority. The owner pushes and pops at the tail, thieves
+     * steal from the head, both from the best priority holding a task.
+     */
+    private static final class WorkDeque {
+        private final ArrayDeque<Runnable>[] levels;
+        private volatile int topLevel = EMPTY; // 让其他线程不加锁地比较优先级, 跳过空队列
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        WorkDeque() {
+            levels = (ArrayDeque<Runnable>[]) new ArrayDeque[PRIORITIES.length];
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = new ArrayDeque<Runnable>();
+            }
+        }
+
+        /**
+         * Returns the ordinal of the best priority holding a task,
+         * {@link #EMPTY} if there is none.
+         */
+        int topLevel() {
+            return topLevel;
+        }
+
+        synchronized void push(Runnable task) {
+            Priority priority = task instanceof PriorityObject ? ((PriorityObject<?>) task).priority : Priority.DEFAULT;
+            int level = priority.ordinal();
+            levels[level].addLast(task);
+            if (level < topLevel) {
+                topLevel = level;
+            }
+        }
+
+        Runnable pop() {
+            return take(true);
+        }
+
+        Runnable steal() {
+            return take(false);
+        }
+
+        private Runnable take(boolean last) {
+            if (topLevel == EMPTY) {
+                return null;
+            }
+            synchronized (this) {
+                int level = topLevel;
+                if (level == EMPTY) {
+                    return null;
+                }
+                Runnable task = last ? levels[level].pollLast() : levels[level].pollFirst();
+                while (level < EMPTY && levels[level].isEmpty()) {
+                    level++;
+                }
+                topLevel = level;
+                return task;
+            }
+        }
+    }
+}
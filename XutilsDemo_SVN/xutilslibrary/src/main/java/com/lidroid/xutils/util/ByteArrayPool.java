@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.util;
+
+import com.lidroid.xutils.cache.MemoryTrimmable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+/**
+ * A pool of byte arrays, so that download buffers are reused instead of
+ * churning the heap. {@link #getBuf} hands out the smallest pooled array that
+ * is large enough; {@link #returnBuf} keeps arrays until the pool holds
+ * {@code sizeLimit} bytes, dropping the least recently returned ones first.
+ */
+public class ByteArrayPool implements MemoryTrimmable {
+
+    private static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+            return lhs.length - rhs.length;
+        }
+    };
+
+    private final LinkedList<byte[]> buffersByLastUse = new LinkedList<byte[]>();
+    private final ArrayList<byte[]> buffersBySize = new ArrayList<byte[]>(64);
+
+    private final int sizeLimit;
+    private float retainFraction = 1f;
+    private int currentSize = 0;
+
+    /**
+     * @param sizeLimit the maximum number of bytes kept in the pool.
+     */
+    public ByteArrayPool(int sizeLimit) {
+        this.sizeLimit = sizeLimit;
+    }
+
+    /**
+     * @return an array of at least {@code len} bytes, not zeroed.
+     */
+    public synchronized byte[] getBuf(int len) {
+        for (int i = 0; i < buffersBySize.size(); i++) {
+            byte[] buf = buffersBySize.get(i);
+            if (buf.length >= len) {
+                currentSize -= buf.length;
+                buffersBySize.remove(i);
+                buffersByLastUse.remove(buf);
+                return buf;
+            }
+        }
+        return new byte[len];
+    }
+
+    /**
+     * Gives {@code buf} back to the pool. The caller must not use it anymore.
+     */
+    public synchronized void returnBuf(byte[] buf) {
+        if (buf == null || buf.length > getLimit()) return;
+
+        buffersByLastUse.add(buf);
+        int pos = Collections.binarySearch(buffersBySize, buf, BUF_COMPARATOR);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        buffersBySize.add(pos, buf);
+        currentSize += buf.length;
+        trim();
+    }
+
+    @Override
+    public synchronized void trimMemory(float retainFraction) {
+        this.retainFraction = retainFraction;
+        trim();
+    }
+
+    private int getLimit() {
+        return (int) (sizeLimit * retainFraction);
+    }
+
+    private void trim() {
+        int limit = getLimit();
+        while (currentSize > limit) {
+            byte[] buf = buffersByLastUse.remove(0);
+            buffersBySize.remove(buf);
+            currentSize -= buf.length;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013. wyouflf (wyouflf@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lidroid.xutils.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ByteArrayOutputStream growing through a {@link ByteArrayPool}.
+ * <p/>
+ * The buffer can be shared without copying ({@link #getBuf()}): every other
+ * holder calls {@link #retain()} and later {@link #release()}, the creator
+ * calls {@link #close()}. The buffer goes back to the pool once all of them
+ * are done.
+ */
+public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private static final int DEFAULT_SIZE = 256;
+
+    private final ByteArrayPool mPool;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public PoolingByteArrayOutputStream(ByteArrayPool pool) {
+        this(pool, DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size the initial size of the buffer, e.g. the content length.
+     */
+    public PoolingByteArrayOutputStream(ByteArrayPool pool, int size) {
+        super(0);
+        mPool = pool;
+        buf = mPool.getBuf(Math.max(size, DEFAULT_SIZE));
+    }
+
+    private void expand(int i) {
+        if (count + i <= buf.length) {
+            return;
+        }
+        byte[] newbuf = mPool.getBuf((count + i) * 2);
+        System.arraycopy(buf, 0, newbuf, 0, count);
+        mPool.returnBuf(buf);
+        buf = newbuf;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int len) {
+        expand(len);
+        super.write(buffer, offset, len);
+    }
+
+    @Override
+    public synchronized void write(int oneByte) {
+        expand(1);
+        super.write(oneByte);
+    }
+
+    /**
+     * @return the buffer itself, whose first {@link #size()} bytes are valid.
+     * Not to be written to, nor used after the holder released it.
+     */
+    public synchronized byte[] getBuf() {
+        return buf;
+    }
+
+    public PoolingByteArrayOutputStream retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (refCount.decrementAndGet() == 0) {
+            byte[] buffer;
+            synchronized (this) {
+                buffer = buf;
+                buf = new byte[0];
+                count = 0;
+            }
+            mPool.returnBuf(buffer);
+        }
+    }
+
+    /**
+     * Releases the creator's hold on the buffer, once.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DiskJournalTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void version2Journal_isReplayedWithoutChecksums() throws Exception {
+        File journalFile = temp.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(journalFile));
+        try {
+            writeHeader(out, 2);
+            writeClean(out, "a", 5);
+            writeClean(out, "b", 7);
+            writeKeyRecord(out, DiskJournal.DELETE, "b");
+        } finally {
+            out.close();
+        }
+
+        final List<String> records = new ArrayList<String>();
+        long validLength = DiskJournal.read(journalFile, 1, 1, new DiskJournal.RecordHandler() {
+            @Override
+            public void onRecord(byte op, String diskKey, long expiryTimestamp, long[] lengths, long[] checksums,
+                                 long[] locations) {
+                String record = (char) op + diskKey;
+                if (op == DiskJournal.CLEAN) {
+                    assertEquals(DiskJournal.NO_CHECKSUM, checksums[0]);
+                    record += lengths[0];
+                }
+                records.add(record);
+            }
+        });
+
+        assertEquals(DiskJournal.NEEDS_REBUILD, validLength);
+        assertEquals(Arrays.asList("Ca5", "Cb7", "Db"), records);
+    }
+
+    @Test
+    public void version2Journal_isRebuiltAsVersion3() throws Exception {
+        File directory = temp.newFolder("cache");
+        String keep = new MD5FileNameGenerator().generate("keep");
+        String gone = new MD5FileNameGenerator().generate("gone");
+        writeFile(new File(directory, keep + ".0"), "value");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(directory, LruDiskCache.JOURNAL_FILE)));
+        try {
+            writeHeader(out, 2);
+            writeClean(out, keep, "value".length());
+            writeClean(out, gone, 3);
+            writeKeyRecord(out, DiskJournal.DELETE, gone);
+        } finally {
+            out.close();
+        }
+
+        LruDiskCache cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE);
+        try {
+            assertEquals("value", get(cache, "keep"));
+            assertNull(get(cache, "gone"));
+        } finally {
+            cache.close();
+        }
+        assertEquals(DiskJournal.VERSION, readVersion(new File(directory, LruDiskCache.JOURNAL_FILE)));
+    }
+
+    @Test
+    public void recordFailingCrc_endsReplayAndIsCutOff() throws Exception {
+        File journalFile = temp.newFile();
+        DiskJournal journal = new DiskJournal(journalFile, 1, 1, 0);
+        appendClean(journal, "a");
+        appendClean(journal, "b");
+        appendClean(journal, "c");
+        journal.close();
+
+        // header 16, then 3 + key 1 + expiry 8 + length 8 + checksum 8 + CRC 4 per record
+        int recordLength = 32;
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.seek(16 + recordLength + 3);
+            file.write('x'); // "b" becomes "x", its CRC no longer matches
+        } finally {
+            file.close();
+        }
+
+        List<String> keys = new ArrayList<String>();
+        long validLength = DiskJournal.read(journalFile, 1, 1, collectKeys(keys));
+        assertEquals(Arrays.asList("a"), keys);
+        assertEquals(16 + recordLength, validLength);
+
+        journal = new DiskJournal(journalFile, 1, 1, validLength);
+        appendClean(journal, "d");
+        journal.close();
+        assertEquals(16 + 2 * recordLength, journalFile.length());
+        keys.clear();
+        DiskJournal.read(journalFile, 1, 1, collectKeys(keys));
+        assertEquals(Arrays.asList("a", "d"), keys);
+    }
+
+    @Test
+    public void damagedTail_keepsEntriesBeforeIt() throws Exception {
+        File directory = temp.newFolder("cache");
+        LruDiskCache cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "a", "A");
+        set(cache, "b", "B");
+        cache.close();
+
+        File journalFile = new File(directory, LruDiskCache.JOURNAL_FILE);
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF); // the CRC of the CLEAN record of "b"
+        } finally {
+            file.close();
+        }
+
+        cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE);
+        try {
+            assertEquals("A", get(cache, "a"));
+            assertNull(get(cache, "b")); // left dirty by its UPDATE record
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static DiskJournal.RecordHandler collectKeys(final List<String> keys) {
+        return new DiskJournal.RecordHandler() {
+            @Override
+            public void onRecord(byte op, String diskKey, long expiryTimestamp, long[] lengths, long[] checksums,
+                                 long[] locations) {
+                keys.add(diskKey);
+            }
+        };
+    }
+
+    private static void appendClean(DiskJournal journal, String diskKey) throws IOException {
+        journal.appendClean(diskKey, Long.MAX_VALUE, new long[]{1}, new long[]{DiskJournal.NO_CHECKSUM}, null);
+    }
+
+    private static void writeHeader(DataOutputStream out, int version) throws IOException {
+        out.writeInt(DiskJournal.MAGIC);
+        out.writeInt(version);
+        out.writeInt(1); // appVersion
+        out.writeInt(1); // valueCount
+    }
+
+    private static void writeClean(DataOutputStream out, String diskKey, long length) throws IOException {
+        writeKeyRecord(out, DiskJournal.CLEAN, diskKey);
+        out.writeLong(Long.MAX_VALUE);
+        out.writeLong(length);
+    }
+
+    private static void writeKeyRecord(DataOutputStream out, byte op, String diskKey) throws IOException {
+        out.writeByte(op);
+        out.writeShort(diskKey.length());
+        out.writeBytes(diskKey);
+    }
+
+    private static int readVersion(File journalFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+        try {
+            file.seek(4);
+            return file.readInt();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void set(LruDiskCache cache, String key, String value) throws Exception {
+        LruDiskCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String get(LruDiskCache cache, String key) throws Exception {
+        LruDiskCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.lidroid.xutils.cache;
+
+import com.lidroid.xutils.util.ByteArrayPool;
+import com.lidroid.xutils.util.PoolingByteArrayOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DiskWriteBehindTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void isPending_answersWhileTheWriterIsBusy() throws Exception {
+        LruDiskCache cache = LruDiskCache.open(temp.newFolder("cache"), 1, 1, Long.MAX_VALUE);
+        CountDownLatch editing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DiskWriteBehind writeBehind = new DiskWriteBehind(blockingEdits(cache, editing, release), 1024 * 1024);
+        PoolingByteArrayOutputStream data = bytes("value");
+        try {
+            writeBehind.write("key", data, Long.MAX_VALUE);
+            assertTrue(editing.await(5, TimeUnit.SECONDS));
+
+            // The writer thread is stuck in the edit: neither call may wait for it.
+            assertTrue(writeBehind.isPending("key"));
+            assertFalse(writeBehind.isPending("other"));
+            assertNull(cache.get("key"));
+
+            release.countDown();
+            writeBehind.await("key");
+            assertFalse(writeBehind.isPending("key"));
+            assertEquals("value", cache.get("key").getString(0));
+        } finally {
+            release.countDown();
+            data.close();
+            writeBehind.close();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void drain_waitsForEveryWrite() throws Exception {
+        LruDiskCache cache = LruDiskCache.open(temp.newFolder("cache"), 1, 1, Long.MAX_VALUE);
+        DiskWriteBehind writeBehind = new DiskWriteBehind(cache, 1024 * 1024);
+        try {
+            for (int i = 0; i < 20; i++) {
+                PoolingByteArrayOutputStream data = bytes("value" + i);
+                writeBehind.write("key" + i, data, Long.MAX_VALUE);
+                data.close();
+            }
+            writeBehind.drain();
+
+            assertEquals(0, writeBehind.getPendingBytes());
+            for (int i = 0; i < 20; i++) {
+                assertFalse(writeBehind.isPending("key" + i));
+                assertEquals("value" + i, cache.get("key" + i).getString(0));
+            }
+        } finally {
+            writeBehind.close();
+            cache.close();
+        }
+    }
+
+    private static PoolingByteArrayOutputStream bytes(String value) throws Exception {
+        PoolingByteArrayOutputStream data = new PoolingByteArrayOutputStream(new ByteArrayPool(4096));
+        data.write(value.getBytes("UTF-8"));
+        return data;
+    }
+
+    /**
+     * Returns {@code cache} with every edit held back until {@code release}.
+     */
+    private static DiskCache blockingEdits(final DiskCache cache, final CountDownLatch editing,
+                                           final CountDownLatch release) {
+        return (DiskCache) Proxy.newProxyInstance(DiskCache.class.getClassLoader(), new Class<?>[]{DiskCache.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("edit")) {
+                            editing.countDown();
+                            release.await();
+                        }
+                        try {
+                            return method.invoke(cache, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,128 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class KeyExpiryMapTest {
+
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60 * SECOND;
+
+    @Test
+    public void pollExpired_returnsDueKeysOnly() throws Exception {
+        long now = System.currentTimeMillis();
+        KeyExpiryMap<String, Long> map = new KeyExpiryMap<String, Long>();
+        map.put("soon", now + 2 * SECOND);
+        map.put("later", now + 10 * MINUTE);
+        map.put("never", Long.MAX_VALUE);
+
+        assertTrue(map.pollExpired(now).isEmpty());
+        assertEquals(set("soon"), new HashSet<String>(map.pollExpired(now + 5 * SECOND)));
+        // Keys are left in the map for the caller to remove.
+        assertNotNull(map.remove("soon"));
+        assertTrue(map.pollExpired(now + 5 * MINUTE).isEmpty());
+        assertEquals(set("later"), new HashSet<String>(map.pollExpired(now + 20 * MINUTE)));
+        assertTrue(map.pollExpired(now + 3 * 24 * 60 * MINUTE).isEmpty());
+    }
+
+    @Test
+    public void pollExpired_cascadesFromCoarseLevels() throws Exception {
+        long now = System.currentTimeMillis();
+        KeyExpiryMap<String, Long> map = new KeyExpiryMap<String, Long>();
+        map.put("hour", now + 61 * MINUTE);
+        map.put("day", now + 25 * 60 * MINUTE);
+
+        // Advancing in small steps moves the timers down the levels without firing them early.
+        for (long t = now + MINUTE; t < now + 61 * MINUTE; t += 7 * MINUTE) {
+            assertTrue(map.pollExpired(t).isEmpty());
+        }
+        assertEquals(set("hour"), new HashSet<String>(map.pollExpired(now + 62 * MINUTE)));
+        assertEquals(set("day"), new HashSet<String>(map.pollExpired(now + 26 * 60 * MINUTE)));
+    }
+
+    @Test
+    public void put_reschedulesAndRemoveCancels() throws Exception {
+        long now = System.currentTimeMillis();
+        KeyExpiryMap<String, Long> map = new KeyExpiryMap<String, Long>();
+        map.put("moved", now + 2 * SECOND);
+        map.put("moved", now + 10 * MINUTE);
+        map.put("persisted", now + 2 * SECOND);
+        map.put("persisted", Long.MAX_VALUE);
+        map.put("removed", now + 2 * SECOND);
+        map.remove("removed");
+
+        assertTrue(map.pollExpired(now + 5 * SECOND).isEmpty());
+        assertEquals(set("moved"), new HashSet<String>(map.pollExpired(now + 11 * MINUTE)));
+        assertTrue(map.containsKey("persisted"));
+    }
+
+    @Test
+    public void containsKey_dropsExpiredMapping() throws Exception {
+        KeyExpiryMap<String, Long> map = new KeyExpiryMap<String, Long>();
+        map.put("gone", System.currentTimeMillis() - 1);
+        assertFalse(map.containsKey("gone"));
+        assertNull(map.get("gone"));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void pollExpired_dropsStaleTimerOfKeyPutAgainWithoutExpiry() throws Exception {
+        long now = System.currentTimeMillis();
+        KeyExpiryMap<String, Long> map = new KeyExpiryMap<String, Long>();
+        map.put("key", now - 1);
+        assertFalse(map.containsKey("key")); // lazy removal, the timer stays
+        map.put("key", Long.MAX_VALUE);
+        assertEquals(1, map.getScheduledCount());
+
+        assertTrue(map.pollExpired(now + 5 * SECOND).isEmpty());
+        assertEquals(0, map.getScheduledCount());
+        assertTrue(map.containsKey("key"));
+    }
+
+    /**
+     * Every key left in the map after racing puts and removes must still be
+     * scheduled: none may have lost its timer to a remove of an older mapping.
+     */
+    @Test
+    public void concurrentPutAndRemove_keepEveryMappedKeyScheduled() throws Exception {
+        final long expiry = System.currentTimeMillis() + 10 * MINUTE;
+        final KeyExpiryMap<Integer, Long> map = new KeyExpiryMap<Integer, Long>();
+        final int keys = 64;
+        Thread putter = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200000; i++) {
+                    map.put(i % keys, expiry + i % 7);
+                }
+            }
+        };
+        Thread remover = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200000; i++) {
+                    map.remove((i * 7) % keys);
+                }
+            }
+        };
+        putter.start();
+        remover.start();
+        putter.join();
+        remover.join();
+
+        List<Integer> expired = map.pollExpired(expiry + MINUTE);
+        assertEquals(map.keySet(), new HashSet<Integer>(expired));
+    }
+
+    private static Set<String> set(String... keys) {
+        Set<String> set = new HashSet<String>();
+        for (String key : keys) {
+            set.add(key);
+        }
+        return set;
+    }
+}
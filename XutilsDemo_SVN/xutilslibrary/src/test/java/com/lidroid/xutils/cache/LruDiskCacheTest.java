@@ -0,0 +1,196 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class LruDiskCacheTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File directory;
+    private LruDiskCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = temp.newFolder("cache");
+        cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    /**
+     * Edits made right after the journal was written must still reach the
+     * disk once the sync interval has passed.
+     */
+    @Test
+    public void editsWithinSyncInterval_getTrailingSync() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            set("key" + i, "value" + i);
+        }
+        assertEquals(0, cache.getStats().journalSyncCount());
+
+        waitForSyncs(1);
+        assertEquals(1, cache.getStats().journalSyncCount());
+    }
+
+    @Test
+    public void editsAfterSync_scheduleNextSync() throws Exception {
+        set("a", "A");
+        waitForSyncs(1);
+        set("b", "B");
+        set("c", "C");
+        waitForSyncs(2);
+        assertEquals(2, cache.getStats().journalSyncCount());
+    }
+
+    @Test
+    public void readsOfExpiredEntry_queueOneRemoval() throws Exception {
+        LruDiskCache.Editor editor = cache.edit("expired");
+        editor.setEntryExpiryTimestamp(System.currentTimeMillis() - 1);
+        editor.set(0, "stale");
+        editor.commit();
+
+        // Hold the background thread so that the queued removals pile up.
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        cache.executorService.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        });
+        started.await();
+        int queued = cache.executorService.getQueue().size();
+        for (int i = 0; i < 100; i++) {
+            assertNull(cache.get("expired"));
+        }
+        assertEquals(queued + 1, cache.executorService.getQueue().size());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getStats().removalCount(RemovalCause.EXPIRED) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, cache.getStats().removalCount(RemovalCause.EXPIRED));
+    }
+
+    @Test
+    public void removingMostOfASegment_compactsItsLiveValues() throws Exception {
+        cache.setSegmentThreshold(SegmentStore.MAX_VALUE_SIZE);
+        char[] chars = new char[64 * 1024];
+        for (int i = 0; i < 40; i++) {
+            Arrays.fill(chars, (char) ('a' + i % 26));
+            set("key" + i, new String(chars));
+        }
+        assertTrue(new File(directory, "segment0.seg").exists());
+        for (int i = 0; i < 40; i++) {
+            if (i % 4 != 0) {
+                assertTrue(cache.remove("key" + i));
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (new File(directory, "segment0.seg").exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(new File(directory, "segment0.seg").exists());
+        for (int i = 0; i < 40; i += 4) {
+            LruDiskCache.Snapshot snapshot = cache.get("key" + i);
+            try {
+                String value = snapshot.getString(0);
+                assertEquals(64 * 1024, value.length());
+                assertEquals('a' + i % 26, value.charAt(value.length() - 1));
+            } finally {
+                snapshot.close();
+            }
+        }
+    }
+
+    @Test
+    public void snapshotChannels_readFileAndSegmentValues() throws Exception {
+        cache.setSegmentThreshold(64);
+        set("small", "packed"); // goes to a segment file
+        set("large", "0123456789012345678901234567890123456789012345678901234567890123456789");
+        set("after", "following value in the segment");
+
+        for (String key : new String[]{"small", "large", "after"}) {
+            LruDiskCache.Snapshot snapshot = cache.get(key);
+            try {
+                String expected = snapshot.getString(0);
+                assertEquals(expected.length(), snapshot.getLength(0));
+
+                ByteBuffer mapped = snapshot.getMappedBuffer(0);
+                byte[] bytes = new byte[mapped.remaining()];
+                mapped.get(bytes);
+                assertEquals(expected, new String(bytes, "UTF-8"));
+
+                File target = temp.newFile();
+                FileOutputStream out = new FileOutputStream(target);
+                try {
+                    assertEquals(expected.length(), snapshot.transferTo(0, out.getChannel()));
+                } finally {
+                    out.close();
+                }
+                assertEquals(expected.length(), target.length());
+            } finally {
+                snapshot.close();
+            }
+        }
+    }
+
+    @Test
+    public void contains_readsTheIndexOnly() throws Exception {
+        cache.setSegmentThreshold(64);
+        set("packed", "small"); // no file of its own
+        LruDiskCache.Editor editor = cache.edit("expired");
+        editor.setEntryExpiryTimestamp(System.currentTimeMillis() - 1);
+        editor.set(0, "old");
+        editor.commit();
+
+        assertTrue(cache.contains("packed"));
+        assertNull(cache.getCacheFile("packed", 0));
+        assertFalse(cache.contains("expired"));
+        assertFalse(cache.contains("absent"));
+        // nothing is removed, not even the expired entry
+        assertTrue(cache.getExpiryTimestampByDiskKey(new MD5FileNameGenerator().generate("expired")) != 0);
+
+        // An entry under the previous name counts, and stays where it is.
+        cache.setSegmentThreshold(0);
+        set("renamed", "value");
+        File previousFile = cache.getCacheFile("renamed", 0);
+        cache.setFileNameGenerator(new Murmur3FileNameGenerator(), new MD5FileNameGenerator());
+        assertTrue(cache.contains("renamed"));
+        assertTrue(previousFile.exists());
+        assertEquals(0, cache.getExpiryTimestampByDiskKey(new Murmur3FileNameGenerator().generate("renamed")));
+    }
+
+    private void set(String key, String value) throws Exception {
+        LruDiskCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private void waitForSyncs(long count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getStats().journalSyncCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class LruMemoryCacheTest {
+
+    @Test
+    public void defaultConcurrencyLevel_followsCpuCount() throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        LruMemoryCache<String, String> cache = new LruMemoryCache<String, String>(10);
+        assertTrue(cache.concurrencyLevel() >= cpus);
+        assertTrue(cache.concurrencyLevel() < cpus * 2);
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() throws Exception {
+        LruMemoryCache<String, String> cache = new LruMemoryCache<String, String>(3, 1);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals("A", cache.get("a"));
+        cache.put("d", "D");
+
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals("D", cache.get("d"));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void put_evictsFromWrittenSegment() throws Exception {
+        final List<String> evicted = new ArrayList<String>();
+        LruMemoryCache<Integer, String> cache = new LruMemoryCache<Integer, String>(4, 2) {
+            @Override
+            protected void entryRemoved(boolean evicted_, Integer key, String oldValue, String newValue) {
+                evicted.add(oldValue);
+            }
+        };
+        // Integer keys hash to themselves: even keys in segment 0, odd ones in segment 1.
+        cache.put(1, "odd1");
+        cache.put(0, "even0");
+        cache.put(2, "even2");
+        cache.put(3, "odd3");
+        cache.put(4, "even4");
+
+        // odd1 is the least recently used entry overall, but the write went to segment 0.
+        assertEquals(1, evicted.size());
+        assertEquals("even0", evicted.get(0));
+        assertEquals("odd1", cache.get(1));
+    }
+
+    @Test
+    public void trim_visitsOtherSegmentsWhenWrittenOneIsEmpty() throws Exception {
+        LruMemoryCache<Integer, String> cache = new LruMemoryCache<Integer, String>(10, 2) {
+            @Override
+            protected int sizeOf(Integer key, String value) {
+                return value.length();
+            }
+        };
+        cache.put(1, "aaaa");
+        cache.put(3, "bbbb");
+        cache.put(0, "cccccc"); // segment 0 holds only this one, which must not be evicted for itself
+
+        assertEquals(10, cache.size());
+        assertEquals("cccccc", cache.get(0));
+        assertNull(cache.get(1));
+        assertEquals("bbbb", cache.get(3));
+    }
+
+    @Test
+    public void sizeOf_nonPositiveIsAccepted() throws Exception {
+        LruMemoryCache<String, Integer> cache = new LruMemoryCache<String, Integer>(5, 1) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+        cache.put("zero", 0);
+        cache.put("negative", -1);
+        cache.put("three", 3);
+        assertEquals(2, cache.size());
+        assertEquals(Integer.valueOf(-1), cache.remove("negative"));
+        assertEquals(3, cache.size());
+        cache.evictAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void entryRemoved_reportsEvictedOnlyForSize() throws Exception {
+        final List<String> removals = new ArrayList<String>();
+        LruMemoryCache<String, String> cache = new LruMemoryCache<String, String>(2, 1) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+                removals.add(key + ":" + evicted);
+            }
+        };
+        final List<String> causes = new ArrayList<String>();
+        cache.getStats().setListener(new CacheListener() {
+            @Override
+            public void onRemoval(String cacheName, RemovalCause cause, long weight) {
+                causes.add(cause.name());
+            }
+        });
+
+        cache.put("expired", "E", System.currentTimeMillis() - 1);
+        assertNull(cache.get("expired"));
+        cache.put("removed", "R");
+        cache.remove("removed");
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+
+        assertEquals(Arrays.asList("expired:false", "removed:false", "a:true"), removals);
+        assertEquals(Arrays.asList("EXPIRED", "EXPLICIT", "SIZE"), causes);
+    }
+
+    @Test
+    public void replace_swapsOnlyTheExpectedValue() throws Exception {
+        final List<String> removed = new ArrayList<String>();
+        LruMemoryCache<String, String> cache = new LruMemoryCache<String, String>(10, 1) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+                removed.add(oldValue + "->" + newValue);
+            }
+        };
+        String original = new String("v1");
+        cache.put("key", original);
+
+        assertFalse(cache.replace("key", new String("v1"), "stale")); // another instance
+        assertFalse(cache.replace("missing", original, "v2"));
+        assertTrue(cache.replace("key", original, "v2"));
+        assertEquals("v2", cache.get("key"));
+        assertEquals(1, cache.size());
+        assertEquals(Arrays.asList("v1->v2"), removed);
+    }
+
+    @Test
+    public void snapshot_ordersByAccessAcrossSegments() throws Exception {
+        LruMemoryCache<Integer, Integer> cache = new LruMemoryCache<Integer, Integer>(100, 4);
+        List<Integer> order = Arrays.asList(5, 2, 7, 0, 3, 6, 1, 4);
+        for (int i = 0; i < 8; i++) {
+            cache.put(i, i);
+        }
+        for (Integer key : order) {
+            Thread.sleep(1); // distinct access times on coarse clocks
+            cache.get(key);
+        }
+        assertEquals(order, new ArrayList<Integer>(cache.snapshot().keySet()));
+    }
+
+    @Test
+    public void concurrentPuts_keepSizeBound() throws Exception {
+        final LruMemoryCache<Integer, Integer> cache = new LruMemoryCache<Integer, Integer>(100, 8);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 20000; i++) {
+                            int key = (i * 31 + seed * 7919) % 1000;
+                            if (cache.get(key) == null) {
+                                cache.put(key, key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertNull(failure.get());
+        assertTrue(cache.size() <= 100);
+        assertEquals(cache.size(), cache.snapshot().size());
+    }
+
+    @Test
+    public void getOrLoad_coalescesConcurrentMisses() throws Exception {
+        final LruMemoryCache<String, String> cache = new LruMemoryCache<String, String>(10);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CacheLoader<String, String> loader = new CacheLoader<String, String>() {
+            @Override
+            public String load(String key) throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return "value";
+            }
+        };
+        final AtomicReference<String> waiterResult = new AtomicReference<String>();
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.getOrLoad("key", loader);
+                } catch (Exception ignored) {
+                }
+            }
+        };
+        leader.start();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waiterResult.set(cache.getOrLoad("key", loader));
+                } catch (Exception ignored) {
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        release.countDown();
+        leader.join();
+        waiter.join();
+
+        assertEquals(1, loads.get());
+        assertEquals("value", waiterResult.get());
+    }
+
+    @Test
+    public void getOrLoad_waiterTakesOverCancelledLoad() throws Exception {
+        final LruMemoryCache<String, String> cache = new LruMemoryCache<String, String>(10);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch cancel = new CountDownLatch(1);
+        final AtomicReference<Throwable> leaderFailure = new AtomicReference<Throwable>();
+        final AtomicReference<String> waiterResult = new AtomicReference<String>();
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.getOrLoad("key", new CacheLoader<String, String>() {
+                        @Override
+                        public String load(String key) throws Exception {
+                            loading.countDown();
+                            cancel.await();
+                            throw new CancellationException("view recycled");
+                        }
+                    });
+                } catch (Throwable e) {
+                    leaderFailure.set(e);
+                }
+            }
+        };
+        leader.start();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waiterResult.set(cache.getOrLoad("key", new CacheLoader<String, String>() {
+                        @Override
+                        public String load(String key) throws Exception {
+                            return "loaded by waiter";
+                        }
+                    }));
+                } catch (Exception ignored) {
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        cancel.countDown();
+        leader.join();
+        waiter.join();
+
+        assertTrue(leaderFailure.get() instanceof CancellationException);
+        assertEquals("loaded by waiter", waiterResult.get());
+        assertEquals("loaded by waiter", cache.get("key"));
+    }
+
+    /**
+     * A miss and a put without expiry must not wait for a thread holding the
+     * lock of the timer wheel.
+     */
+    @Test
+    public void missAndPutWithoutExpiry_doNotTakeTheWheelLock() throws Exception {
+        final LruMemoryCache<String, String> cache = new LruMemoryCache<String, String>(100, 4);
+        cache.put("present", "value");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                ReentrantLock lock = cache.getKeyExpiryMap().getWheelLock();
+                lock.lock();
+                try {
+                    locked.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        holder.start();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    cache.get("absent" + i);
+                }
+                cache.put("present", "again");
+                cache.put("new", "value");
+                cache.get("present");
+                done.countDown();
+            }
+        };
+        reader.start();
+        try {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            holder.join();
+            reader.join();
+        }
+        assertEquals("again", cache.get("present"));
+        assertEquals(100, cache.missCount());
+    }
+}
@@ -0,0 +1,93 @@
+package com.lidroid.xutils.cache;
+
+import android.content.ComponentCallbacks2;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MemoryGovernorTest {
+
+    private MemoryGovernor governor;
+    private ManualScheduler scheduler;
+    private LruMemoryCache<Integer, Integer> cache;
+
+    @Before
+    public void setUp() throws Exception {
+        governor = new MemoryGovernor();
+        scheduler = new ManualScheduler();
+        governor.setScheduler(scheduler);
+        governor.setRestoreDelay(5000);
+        cache = new LruMemoryCache<Integer, Integer>(100, 1);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+        governor.register(cache);
+    }
+
+    @Test
+    public void foregroundTrim_shrinksThenRestoresAfterDelay() throws Exception {
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(0.5f, governor.getRetainFraction(), 0f);
+        assertEquals(50, cache.capacity());
+        assertEquals(50, cache.size());
+        assertEquals(99, cache.get(99).intValue()); // the most recent entries stay
+
+        // A milder level doesn't grow the cache but postpones the restore.
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(50, cache.capacity());
+        assertEquals(5000, scheduler.delay);
+
+        scheduler.runPending();
+        assertEquals(1f, governor.getRetainFraction(), 0f);
+        assertEquals(100, cache.capacity());
+    }
+
+    @Test
+    public void backgroundTrim_waitsForTheAppToComeBack() throws Exception {
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(25, cache.capacity());
+        assertNull(scheduler.pending); // cancelled: no restore while in the background
+
+        governor.restore(); // what starting an activity does
+        assertEquals(100, cache.capacity());
+    }
+
+    @Test
+    public void register_trimsLateComersAtOnce() throws Exception {
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, cache.size());
+
+        LruMemoryCache<Integer, Integer> late = new LruMemoryCache<Integer, Integer>(100, 1);
+        governor.register(late);
+        assertEquals(0, late.capacity());
+        governor.restore();
+        assertEquals(100, late.capacity());
+    }
+
+    private static final class ManualScheduler implements MemoryGovernor.Scheduler {
+        Runnable pending;
+        long delay;
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            this.pending = task;
+            this.delay = delay;
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            if (pending == task) {
+                pending = null;
+            }
+        }
+
+        void runPending() {
+            Runnable task = pending;
+            pending = null;
+            assertNotNull(task);
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class Murmur3FileNameGeneratorTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * MurmurHash3 x64 128 of the UTF-16LE bytes, from the reference
+     * implementation; h1 and h2 in hex.
+     */
+    @Test
+    public void generate_matchesReferenceHash() throws Exception {
+        Murmur3FileNameGenerator generator = new Murmur3FileNameGenerator();
+        assertEquals("00000000000000000000000000000000", generator.generate(""));
+        assertEquals("ee2ee18fe1bfd3877b927262d8c336c4", generator.generate("hello"));
+        assertEquals("b00fd3d1fd7ec556ed35a0bf66ff7854", generator.generate("aé中"));
+        assertEquals("4d5f32564d3b0bd6814810d886aa330e",
+                generator.generate("http://example.com/images/avatar/42.png?size=large"));
+    }
+
+    @Test
+    public void generate_dependsOnSeed() throws Exception {
+        String key = "http://example.com/images/avatar/42.png";
+        assertEquals(new Murmur3FileNameGenerator(7).generate(key), new Murmur3FileNameGenerator(7).generate(key));
+        assertFalse(new Murmur3FileNameGenerator(7).generate(key).equals(new Murmur3FileNameGenerator().generate(key)));
+    }
+
+    @Test
+    public void generate_givesDistinctHexNamesForTypicalUrls() throws Exception {
+        FileNameGenerator murmur3 = new Murmur3FileNameGenerator();
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            String name = murmur3.generate("http://img.example.com/feed/2016/11/" + i + "/photo_" + (i * 7919) + "_large.jpg?w=720&h=1280");
+            assertTrue(name, name.matches("[0-9a-f]{32}"));
+            names.add(name);
+        }
+        assertEquals(1000, names.size());
+    }
+
+    @Test
+    public void migrate_movesEntriesNamedByPreviousGenerator() throws Exception {
+        File directory = temp.newFolder("cache");
+        LruDiskCache cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "read", "r");
+        set(cache, "rewritten", "old");
+        set(cache, "removed", "x");
+        cache.close();
+
+        FileNameGenerator md5 = new MD5FileNameGenerator();
+        FileNameGenerator murmur3 = new Murmur3FileNameGenerator();
+        cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE);
+        try {
+            cache.setFileNameGenerator(murmur3, md5);
+
+            assertEquals("r", get(cache, "read"));
+            assertFalse(new File(directory, md5.generate("read") + ".0").exists());
+            assertTrue(new File(directory, murmur3.generate("read") + ".0").exists());
+
+            set(cache, "rewritten", "new");
+            assertEquals("new", get(cache, "rewritten"));
+
+            assertTrue(cache.remove("removed"));
+            assertNull(get(cache, "removed"));
+
+            cache.setFileNameGenerator(murmur3);
+            assertEquals("r", get(cache, "read"));
+            assertEquals("new", get(cache, "rewritten"));
+            assertEquals("r".length() + "new".length(), cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void migrate_movesEntriesAcrossShards() throws Exception {
+        File directory = temp.newFolder("cache");
+        ShardedDiskCache cache = ShardedDiskCache.open(directory, 1, 1, Long.MAX_VALUE, 4);
+        for (int i = 0; i < 20; i++) {
+            set(cache, "key" + i, "value" + i);
+        }
+        cache.setFileNameGenerator(new Murmur3FileNameGenerator(), new MD5FileNameGenerator());
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertEquals("value" + i, get(cache, "key" + i));
+            }
+            cache.setFileNameGenerator(new Murmur3FileNameGenerator());
+            for (int i = 0; i < 20; i++) {
+                assertEquals("value" + i, get(cache, "key" + i));
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void set(DiskCache cache, String key, String value) throws Exception {
+        LruDiskCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String get(DiskCache cache, String key) throws Exception {
+        LruDiskCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentStoreTest {
+
+    private static final int VALUE_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void append_rollsOverFullSegment() throws Exception {
+        SegmentStore store = new SegmentStore(temp.newFolder("segments"));
+        try {
+            int perSegment = SegmentStore.SEGMENT_SIZE / VALUE_SIZE;
+            long first = store.append(value(0));
+            long last = first;
+            for (int i = 1; i <= perSegment; i++) {
+                last = store.append(value(i));
+            }
+            assertEquals(0, SegmentStore.segmentOf(first));
+            assertEquals(1, SegmentStore.segmentOf(last));
+            assertEquals(0, SegmentStore.offsetOf(last));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void compactionCandidates_listsMostlyDeadSegmentsOnly() throws Exception {
+        File directory = temp.newFolder("segments");
+        SegmentStore store = new SegmentStore(directory);
+        try {
+            int perSegment = SegmentStore.SEGMENT_SIZE / VALUE_SIZE;
+            List<Long> locations = new ArrayList<Long>();
+            for (int i = 0; i <= perSegment * 2; i++) {
+                locations.add(store.append(value(i)));
+            }
+            // Segment 0 keeps a quarter of its values, segment 1 three quarters.
+            for (int i = 0; i < perSegment * 2; i++) {
+                boolean keep = i < perSegment ? i % 4 == 0 : i % 4 != 0;
+                if (!keep) {
+                    store.release(locations.get(i), VALUE_SIZE);
+                }
+            }
+            assertTrue(store.isCompactionRequired());
+            assertEquals(Arrays.asList(0), store.compactionCandidates());
+            assertFalse(store.isCompactionRequired());
+
+            RandomAccessFile source = store.openForCompaction(0);
+            try {
+                for (int i = 0; i < perSegment; i += 4) {
+                    long moved = store.move(source, locations.get(i), VALUE_SIZE);
+                    assertEquals(2, SegmentStore.segmentOf(moved));
+                }
+            } finally {
+                source.close();
+            }
+            assertFalse(new File(directory, "segment0.seg").exists());
+            assertTrue(store.compactionCandidates().isEmpty());
+        } finally {
+            store.close();
+        }
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) i);
+        return value;
+    }
+}
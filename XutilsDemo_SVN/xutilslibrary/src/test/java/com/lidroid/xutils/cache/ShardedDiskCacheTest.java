@@ -0,0 +1,93 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ShardedDiskCacheTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void entries_spreadOverShardsAndReadBack() throws Exception {
+        File directory = temp.newFolder("cache");
+        ShardedDiskCache cache = ShardedDiskCache.open(directory, 1, 1, Long.MAX_VALUE, 4);
+        try {
+            for (int i = 0; i < 40; i++) {
+                set(cache, "key" + i, "value" + i);
+            }
+            for (int i = 0; i < 40; i++) {
+                assertEquals("value" + i, get(cache, "key" + i));
+            }
+            int usedShards = 0;
+            for (int i = 0; i < 4; i++) {
+                File shard = new File(directory, ShardedDiskCache.SHARD_DIRECTORY_PREFIX + i);
+                assertTrue(shard.isDirectory());
+                if (shard.list().length > 1) { // more than the journal
+                    usedShards++;
+                }
+            }
+            assertEquals(4, usedShards);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void shards_shareOneBudget() throws Exception {
+        ShardedDiskCache cache = ShardedDiskCache.open(temp.newFolder("cache"), 1, 1, 1000, 4);
+        try {
+            for (int i = 0; i < 100; i++) {
+                set(cache, "key" + i, "0123456789012345678901234567890123456789"); // 40 bytes
+            }
+            cache.flush();
+            assertTrue(cache.size() <= 1000);
+            assertTrue(cache.size() > 1000 / 2);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void reopen_keepsEntriesUnlessShardCountChanges() throws Exception {
+        File directory = temp.newFolder("cache");
+        ShardedDiskCache cache = ShardedDiskCache.open(directory, 1, 1, Long.MAX_VALUE, 4);
+        set(cache, "key", "value");
+        cache.close();
+
+        cache = ShardedDiskCache.open(directory, 1, 1, Long.MAX_VALUE, 4);
+        assertEquals("value", get(cache, "key"));
+        cache.close();
+
+        cache = ShardedDiskCache.open(directory, 1, 1, Long.MAX_VALUE, 2);
+        try {
+            assertNull(get(cache, "key"));
+            assertFalse(new File(directory, ShardedDiskCache.SHARD_DIRECTORY_PREFIX + 3).exists());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void set(DiskCache cache, String key, String value) throws Exception {
+        LruDiskCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static String get(DiskCache cache, String key) throws Exception {
+        LruDiskCache.Snapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+}
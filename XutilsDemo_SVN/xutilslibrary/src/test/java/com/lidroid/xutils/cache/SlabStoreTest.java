@@ -0,0 +1,130 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SlabStoreTest {
+
+    private static final int KB = 1024;
+
+    @Test
+    public void put_takesSmallestFittingSizeClass() throws Exception {
+        SlabStore store = new SlabStore(16 * SlabStore.ARENA_SIZE);
+        assertEquals(KB, sizeOf(store, 0));
+        assertEquals(KB, sizeOf(store, 1));
+        assertEquals(KB, sizeOf(store, KB));
+        assertEquals(3 * KB / 2, sizeOf(store, KB + 1));
+        assertEquals(2 * KB, sizeOf(store, 2 * KB));
+        assertEquals(48 * KB, sizeOf(store, 33 * KB));
+        assertEquals(256 * KB, sizeOf(store, 200 * KB));
+    }
+
+    private static long sizeOf(SlabStore store, int length) {
+        SlabStore.Slab slab = store.put(new byte[length]);
+        long size = store.size();
+        slab.free();
+        assertEquals(0, store.size());
+        return size;
+    }
+
+    @Test
+    public void put_chainsLargePayloadsAndReadsThemBack() throws Exception {
+        SlabStore store = new SlabStore(16 * SlabStore.ARENA_SIZE);
+        byte[] data = randomBytes(600 * KB);
+        SlabStore.Slab slab = store.put(data);
+
+        // two 256KB blocks and one of 96KB for the last 88KB
+        assertEquals(512 * KB + 96 * KB, store.size());
+        assertEquals(600 * KB, slab.length());
+        assertArrayEquals(data, slab.getBytes());
+
+        byte[] middle = new byte[10 * KB];
+        SlabStore.Slab part = store.put(data, 300 * KB, 10 * KB);
+        System.arraycopy(data, 300 * KB, middle, 0, middle.length);
+        assertArrayEquals(middle, part.getBytes());
+    }
+
+    @Test
+    public void free_returnsBlocksOnceAndHidesThePayload() throws Exception {
+        SlabStore store = new SlabStore(SlabStore.ARENA_SIZE);
+        SlabStore.Slab first = store.put(randomBytes(100 * KB));
+        SlabStore.Slab second = store.put(randomBytes(100 * KB));
+        assertEquals(2 * 128 * KB, store.size());
+
+        first.free();
+        first.free();
+        assertTrue(first.isFreed());
+        assertNull(first.getBytes());
+        assertEquals(128 * KB, store.size());
+        assertFalse(second.isFreed());
+        assertEquals(100 * KB, second.getBytes().length);
+
+        // the freed block is reused without taking another arena
+        SlabStore.Slab third = store.put(randomBytes(100 * KB));
+        assertNotNull(third);
+        assertEquals(SlabStore.ARENA_SIZE, store.capacity());
+    }
+
+    @Test
+    public void put_returnsNullWhenFullAndReusesEmptyArenas() throws Exception {
+        SlabStore store = new SlabStore(SlabStore.ARENA_SIZE);
+        List<SlabStore.Slab> slabs = new ArrayList<SlabStore.Slab>();
+        for (int i = 0; i < 4; i++) {
+            slabs.add(store.put(new byte[256 * KB]));
+        }
+        assertNull(store.put(new byte[KB]));
+        assertEquals(SlabStore.ARENA_SIZE, store.size());
+
+        // an arena whose blocks are all free can serve another size class
+        for (SlabStore.Slab slab : slabs) {
+            slab.free();
+        }
+        assertNotNull(store.put(new byte[KB]));
+        assertEquals(SlabStore.ARENA_SIZE, store.capacity());
+    }
+
+    @Test
+    public void put_releasesTheChainWhenItDoesNotFit() throws Exception {
+        SlabStore store = new SlabStore(SlabStore.ARENA_SIZE);
+        SlabStore.Slab small = store.put(new byte[KB]);
+
+        // three 256KB blocks fit in no arena left, the ones taken are given back
+        assertNull(store.put(new byte[768 * KB]));
+        assertEquals(KB, store.size());
+        assertNotNull(small.getBytes());
+    }
+
+    @Test
+    public void trimMemory_releasesEmptyArenasAndCapsGrowth() throws Exception {
+        SlabStore store = new SlabStore(4 * SlabStore.ARENA_SIZE);
+        SlabStore.Slab kept = store.put(new byte[KB]);
+        List<SlabStore.Slab> slabs = new ArrayList<SlabStore.Slab>();
+        for (int i = 0; i < 8; i++) {
+            slabs.add(store.put(new byte[256 * KB]));
+        }
+        assertEquals(3 * SlabStore.ARENA_SIZE, store.capacity());
+        for (SlabStore.Slab slab : slabs) {
+            slab.free();
+        }
+
+        store.trimMemory(0f);
+        assertEquals(SlabStore.ARENA_SIZE, store.capacity()); // the arena in use stays
+        assertNotNull(kept.getBytes());
+        assertNull(store.put(new byte[256 * KB]));
+
+        store.trimMemory(1f);
+        assertNotNull(store.put(new byte[256 * KB]));
+        assertEquals(2 * SlabStore.ARENA_SIZE, store.capacity());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
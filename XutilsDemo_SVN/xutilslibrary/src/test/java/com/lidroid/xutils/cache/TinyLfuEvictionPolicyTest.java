@@ -0,0 +1,128 @@
+package com.lidroid.xutils.cache;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TinyLfuEvictionPolicyTest {
+
+    private static final int CACHE_SIZE = 100;
+
+    @Test
+    public void admit_prefersFrequentCandidate() throws Exception {
+        TinyLfuEvictionPolicy<String> policy = new TinyLfuEvictionPolicy<String>(100);
+        for (int i = 0; i < 5; i++) {
+            policy.recordAccess("hot");
+        }
+        policy.recordAccess("once");
+
+        assertTrue(policy.admit("hot", "once"));
+        assertFalse(policy.admit("once", "hot"));
+        assertFalse(policy.admit("once", "once")); // ties keep the victim
+    }
+
+    @Test
+    public void sketch_saturatesWithoutCarryUnderConcurrentIncrements() throws Exception {
+        final FrequencySketch sketch = new FrequencySketch(1024);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        sketch.increment("hot");
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(15, sketch.frequency("hot"));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, sketch.frequency("cold/" + i));
+        }
+    }
+
+    @Test
+    public void oneOffKeys_doNotFlushHotKeys() throws Exception {
+        LruMemoryCache<String, String> lru = new LruMemoryCache<String, String>(10, 1);
+        LruMemoryCache<String, String> tinyLfu = new LruMemoryCache<String, String>(10, 1);
+        tinyLfu.setEvictionPolicy(new TinyLfuEvictionPolicy<String>(10));
+        // Every third image of the scroll is one of 8 avatars, each seen again 24 images later.
+        for (int i = 0; i < 1200; i++) {
+            access(lru, "scroll/" + i);
+            access(tinyLfu, "scroll/" + i);
+            if (i % 3 == 0) {
+                access(lru, "avatar/" + (i / 3 % 8));
+                access(tinyLfu, "avatar/" + (i / 3 % 8));
+            }
+        }
+
+        assertTrue(countAvatars(lru) <= 2);
+        assertTrue(countAvatars(tinyLfu) >= 6);
+    }
+
+    private static int countAvatars(LruMemoryCache<String, String> cache) {
+        int count = 0;
+        for (int i = 0; i < 8; i++) {
+            if (cache.containsKey("avatar/" + i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replays feed-scroll.trace, one access in three to 50 hot keys and the
+     * rest to one-off images, and compares the hit rates of LRU and TinyLFU.
+     */
+    @Test
+    public void replayedTrace_tinyLfuHitsMoreThanLru() throws Exception {
+        List<String> trace = readTrace("feed-scroll.trace");
+
+        LruMemoryCache<String, String> lru = new LruMemoryCache<String, String>(CACHE_SIZE, 1);
+        LruMemoryCache<String, String> tinyLfu = new LruMemoryCache<String, String>(CACHE_SIZE, 1);
+        tinyLfu.setEvictionPolicy(new TinyLfuEvictionPolicy<String>(CACHE_SIZE));
+        for (String key : trace) {
+            access(lru, key);
+            access(tinyLfu, key);
+        }
+
+        assertEquals(trace.size(), lru.hitCount() + lru.missCount());
+        assertEquals(trace.size(), tinyLfu.hitCount() + tinyLfu.missCount());
+        assertTrue(tinyLfu.hitCount() > lru.hitCount() * 5 / 4);
+    }
+
+    private static void access(LruMemoryCache<String, String> cache, String key) {
+        if (cache.get(key) == null) {
+            cache.put(key, key);
+        }
+    }
+
+    private List<String> readTrace(String name) throws Exception {
+        InputStream in = getClass().getResourceAsStream(name);
+        assertNotNull(name + " not found", in);
+        List<String> keys = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    keys.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return keys;
+    }
+}
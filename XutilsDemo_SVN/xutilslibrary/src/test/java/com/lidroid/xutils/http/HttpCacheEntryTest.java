@@ -0,0 +1,66 @@
+package com.lidroid.xutils.http;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class HttpCacheEntryTest {
+
+    @Test
+    public void staleWhileRevalidate_followsCacheControl() throws Exception {
+        assertEquals(30000, entry(new BasicHeader("Cache-Control", "max-age=60, stale-while-revalidate=30"))
+                .getStaleWhileRevalidate());
+        assertEquals(0, entry(new BasicHeader("Cache-Control", "max-age=60")).getStaleWhileRevalidate());
+        assertEquals(-1, entry(new BasicHeader("Cache-Control", "max-age=60, must-revalidate"))
+                .getStaleWhileRevalidate());
+        assertEquals(-1, entry(new BasicHeader("Pragma", "no-cache")).getStaleWhileRevalidate());
+    }
+
+    @Test
+    public void hasValidators_needsETagOrLastModified() throws Exception {
+        assertFalse(entry(new BasicHeader("Cache-Control", "max-age=60")).hasValidators());
+        assertTrue(entry(new BasicHeader("etag", "\"v1\"")).hasValidators());
+        assertTrue(entry(new BasicHeader("Last-Modified", "Tue, 15 Nov 1994 12:45:26 GMT")).hasValidators());
+    }
+
+    @Test
+    public void metadata_roundTrips() throws Exception {
+        HttpCacheEntry entry = new HttpCacheEntry(203, "Non-Authoritative", new Header[]{
+                new BasicHeader("ETag", "\"v1\""), new BasicHeader("Content-Type", "text/plain")},
+                "body".getBytes("UTF-8"), "UTF-8", 12345L);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        entry.writeMetadata(new DataOutputStream(bytes));
+
+        HttpCacheEntry read = HttpCacheEntry.readMetadata(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), entry.getBody());
+        assertEquals(203, read.getStatusCode());
+        assertEquals("Non-Authoritative", read.getReasonPhrase());
+        assertEquals("UTF-8", read.getCharset());
+        assertEquals(12345L, read.getExpiryTimestamp());
+        assertEquals("\"v1\"", read.getFirstHeader("etag").getValue());
+        assertEquals("text/plain", read.getContentType());
+        assertEquals("body", read.getResult());
+    }
+
+    @Test(expected = IOException.class)
+    public void readMetadata_rejectsOtherFormatVersion() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeInt(200);
+        HttpCacheEntry.readMetadata(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), new byte[0]);
+    }
+
+    private static HttpCacheEntry entry(Header header) throws Exception {
+        return new HttpCacheEntry(200, "OK", new Header[]{header}, "body".getBytes("UTF-8"), "UTF-8",
+                System.currentTimeMillis() + 60000);
+    }
+}
@@ -0,0 +1,147 @@
+package com.lidroid.xutils.http;
+
+import com.lidroid.xutils.cache.SlabStore;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the garbage collection of {@link HttpCache} with its bodies on the
+ * heap and in a {@link SlabStore}, run by hand rather than in the unit tests
+ * (timings are not asserted anywhere), one setup per JVM so that neither
+ * inherits the other's heap:
+ * <pre>
+ * java -Xmx192m -cp &lt;test and main classes&gt; com.lidroid.xutils.http.HttpCacheGcBenchmark heap|off-heap [puts]
+ * </pre>
+ * A feed puts {@code puts} fresh 48KB bodies, 300000 by default, into a
+ * cache of {@link #CACHED_BODIES} of them, reads one of ten hot entries
+ * after each put and makes 2KB of short-lived garbage. The collections, their
+ * total and longest pauses, the 99th percentile pause and the heap retained
+ * after a full collection are printed.
+ */
+public final class HttpCacheGcBenchmark {
+
+    private static final String URL = "http://example.com/feed";
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final int BODY_SIZE = 48 * 1024;
+    private static final int CACHED_BODIES = 1500;
+
+    private static volatile Object sink; // 让短命对象不被优化掉
+
+    private HttpCacheGcBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "heap";
+        int puts = args.length > 1 ? Integer.parseInt(args[1]) : 300000;
+        if (!"heap".equals(mode) && !"off-heap".equals(mode)) {
+            throw new IllegalArgumentException("heap or off-heap: " + mode);
+        }
+        boolean offHeap = "off-heap".equals(mode);
+        System.out.println(mode + ", " + puts + " puts of " + (BODY_SIZE / 1024) + "KB, "
+                + (Runtime.getRuntime().maxMemory() >> 20) + "MB heap");
+
+        runFeed(offHeap, puts / 10); // warm-up, with a store of its own
+        PauseRecorder recorder = new PauseRecorder();
+        long begin = System.nanoTime();
+        HttpCache cache = runFeed(offHeap, puts);
+        long elapsedMs = (System.nanoTime() - begin) / 1000000;
+        recorder.stop();
+
+        List<Long> pauses = recorder.getPauses();
+        Collections.sort(pauses);
+        long total = 0;
+        for (long pause : pauses) {
+            total += pause;
+        }
+        System.out.println("elapsed " + elapsedMs + " ms, " + pauses.size() + " collections, " + total + " ms in GC");
+        if (!pauses.isEmpty()) {
+            System.out.println("pause p99 " + pauses.get((int) Math.min(pauses.size() - 1, pauses.size() * 99L / 100))
+                    + " ms, max " + pauses.get(pauses.size() - 1) + " ms");
+        }
+        System.out.println("retained heap " + (usedHeapAfterGc() >> 20) + "MB"
+                + (offHeap ? ", off the heap " + (cache.getOffHeapStore().size() >> 20) + "MB" : ""));
+        if (cache.get(URL + "/hot0") == null) {
+            System.out.println("hot entry lost");
+        }
+    }
+
+    private static HttpCache runFeed(boolean offHeap, int puts) {
+        HttpCache cache = new HttpCache(CACHED_BODIES * BODY_SIZE, HOUR, 1);
+        if (offHeap) {
+            // room for every cached body, whatever the arenas lose to rounding
+            cache.setOffHeapStore(new SlabStore(2L * CACHED_BODIES * BODY_SIZE), 1024);
+        }
+        Random random = new Random(42);
+        char[] chars = new char[BODY_SIZE];
+        for (int i = 0; i < puts; i++) {
+            chars[i % BODY_SIZE] = (char) ('a' + i % 26);
+            cache.put(URL + "/" + i, new String(chars)); // a body fresh from the network
+            String hot = URL + "/hot" + random.nextInt(10);
+            if (cache.get(hot) == null) {
+                cache.put(hot, new String(chars));
+            }
+            sink = new byte[2048]; // the garbage of parsing it
+        }
+        return cache;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Records the duration of each collection from the notifications of the
+     * HotSpot collectors, in milliseconds.
+     */
+    private static final class PauseRecorder implements NotificationListener {
+        private final List<Long> pauses = Collections.synchronizedList(new ArrayList<Long>());
+        private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+        PauseRecorder() {
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (bean instanceof NotificationEmitter) {
+                    NotificationEmitter emitter = (NotificationEmitter) bean;
+                    emitter.addNotificationListener(this, null, null);
+                    emitters.add(emitter);
+                }
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                        (CompositeData) notification.getUserData());
+                pauses.add(info.getGcInfo().getDuration());
+            }
+        }
+
+        void stop() throws Exception {
+            Thread.sleep(200); // 通知是异步发出的
+            for (NotificationEmitter emitter : emitters) {
+                emitter.removeNotificationListener(this);
+            }
+        }
+
+        List<Long> getPauses() {
+            synchronized (pauses) {
+                return new ArrayList<Long>(pauses);
+            }
+        }
+    }
+}
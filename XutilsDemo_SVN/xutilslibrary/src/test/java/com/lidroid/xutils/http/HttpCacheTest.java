@@ -0,0 +1,155 @@
+package com.lidroid.xutils.http;
+
+import com.lidroid.xutils.cache.SlabStore;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HttpCacheTest {
+
+    private static final String URL = "http://example.com/feed";
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void put_maxAgeOverridesDefaultExpiry() throws Exception {
+        HttpCache cache = new HttpCache(1024 * 1024, HOUR);
+        cache.put(URL, response("Cache-Control", "public, max-age=120"), "feed", HOUR);
+
+        HttpCacheEntry entry = cache.getEntry(URL);
+        assertNotNull(entry);
+        assertEquals("feed", entry.getResult());
+        long lifetime = entry.getExpiryTimestamp() - System.currentTimeMillis();
+        assertTrue(lifetime > 110 * 1000 && lifetime <= 120 * 1000);
+    }
+
+    @Test
+    public void put_noStoreRemovesEntry() throws Exception {
+        HttpCache cache = new HttpCache(1024 * 1024, HOUR);
+        cache.put(URL, "old");
+        cache.put(URL, response("Cache-Control", "no-store"), "feed", HOUR);
+        assertNull(cache.getEntry(URL));
+    }
+
+    @Test
+    public void put_expiresIsRelativeToServerDate() throws Exception {
+        HttpCache cache = new HttpCache(1024 * 1024, HOUR);
+        long serverNow = System.currentTimeMillis() - 10 * HOUR; // server clock far behind
+        HttpResponse response = response("Date", DateUtils.formatDate(new Date(serverNow)));
+        response.addHeader("Expires", DateUtils.formatDate(new Date(serverNow + HOUR)));
+        cache.put(URL, response, "feed", 0);
+
+        long lifetime = cache.getEntry(URL).getExpiryTimestamp() - System.currentTimeMillis();
+        assertTrue(lifetime > HOUR - 5000 && lifetime <= HOUR);
+    }
+
+    @Test
+    public void staleEntryWithValidator_isKeptOnDiskForRevalidation() throws Exception {
+        HttpCache cache = new HttpCache(1024 * 1024, HOUR);
+        cache.setDiskCache(temp.newFolder("http"), 1024 * 1024);
+        HttpResponse response = response("Cache-Control", "no-cache");
+        response.addHeader("ETag", "\"v1\"");
+        cache.put(URL, response, "feed", HOUR);
+
+        HttpCacheEntry stale = cache.getEntry(URL);
+        assertNotNull(stale);
+        assertFalse(stale.isFresh());
+        assertNull(cache.get(URL));
+
+        HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "Not Modified");
+        notModified.addHeader("Cache-Control", "max-age=60");
+        HttpCacheEntry refreshed = cache.putNotModified(URL, stale, notModified, HOUR);
+        assertTrue(refreshed.isFresh());
+        assertEquals("\"v1\"", refreshed.getFirstHeader("ETag").getValue());
+        assertEquals("max-age=60", refreshed.getFirstHeader("Cache-Control").getValue());
+        assertEquals("feed", cache.get(URL));
+    }
+
+    @Test
+    public void staleEntryWithoutValidator_isDropped() throws Exception {
+        HttpCache cache = new HttpCache(1024 * 1024, HOUR);
+        cache.setDiskCache(temp.newFolder("http"), 1024 * 1024);
+        cache.put(URL, response("Cache-Control", "max-age=0"), "feed", HOUR);
+        assertNull(cache.getEntry(URL));
+    }
+
+    @Test
+    public void offHeapBody_isPromotedToHeapOnFirstHit() throws Exception {
+        HttpCache cache = new HttpCache(1024 * 1024, HOUR);
+        SlabStore store = new SlabStore(SlabStore.ARENA_SIZE);
+        cache.setOffHeapStore(store, 1024);
+        cache.put(URL, body(32 * 1024, 'x'));
+        assertTrue(store.size() >= 32 * 1024);
+
+        HttpCacheEntry first = cache.getEntry(URL);
+        assertEquals(32 * 1024, first.getBody().length);
+        assertEquals(0, store.size()); // the off-heap copy was freed
+        assertSame(first, cache.getEntry(URL));
+    }
+
+    /**
+     * Feed-like load: large responses keep replacing each other in the memory
+     * tier while a few hot ones are read again and again. The bodies not read
+     * since they were cached stay off the heap, the hot ones are promoted, and
+     * the store holds the blocks of the kept entries only.
+     */
+    @Test
+    public void offHeapStore_keepsColdBodiesOffTheHeap() throws Exception {
+        final int bodySize = 48 * 1024; // exactly one block of the 48KB class
+        HttpCache cache = new HttpCache(200 * bodySize, HOUR, 1);
+        SlabStore store = new SlabStore(16 * SlabStore.ARENA_SIZE);
+        cache.setOffHeapStore(store, 1024);
+        String[] bodies = new String[8];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = body(bodySize, (char) ('a' + i));
+        }
+        for (int i = 0; i < 2000; i++) {
+            cache.put(URL + "/" + i, bodies[i % bodies.length]);
+            String hotUrl = URL + "/hot" + (i % 10);
+            if (cache.get(hotUrl) == null) {
+                cache.put(hotUrl, bodies[0]);
+                assertNotNull(cache.get(hotUrl));
+            }
+        }
+
+        Map<String, HttpCacheEntry> kept = cache.snapshotMemory();
+        int cold = 0;
+        for (Map.Entry<String, HttpCacheEntry> entry : kept.entrySet()) {
+            boolean hot = entry.getKey().contains("/hot");
+            assertEquals(entry.getKey(), !hot, entry.getValue().isOffHeap());
+            if (!hot) {
+                cold++;
+            }
+        }
+        assertEquals(10, kept.size() - cold);
+        assertTrue(cold > 100);
+        assertEquals((long) cold * bodySize, store.size());
+
+        cache.clear();
+        assertEquals(0, store.size());
+    }
+
+    private static String body(int length, char c) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static HttpResponse response(String headerName, String headerValue) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader(headerName, headerValue);
+        return response;
+    }
+}
@@ -0,0 +1,200 @@
+package com.lidroid.xutils.task;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PoolSizeControllerTest {
+
+    private static final int MAX_POOL_SIZE = 8;
+
+    /**
+     * A pool that never runs anything: the controller only reads its sizes.
+     */
+    private static final class FakePool extends ThreadPoolExecutor {
+        volatile int activeCount;
+
+        FakePool(int corePoolSize) {
+            super(corePoolSize, 256, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        @Override
+        public int getActiveCount() {
+            return activeCount;
+        }
+    }
+
+    @Test
+    public void grows_whenEveryWorkerIsBusyAndTasksWait() throws Exception {
+        FakePool pool = new FakePool(1);
+        pool.activeCount = 1;
+        PriorityObjectBlockingQueue<Runnable> queue = new PriorityObjectBlockingQueue<Runnable>();
+        queue.offer(new NoopTask());
+        Thread.sleep(50); // longer than the 20ms a queued task may wait
+
+        PoolSizeController controller = new PoolSizeController(pool, queue, 1, MAX_POOL_SIZE);
+        controller.evaluate(System.nanoTime());
+
+        // No task timed yet: half the time is assumed blocked, 2 workers per core.
+        assertTrue(controller.getTargetPoolSize() >= 2);
+        assertEquals(PoolSizeController.Decision.GROW, controller.getLastDecision());
+        assertEquals(2, pool.getCorePoolSize());
+        assertEquals(1, controller.getGrowCount());
+        assertEquals(1, controller.getQueueDepth());
+    }
+
+    @Test
+    public void holds_whenTasksWaitButThePoolIsAtItsTarget() throws Exception {
+        FakePool pool = new FakePool(1);
+        pool.activeCount = 1;
+        PriorityObjectBlockingQueue<Runnable> queue = new PriorityObjectBlockingQueue<Runnable>();
+        queue.offer(new NoopTask());
+        Thread.sleep(50);
+
+        PoolSizeController controller = new PoolSizeController(pool, queue, 1, 1);
+        controller.evaluate(System.nanoTime());
+
+        assertEquals(PoolSizeController.Decision.HOLD, controller.getLastDecision());
+        assertEquals(1, pool.getCorePoolSize());
+        assertEquals(0, controller.getGrowCount());
+    }
+
+    @Test
+    public void holds_whileQueuedTasksAreFresh() throws Exception {
+        FakePool pool = new FakePool(1);
+        pool.activeCount = 1;
+        PriorityObjectBlockingQueue<Runnable> queue = new PriorityObjectBlockingQueue<Runnable>();
+        queue.offer(new NoopTask());
+
+        PoolSizeController controller = new PoolSizeController(pool, queue, 1, MAX_POOL_SIZE);
+        controller.evaluate(System.nanoTime());
+
+        assertEquals(PoolSizeController.Decision.HOLD, controller.getLastDecision());
+        assertEquals(1, pool.getCorePoolSize());
+    }
+
+    @Test
+    public void shrinks_byOneWhenAboveTheTarget() throws Exception {
+        FakePool pool = new FakePool(3);
+        PoolSizeController controller = new PoolSizeController(pool, new PriorityObjectBlockingQueue<Runnable>(), 1, 1);
+        controller.evaluate(System.nanoTime());
+
+        assertEquals(PoolSizeController.Decision.SHRINK, controller.getLastDecision());
+        assertEquals(2, pool.getCorePoolSize());
+        assertEquals(1, controller.getShrinkCount());
+    }
+
+    @Test
+    public void shrinks_afterTwoIdleIntervals() throws Exception {
+        FakePool pool = new FakePool(2);
+        PoolSizeController controller = new PoolSizeController(pool, new PriorityObjectBlockingQueue<Runnable>(), 1, 2);
+
+        controller.evaluate(System.nanoTime());
+        assertEquals(PoolSizeController.Decision.HOLD, controller.getLastDecision());
+        assertEquals(2, pool.getCorePoolSize());
+
+        controller.evaluate(System.nanoTime());
+        assertEquals(PoolSizeController.Decision.SHRINK, controller.getLastDecision());
+        assertEquals(1, pool.getCorePoolSize());
+
+        // never below the pool size
+        controller.evaluate(System.nanoTime());
+        controller.evaluate(System.nanoTime());
+        assertEquals(PoolSizeController.Decision.HOLD, controller.getLastDecision());
+        assertEquals(1, pool.getCorePoolSize());
+    }
+
+    @Test
+    public void taskTypeStats_areKeyedOnTheAsyncTaskClass() throws Exception {
+        PoolSizeController controller = new PoolSizeController(new FakePool(1),
+                new PriorityObjectBlockingQueue<Runnable>(), 1, MAX_POOL_SIZE);
+        final Runnable[] submitted = new Runnable[1];
+        new SampleTask().executeOnExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitted[0] = command;
+            }
+        });
+
+        controller.beforeExecute();
+        controller.afterExecute(submitted[0]);
+        controller.beforeExecute();
+        controller.afterExecute(new PriorityRunnable(Priority.DEFAULT, new NoopTask()));
+
+        Map<String, PoolSizeController.TaskTypeStats> stats = controller.getTaskTypeStats();
+        assertEquals(2, stats.size());
+        assertEquals(1, stats.get(SampleTask.class.getName()).getTaskCount());
+        assertEquals(1, stats.get(NoopTask.class.getName()).getTaskCount());
+    }
+
+    @Test
+    public void blockingRatio_weightsEachTaskTypeByItsTaskCount() throws Exception {
+        PoolSizeController controller = new PoolSizeController(new FakePool(1),
+                new PriorityObjectBlockingQueue<Runnable>(), 1, MAX_POOL_SIZE);
+        controller.record(new NoopTask(), ms(200), 0, 0); // blocked all along
+        for (int i = 0; i < 3; i++) {
+            controller.record(new SampleRunnable(), ms(20), 0, ms(20)); // on the CPU all along
+        }
+        controller.evaluate(System.nanoTime());
+
+        // 200 of the 260ms were spent blocked, but one task in four blocks.
+        assertEquals(0.25, controller.getBlockingRatio(), 0.001);
+        Map<String, PoolSizeController.TaskTypeStats> stats = controller.getTaskTypeStats();
+        assertEquals(1.0, stats.get(NoopTask.class.getName()).getBlockingRatio(), 0.001);
+        assertEquals(0.0, stats.get(SampleRunnable.class.getName()).getBlockingRatio(), 0.001);
+
+        // the next interval only counts its own tasks
+        controller.record(new SampleRunnable(), ms(20), 0, ms(20));
+        controller.evaluate(System.nanoTime());
+        assertEquals(0.0, controller.getBlockingRatio(), 0.001);
+    }
+
+    @Test
+    public void blockingRatio_leavesOutTheWaitsAtAStageGate() throws Exception {
+        FakePool pool = new FakePool(1);
+        pool.activeCount = 1;
+        PriorityObjectBlockingQueue<Runnable> queue = new PriorityObjectBlockingQueue<Runnable>();
+        queue.offer(new NoopTask());
+        Thread.sleep(50);
+        PoolSizeController controller = new PoolSizeController(pool, queue, 1, MAX_POOL_SIZE);
+        // decodes waiting 150ms for the gate, then 20ms on the CPU
+        for (int i = 0; i < 4; i++) {
+            controller.record(new SampleRunnable(), ms(170), ms(150), ms(20));
+        }
+        controller.evaluate(System.nanoTime());
+
+        assertEquals(0.0, controller.getBlockingRatio(), 0.001);
+        // no more workers than cores, where 2 per core were assumed before
+        assertEquals(Math.min(MAX_POOL_SIZE, Runtime.getRuntime().availableProcessors()), controller.getTargetPoolSize());
+        assertEquals(170, controller.getAverageTaskTime(TimeUnit.MILLISECONDS));
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static final class SampleRunnable implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    private static final class NoopTask implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    private static final class SampleTask extends PriorityAsyncTask<Object, Object, Object> {
+        @Override
+        protected Object doInBackground(Object... params) {
+            return null;
+        }
+    }
+}
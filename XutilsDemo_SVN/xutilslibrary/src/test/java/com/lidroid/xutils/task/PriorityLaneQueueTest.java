@@ -0,0 +1,131 @@
+package com.lidroid.xutils.task;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class PriorityLaneQueueTest {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    @Test
+    public void poll_agesByDefaultButKeepsPriorityOfFreshElements() throws Exception {
+        PriorityLaneQueue<PriorityObject<String>> queue = new PriorityLaneQueue<PriorityObject<String>>();
+        assertEquals(PriorityLaneQueue.DEFAULT_AGING_INTERVAL, queue.getAgingInterval());
+        queue.offer(new PriorityObject<String>(Priority.BG_LOW, "low"));
+        queue.offer(new PriorityObject<String>(Priority.UI_TOP, "top"));
+
+        assertEquals("top", queue.poll().obj);
+        assertEquals("low", queue.poll().obj);
+    }
+
+    @Test
+    public void poll_isStrictlyByPriorityWithoutAging() throws Exception {
+        PriorityLaneQueue<PriorityObject<String>> queue = new PriorityLaneQueue<PriorityObject<String>>();
+        queue.setAgingInterval(0);
+        queue.offer(new PriorityObject<String>(Priority.BG_LOW, "old"));
+        Thread.sleep(50);
+        queue.offer(new PriorityObject<String>(Priority.UI_TOP, "new"));
+
+        assertEquals("new", queue.poll().obj);
+        assertEquals("old", queue.poll().obj);
+    }
+
+    @Test
+    public void poll_agesWaitingElementsWhenEnabled() throws Exception {
+        PriorityLaneQueue<PriorityObject<String>> queue = new PriorityLaneQueue<PriorityObject<String>>();
+        queue.setAgingInterval(5);
+        queue.offer(new PriorityObject<String>(Priority.BG_LOW, "old"));
+        Thread.sleep(100); // 20 intervals, more than the 6 levels between BG_LOW and UI_TOP
+        queue.offer(new PriorityObject<String>(Priority.UI_TOP, "new"));
+
+        assertEquals("old", queue.poll().obj);
+        assertEquals("new", queue.poll().obj);
+    }
+
+    @Test
+    public void peekLevel_isThePriorityAfterAging() throws Exception {
+        PriorityLaneQueue<PriorityObject<String>> queue = new PriorityLaneQueue<PriorityObject<String>>();
+        assertEquals(-1, queue.peekLevel());
+        queue.offer(new PriorityObject<String>(Priority.BG_LOW, "low"));
+        assertEquals(Priority.BG_LOW.ordinal(), queue.peekLevel());
+
+        queue.setAgingInterval(5);
+        Thread.sleep(100);
+        assertEquals(0, queue.peekLevel());
+    }
+
+    /**
+     * Producers and consumers hammer each queue with tasks of random
+     * priorities: every task must be taken exactly once.
+     */
+    @Test
+    public void contention_takesEveryElementOnce() throws Exception {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        run(new PriorityObjectBlockingQueue<PriorityObject<Integer>>(), threads);
+        run(new PriorityLaneQueue<PriorityObject<Integer>>(), threads);
+    }
+
+    private static void run(final BlockingQueue<PriorityObject<Integer>> queue, final int threads) throws Exception {
+        final int perProducer = 20000;
+        final int total = perProducer * threads;
+        final AtomicIntegerArray takenCounts = new AtomicIntegerArray(total);
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            queue.offer(new PriorityObject<Integer>(PRIORITIES[(i * 31 + seed) % PRIORITIES.length],
+                                    seed * perProducer + i));
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (taken.get() < total) {
+                            PriorityObject<Integer> x = queue.poll(10, TimeUnit.MILLISECONDS);
+                            if (x != null) {
+                                takenCounts.incrementAndGet(x.obj);
+                                taken.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(total, taken.get());
+        for (int i = 0; i < total; i++) {
+            assertEquals(1, takenCounts.get(i));
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,176 @@
+package com.lidroid.xutils.task;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PriorityObjectBlockingQueueTest {
+
+    @Test
+    public void poll_isFifoWithinOnePriority() throws Exception {
+        PriorityObjectBlockingQueue<PriorityObject<Integer>> queue = new PriorityObjectBlockingQueue<PriorityObject<Integer>>();
+        for (int i = 0; i < 100; i++) {
+            queue.put(new PriorityObject<Integer>(Priority.DEFAULT, i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) queue.poll().obj);
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void poll_takesHigherPrioritiesFirst() throws Exception {
+        PriorityObjectBlockingQueue<Object> queue = new PriorityObjectBlockingQueue<Object>();
+        queue.offer(new PriorityObject<String>(Priority.BG_LOW, "low"));
+        queue.offer("plain"); // DEFAULT
+        queue.offer(new PriorityObject<String>(Priority.UI_TOP, "top1"));
+        queue.offer(new PriorityObject<String>(Priority.BG_TOP, "bg"));
+        queue.offer(new PriorityObject<String>(Priority.UI_TOP, "top2"));
+
+        assertEquals("top1", ((PriorityObject<?>) queue.peek()).obj);
+        List<Object> taken = new ArrayList<Object>();
+        Object x;
+        while ((x = queue.poll()) != null) {
+            taken.add(x instanceof PriorityObject ? ((PriorityObject<?>) x).obj : x);
+        }
+        assertEquals(list("top1", "top2", "plain", "bg", "low"), taken);
+    }
+
+    @Test
+    public void removeAndIteratorRemove_ofTheSameElementRemoveItOnce() throws Exception {
+        PriorityObjectBlockingQueue<String> queue = new PriorityObjectBlockingQueue<String>();
+        queue.offer("a");
+        queue.offer("a");
+        queue.offer("b");
+
+        Iterator<String> iterator = queue.iterator();
+        assertEquals("a", iterator.next());
+        assertTrue(queue.remove("a"));
+        iterator.remove(); // its node is gone already, the other "a" stays
+
+        assertEquals(2, queue.size());
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertEquals(0, queue.size());
+        try {
+            iterator.remove();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void iteratorRemove_removesTheVisitedNodeOnly() throws Exception {
+        PriorityObjectBlockingQueue<String> queue = new PriorityObjectBlockingQueue<String>();
+        queue.offer("a");
+        queue.offer("b");
+        queue.offer("a");
+
+        Iterator<String> iterator = queue.iterator();
+        iterator.next();
+        iterator.next();
+        assertEquals("a", iterator.next());
+        iterator.remove();
+
+        assertEquals(list("a", "b"), list(queue.toArray()));
+    }
+
+    @Test
+    public void drainTo_keepsTheElementACollectionRejects() throws Exception {
+        PriorityObjectBlockingQueue<String> queue = new PriorityObjectBlockingQueue<String>(4);
+        queue.offer("a");
+        queue.offer("b");
+        queue.offer("c");
+        queue.offer("d");
+        final List<String> drained = new ArrayList<String>();
+        List<String> failing = new ArrayList<String>() {
+            @Override
+            public boolean add(String s) {
+                if (drained.size() == 2) throw new IllegalStateException("full");
+                return drained.add(s);
+            }
+        };
+
+        try {
+            queue.drainTo(failing);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(list("a", "b"), drained);
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.remainingCapacity());
+        assertEquals("c", queue.poll());
+        assertEquals("d", queue.poll());
+    }
+
+    @Test
+    public void boundedQueue_blocksPutAndTimesOutOffer() throws Exception {
+        final PriorityObjectBlockingQueue<String> queue = new PriorityObjectBlockingQueue<String>(2);
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertFalse(queue.offer("c", 20, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.remainingCapacity());
+
+        final CountDownLatch putDone = new CountDownLatch(1);
+        Thread putter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.put("c");
+                    putDone.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        putter.start();
+        assertFalse(putDone.await(50, TimeUnit.MILLISECONDS));
+        assertEquals("a", queue.take());
+        assertTrue(putDone.await(5, TimeUnit.SECONDS));
+        putter.join();
+
+        assertEquals(list("b", "c"), list(queue.toArray()));
+    }
+
+    @Test
+    public void serialization_keepsOrderAndCapacity() throws Exception {
+        PriorityObjectBlockingQueue<String> queue = new PriorityObjectBlockingQueue<String>(3);
+        queue.offer("a");
+        queue.offer("b");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(queue);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        PriorityObjectBlockingQueue<String> copy = (PriorityObjectBlockingQueue<String>) in.readObject();
+
+        assertEquals(2, copy.size());
+        assertEquals(1, copy.remainingCapacity());
+        assertTrue(copy.offer("c"));
+        assertFalse(copy.offer("d"));
+        assertEquals("a", copy.poll());
+        assertEquals("b", copy.poll());
+        assertEquals("c", copy.poll(10, TimeUnit.MILLISECONDS));
+        assertNull(copy.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    private static List<Object> list(Object... values) {
+        List<Object> list = new ArrayList<Object>();
+        for (Object value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,152 @@
+package com.lidroid.xutils.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the work queues of {@link PriorityExecutor}, run by hand rather
+ * than in the unit tests (timings are not asserted anywhere):
+ * <pre>
+ * java -cp &lt;test and main classes&gt; com.lidroid.xutils.task.PriorityQueueBenchmark [threads]
+ * </pre>
+ * <ul>
+ * <li>contention: {@code threads} producers and as many consumers move
+ * 50000 tasks each of mixed priorities through the queue, the median of
+ * {@link #ROUNDS} rounds after a warm-up is printed;</li>
+ * <li>starvation: one consumer takes a steady flow of UI_TOP tasks, about
+ * one every 100µs with a little more coming in than it takes, as a scrolling
+ * list does with bitmap loads; a BG_LOW task queued at the start is
+ * reported with the time it waited, or as starved after
+ * {@link #STARVATION_LIMIT_MS}.</li>
+ * </ul>
+ */
+public final class PriorityQueueBenchmark {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+    private static final int ROUNDS = 5;
+    private static final int TASKS_PER_PRODUCER = 50000;
+    private static final long STARVATION_LIMIT_MS = 5000;
+
+    private PriorityQueueBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(2, Runtime.getRuntime().availableProcessors());
+        System.out.println(Runtime.getRuntime().availableProcessors() + " CPUs, " + threads + " producers and consumers");
+
+        long[] buckets = new long[ROUNDS];
+        long[] lanes = new long[ROUNDS];
+        contention(new PriorityObjectBlockingQueue<PriorityObject<Integer>>(), threads); // warm-up
+        contention(new PriorityLaneQueue<PriorityObject<Integer>>(), threads);
+        for (int round = 0; round < ROUNDS; round++) {
+            buckets[round] = contention(new PriorityObjectBlockingQueue<PriorityObject<Integer>>(), threads);
+            lanes[round] = contention(new PriorityLaneQueue<PriorityObject<Integer>>(), threads);
+        }
+        long total = (long) threads * TASKS_PER_PRODUCER;
+        print("contention", "PriorityObjectBlockingQueue", buckets, total);
+        print("contention", "PriorityLaneQueue", lanes, total);
+
+        System.out.println("starvation, PriorityObjectBlockingQueue: "
+                + starvation(new PriorityObjectBlockingQueue<PriorityObject<Integer>>()));
+        System.out.println("starvation, PriorityLaneQueue (aging " + PriorityLaneQueue.DEFAULT_AGING_INTERVAL + " ms): "
+                + starvation(new PriorityLaneQueue<PriorityObject<Integer>>()));
+    }
+
+    private static void print(String name, String queue, long[] nanos, long tasks) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long median = sorted[sorted.length / 2];
+        System.out.println(name + ", " + queue + ": " + TimeUnit.NANOSECONDS.toMillis(median) + " ms, "
+                + (median / tasks) + " ns per task (min " + TimeUnit.NANOSECONDS.toMillis(sorted[0])
+                + " ms, max " + TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length - 1]) + " ms)");
+    }
+
+    /**
+     * @return the nanoseconds until every task was taken.
+     */
+    private static long contention(final BlockingQueue<PriorityObject<Integer>> queue, int threads) throws Exception {
+        final int total = TASKS_PER_PRODUCER * threads;
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < TASKS_PER_PRODUCER; i++) {
+                            queue.offer(new PriorityObject<Integer>(PRIORITIES[(i * 31 + seed) % PRIORITIES.length], i));
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (taken.get() < total) {
+                            if (queue.poll(10, TimeUnit.MILLISECONDS) != null) {
+                                taken.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (taken.get() != total || !queue.isEmpty()) {
+            throw new IllegalStateException("lost tasks: " + taken.get() + " of " + total);
+        }
+        return elapsed;
+    }
+
+    /**
+     * @return how long the BG_LOW task waited, and how many UI_TOP tasks were taken meanwhile.
+     */
+    private static String starvation(BlockingQueue<PriorityObject<Integer>> queue) throws Exception {
+        long taskNanos = TimeUnit.MICROSECONDS.toNanos(100);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(new PriorityObject<Integer>(Priority.UI_TOP, i)); // a backlog the flow keeps up
+        }
+        queue.offer(new PriorityObject<Integer>(Priority.BG_LOW, -1));
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(STARVATION_LIMIT_MS);
+        int uiTaken = 0;
+        while (System.nanoTime() < deadline) {
+            // 11 tasks in for every 10 taken: the queue never drains
+            if (uiTaken % 10 == 0) {
+                queue.offer(new PriorityObject<Integer>(Priority.UI_TOP, uiTaken));
+            }
+            queue.offer(new PriorityObject<Integer>(Priority.UI_TOP, uiTaken));
+            PriorityObject<Integer> task = queue.take();
+            if (task.priority == Priority.BG_LOW) {
+                return "BG_LOW taken after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)
+                        + " ms, " + uiTaken + " UI_TOP tasks before it";
+            }
+            uiTaken++;
+            long end = System.nanoTime() + taskNanos;
+            while (System.nanoTime() < end) {
+                // the task's work
+            }
+        }
+        return "BG_LOW starved, still queued after " + STARVATION_LIMIT_MS + " ms and " + uiTaken + " UI_TOP tasks";
+    }
+}
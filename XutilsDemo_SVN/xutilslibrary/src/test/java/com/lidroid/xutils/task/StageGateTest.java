@@ -0,0 +1,195 @@
+package com.lidroid.xutils.task;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StageGateTest {
+
+    @Test
+    public void enter_admitsWaitersByPriorityThenByArrival() throws Exception {
+        final StageGate gate = new StageGate(1);
+        gate.enter(Priority.DEFAULT);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        String[] names = {"low", "top1", "default", "top2", "null"};
+        Priority[] priorities = {Priority.BG_LOW, Priority.UI_TOP, Priority.DEFAULT, Priority.UI_TOP, null};
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            final Priority priority = priorities[i];
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        gate.enter(priority);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    order.add(name);
+                    gate.leave();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+            awaitWaiting(gate, i + 1); // one at a time, to fix the arrival order
+        }
+
+        gate.leave();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(list("top1", "top2", "default", "null", "low"), order);
+        assertEquals(0, gate.getActiveCount());
+        assertEquals(0, gate.getWaitingCount());
+    }
+
+    @Test
+    public void enter_interruptedBeforeAdmission_leavesNoWaiterBehind() throws Exception {
+        final StageGate gate = new StageGate(1);
+        gate.enter(Priority.DEFAULT);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    gate.enter(Priority.UI_TOP);
+                    gate.leave();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+        };
+        thread.start();
+        awaitWaiting(gate, 1);
+        thread.interrupt();
+        thread.join(5000);
+
+        assertTrue(interrupted.get());
+        assertEquals(0, gate.getWaitingCount());
+        assertEquals(1, gate.getActiveCount());
+
+        // The leave admits no one, and a new thread takes the fast path again.
+        gate.leave();
+        assertEquals(0, gate.getActiveCount());
+        gate.enter(Priority.BG_LOW);
+        assertEquals(1, gate.getActiveCount());
+        gate.leave();
+    }
+
+    @Test
+    public void setPermits_belowTheActiveCountHoldsWaitersUntilEnoughLeave() throws Exception {
+        final StageGate gate = new StageGate(3);
+        for (int i = 0; i < 3; i++) {
+            gate.enter(Priority.DEFAULT);
+        }
+        gate.setPermits(0); // ignored
+        assertEquals(3, gate.getPermits());
+        gate.setPermits(1);
+        assertEquals(3, gate.getActiveCount());
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    gate.enter(Priority.UI_TOP);
+                    entered.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        thread.start();
+        awaitWaiting(gate, 1);
+
+        gate.leave();
+        gate.leave();
+        assertFalse(entered.await(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, gate.getActiveCount());
+        assertEquals(1, gate.getWaitingCount());
+
+        gate.leave();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, gate.getActiveCount());
+        assertEquals(0, gate.getWaitingCount());
+        gate.leave();
+        thread.join(5000);
+    }
+
+    @Test
+    public void leave_withoutEnterThrowsAndKeepsTheCounts() throws Exception {
+        StageGate gate = new StageGate(2);
+        try {
+            gate.leave();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        gate.enter(Priority.DEFAULT);
+        gate.leave();
+        try {
+            gate.leave();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(0, gate.getActiveCount());
+
+        gate.enter(Priority.DEFAULT);
+        gate.enter(Priority.DEFAULT);
+        assertEquals(2, gate.getActiveCount());
+    }
+
+    @Test
+    public void threadWaitNanos_addsUpTheWaitsOfTheCallingThread() throws Exception {
+        final StageGate gate = new StageGate(1);
+        final long[] waited = new long[2];
+        gate.enter(Priority.DEFAULT);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waited[0] = StageGate.getThreadWaitNanos();
+                    gate.enter(Priority.DEFAULT);
+                    waited[1] = StageGate.getThreadWaitNanos();
+                    gate.leave();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        thread.start();
+        awaitWaiting(gate, 1);
+        Thread.sleep(100);
+        long mainWait = StageGate.getThreadWaitNanos();
+        gate.leave();
+        thread.join(5000);
+
+        assertEquals(0, waited[0]);
+        assertTrue(waited[1] >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(mainWait, StageGate.getThreadWaitNanos()); // this thread never waited
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsNoPermits() throws Exception {
+        new StageGate(0);
+    }
+
+    private static void awaitWaiting(StageGate gate, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (gate.getWaitingCount() < count) {
+            assertTrue("waiters: " + gate, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<Object> list(Object... values) {
+        List<Object> list = new ArrayList<Object>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
@@ -0,0 +1,159 @@
+package com.lidroid.xutils.task;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class WorkStealingPoolTest {
+
+    @Test
+    public void forkedTasks_takeTurnsWithQueuedOnesByPriority() throws Exception {
+        final PriorityExecutor executor = new PriorityExecutor(1, true);
+        assertTrue(executor.isWorkStealing());
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch forked = new CountDownLatch(1);
+        final CountDownLatch queued = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(record(Priority.BG_LOW, "forked-low", order, done));
+                executor.execute(record(Priority.UI_TOP, "forked-top", order, done));
+                forked.countDown();
+                await(queued);
+            }
+        });
+        assertTrue(forked.await(5, TimeUnit.SECONDS));
+        // The only worker is busy: this one waits in the shared queue.
+        executor.execute(record(Priority.DEFAULT, "queued", order, done));
+        queued.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(list("forked-top", "queued", "forked-low"), order);
+    }
+
+    @Test
+    public void forkedTask_isStolenByAnIdleWorker() throws Exception {
+        final PriorityExecutor executor = new PriorityExecutor(2, true);
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicReference<Thread> childThread = new AtomicReference<Thread>();
+        final AtomicReference<Thread> parentThread = new AtomicReference<Thread>();
+        final CountDownLatch childDone = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                parentThread.set(Thread.currentThread());
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        childThread.set(Thread.currentThread());
+                        childDone.countDown();
+                    }
+                });
+                // The parent holds its worker until the child ran elsewhere.
+                await(childDone);
+            }
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(childDone.await(5, TimeUnit.SECONDS));
+        assertNotSame(parentThread.get(), childThread.get());
+    }
+
+    @Test
+    public void forkedTasks_stayBoundedByTheStageGate() throws Exception {
+        final PriorityExecutor executor = new PriorityExecutor(3, true);
+        final StageGate gate = new StageGate(1);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger maxInside = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(12);
+        for (int i = 0; i < 3; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 4; j++) {
+                        final Priority priority = j % 2 == 0 ? Priority.UI_TOP : Priority.BG_LOW;
+                        executor.execute(new PriorityRunnable(priority, new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    gate.enter(priority);
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                                try {
+                                    int now = inside.incrementAndGet();
+                                    synchronized (maxInside) {
+                                        maxInside.set(Math.max(maxInside.get(), now));
+                                    }
+                                    Thread.sleep(5);
+                                    inside.decrementAndGet();
+                                } catch (InterruptedException ignored) {
+                                } finally {
+                                    gate.leave();
+                                    done.countDown();
+                                }
+                            }
+                        }));
+                    }
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, maxInside.get());
+        assertEquals(0, gate.getActiveCount());
+        assertEquals(0, gate.getWaitingCount());
+    }
+
+    @Test
+    public void workStealingPool_keepsItsSize() throws Exception {
+        PriorityExecutor executor = new PriorityExecutor(2, true);
+        executor.setMaxPoolSize(8);
+        assertNull(executor.getPoolSizeController());
+        assertEquals(2, executor.getMaxPoolSize());
+        executor.setPoolSize(3);
+        assertEquals(3, executor.getPoolSize());
+        assertFalse(executor.isBusy());
+    }
+
+    private static Runnable record(Priority priority, final String name, final List<String> order,
+                                   final CountDownLatch done) {
+        return new PriorityRunnable(priority, new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                done.countDown();
+            }
+        });
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static List<Object> list(Object... values) {
+        List<Object> list = new ArrayList<Object>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}